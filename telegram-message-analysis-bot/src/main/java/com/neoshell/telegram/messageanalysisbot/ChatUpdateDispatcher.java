@@ -0,0 +1,297 @@
+package com.neoshell.telegram.messageanalysisbot;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+/**
+ * Runs tasks of the same chat one by one in submission order, and tasks of
+ * different chats in parallel on a bounded number of workers.
+ *
+ * Uses virtual threads if the JVM supports them (Java 21+), otherwise a fixed
+ * platform thread pool. Either way at most numWorkers chats are processed at
+ * the same time.
+ */
+public class ChatUpdateDispatcher {
+
+  // Max number of tasks a chat runs before yielding its worker to other chats.
+  private static final int MAX_TASKS_PER_TURN = 8;
+  private static final int MAX_CHATS_IN_STATS = 10;
+
+  private int numWorkers;
+  private int maxQueuedTasksPerChat;
+  private ExecutorService executor;
+  private Semaphore workerPermits;
+  private boolean usesVirtualThreads;
+
+  private Map<Long, ChatLane> lanes = new ConcurrentHashMap<>();
+  private AtomicInteger numQueued = new AtomicInteger();
+  private AtomicLong numCompleted = new AtomicLong();
+  private AtomicLong numRejected = new AtomicLong();
+  private AtomicLong numFailed = new AtomicLong();
+
+  public ChatUpdateDispatcher(int numWorkers, int maxQueuedTasksPerChat,
+      boolean preferVirtualThreads) {
+    if (numWorkers <= 0 || maxQueuedTasksPerChat <= 0) {
+      throw new IllegalArgumentException(
+          "Number of workers and queue size must be positive.");
+    }
+    this.numWorkers = numWorkers;
+    this.maxQueuedTasksPerChat = maxQueuedTasksPerChat;
+    workerPermits = new Semaphore(numWorkers);
+    if (preferVirtualThreads) {
+      executor = newVirtualThreadPerTaskExecutor();
+    }
+    usesVirtualThreads = executor != null;
+    if (!usesVirtualThreads) {
+      final AtomicInteger threadIndex = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          return new Thread(r,
+              "chat-dispatcher-worker-" + threadIndex.incrementAndGet());
+        }
+      });
+    }
+  }
+
+  /**
+   * Queues the task behind the other tasks of the same chat.
+   *
+   * @param chatId
+   * @param task
+   * @return false if the task is rejected because the chat already has too
+   *         many queued tasks.
+   */
+  public boolean dispatch(long chatId, Runnable task) {
+    ChatLane lane;
+    boolean needsScheduling;
+    while (true) {
+      lane = lanes.get(chatId);
+      if (lane == null) {
+        ChatLane newLane = new ChatLane(chatId);
+        lane = lanes.putIfAbsent(chatId, newLane);
+        if (lane == null) {
+          lane = newLane;
+        }
+      }
+      synchronized (lane) {
+        if (lane.isForgotten) {
+          continue; // Went idle in the meantime. Use a new lane.
+        }
+        if (lane.tasks.size() >= maxQueuedTasksPerChat) {
+          numRejected.incrementAndGet();
+          return false;
+        }
+        lane.tasks.addLast(new QueuedTask(task, System.currentTimeMillis()));
+        needsScheduling = !lane.isScheduled;
+        lane.isScheduled = true;
+        break;
+      }
+    }
+    numQueued.incrementAndGet();
+    if (needsScheduling) {
+      schedule(lane);
+    }
+    return true;
+  }
+
+  /**
+   * Stops accepting tasks and waits for the queued ones to finish.
+   *
+   * @param timeoutMillis
+   * @throws InterruptedException
+   */
+  public void shutdown(long timeoutMillis) throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      MessageAnalysisBot.getLogger().warning(
+          "Dispatcher did not finish in time. " + numQueued.get()
+              + " task(s) dropped.");
+      executor.shutdownNow();
+    }
+  }
+
+  public int getQueueDepth() {
+    return numQueued.get();
+  }
+
+  public int getNumLanes() {
+    return lanes.size();
+  }
+
+  /**
+   * @param chatId
+   * @return How long the oldest unfinished task of the chat has been waiting
+   *         or running. 0 if the chat is idle.
+   */
+  public long getLagMillis(long chatId) {
+    ChatLane lane = lanes.get(chatId);
+    if (lane == null) {
+      return 0L;
+    }
+    synchronized (lane) {
+      return lane.getLagMillis(System.currentTimeMillis());
+    }
+  }
+
+  public String getStats() {
+    long nowMillis = System.currentTimeMillis();
+    List<long[]> chatStats = new ArrayList<>(); // {chat id, depth, lag}
+    for (ChatLane lane : lanes.values()) {
+      synchronized (lane) {
+        int depth = lane.tasks.size() + (lane.runningSinceMillis > 0 ? 1 : 0);
+        if (depth > 0) {
+          chatStats.add(new long[] { lane.chatId, depth,
+              lane.getLagMillis(nowMillis) });
+        }
+      }
+    }
+    // Show the most lagging chats first.
+    Collections.sort(chatStats, new Comparator<long[]>() {
+      public int compare(long[] o1, long[] o2) {
+        return Long.compare(o2[2], o1[2]);
+      }
+    });
+    StringBuilder sb = new StringBuilder();
+    sb.append("queued=" + numQueued.get() + ", completed="
+        + numCompleted.get() + ", failed=" + numFailed.get() + ", rejected="
+        + numRejected.get() + ", busyWorkers="
+        + (numWorkers - workerPermits.availablePermits()) + "/" + numWorkers
+        + ", virtualThreads=" + usesVirtualThreads);
+    for (int i = 0; i < chatStats.size() && i < MAX_CHATS_IN_STATS; i++) {
+      long[] stats = chatStats.get(i);
+      sb.append("\n  chat " + stats[0] + ": depth=" + stats[1] + ", lagMillis="
+          + stats[2]);
+    }
+    return sb.toString();
+  }
+
+  private void schedule(final ChatLane lane) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          drain(lane);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Shutting down. Finish the lane on the current thread.
+      drain(lane);
+    }
+  }
+
+  private void drain(ChatLane lane) {
+    try {
+      workerPermits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    try {
+      for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+        QueuedTask queuedTask;
+        synchronized (lane) {
+          queuedTask = lane.tasks.pollFirst();
+          if (queuedTask == null) {
+            forgetIdleLane(lane);
+            return;
+          }
+          lane.runningSinceMillis = queuedTask.enqueuedMillis;
+        }
+        numQueued.decrementAndGet();
+        try {
+          queuedTask.task.run();
+          numCompleted.incrementAndGet();
+        } catch (Throwable t) {
+          numFailed.incrementAndGet();
+          MessageAnalysisBot.getLogger()
+              .severe(ExceptionUtils.getStackTrace(t));
+        } finally {
+          synchronized (lane) {
+            lane.runningSinceMillis = 0L;
+          }
+        }
+      }
+    } finally {
+      workerPermits.release();
+    }
+    // Give other chats a chance before continuing with this one.
+    synchronized (lane) {
+      if (lane.tasks.isEmpty()) {
+        forgetIdleLane(lane);
+        return;
+      }
+    }
+    schedule(lane);
+  }
+
+  // Must hold the lane. Idle lanes keep no state, so they are removed right
+  // away and chats that stopped talking do not pile up in the map.
+  private void forgetIdleLane(ChatLane lane) {
+    lane.isScheduled = false;
+    lane.isForgotten = true;
+    lanes.remove(lane.chatId, lane);
+  }
+
+  // Returns null if virtual threads are not available.
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      Method method = Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static class ChatLane {
+    private long chatId;
+    // Fields below are guarded by the lane itself.
+    private Deque<QueuedTask> tasks = new ArrayDeque<>();
+    private boolean isScheduled = false;
+    // Removed from the map. Tasks must go to a new lane.
+    private boolean isForgotten = false;
+    // Enqueue time of the running task, 0 if none is running.
+    private long runningSinceMillis = 0L;
+
+    public ChatLane(long chatId) {
+      this.chatId = chatId;
+    }
+
+    public long getLagMillis(long nowMillis) {
+      if (runningSinceMillis > 0) {
+        return nowMillis - runningSinceMillis;
+      }
+      QueuedTask oldest = tasks.peekFirst();
+      return oldest != null ? nowMillis - oldest.enqueuedMillis : 0L;
+    }
+  }
+
+  private static class QueuedTask {
+    private Runnable task;
+    private long enqueuedMillis;
+
+    public QueuedTask(Runnable task, long enqueuedMillis) {
+      this.task = task;
+      this.enqueuedMillis = enqueuedMillis;
+    }
+  }
+
+}
@@ -5,6 +5,12 @@ public class CommandUtil {
   public static String CLICKABLE_COMMAND_PREFIX = "/";
   public static String NON_CLICKABLE_COMMAND_PREFIX = ">";
 
+  // Returns true if the text starts with / or > and is followed by something.
+  public static boolean isCommand(String text) {
+    return text.length() > 1 && (text.startsWith(CLICKABLE_COMMAND_PREFIX)
+        || text.startsWith(NON_CLICKABLE_COMMAND_PREFIX));
+  }
+
   public static String clickableToNonClickable(String command)
       throws IllegalArgumentException {
     if (!command.startsWith(CLICKABLE_COMMAND_PREFIX)) {
@@ -1,15 +1,26 @@
 package com.neoshell.telegram.messageanalysisbot;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -18,21 +29,30 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.ini4j.Wini;
 
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.generics.BotSession;
 import org.telegram.telegrambots.meta.api.methods.GetFile;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
-import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.User;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
+import com.neoshell.telegram.messageanalysisbot.cache.ChartCache;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.ChatOptionsCache;
+import com.neoshell.telegram.messageanalysisbot.database.ConnectionPool;
 import com.neoshell.telegram.messageanalysisbot.database.MySQLDatabase;
+import com.neoshell.telegram.messageanalysisbot.database.QueryPlan;
+import com.neoshell.telegram.messageanalysisbot.database.UserDirectory;
 import com.neoshell.telegram.messageanalysisbot.chatbot.ChatBotInterface;
 import com.neoshell.telegram.messageanalysisbot.chatbot.TuringRobot;
 import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
 import com.neoshell.telegram.messageanalysisbot.handler.EchoHandler;
 import com.neoshell.telegram.messageanalysisbot.handler.GoToHandler;
 import com.neoshell.telegram.messageanalysisbot.handler.Handler;
@@ -44,10 +64,22 @@ import com.neoshell.telegram.messageanalysisbot.handler.OptionHandler;
 import com.neoshell.telegram.messageanalysisbot.handler.RankHandler;
 import com.neoshell.telegram.messageanalysisbot.handler.TimeStatsHandler;
 import com.neoshell.telegram.messageanalysisbot.handler.ChatBotHandler;
+import com.neoshell.telegram.messageanalysisbot.ingestion.MessageIngestionPipeline;
+import com.neoshell.telegram.messageanalysisbot.nlp.KeywordContextCache;
 import com.neoshell.telegram.messageanalysisbot.nlp.NLPInterface;
+import com.neoshell.telegram.messageanalysisbot.nlp.NativeNLPEngine;
 import com.neoshell.telegram.messageanalysisbot.nlp.NLPUtilClientWrapper;
+import com.neoshell.telegram.messageanalysisbot.offline.ChatRegistryBackfill;
+import com.neoshell.telegram.messageanalysisbot.offline.HourlyMessageCountBackfill;
+import com.neoshell.telegram.messageanalysisbot.offline.IncrementalWordCountJob;
+import com.neoshell.telegram.messageanalysisbot.outbound.OutboundQueue;
+import com.neoshell.telegram.messageanalysisbot.replygraph.ReplyGraphEngine;
+import com.neoshell.telegram.messageanalysisbot.scheduler.Job;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobContext;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobScheduler;
 import com.neoshell.telegram.messageanalysisbot.visualization.GraphVisualizationInterface;
 import com.neoshell.telegram.messageanalysisbot.visualization.Graphviz;
+import com.neoshell.telegram.messageanalysisbot.visualization.Java2DGraphRenderer;
 
 public class MessageAnalysisBot extends TelegramLongPollingBot {
 
@@ -59,6 +91,21 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
   private static Logger logger;
   private static final String DEFAULT_CONFIG_PATH = "config.ini";
   private static final String LANGUAGE_OPTION_NAME = "language";
+  private static final long DISPATCHER_SHUTDOWN_TIMEOUT_MILLIS = 30000;
+  private static final long OUTBOUND_SHUTDOWN_TIMEOUT_MILLIS = 30000;
+  private static final long JOB_SHUTDOWN_TIMEOUT_MILLIS = 30000;
+  // Background jobs start after the bot has settled.
+  private static final long JOB_INITIAL_DELAY_MILLIS = 60000;
+  private static final String CACHE_CLEANUP_JOB_NAME = "cache-cleanup";
+  // Window size of implicit replies for 'network' command.
+  private static final int NETWORK_IMPLICIT_REPLY_RANGE = 10;
+  private static final String GRAPH_RENDERER_JAVA2D = "java2d";
+  private static final String GRAPH_RENDERER_GRAPHVIZ = "graphviz";
+  // Telegram's reply to a file id it no longer has.
+  private static final int BAD_REQUEST = 400;
+  private static final String WRONG_FILE_IDENTIFIER = "wrong file identifier";
+  public static final String NLP_ENGINE_NATIVE = "native";
+  public static final String NLP_ENGINE_GRPC = "grpc";
 
   private Map<String, Handler> handlerMap;
 
@@ -68,12 +115,20 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
   private Set<Long> debugUsers; // Users who can use debug mode.
   private Locale defaultLocale;
   private TimeZone defaultTimeZone;
-  private String tempDir;
 
   private DatabaseInterface database;
+  private ChatOptionsCache chatOptions;
+  private ChartCache chartCache;
+  private OutboundQueue outboundQueue;
+  private UserDirectory userDirectory;
   private NLPInterface nlpUtil;
+  private KeywordContextCache keywordContexts;
   private GraphVisualizationInterface graphVisualizationUtil;
   private ChatBotInterface chatBot;
+  private MessageIngestionPipeline ingestionPipeline;
+  private ReplyGraphEngine replyGraphEngine;
+  private ChatUpdateDispatcher dispatcher;
+  private JobScheduler jobScheduler;
 
   public static Logger getLogger() {
     return logger;
@@ -85,6 +140,10 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
       handlerMap = new HashMap<>();
       loadConfig(configFile);
       registerHandlers();
+      nlpUtil.initialize();
+      ingestionPipeline.start();
+      outboundQueue.start();
+      jobScheduler.start();
     } catch (Exception e) {
       logger.severe(ExceptionUtils.getStackTrace(e));
       System.exit(0);
@@ -120,8 +179,13 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
       }
 
       try {
-        MessageType messageType = handleMessage(message);
+        MessageType messageType = getMessageType(message);
+        // Save first. Commands run on the dispatcher so that slow ones never
+        // hold back ingestion or other chats.
         saveMessage(message, messageType);
+        if (messageType == MessageType.COMMAND) {
+          dispatchCommand(message);
+        }
       } catch (Exception e) {
         logger.severe(ExceptionUtils.getStackTrace(e));
       }
@@ -129,10 +193,14 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
   }
 
   // If the text is longer than MAX_MESSAGE_LENGTH, it will split the text and
-  // send through multiple messages.
-  public void sendTextMessage(long chatId, String text, ParseMode parseMode,
-      int replyToMessageId) throws TelegramApiException {
-    int num = text.length() / MAX_MESSAGE_LENGTH + 1;
+  // send through multiple messages. Messages are sent in the background. The
+  // returned future completes with the last one.
+  public CompletableFuture<Message> sendTextMessage(long chatId, String text,
+      ParseMode parseMode, int replyToMessageId) {
+    int num = Math.max(1,
+        (text.length() + MAX_MESSAGE_LENGTH - 1) / MAX_MESSAGE_LENGTH);
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    final CompletableFuture<Message>[] futures = new CompletableFuture[num];
     for (int i = 0; i < num; i++) {
       SendMessage sendMessage = new SendMessage();
       sendMessage.setChatId(Long.valueOf(chatId).toString());
@@ -142,27 +210,165 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
       if (replyToMessageId > 0) {
         sendMessage.setReplyToMessageId(replyToMessageId);
       }
-      execute(sendMessage);
+      futures[i] = outboundQueue.sendText(sendMessage);
+    }
+    if (num == 1) {
+      return futures[0];
+    }
+    return CompletableFuture.allOf(futures)
+        .thenApply(new Function<Void, Message>() {
+          @Override
+          public Message apply(Void v) {
+            return futures[futures.length - 1].join();
+          }
+        });
+  }
+
+  public CompletableFuture<Message> sendTextMessage(long chatId, String text,
+      ParseMode parseMode) {
+    return sendTextMessage(chatId, text, parseMode, 0);
+  }
+
+  public CompletableFuture<Message> sendTextMessage(long chatId, String text) {
+    return sendTextMessage(chatId, text, ParseMode.NULL, 0);
+  }
+
+  public CompletableFuture<Message> sendPhotoMessage(long chatId,
+      String photoPath, String caption) throws IOException {
+    File photoFile = new File(photoPath);
+    return outboundQueue.sendPhoto(chatId,
+        Files.readAllBytes(photoFile.toPath()), photoFile.getName(), caption);
+  }
+
+  /**
+   * Sends the photo from memory, without writing it to disk.
+   *
+   * @param chatId
+   * @param photo
+   *          The encoded image, e.g. PNG.
+   * @param fileName
+   *          The name Telegram shows for the upload, e.g. "network.png".
+   * @param caption
+   * @return Completes with the sent message.
+   */
+  public CompletableFuture<Message> sendPhotoMessage(long chatId,
+      byte[] photo, String fileName, String caption) {
+    return outboundQueue.sendPhoto(chatId, photo, fileName, caption);
+  }
+
+  /**
+   * Sends a chart. A chart with the same key that was sent before is sent
+   * again by its Telegram file id, without rendering or uploading it, unless
+   * Telegram no longer has the file.
+   *
+   * @param chatId
+   * @param chartKey
+   *          Content hash of the chart. See ChartKeyBuilder.
+   * @param renderer
+   *          Called only if the chart is not cached.
+   * @param fileName
+   * @param caption
+   * @return Completes with the sent message.
+   */
+  public CompletableFuture<Message> sendChartMessage(final long chatId,
+      final String chartKey, final ChartCache.Renderer renderer,
+      final String fileName, final String caption) {
+    String fileId = chartCache.getFileId(chartKey);
+    if (fileId == null) {
+      return uploadChart(chatId, chartKey, renderer, fileName, caption);
     }
+    return recoverWith(outboundQueue.sendPhoto(chatId, fileId, caption),
+        new Function<Throwable, CompletableFuture<Message>>() {
+          @Override
+          public CompletableFuture<Message> apply(Throwable t) {
+            if (!isWrongFileId(t)) {
+              CompletableFuture<Message> future = new CompletableFuture<>();
+              future.completeExceptionally(t);
+              return future;
+            }
+            logger.warning("Chart file id is no longer valid: " + t);
+            chartCache.invalidate(chartKey);
+            return uploadChart(chatId, chartKey, renderer, fileName, caption);
+          }
+        });
   }
 
-  public void sendTextMessage(long chatId, String text, ParseMode parseMode)
-      throws TelegramApiException {
-    sendTextMessage(chatId, text, parseMode, 0);
+  // Completes with the future, or if it fails, with the future the fallback
+  // returns. The fallback runs on the common pool, not on the thread that
+  // failed the future, e.g. a sender thread of the outbound queue.
+  private static <T> CompletableFuture<T> recoverWith(
+      CompletableFuture<T> future,
+      final Function<Throwable, CompletableFuture<T>> fallback) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    final BiConsumer<T, Throwable> completeResult = new BiConsumer<T,
+        Throwable>() {
+      @Override
+      public void accept(T value, Throwable t) {
+        if (t == null) {
+          result.complete(value);
+        } else {
+          result.completeExceptionally(t);
+        }
+      }
+    };
+    future.whenCompleteAsync(new BiConsumer<T, Throwable>() {
+      @Override
+      public void accept(T value, Throwable t) {
+        if (t == null) {
+          result.complete(value);
+          return;
+        }
+        try {
+          fallback.apply(t).whenComplete(completeResult);
+        } catch (Exception e) {
+          result.completeExceptionally(e);
+        }
+      }
+    });
+    return result;
   }
 
-  public void sendTextMessage(long chatId, String text)
-      throws TelegramApiException {
-    sendTextMessage(chatId, text, ParseMode.NULL, 0);
+  // Whether Telegram rejected a file id, e.g. because the file was deleted.
+  private static boolean isWrongFileId(Throwable t) {
+    if (t instanceof CompletionException && t.getCause() != null) {
+      t = t.getCause();
+    }
+    if (!(t instanceof TelegramApiRequestException)) {
+      return false;
+    }
+    TelegramApiRequestException e = (TelegramApiRequestException) t;
+    return e.getErrorCode() != null && e.getErrorCode() == BAD_REQUEST
+        && e.getApiResponse() != null
+        && e.getApiResponse().contains(WRONG_FILE_IDENTIFIER);
   }
 
-  public void sendPhotoMessage(long chatId, String photoPath, String caption)
-      throws TelegramApiException {
-    SendPhoto sendPhoto = new SendPhoto();
-    sendPhoto.setChatId(Long.valueOf(chatId).toString());
-    sendPhoto.setPhoto(new InputFile(new File(photoPath)));
-    sendPhoto.setCaption(caption);
-    execute(sendPhoto);
+  // Renders the chart on the calling thread, then uploads it and remembers
+  // its file id.
+  private CompletableFuture<Message> uploadChart(long chatId,
+      final String chartKey, ChartCache.Renderer renderer, String fileName,
+      String caption) {
+    byte[] photo;
+    try {
+      photo = renderer.render();
+    } catch (Exception e) {
+      CompletableFuture<Message> future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+      return future;
+    }
+    return outboundQueue.sendPhoto(chatId, photo, fileName, caption)
+        .thenApply(new Function<Message, Message>() {
+          @Override
+          public Message apply(Message message) {
+            List<PhotoSize> photoSizes = message.getPhoto();
+            if (photoSizes != null && !photoSizes.isEmpty()) {
+              // Sizes are in ascending order. Resending the largest one also
+              // sends the smaller ones.
+              chartCache.putFileId(chartKey,
+                  photoSizes.get(photoSizes.size() - 1).getFileId());
+            }
+            return message;
+          }
+        });
   }
 
   public String getFileUrl(String fileId) throws TelegramApiException {
@@ -175,6 +381,92 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
     return defaultTimeZone;
   }
 
+  public ChatOptionsCache getChatOptions() {
+    return chatOptions;
+  }
+
+  public UserDirectory getUserDirectory() {
+    return userDirectory;
+  }
+
+  // Flushes pending messages. Call it after the bot stops receiving updates.
+  public void shutdown() {
+    logger.info("Shutting down MessageAnalysisBot...");
+    try {
+      jobScheduler.shutdown(JOB_SHUTDOWN_TIMEOUT_MILLIS);
+    } catch (Exception e) {
+      logger.severe(ExceptionUtils.getStackTrace(e));
+    }
+    try {
+      dispatcher.shutdown(DISPATCHER_SHUTDOWN_TIMEOUT_MILLIS);
+    } catch (Exception e) {
+      logger.severe(ExceptionUtils.getStackTrace(e));
+    }
+    try {
+      outboundQueue.shutdown(OUTBOUND_SHUTDOWN_TIMEOUT_MILLIS);
+    } catch (Exception e) {
+      logger.severe(ExceptionUtils.getStackTrace(e));
+    }
+    try {
+      ingestionPipeline.shutdown();
+    } catch (Exception e) {
+      logger.severe(ExceptionUtils.getStackTrace(e));
+    }
+    try {
+      nlpUtil.shutdown();
+    } catch (Exception e) {
+      logger.severe(ExceptionUtils.getStackTrace(e));
+    }
+    database.shutdown();
+  }
+
+  // Runtime statistics for debug users.
+  public String getStatusReport() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Dispatcher: " + dispatcher.getStats() + "\n");
+    sb.append("Outbound: " + outboundQueue.getStats() + "\n");
+    sb.append("Ingestion: " + ingestionPipeline.getStats() + "\n");
+    sb.append(database.getStats() + "\n");
+    sb.append("Options cache: " + chatOptions.getStats() + "\n");
+    sb.append("User directory: " + userDirectory.getStats() + "\n");
+    sb.append("Chart cache: " + chartCache.getStats() + "\n");
+    sb.append("Reply graph: " + replyGraphEngine.getStats() + "\n");
+    sb.append("NLP: " + nlpUtil.getStats() + "\n");
+    sb.append("Keyword contexts: " + keywordContexts.getStats() + "\n");
+    sb.append("Jobs: " + jobScheduler.getStats() + "\n");
+    if (graphVisualizationUtil instanceof Graphviz) {
+      sb.append("Graphviz: "
+          + ((Graphviz) graphVisualizationUtil).getStats() + "\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Creates the NLP engine configured in the [NLP] section. Also used by the
+   * offline jobs.
+   *
+   * @param config
+   * @return An engine that is not initialized yet.
+   */
+  public static NLPInterface createNLPEngine(Wini config) {
+    String engine = config.get("NLP", "Engine", String.class);
+    if (NLP_ENGINE_NATIVE.equalsIgnoreCase(engine)) {
+      return new NativeNLPEngine();
+    } else if (NLP_ENGINE_GRPC.equalsIgnoreCase(engine)) {
+      String nlpUtilServerHost = config.get("NLP", "NLPUtilServerHost",
+          String.class);
+      int nlpUtilServerPort = config.get("NLP", "NLPUtilServerPort",
+          int.class);
+      return new NLPUtilClientWrapper(nlpUtilServerHost, nlpUtilServerPort,
+          config.get("NLP", "NumClients", int.class),
+          config.get("NLP", "CallTimeoutMillis", long.class),
+          config.get("NLP", "MaxAttempts", int.class),
+          config.get("NLP", "RetryBackoffMillis", long.class));
+    }
+    throw new IllegalArgumentException("Unknown NLP engine: " + engine
+        + ". Valid values: " + NLP_ENGINE_NATIVE + ", " + NLP_ENGINE_GRPC);
+  }
+
   private void loadConfig(String configFile) throws Exception {
     Wini config = new Wini(new File(configFile));
 
@@ -196,11 +488,30 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
     }
     defaultTimeZone = TimeZone.getTimeZone(
         config.get("Telegram Bot", "DefaultTimeZone", String.class));
-    tempDir = config.get("Telegram Bot", "TempDir", String.class);
-    if (!new File(tempDir).exists()) {
-      throw new IllegalArgumentException(
-          "Invalid TempDir. No such directory: " + tempDir);
-    }
+
+    // Dispatcher.
+    dispatcher = new ChatUpdateDispatcher(
+        config.get("Dispatcher", "NumWorkers", int.class),
+        config.get("Dispatcher", "MaxQueuedCommandsPerChat", int.class),
+        config.get("Dispatcher", "UseVirtualThreads", boolean.class));
+
+    // Outbound.
+    outboundQueue = new OutboundQueue(new OutboundQueue.Sender() {
+      @Override
+      public Message send(SendMessage sendMessage)
+          throws TelegramApiException {
+        return execute(sendMessage);
+      }
+
+      @Override
+      public Message send(SendPhoto sendPhoto) throws TelegramApiException {
+        return execute(sendPhoto);
+      }
+    }, MAX_MESSAGE_LENGTH,
+        config.get("Outbound", "NumSenderThreads", int.class),
+        config.get("Outbound", "GlobalMessagesPerSecond", double.class),
+        config.get("Outbound", "ChatMessagesPerMinute", double.class),
+        config.get("Outbound", "ChatBurst", int.class));
 
     // MySQL.
     String databaseUrl = config.get("MySQL", "DatabaseUrl", String.class);
@@ -208,22 +519,108 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
         String.class);
     String databasePassword = config.get("MySQL", "DatabasePassword",
         String.class);
-    database = new MySQLDatabase(databaseUrl, databaseUsername,
-        databasePassword);
+    ConnectionPool connectionPool = new ConnectionPool(databaseUrl,
+        databaseUsername, databasePassword,
+        config.get("MySQL", "ConnectionPoolMinSize", int.class),
+        config.get("MySQL", "ConnectionPoolMaxSize", int.class),
+        config.get("MySQL", "ConnectionPoolMaxWaitMillis", long.class),
+        config.get("MySQL", "ConnectionIdleTimeoutSeconds", long.class) * 1000,
+        config.get("MySQL", "ConnectionValidationIntervalSeconds", long.class)
+            * 1000);
+    MySQLDatabase mySQLDatabase = new MySQLDatabase(connectionPool);
+    if (!mySQLDatabase.getPendingMigrations().isEmpty()) {
+      logger.warning("Pending migrations, run SchemaMigrationTool to apply: "
+          + mySQLDatabase.getPendingMigrations());
+    }
+    database = mySQLDatabase;
+    chatOptions = new ChatOptionsCache(database,
+        config.get("Options", "CacheMaxChats", int.class),
+        config.get("Options", "CacheTTLSeconds", long.class) * 1000);
+    userDirectory = new UserDirectory(database);
+
+    // Ingestion.
+    ingestionPipeline = new MessageIngestionPipeline(database,
+        config.get("Ingestion", "QueueCapacity", int.class),
+        config.get("Ingestion", "FlushBatchSize", int.class),
+        config.get("Ingestion", "FlushIntervalMillis", long.class),
+        config.get("Ingestion", "UserFlushIntervalMillis", long.class));
+
+    // Network.
+    replyGraphEngine = new ReplyGraphEngine(database,
+        NETWORK_IMPLICIT_REPLY_RANGE,
+        config.get("Network", "MaxWindowDays", int.class));
+    ingestionPipeline.addListener(replyGraphEngine);
 
     // NLP.
-    String nlpUtilServerHost = config.get("NLP", "NLPUtilServerHost",
+    nlpUtil = createNLPEngine(config);
+    keywordContexts = new KeywordContextCache(database, nlpUtil,
+        config.get("NLP", "NumGlobalWordsForKeywords", int.class),
+        config.get("NLP", "KeywordContextCacheMaxChats", int.class));
+
+    // Visualization.
+    chartCache = new ChartCache(
+        config.get("Visualization", "ChartCacheMaxEntries", int.class),
+        config.get("Visualization", "ChartCacheTTLSeconds", long.class)
+            * 1000);
+    String graphRenderer = config.get("Visualization", "GraphRenderer",
         String.class);
-    int nlpUtilServerPort = config.get("NLP", "NLPUtilServerPort", int.class);
-    nlpUtil = new NLPUtilClientWrapper(nlpUtilServerHost, nlpUtilServerPort);
-
-    // Graphviz.
-    String graphvizPath = config.get("Graphviz", "GraphvizPath", String.class);
-    graphVisualizationUtil = new Graphviz(graphvizPath, tempDir);
+    if (GRAPH_RENDERER_JAVA2D.equalsIgnoreCase(graphRenderer)) {
+      graphVisualizationUtil = new Java2DGraphRenderer();
+    } else if (GRAPH_RENDERER_GRAPHVIZ.equalsIgnoreCase(graphRenderer)) {
+      String graphvizPath = config.get("Graphviz", "GraphvizPath",
+          String.class);
+      graphVisualizationUtil = new Graphviz(graphvizPath,
+          config.get("Graphviz", "MaxConcurrentRenders", int.class),
+          config.get("Graphviz", "RenderTimeoutMillis", long.class));
+    } else {
+      throw new IllegalArgumentException("Invalid GraphRenderer. Acceptable "
+          + "values: " + GRAPH_RENDERER_JAVA2D + ", " + GRAPH_RENDERER_GRAPHVIZ);
+    }
 
     // Turing Robot.
     chatBot = new TuringRobot(
         config.get("Turing Robot", "TuringRobotApiKey", String.class));
+
+    // Scheduler.
+    jobScheduler = new JobScheduler(
+        config.get("Scheduler", "JobBudgetPercent", int.class) / 100.0,
+        new BooleanSupplier() {
+          @Override
+          public boolean getAsBoolean() {
+            return dispatcher.getQueueDepth() > 0;
+          }
+        }, config.get("Scheduler", "MaxBusyWaitMillis", long.class),
+        config.get("Scheduler", "HistorySize", int.class), logger);
+    jobScheduler.schedule(new IncrementalWordCountJob(database, nlpUtil,
+        config.get("NLP", "NumWordPerChatForMonthlyCount", int.class),
+        config.get("WordCounter", "IncrementalPageSize", int.class),
+        config.get("Cluster", "NodeId", String.class),
+        config.get("Cluster", "LeaseTTLSeconds", long.class) * 1000, logger),
+        JOB_INITIAL_DELAY_MILLIS,
+        config.get("Scheduler", "WordCountIntervalMinutes", long.class)
+            * 60000);
+    jobScheduler.schedule(new ChatRegistryBackfill(database, logger),
+        JOB_INITIAL_DELAY_MILLIS,
+        config.get("Scheduler", "BackfillIntervalMinutes", long.class)
+            * 60000);
+    jobScheduler.schedule(new HourlyMessageCountBackfill(database, logger),
+        JOB_INITIAL_DELAY_MILLIS,
+        config.get("Scheduler", "BackfillIntervalMinutes", long.class)
+            * 60000);
+    jobScheduler.schedule(new Job() {
+      @Override
+      public String getName() {
+        return CACHE_CLEANUP_JOB_NAME;
+      }
+
+      @Override
+      public String run(JobContext context) {
+        return chartCache.purgeExpired() + " chart(s), "
+            + chatOptions.purgeExpired() + " chat option(s) expired";
+      }
+    }, JOB_INITIAL_DELAY_MILLIS,
+        config.get("Scheduler", "CacheCleanupIntervalMinutes", long.class)
+            * 60000);
   }
 
   // The input is expected to be a comma separated list.
@@ -251,24 +648,23 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
 
   private void registerHandlers() throws Exception {
     registerHandler(new RankHandler(this, database));
-    registerHandler(new KeywordHandler(this, database, nlpUtil));
+    registerHandler(
+        new KeywordHandler(this, database, nlpUtil, keywordContexts));
     registerHandler(new GoToHandler(this));
     registerHandler(
-        new NetworkHandler(this, database, graphVisualizationUtil, tempDir));
-    registerHandler(new TimeStatsHandler(this, database, tempDir));
+        new NetworkHandler(this, replyGraphEngine, graphVisualizationUtil));
+    registerHandler(new TimeStatsHandler(this, database));
     registerHandler(new EchoHandler(this));
     registerHandler(new HistoryHandler(this, database));
     registerHandler(new ChatBotHandler(this, database, chatBot));
-    registerHandler(new OptionHandler(this, database));
+    registerHandler(new OptionHandler(this));
     registerHandler(new HelpHandler(this, handlerMap));
   }
 
-  private MessageType handleMessage(Message message)
-      throws TelegramApiException, ClassNotFoundException, SQLException {
+  private MessageType getMessageType(Message message) {
     MessageType messageType = MessageType.UNKNOWN;
-    long chatId = message.getChatId();
     if (message.hasText()) {
-      if (parseCommand(chatId, chatId, message.getText(), message)) {
+      if (CommandUtil.isCommand(message.getText())) {
         messageType = MessageType.COMMAND;
       } else {
         messageType = MessageType.TEXT;
@@ -300,6 +696,25 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
     return messageType;
   }
 
+  // Handles the command after the previous commands of the same chat.
+  private void dispatchCommand(final Message message) {
+    final long chatId = message.getChatId();
+    boolean isAccepted = dispatcher.dispatch(chatId, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          parseCommand(chatId, chatId, message.getText(), message);
+        } catch (Exception e) {
+          logger.severe(ExceptionUtils.getStackTrace(e));
+        }
+      }
+    });
+    if (!isAccepted) {
+      logger.warning("Too many pending commands in chat " + chatId
+          + ". Dropped: " + message.getText());
+    }
+  }
+
   // Returns true if the text starts with / or >.
   private boolean parseCommand(long receiverChatId, long dataSourceChatId,
       String command, Message message)
@@ -321,7 +736,7 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
       arguments = command.split("\\s+");
       String commandName = arguments[0].substring(1);
       arguments = Arrays.copyOfRange(arguments, 1, arguments.length);
-      Locale locale = getLocale(dataSourceChatId, database);
+      Locale locale = getLocale(dataSourceChatId);
       ResourceBundle responseResource = ResourceBundle
           .getBundle(RESPONSE_RESOURCE_BUNDLE, locale);
       if (handlerMap.containsKey(commandName)) {
@@ -347,11 +762,50 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
   // Debug mode. Use the data from other chat as data source.
   // Usage: >debug [chat id] >[command]
   // Example: >debug 123456 >keyword 200
+  // Or show runtime statistics of the bot.
+  // Usage: >debug status
+  // Or run a background job now.
+  // Usage: >debug job [job name]
+  // Or list the chats in the chat registry, most recently active first.
+  // Usage: >debug chats
+  @SuppressWarnings("try")
   private void debug(long receiverChatId, Message message)
       throws TelegramApiException, ClassNotFoundException, SQLException {
     String text = message.getText();
     String[] arguments = text.split("\\s+");
-    if (arguments.length > 2) {
+    if (arguments.length == 2 && arguments[1].equals("status")) {
+      sendTextMessage(receiverChatId, getStatusReport());
+    } else if (arguments.length == 2 && arguments[1].equals("chats")) {
+      List<ChatInfo> chats;
+      try (DatabaseSession session = database.openSession()) {
+        chats = database.getChats(EnumSet.allOf(MessageType.class));
+      }
+      Collections.sort(chats, new Comparator<ChatInfo>() {
+        @Override
+        public int compare(ChatInfo a, ChatInfo b) {
+          return Long.compare(b.getLastEpochSeconds(), a.getLastEpochSeconds());
+        }
+      });
+      StringBuilder sb = new StringBuilder(chats.size() + " chat(s)\n");
+      for (ChatInfo chat : chats) {
+        sb.append(chat + "\n");
+      }
+      sendTextMessage(receiverChatId, sb.toString());
+    } else if (arguments.length == 3 && arguments[1].equals("job")) {
+      sendTextMessage(receiverChatId, jobScheduler.runNow(arguments[2])
+          ? "Job queued: " + arguments[2] : "No such job: " + arguments[2]);
+    } else if (arguments.length <= 3 && arguments.length >= 2
+        && arguments[1].equals("explain")) {
+      long dataSourceChatId = arguments.length == 3
+          ? Long.parseLong(arguments[2]) : message.getChatId();
+      StringBuilder sb = new StringBuilder();
+      try (DatabaseSession session = database.openSession()) {
+        for (QueryPlan plan : database.explainQueries(dataSourceChatId)) {
+          sb.append(plan + "\n");
+        }
+      }
+      sendTextMessage(receiverChatId, sb.toString());
+    } else if (arguments.length > 2) {
       long dataSourceChatId = Long.parseLong(arguments[1]);
       String command = text.replaceFirst(
           CommandUtil.NON_CLICKABLE_COMMAND_PREFIX + ".+"
@@ -365,9 +819,9 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
     }
   }
 
-  // Saves message and user info.
+  // Queues message and user info for writing to database.
   private void saveMessage(Message message, MessageType messageType)
-      throws ClassNotFoundException, SQLException {
+      throws InterruptedException {
     Long chatId = message.getChatId();
     long timeEpochSeconds = message.getDate();
     User sender = message.getFrom();
@@ -390,13 +844,14 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
       logger.info("Message with unknown type: " + message.toString());
     }
 
-    database.openConnection();
-    database.addMessage(new com.neoshell.telegram.messageanalysisbot.Message(
-        chatId, messageId, timeEpochSeconds, userId, replyToMessageId,
-        replyToUserId, content, messageType));
-    database.addOrUpdateUser(new com.neoshell.telegram.messageanalysisbot.User(
-        userId, username, firstName, lastName));
-    database.closeConnection();
+    com.neoshell.telegram.messageanalysisbot.User user = new com.neoshell.telegram.messageanalysisbot.User(
+        userId, username, firstName, lastName);
+    userDirectory.update(user);
+    ingestionPipeline.submit(
+        new com.neoshell.telegram.messageanalysisbot.Message(chatId, messageId,
+            timeEpochSeconds, userId, replyToMessageId, replyToUserId, content,
+            messageType),
+        user);
   }
 
   private String getMessageContent(Message message, MessageType messageType) {
@@ -429,11 +884,8 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
   }
 
   // Retrieves language option according to the chat id.
-  private Locale getLocale(long chatId, DatabaseInterface database)
-      throws SQLException, ClassNotFoundException {
-    database.openConnection();
-    String language = database.getOption(chatId, LANGUAGE_OPTION_NAME);
-    database.closeConnection();
+  private Locale getLocale(long chatId) throws SQLException {
+    String language = chatOptions.getOption(chatId, LANGUAGE_OPTION_NAME);
     Locale locale = defaultLocale;
     if (language != null
         && Language.parseFromString(language) != Language.UNKNOWN) {
@@ -456,7 +908,19 @@ public class MessageAnalysisBot extends TelegramLongPollingBot {
       TelegramBotsApi telegramBotsApi = new TelegramBotsApi(
           DefaultBotSession.class);
       String configFilePath = args.length >= 1 ? args[0] : DEFAULT_CONFIG_PATH;
-      telegramBotsApi.registerBot(new MessageAnalysisBot(configFilePath));
+      final MessageAnalysisBot bot = new MessageAnalysisBot(configFilePath);
+      final BotSession botSession = telegramBotsApi.registerBot(bot);
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          // Stop receiving updates first so that nothing is queued after the
+          // final flush.
+          if (botSession.isRunning()) {
+            botSession.stop();
+          }
+          bot.shutdown();
+        }
+      }));
     } catch (TelegramApiException e) {
       logger.severe(ExceptionUtils.getStackTrace(e));
     }
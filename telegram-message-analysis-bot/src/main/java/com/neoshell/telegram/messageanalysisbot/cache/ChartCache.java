@@ -0,0 +1,71 @@
+package com.neoshell.telegram.messageanalysisbot.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the Telegram file id of each chart sent before, keyed by its
+ * content hash (see ChartKeyBuilder). A chart that is already uploaded is sent
+ * again by file id, without rendering or uploading it.
+ */
+public class ChartCache {
+
+  /**
+   * Renders a chart on a cache miss.
+   */
+  public interface Renderer {
+
+    /**
+     * @return The encoded image, e.g. PNG.
+     * @throws Exception
+     */
+    public byte[] render() throws Exception;
+
+  }
+
+  private ExpiringLruCache<String, String> fileIds;
+  private AtomicLong numStaleFileIds = new AtomicLong();
+
+  /**
+   * @param maxCharts
+   *          Max number of file ids to keep.
+   * @param ttlMillis
+   *          How long a file id is reused. 0 means forever.
+   */
+  public ChartCache(int maxCharts, long ttlMillis) {
+    fileIds = new ExpiringLruCache<>(maxCharts, ttlMillis);
+  }
+
+  /**
+   * @param chartKey
+   * @return null if the chart has not been sent yet.
+   */
+  public String getFileId(String chartKey) {
+    return fileIds.get(chartKey);
+  }
+
+  public void putFileId(String chartKey, String fileId) {
+    fileIds.put(chartKey, fileId);
+  }
+
+  /**
+   * Forgets a file id that Telegram no longer accepts.
+   *
+   * @param chartKey
+   */
+  public void invalidate(String chartKey) {
+    fileIds.invalidate(chartKey);
+    numStaleFileIds.incrementAndGet();
+  }
+
+  /**
+   * @return The number of expired file ids dropped.
+   */
+  public int purgeExpired() {
+    return fileIds.purgeExpired();
+  }
+
+  public String getStats() {
+    return fileIds.getStats() + ", staleFileIds=" + numStaleFileIds.get();
+  }
+
+}
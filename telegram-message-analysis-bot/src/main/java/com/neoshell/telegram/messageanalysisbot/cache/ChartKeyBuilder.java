@@ -0,0 +1,65 @@
+package com.neoshell.telegram.messageanalysisbot.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Builds a content hash of everything that is drawn on a chart, so that equal
+ * charts get equal keys. Values are length-prefixed, so adding "ab", "c" and
+ * "a", "bc" gives different keys.
+ */
+public class ChartKeyBuilder {
+
+  private MessageDigest digest;
+  private ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+
+  public ChartKeyBuilder(String chartType) {
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM supports SHA-256.
+      throw new IllegalStateException(e);
+    }
+    add(chartType);
+  }
+
+  public ChartKeyBuilder add(String value) {
+    if (value == null) {
+      return add(-1L);
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    add((long) bytes.length);
+    digest.update(bytes);
+    return this;
+  }
+
+  public ChartKeyBuilder add(long value) {
+    buffer.clear();
+    buffer.putLong(value);
+    digest.update(buffer.array());
+    return this;
+  }
+
+  public ChartKeyBuilder add(double value) {
+    return add(Double.doubleToLongBits(value));
+  }
+
+  public ChartKeyBuilder add(boolean value) {
+    digest.update((byte) (value ? 1 : 0));
+    return this;
+  }
+
+  /**
+   * @return The key in hex. The builder must not be used afterwards.
+   */
+  public String build() {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+}
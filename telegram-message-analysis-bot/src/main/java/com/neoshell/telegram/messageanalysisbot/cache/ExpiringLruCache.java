@@ -0,0 +1,136 @@
+package com.neoshell.telegram.messageanalysisbot.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache bounded by number of entries. The least recently used
+ * entry is evicted when the cache is full. Entries optionally expire after a
+ * fixed time since they were put.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ExpiringLruCache<K, V> {
+
+  private int maxSize;
+  private long ttlMillis;
+
+  // All fields below are guarded by "this".
+  private LinkedHashMap<K, CacheEntry<V>> entries;
+  private long numHits = 0;
+  private long numMisses = 0;
+  private long numEvictions = 0;
+
+  /**
+   * @param maxSize
+   *          Max number of entries.
+   * @param ttlMillis
+   *          Time to live of each entry. 0 means entries never expire.
+   */
+  public ExpiringLruCache(int maxSize, long ttlMillis) {
+    if (maxSize <= 0 || ttlMillis < 0) {
+      throw new IllegalArgumentException(
+          "Invalid cache config. maxSize: " + maxSize + ", ttl: " + ttlMillis);
+    }
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    // Access order, so that the eldest entry is the least recently used one.
+    entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * @param key
+   * @return The cached value, or null if absent or expired.
+   */
+  public synchronized V get(K key) {
+    CacheEntry<V> entry = entries.get(key);
+    if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+      entries.remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      numMisses++;
+      return null;
+    }
+    numHits++;
+    return entry.value;
+  }
+
+  public synchronized void put(K key, V value) {
+    entries.put(key, new CacheEntry<V>(value, System.currentTimeMillis()));
+    if (entries.size() > maxSize) {
+      evict();
+    }
+  }
+
+  public synchronized void invalidate(K key) {
+    entries.remove(key);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Drops the expired entries, which are otherwise only dropped on access or
+   * when the cache is full.
+   *
+   * @return The number of entries dropped.
+   */
+  public synchronized int purgeExpired() {
+    if (ttlMillis == 0) {
+      return 0;
+    }
+    long nowMillis = System.currentTimeMillis();
+    int numPurged = 0;
+    Iterator<CacheEntry<V>> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      if (isExpired(iterator.next(), nowMillis)) {
+        iterator.remove();
+        numPurged++;
+      }
+    }
+    return numPurged;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized String getStats() {
+    long numLookups = numHits + numMisses;
+    String hitRate = numLookups > 0
+        ? String.format("%.1f%%", 100.0 * numHits / numLookups) : "n/a";
+    return "size=" + entries.size() + "/" + maxSize + ", hits=" + numHits
+        + ", misses=" + numMisses + ", hitRate=" + hitRate + ", evictions="
+        + numEvictions;
+  }
+
+  // Drops expired entries first, then the least recently used ones.
+  private void evict() {
+    purgeExpired();
+    Iterator<CacheEntry<V>> iterator = entries.values().iterator();
+    while (entries.size() > maxSize && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+      numEvictions++;
+    }
+  }
+
+  private boolean isExpired(CacheEntry<V> entry, long nowMillis) {
+    return ttlMillis > 0 && nowMillis - entry.putMillis >= ttlMillis;
+  }
+
+  private static class CacheEntry<V> {
+    private V value;
+    private long putMillis;
+
+    public CacheEntry(V value, long putMillis) {
+      this.value = value;
+      this.putMillis = putMillis;
+    }
+  }
+
+}
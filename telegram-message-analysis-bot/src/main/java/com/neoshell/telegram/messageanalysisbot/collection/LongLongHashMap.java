@@ -0,0 +1,154 @@
+package com.neoshell.telegram.messageanalysisbot.collection;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to primitive long values. Uses open
+ * addressing with linear probing. Removal is not supported. Not thread-safe.
+ */
+public class LongLongHashMap {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.5f;
+  // Marks an empty slot. The mapping of key 0 is stored separately.
+  private static final long EMPTY_KEY = 0L;
+
+  private long[] keys;
+  private long[] values;
+  private int size = 0;
+  private int resizeThreshold;
+  private boolean hasZeroKey = false;
+  private long zeroKeyValue = 0L;
+
+  public LongLongHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public LongLongHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(
+        Math.max(DEFAULT_CAPACITY, (int) (expectedSize / LOAD_FACTOR)) - 1)
+        << 1;
+    allocate(capacity);
+  }
+
+  /**
+   * @param key
+   * @param defaultValue
+   * @return The value of the key, or defaultValue if there is none.
+   */
+  public long get(long key, long defaultValue) {
+    if (key == EMPTY_KEY) {
+      return hasZeroKey ? zeroKeyValue : defaultValue;
+    }
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return values[i];
+      }
+      if (keys[i] == EMPTY_KEY) {
+        return defaultValue;
+      }
+    }
+  }
+
+  public boolean containsKey(long key) {
+    if (key == EMPTY_KEY) {
+      return hasZeroKey;
+    }
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return true;
+      }
+      if (keys[i] == EMPTY_KEY) {
+        return false;
+      }
+    }
+  }
+
+  public void put(long key, long value) {
+    if (key == EMPTY_KEY) {
+      if (!hasZeroKey) {
+        hasZeroKey = true;
+        size++;
+      }
+      zeroKeyValue = value;
+      return;
+    }
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != EMPTY_KEY) {
+      if (keys[i] == key) {
+        values[i] = value;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size > resizeThreshold) {
+      rehash(keys.length << 1);
+    }
+  }
+
+  /**
+   * Adds delta to the value of the key. A missing key is treated as 0.
+   *
+   * @param key
+   * @param delta
+   * @return The new value.
+   */
+  public long addTo(long key, long delta) {
+    long value = get(key, 0L) + delta;
+    put(key, value);
+    return value;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, EMPTY_KEY);
+    Arrays.fill(values, 0L);
+    hasZeroKey = false;
+    zeroKeyValue = 0L;
+    size = 0;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new long[capacity];
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private void rehash(int newCapacity) {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    allocate(newCapacity);
+    int mask = newCapacity - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      long key = oldKeys[j];
+      if (key != EMPTY_KEY) {
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY_KEY) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+}
@@ -0,0 +1,150 @@
+package com.neoshell.telegram.messageanalysisbot.collection;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to objects. Uses open addressing with
+ * linear probing, so there is no boxing and no entry object per mapping.
+ * Removal is not supported. Not thread-safe.
+ *
+ * @param <V>
+ */
+public class LongObjectHashMap<V> {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.5f;
+  // Marks an empty slot. The mapping of key 0 is stored separately.
+  private static final long EMPTY_KEY = 0L;
+
+  private long[] keys;
+  private Object[] values;
+  private int size = 0;
+  private int resizeThreshold;
+  private boolean hasZeroKey = false;
+  private V zeroKeyValue = null;
+
+  public LongObjectHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public LongObjectHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(
+        Math.max(DEFAULT_CAPACITY, (int) (expectedSize / LOAD_FACTOR)) - 1)
+        << 1;
+    allocate(capacity);
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    if (key == EMPTY_KEY) {
+      return zeroKeyValue;
+    }
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return (V) values[i];
+      }
+      if (keys[i] == EMPTY_KEY) {
+        return null;
+      }
+    }
+  }
+
+  public boolean containsKey(long key) {
+    if (key == EMPTY_KEY) {
+      return hasZeroKey;
+    }
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return true;
+      }
+      if (keys[i] == EMPTY_KEY) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @param key
+   * @param value
+   * @return The previous value of the key, or null if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (key == EMPTY_KEY) {
+      V previous = zeroKeyValue;
+      if (!hasZeroKey) {
+        hasZeroKey = true;
+        size++;
+      }
+      zeroKeyValue = value;
+      return previous;
+    }
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != EMPTY_KEY) {
+      if (keys[i] == key) {
+        V previous = (V) values[i];
+        values[i] = value;
+        return previous;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size > resizeThreshold) {
+      rehash(keys.length << 1);
+    }
+    return null;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, EMPTY_KEY);
+    Arrays.fill(values, null);
+    hasZeroKey = false;
+    zeroKeyValue = null;
+    size = 0;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private void rehash(int newCapacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(newCapacity);
+    int mask = newCapacity - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      long key = oldKeys[j];
+      if (key != EMPTY_KEY) {
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY_KEY) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  // Spreads the bits, since Telegram ids are far from uniformly distributed.
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+}
@@ -0,0 +1,185 @@
+package com.neoshell.telegram.messageanalysisbot.collection;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from object keys to primitive long values. Uses open addressing
+ * with linear probing, so there is no boxing and no entry object per mapping.
+ * Null keys and removal are not supported. Not thread-safe.
+ *
+ * @param <K>
+ */
+public class ObjectLongHashMap<K> {
+
+  /**
+   * Receives the mappings of the map, in no particular order.
+   *
+   * @param <K>
+   */
+  public interface EntryVisitor<K> {
+    public void visit(K key, long value);
+  }
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.5f;
+
+  // A null key marks an empty slot.
+  private Object[] keys;
+  private long[] values;
+  private int size = 0;
+  private int resizeThreshold;
+
+  public ObjectLongHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public ObjectLongHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(
+        Math.max(DEFAULT_CAPACITY, (int) (expectedSize / LOAD_FACTOR)) - 1)
+        << 1;
+    allocate(capacity);
+  }
+
+  /**
+   * @param key
+   * @param defaultValue
+   * @return The value of the key, or defaultValue if there is none.
+   */
+  public long get(K key, long defaultValue) {
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      if (keys[i] == null) {
+        return defaultValue;
+      }
+      if (keys[i].equals(key)) {
+        return values[i];
+      }
+    }
+  }
+
+  public boolean containsKey(K key) {
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      if (keys[i] == null) {
+        return false;
+      }
+      if (keys[i].equals(key)) {
+        return true;
+      }
+    }
+  }
+
+  public void put(K key, long value) {
+    int i = findSlot(key);
+    if (keys[i] != null) {
+      values[i] = value;
+      return;
+    }
+    insert(i, key, value);
+  }
+
+  /**
+   * Adds delta to the value of the key. A missing key is treated as 0.
+   *
+   * @param key
+   * @param delta
+   * @return The new value.
+   */
+  public long addTo(K key, long delta) {
+    int i = findSlot(key);
+    if (keys[i] != null) {
+      return values[i] += delta;
+    }
+    insert(i, key, delta);
+    return delta;
+  }
+
+  /**
+   * Adds all values of the other map to this one.
+   *
+   * @param other
+   */
+  public void addAll(ObjectLongHashMap<K> other) {
+    other.forEachEntry(new EntryVisitor<K>() {
+      @Override
+      public void visit(K key, long value) {
+        addTo(key, value);
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public void forEachEntry(EntryVisitor<K> visitor) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null) {
+        visitor.visit((K) keys[i], values[i]);
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, null);
+    Arrays.fill(values, 0L);
+    size = 0;
+  }
+
+  // Returns the slot of the key, or the empty slot where it would go.
+  private int findSlot(K key) {
+    if (key == null) {
+      throw new NullPointerException("Null keys are not supported.");
+    }
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != null && !keys[i].equals(key)) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void insert(int i, K key, long value) {
+    keys[i] = key;
+    values[i] = value;
+    if (++size > resizeThreshold) {
+      rehash(keys.length << 1);
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new Object[capacity];
+    values = new long[capacity];
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private void rehash(int newCapacity) {
+    Object[] oldKeys = keys;
+    long[] oldValues = values;
+    allocate(newCapacity);
+    int mask = newCapacity - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      Object key = oldKeys[j];
+      if (key != null) {
+        int i = hash(key) & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  // Spreads the hash code so that linear probing works with String keys.
+  private static int hash(Object key) {
+    int h = key.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+}
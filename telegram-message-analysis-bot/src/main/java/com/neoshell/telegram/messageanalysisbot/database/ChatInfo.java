@@ -0,0 +1,100 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.util.Map;
+
+/**
+ * A chat in the chat registry, which is kept up to date as messages are added.
+ * Statistics are over the message types it was read for. Watermarks mark how
+ * far each job has got in the chat.
+ *
+ * Messages stored before the registry existed are added by a background job,
+ * a range of messages at a time. Until then the chat is not complete, and its
+ * statistics only cover the messages added since.
+ */
+public class ChatInfo {
+
+  // The id of the last message counted by the incremental WordCounter.
+  public static final String WORD_COUNT_CHECKPOINT = "word-count";
+  // The last month index counted by the monthly WordCounter.
+  public static final String MONTHLY_WORD_COUNT = "monthly-word-count";
+  // Incremented whenever the all-time word totals of the chat change.
+  public static final String WORD_TOTALS_VERSION = "word-totals";
+  // The hour up to which HourlyMessageCountBackfill has rebuilt the counts.
+  public static final String HOURLY_MESSAGE_COUNT_BACKFILL =
+      "hourly-message-count";
+  // The last message id ChatRegistryBackfill has added to the registry, or
+  // BACKFILL_DONE once the registry covers all messages of the chat. Of
+  // ALL_CHATS, BACKFILL_DONE once it covers every chat, and from then on
+  // chats are read with BACKFILL_DONE too, including chats created later.
+  public static final String CHAT_REGISTRY = "chat-registry";
+  // The watermark of a backfill that has covered the whole chat.
+  public static final long BACKFILL_DONE = Long.MAX_VALUE;
+  // The chat id of watermarks which cover all chats. No chat has this id.
+  public static final long ALL_CHATS = 0L;
+
+  private long chatId;
+  private long firstEpochSeconds;
+  private long lastEpochSeconds;
+  private long numMessages;
+  private long lastMessageId;
+  private Map<String, Long> watermarks;
+
+  public ChatInfo(long chatId, long firstEpochSeconds, long lastEpochSeconds,
+      long numMessages, long lastMessageId, Map<String, Long> watermarks) {
+    this.chatId = chatId;
+    this.firstEpochSeconds = firstEpochSeconds;
+    this.lastEpochSeconds = lastEpochSeconds;
+    this.numMessages = numMessages;
+    this.lastMessageId = lastMessageId;
+    this.watermarks = watermarks;
+  }
+
+  public long getChatId() {
+    return chatId;
+  }
+
+  public long getFirstEpochSeconds() {
+    return firstEpochSeconds;
+  }
+
+  public long getLastEpochSeconds() {
+    return lastEpochSeconds;
+  }
+
+  public long getNumMessages() {
+    return numMessages;
+  }
+
+  public long getLastMessageId() {
+    return lastMessageId;
+  }
+
+  /**
+   * @param name
+   * @return 0 if the job has not set the watermark.
+   */
+  public long getWatermark(String name) {
+    Long watermark = watermarks.get(name);
+    return watermark == null ? 0L : watermark;
+  }
+
+  /**
+   * @return false if the statistics may miss messages stored before the chat
+   *         registry existed.
+   */
+  public boolean isComplete() {
+    return getWatermark(CHAT_REGISTRY) == BACKFILL_DONE;
+  }
+
+  public Map<String, Long> getWatermarks() {
+    return watermarks;
+  }
+
+  @Override
+  public String toString() {
+    return chatId + ": messages=" + numMessages + ", first=" + firstEpochSeconds
+        + ", last=" + lastEpochSeconds + ", lastMessageId=" + lastMessageId
+        + ", watermarks=" + watermarks;
+  }
+
+}
@@ -0,0 +1,108 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.neoshell.telegram.messageanalysisbot.cache.ExpiringLruCache;
+
+/**
+ * Caches the options of each chat in memory. All options of a chat are loaded
+ * from database on the first access, and updated by write-through.
+ */
+public class ChatOptionsCache {
+
+  private DatabaseInterface database;
+  private ExpiringLruCache<Long, Map<String, String>> cache;
+  // Incremented on every write, so that a load which raced with a write does
+  // not put stale options into the cache. Guarded by "this".
+  private long writeVersion = 0L;
+
+  /**
+   * @param database
+   * @param maxChats
+   *          Max number of chats to keep in memory.
+   * @param ttlMillis
+   *          How long the options of a chat are kept before being reloaded. 0
+   *          means forever.
+   */
+  public ChatOptionsCache(DatabaseInterface database, int maxChats,
+      long ttlMillis) {
+    this.database = database;
+    cache = new ExpiringLruCache<>(maxChats, ttlMillis);
+  }
+
+  /**
+   * Gets the option value according to the name.
+   *
+   * @param chatId
+   * @param optionName
+   * @return null if the option is not set.
+   * @throws SQLException
+   */
+  public String getOption(long chatId, String optionName) throws SQLException {
+    return getOptions(chatId).get(optionName);
+  }
+
+  /**
+   * Writes the options into database, then updates the cache.
+   *
+   * @param chatId
+   * @param options
+   *          A map where the key is option name and the value is option value.
+   * @throws SQLException
+   */
+  @SuppressWarnings("try")
+  public void setOptions(long chatId, Map<String, String> options)
+      throws SQLException {
+    try (DatabaseSession session = database.openSession()) {
+      for (Map.Entry<String, String> option : options.entrySet()) {
+        database.addOrUpdateOptions(chatId, option.getKey(),
+            option.getValue());
+      }
+    }
+    synchronized (this) {
+      writeVersion++;
+      Map<String, String> cached = cache.get(chatId);
+      if (cached != null) {
+        Map<String, String> updated = new HashMap<>(cached);
+        updated.putAll(options);
+        cache.put(chatId, Collections.unmodifiableMap(updated));
+      }
+    }
+  }
+
+  /**
+   * @return The number of chats whose expired options are dropped.
+   */
+  public int purgeExpired() {
+    return cache.purgeExpired();
+  }
+
+  public String getStats() {
+    return cache.getStats();
+  }
+
+  @SuppressWarnings("try")
+  private Map<String, String> getOptions(long chatId) throws SQLException {
+    Map<String, String> options = cache.get(chatId);
+    if (options != null) {
+      return options;
+    }
+    long versionBeforeLoad;
+    synchronized (this) {
+      versionBeforeLoad = writeVersion;
+    }
+    try (DatabaseSession session = database.openSession()) {
+      options = Collections.unmodifiableMap(database.getOptions(chatId));
+    }
+    synchronized (this) {
+      if (writeVersion == versionBeforeLoad) {
+        cache.put(chatId, options);
+      }
+    }
+    return options;
+  }
+
+}
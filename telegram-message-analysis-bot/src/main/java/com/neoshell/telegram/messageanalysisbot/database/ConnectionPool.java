@@ -0,0 +1,334 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded JDBC connection pool.
+ *
+ * Idle connections are reused in LIFO order and validated before being handed
+ * out if they have been idle for longer than the validation interval. A
+ * background task closes connections idle for longer than the idle timeout,
+ * as long as the pool keeps at least minSize connections.
+ */
+public class ConnectionPool {
+
+  private static final String DRIVER_CLASS_NAME = "com.mysql.jdbc.Driver";
+  private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+  private static final long EVICTION_INTERVAL_MILLIS = 30000;
+  // SQL state for "unable to establish connection".
+  private static final String CONNECTION_FAILURE_SQL_STATE = "08001";
+
+  private String databaseURL;
+  private String user;
+  private String password;
+  private int minSize;
+  private int maxSize;
+  private long maxWaitMillis;
+  private long idleTimeoutMillis;
+  private long validationIntervalMillis;
+
+  // All fields below are guarded by "this".
+  private Deque<IdleConnection> idleConnections = new ArrayDeque<>();
+  private int numActive = 0;
+  private int numPending = 0; // Connections being created.
+  private int numWaiting = 0;
+  private boolean isShutdown = false;
+  private long numCreated = 0;
+  private long numDestroyed = 0;
+  private long numBorrowed = 0;
+  private long numWaitTimeouts = 0;
+  private long numValidationFailures = 0;
+  private long totalWaitMillis = 0;
+
+  private ScheduledExecutorService evictionExecutor;
+
+  public ConnectionPool(String databaseURL, String user, String password,
+      int minSize, int maxSize, long maxWaitMillis, long idleTimeoutMillis,
+      long validationIntervalMillis)
+      throws ClassNotFoundException, SQLException {
+    if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+      throw new IllegalArgumentException(
+          "Invalid pool size. min: " + minSize + ", max: " + maxSize);
+    }
+    this.databaseURL = databaseURL;
+    this.user = user;
+    this.password = password;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.maxWaitMillis = maxWaitMillis;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.validationIntervalMillis = validationIntervalMillis;
+    Class.forName(DRIVER_CLASS_NAME);
+    fillToMinSize();
+    evictionExecutor = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        evictIdleConnections();
+      }
+    }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Borrows a connection. Waits up to maxWaitMillis if all connections are in
+   * use.
+   *
+   * @return
+   * @throws SQLException
+   */
+  public Connection borrow() throws SQLException {
+    long startMillis = System.currentTimeMillis();
+    long deadlineMillis = startMillis + maxWaitMillis;
+    while (true) {
+      IdleConnection idle = null;
+      synchronized (this) {
+        while (!isShutdown && idleConnections.isEmpty()
+            && numActive + numPending >= maxSize) {
+          long remainingMillis = deadlineMillis - System.currentTimeMillis();
+          if (remainingMillis <= 0) {
+            numWaitTimeouts++;
+            throw new SQLTransientConnectionException(
+                "Timed out waiting for a database connection. " + getStats(),
+                CONNECTION_FAILURE_SQL_STATE);
+          }
+          numWaiting++;
+          try {
+            wait(remainingMillis);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException(
+                "Interrupted while waiting for a database connection.",
+                CONNECTION_FAILURE_SQL_STATE, e);
+          } finally {
+            numWaiting--;
+          }
+        }
+        if (isShutdown) {
+          throw new SQLTransientConnectionException(
+              "Connection pool is shut down.", CONNECTION_FAILURE_SQL_STATE);
+        }
+        totalWaitMillis += System.currentTimeMillis() - startMillis;
+        idle = idleConnections.pollFirst();
+        if (idle != null) {
+          numActive++;
+        } else {
+          numPending++;
+        }
+      }
+
+      if (idle == null) {
+        Connection connection;
+        try {
+          connection = createConnection();
+        } catch (SQLException e) {
+          synchronized (this) {
+            numPending--;
+            notifyAll();
+          }
+          throw e;
+        }
+        synchronized (this) {
+          numPending--;
+          numActive++;
+          numBorrowed++;
+        }
+        return connection;
+      }
+
+      if (System.currentTimeMillis()
+          - idle.idleSinceMillis < validationIntervalMillis
+          || isValid(idle.connection)) {
+        synchronized (this) {
+          numBorrowed++;
+        }
+        return idle.connection;
+      }
+      // Stale connection. Drop it and try again.
+      synchronized (this) {
+        numValidationFailures++;
+      }
+      destroy(idle.connection, /* wasActive= */true);
+    }
+  }
+
+  /**
+   * Returns a borrowed connection to the pool. Closed connections are
+   * discarded.
+   *
+   * @param connection
+   */
+  public void release(Connection connection) {
+    boolean isReusable;
+    try {
+      isReusable = !connection.isClosed();
+      if (isReusable && !connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      isReusable = false;
+    }
+    synchronized (this) {
+      if (isReusable && !isShutdown) {
+        numActive--;
+        idleConnections.addFirst(
+            new IdleConnection(connection, System.currentTimeMillis()));
+        notifyAll();
+        return;
+      }
+    }
+    destroy(connection, /* wasActive= */true);
+  }
+
+  /**
+   * Closes all idle connections. Connections in use are closed when they are
+   * released.
+   */
+  public void shutdown() {
+    evictionExecutor.shutdownNow();
+    Deque<IdleConnection> toClose;
+    synchronized (this) {
+      isShutdown = true;
+      toClose = idleConnections;
+      idleConnections = new ArrayDeque<>();
+      notifyAll();
+    }
+    for (IdleConnection idle : toClose) {
+      destroy(idle.connection, /* wasActive= */false);
+    }
+  }
+
+  public synchronized int getNumActive() {
+    return numActive;
+  }
+
+  public synchronized int getNumIdle() {
+    return idleConnections.size();
+  }
+
+  public synchronized String getStats() {
+    return "active=" + numActive + ", idle=" + idleConnections.size()
+        + ", waiting=" + numWaiting + ", max=" + maxSize + ", created="
+        + numCreated + ", destroyed=" + numDestroyed + ", borrowed="
+        + numBorrowed + ", waitTimeouts=" + numWaitTimeouts
+        + ", validationFailures=" + numValidationFailures + ", avgWaitMillis="
+        + (numBorrowed > 0 ? totalWaitMillis / numBorrowed : 0);
+  }
+
+  private Connection createConnection() throws SQLException {
+    Connection connection = DriverManager.getConnection(databaseURL, user,
+        password);
+    // Make it compatible with emoji.
+    Statement statement = connection.createStatement();
+    statement.execute("SET NAMES utf8mb4");
+    statement.close();
+    synchronized (this) {
+      numCreated++;
+    }
+    return connection;
+  }
+
+  private boolean isValid(Connection connection) {
+    try {
+      return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private void destroy(Connection connection, boolean wasActive) {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      // Nothing else to do with a broken connection.
+    }
+    synchronized (this) {
+      if (wasActive) {
+        numActive--;
+      }
+      numDestroyed++;
+      notifyAll();
+    }
+  }
+
+  private void fillToMinSize() throws SQLException {
+    while (true) {
+      synchronized (this) {
+        if (isShutdown
+            || idleConnections.size() + numActive + numPending >= minSize) {
+          return;
+        }
+        numPending++;
+      }
+      Connection connection;
+      try {
+        connection = createConnection();
+      } finally {
+        synchronized (this) {
+          numPending--;
+        }
+      }
+      synchronized (this) {
+        idleConnections.addLast(
+            new IdleConnection(connection, System.currentTimeMillis()));
+        notifyAll();
+      }
+    }
+  }
+
+  private void evictIdleConnections() {
+    Deque<IdleConnection> toClose = new ArrayDeque<>();
+    long nowMillis = System.currentTimeMillis();
+    synchronized (this) {
+      int numToKeep = Math.max(0, minSize - numActive);
+      // The oldest idle connections are at the tail.
+      Iterator<IdleConnection> iterator = idleConnections.descendingIterator();
+      while (iterator.hasNext() && idleConnections.size() > numToKeep) {
+        IdleConnection idle = iterator.next();
+        if (nowMillis - idle.idleSinceMillis >= idleTimeoutMillis) {
+          iterator.remove();
+          toClose.add(idle);
+        }
+      }
+    }
+    for (IdleConnection idle : toClose) {
+      destroy(idle.connection, /* wasActive= */false);
+    }
+    try {
+      fillToMinSize();
+    } catch (SQLException e) {
+      // The database might be temporarily unavailable. Try next time.
+    }
+  }
+
+  private static class IdleConnection {
+    private Connection connection;
+    private long idleSinceMillis;
+
+    public IdleConnection(Connection connection, long idleSinceMillis) {
+      this.connection = connection;
+      this.idleSinceMillis = idleSinceMillis;
+    }
+  }
+
+}
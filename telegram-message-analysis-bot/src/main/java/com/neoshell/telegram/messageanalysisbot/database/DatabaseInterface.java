@@ -13,7 +13,9 @@ import com.neoshell.telegram.messageanalysisbot.User;
 public interface DatabaseInterface {
 
   /**
-   * Opens database connection.
+   * Opens database connection for the current thread. Calls can be nested; the
+   * connection is released by the outermost closeConnection(). Prefer
+   * openSession().
    * 
    * @throws ClassNotFoundException
    * @throws SQLException
@@ -21,12 +23,43 @@ public interface DatabaseInterface {
   public void openConnection() throws ClassNotFoundException, SQLException;
 
   /**
-   * Closes database connection.
+   * Closes database connection of the current thread.
    * 
    * @throws SQLException
    */
   public void closeConnection() throws SQLException;
 
+  /**
+   * Opens database connection for the current thread and returns a session
+   * which closes it. Different threads can use the database concurrently, each
+   * in its own session.
+   * 
+   * @return
+   * @throws SQLException
+   */
+  public DatabaseSession openSession() throws SQLException;
+
+  /**
+   * Releases all resources, e.g. pooled connections.
+   */
+  public void shutdown();
+
+  /**
+   * @return Human readable statistics, e.g. connection pool usage.
+   */
+  public String getStats();
+
+  /**
+   * Explains the queries of this interface with sample parameters, to check
+   * that none of them scans a whole table.
+   * 
+   * @param chatId
+   *          The chat whose data is used for the sample parameters.
+   * @return
+   * @throws SQLException
+   */
+  public List<QueryPlan> explainQueries(long chatId) throws SQLException;
+
   /**
    * Executes query.
    * 
@@ -44,6 +77,15 @@ public interface DatabaseInterface {
    */
   public void addMessage(Message message) throws SQLException;
 
+  /**
+   * Adds the messages into database in batch. Either all messages are added or
+   * none of them is.
+   * 
+   * @param messages
+   * @throws SQLException
+   */
+  public void addMessages(List<Message> messages) throws SQLException;
+
   /**
    * Adds the user into database. Updates if it already exists.
    *
@@ -52,6 +94,15 @@ public interface DatabaseInterface {
    */
   public void addOrUpdateUser(User user) throws SQLException;
 
+  /**
+   * Adds the users into database in batch. Updates the ones which already
+   * exist.
+   * 
+   * @param users
+   * @throws SQLException
+   */
+  public void addOrUpdateUsers(Collection<User> users) throws SQLException;
+
   /**
    * Adds the word count into database. Updates if the key already exists.
    * 
@@ -65,6 +116,20 @@ public interface DatabaseInterface {
   public void addOrUpdateWordCount(long chatId, int timeRangeIndex, String word,
       long count) throws SQLException;
 
+  /**
+   * Adds the word counts of a time range into database in one transaction.
+   * Updates the ones which already exist.
+   * 
+   * @param chatId
+   * @param timeRangeIndex
+   *          A unique number for identifying the time range.
+   * @param wordCounts
+   *          Map entries from word to count.
+   * @throws SQLException
+   */
+  public void addOrUpdateWordCounts(long chatId, int timeRangeIndex,
+      List<Map.Entry<String, Long>> wordCounts) throws SQLException;
+
   /**
    * Adds the option into database. Updates if the key already exists.
    * 
@@ -97,6 +162,22 @@ public interface DatabaseInterface {
   public List<Message> getMessages(long chatId, Collection<MessageType> type,
       long startEpochSeconds, long endEpochSeconds) throws SQLException;
 
+  /**
+   * Streams messages in the given time range to the callback, without holding
+   * them in memory.
+   * 
+   * @param chatId
+   * @param types
+   * @param startEpochSeconds
+   * @param endEpochSeconds
+   * @param callback
+   *          Must not use the database.
+   * @throws SQLException
+   */
+  public void streamMessages(long chatId, Collection<MessageType> types,
+      long startEpochSeconds, long endEpochSeconds,
+      RowCallback<Message> callback) throws SQLException;
+
   /**
    * Gets messages sorted by time.
    * 
@@ -129,12 +210,86 @@ public interface DatabaseInterface {
 
   /**
    * Gets the ids of the chat that the bot has ever received messages from.
+   * Reads the chat registry, not messages.
    * 
    * @return
    * @throws SQLException
    */
   public List<Long> getChatIds() throws SQLException;
 
+  /**
+   * Gets the chats which have messages of the given types from the chat
+   * registry, with their watermarks. Chats which are not complete may be
+   * missing, see ChatInfo.
+   * 
+   * @param types
+   * @return Sorted by chat id. Statistics are over the given types.
+   * @throws SQLException
+   */
+  public List<ChatInfo> getChats(Collection<MessageType> types)
+      throws SQLException;
+
+  /**
+   * Gets the chat from the chat registry, with its watermarks.
+   * 
+   * @param chatId
+   * @param types
+   * @return Statistics over the given types, or null if the registry has no
+   *         messages of them. Unless the chat is complete, that does not mean
+   *         the chat has none.
+   * @throws SQLException
+   */
+  public ChatInfo getChat(long chatId, Collection<MessageType> types)
+      throws SQLException;
+
+  /**
+   * Gets the ids of the chats which have messages, reading one index entry of
+   * messages per chat. Read all chats a page at a time.
+   * 
+   * @param afterChatId
+   *          Only chats with greater ids are returned.
+   * @param limit
+   * @return In ascending order.
+   * @throws SQLException
+   */
+  public List<Long> getMessageChatIds(long afterChatId, int limit)
+      throws SQLException;
+
+  /**
+   * Adds the next messages of the chat to the chat registry, after the one in
+   * its CHAT_REGISTRY watermark, in one short transaction. Messages added by
+   * addMessage() or addMessages() since the registry was reset are already
+   * there and are skipped. Moves the watermark to the last message read, or
+   * to BACKFILL_DONE once there are none left.
+   * 
+   * @param chatId
+   * @param maxMessages
+   *          The max number of messages read.
+   * @return true if the chat is complete now.
+   * @throws SQLException
+   */
+  public boolean backfillChatRegistry(long chatId, int maxMessages)
+      throws SQLException;
+
+  /**
+   * Sets how far a job has got in the chat. See ChatInfo for the names.
+   * 
+   * @param chatId
+   * @param name
+   * @param watermark
+   * @throws SQLException
+   */
+  public void setWatermark(long chatId, String name, long watermark)
+      throws SQLException;
+
+  /**
+   * @param chatId
+   * @param name
+   * @return 0 if it is not set.
+   * @throws SQLException
+   */
+  public long getWatermark(long chatId, String name) throws SQLException;
+
   /**
    * Gets the rank based on the number of messages of the given type in the
    * given time range.
@@ -162,6 +317,20 @@ public interface DatabaseInterface {
   public Map<User, int[]> getTimeDistributionInHour(long chatId,
       long startEpochSeconds, long endEpochSeconds) throws SQLException;
 
+  /**
+   * Recomputes the hourly message counts in the given time range from
+   * messages. Counts are kept up to date as messages are added, so this is
+   * only needed for messages added before the counts existed. Both ends are
+   * rounded down to whole hours.
+   * 
+   * @param chatId
+   * @param startEpochSeconds
+   * @param endEpochSeconds
+   * @throws SQLException
+   */
+  public void rebuildHourlyMessageCounts(long chatId, long startEpochSeconds,
+      long endEpochSeconds) throws SQLException;
+
   /**
    * Gets the reply relationship in the given time range.
    * 
@@ -175,6 +344,20 @@ public interface DatabaseInterface {
   public List<Map.Entry<Long, Long>> getReplyList(long chatId,
       long startEpochSeconds, long endEpochSeconds) throws SQLException;
 
+  /**
+   * Streams the reply relationship in the given time range to the callback in
+   * ascending order of time, without holding it in memory.
+   * 
+   * @param chatId
+   * @param startEpochSeconds
+   * @param endEpochSeconds
+   * @param callback
+   *          Must not use the database.
+   * @throws SQLException
+   */
+  public void streamReplies(long chatId, long startEpochSeconds,
+      long endEpochSeconds, ReplyCallback callback) throws SQLException;
+
   /**
    * Gets the total numbers of most frequent words in the given time range.
    * 
@@ -190,15 +373,149 @@ public interface DatabaseInterface {
       int endTimeRangeIndex, int limit) throws SQLException;
 
   /**
-   * Gets the max time range index for word count. Since WordCounter runs in
-   * incremental mode, the time range index is used for determining the position
-   * to continue.
+   * Same as getWordCount() over all time ranges, from totals kept up to date
+   * as word counts are written. The WORD_TOTALS_VERSION watermark of the chat
+   * changes whenever they do.
+   * 
+   * @param chatId
+   * @param limit
+   *          The max number of words you want to keep in the result.
+   * @return
+   * @throws SQLException
+   */
+  public Map<String, Long> getWordTotals(long chatId, int limit)
+      throws SQLException;
+
+  /**
+   * Gets messages with ids greater than afterMessageId, in ascending order of
+   * id. Pages through a chat from a checkpoint.
    * 
    * @param chatId
+   * @param types
+   * @param afterMessageId
+   * @param limit
+   *          The max number of messages retrieved from database.
    * @return
    * @throws SQLException
    */
-  public int getMaxWordCountTimeRangeIndex(long chatId) throws SQLException;
+  public List<Message> getMessagesAfter(long chatId,
+      Collection<MessageType> types, long afterMessageId, int limit)
+      throws SQLException;
+
+  /**
+   * Gets the id of the last message counted by the incremental WordCounter,
+   * i.e. the WORD_COUNT_CHECKPOINT watermark.
+   * 
+   * @param chatId
+   * @return 0 if no message of the chat has been counted.
+   * @throws SQLException
+   */
+  public long getWordCountCheckpoint(long chatId) throws SQLException;
+
+  /**
+   * Adds word counts to the daily word counts, marks their months dirty and
+   * moves the checkpoint of the chat in one transaction, so that no message is
+   * counted twice and no month is left behind its daily counts.
+   * 
+   * @param chatId
+   * @param wordCountsByDay
+   *          Key: day index (days since epoch). Value: map entries from word
+   *          to the count to add.
+   * @param monthIndices
+   *          The months of the days, whose monthly counts are now stale.
+   * @param previousMessageId
+   *          The checkpoint the counts were computed from.
+   * @param lastMessageId
+   *          The new checkpoint.
+   * @throws StaleCheckpointException
+   *           If the checkpoint is no longer at previousMessageId.
+   * @throws SQLException
+   */
+  public void addDailyWordCounts(long chatId,
+      Map<Integer, List<Map.Entry<String, Long>>> wordCountsByDay,
+      Collection<Integer> monthIndices, long previousMessageId,
+      long lastMessageId) throws SQLException;
+
+  /**
+   * @param chatId
+   * @return Map from the index of each month whose monthly counts are behind
+   *         its daily counts to the version of the mark, sorted by month.
+   * @throws SQLException
+   */
+  public Map<Integer, Long> getDirtyWordCountMonths(long chatId)
+      throws SQLException;
+
+  /**
+   * @return The ids of the chats which have dirty months.
+   * @throws SQLException
+   */
+  public List<Long> getChatIdsWithDirtyWordCountMonths() throws SQLException;
+
+  /**
+   * Clears the dirty mark of a month after its monthly counts were derived
+   * again. A month marked again since the version was read stays dirty.
+   * 
+   * @param chatId
+   * @param monthIndex
+   * @param version
+   *          As returned by getDirtyWordCountMonths().
+   * @throws SQLException
+   */
+  public void clearDirtyWordCountMonth(long chatId, int monthIndex,
+      long version) throws SQLException;
+
+  /**
+   * Gets the total numbers of most frequent words in the given day range.
+   * 
+   * @param chatId
+   * @param startDayIndex
+   * @param endDayIndex
+   * @param limit
+   *          The max number of words you want to keep in the result.
+   * @return Map entries from word to count, sorted by count in descending
+   *         order.
+   * @throws SQLException
+   */
+  public List<Map.Entry<String, Long>> getDailyWordCount(long chatId,
+      int startDayIndex, int endDayIndex, int limit) throws SQLException;
+
+  /**
+   * Replaces all word counts of a time range in one transaction.
+   * 
+   * @param chatId
+   * @param timeRangeIndex
+   * @param wordCounts
+   *          Map entries from word to count.
+   * @throws SQLException
+   */
+  public void replaceWordCounts(long chatId, int timeRangeIndex,
+      List<Map.Entry<String, Long>> wordCounts) throws SQLException;
+
+  /**
+   * Takes the lease if it is free or expired, or renews it if the owner
+   * already holds it. Expiry uses the database clock, so nodes need not agree
+   * on time.
+   * 
+   * @param leaseKey
+   *          Identifies the work, e.g. a chat to count.
+   * @param owner
+   *          Identifies the node.
+   * @param ttlMillis
+   *          The lease expires this long from now unless renewed.
+   * @return true if the owner holds the lease.
+   * @throws SQLException
+   */
+  public boolean tryAcquireLease(String leaseKey, String owner,
+      long ttlMillis) throws SQLException;
+
+  /**
+   * Releases the lease if the owner holds it.
+   * 
+   * @param leaseKey
+   * @param owner
+   * @throws SQLException
+   */
+  public void releaseLease(String leaseKey, String owner) throws SQLException;
 
   /**
    * Gets the option value according to the name.
@@ -210,4 +527,13 @@ public interface DatabaseInterface {
    */
   public String getOption(long chatId, String optionName) throws SQLException;
 
+  /**
+   * Gets all options of the chat.
+   * 
+   * @param chatId
+   * @return A map where the key is option name and the value is option value.
+   * @throws SQLException
+   */
+  public Map<String, String> getOptions(long chatId) throws SQLException;
+
 }
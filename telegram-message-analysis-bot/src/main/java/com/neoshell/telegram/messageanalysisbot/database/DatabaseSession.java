@@ -0,0 +1,26 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.sql.SQLException;
+
+/**
+ * Scope in which the current thread holds a database connection. Use it with
+ * try-with-resources:
+ *
+ * <pre>
+ * try (DatabaseSession session = database.openSession()) {
+ *   database.getUsers();
+ * }
+ * </pre>
+ */
+public interface DatabaseSession extends AutoCloseable {
+
+  /**
+   * Releases the connection held by this session. Calling it more than once
+   * has no effect.
+   *
+   * @throws SQLException
+   */
+  @Override
+  public void close() throws SQLException;
+
+}
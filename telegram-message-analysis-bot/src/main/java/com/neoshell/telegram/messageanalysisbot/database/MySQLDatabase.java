@@ -1,7 +1,6 @@
 package com.neoshell.telegram.messageanalysisbot.database;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -10,9 +9,12 @@ import java.sql.Types;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import com.neoshell.telegram.messageanalysisbot.Message;
 import com.neoshell.telegram.messageanalysisbot.MessageType;
@@ -20,45 +22,209 @@ import com.neoshell.telegram.messageanalysisbot.User;
 
 public class MySQLDatabase implements DatabaseInterface {
 
-  private String databaseURL;
-  private String user;
-  private String password;
+  // Keeps multi-row statements well below the default max_allowed_packet.
+  private static final int MAX_ROWS_PER_STATEMENT = 500;
+  // Unlike REPLACE, this updates the row in place instead of deleting and
+  // inserting it again.
+  private static final String UPDATE_USER_ON_DUPLICATE = " ON DUPLICATE KEY "
+      + "UPDATE username=VALUES(username), first_name=VALUES(first_name), "
+      + "last_name=VALUES(last_name)";
 
-  private Connection connection;
+  // The database clock in milliseconds, for lease expiry.
+  private static final String NOW_MILLIS =
+      "CAST(UNIX_TIMESTAMP(NOW(3))*1000 AS SIGNED)";
+
+  // Messages are also counted per chat, user and type in buckets of an hour.
+  private static final long SECONDS_PER_BUCKET = 3600;
+
+  // Queries below are also explained by explainQueries().
+  private static final String GET_RANK_QUERY =
+      "SELECT * FROM ("
+      + "SELECT user_id, SUM(count) AS count FROM ("
+      + "SELECT user_id, count FROM hourly_message_counts "
+      + "WHERE chat_id=? AND hour_bucket>=? AND hour_bucket<? AND type=? "
+      + "UNION ALL "
+      + "SELECT user_id, 1 AS count FROM messages "
+      + "WHERE chat_id=? AND type=? AND ("
+      + "(epoch_seconds>=? AND epoch_seconds<?) OR "
+      + "(epoch_seconds>=? AND epoch_seconds<?))"
+      + ") AS union_table "
+      + "GROUP BY user_id"
+      + ") AS count_table "
+      + "INNER JOIN ("
+      + "SELECT * FROM users) AS users_table "
+      + "ON count_table.user_id=users_table.user_id "
+      + "ORDER BY count DESC;";
+  private static final String GET_TIME_DISTRIBUTION_QUERY =
+      "SELECT * FROM ("
+      + "SELECT user_id, hour, SUM(count) AS count FROM ("
+      + "SELECT user_id, hour_bucket%24 AS hour, count "
+      + "FROM hourly_message_counts "
+      + "WHERE chat_id=? AND hour_bucket>=? AND hour_bucket<? "
+      + "UNION ALL "
+      + "SELECT user_id, FLOOR(epoch_seconds/3600)%24 AS hour, 1 AS count "
+      + "FROM messages "
+      + "WHERE chat_id=? AND ("
+      + "(epoch_seconds>=? AND epoch_seconds<?) OR "
+      + "(epoch_seconds>=? AND epoch_seconds<?))"
+      + ") AS union_table "
+      + "GROUP BY user_id, hour"
+      + ") AS count_table "
+      + "INNER JOIN ("
+      + "SELECT * FROM users"
+      + ") AS users_table "
+      + "ON count_table.user_id=users_table.user_id "
+      + "ORDER BY count_table.user_id ASC, hour ASC;";
+  private static final String GET_REPLY_LIST_QUERY =
+      "SELECT message_id, user_id, reply_to_user_id, epoch_seconds "
+      + "FROM messages "
+      + "WHERE chat_id=? AND epoch_seconds>=? AND epoch_seconds<? "
+      + "ORDER BY epoch_seconds ASC;";
+  private static final String GET_WORD_COUNT_QUERY =
+      "SELECT word, SUM(count) AS total_count "
+      + "FROM monthly_freq_word_count "
+      + "WHERE chat_id=? AND month_index>=? AND month_index<? "
+      + "GROUP BY word "
+      + "ORDER BY total_count DESC LIMIT ?;";
+  private static final String GET_WORD_TOTALS_QUERY =
+      "SELECT word, count FROM word_totals "
+      + "WHERE chat_id=? ORDER BY count DESC LIMIT ?;";
+  private static final String GET_MESSAGES_AFTER_QUERY_PREFIX =
+      "SELECT * FROM messages WHERE chat_id=? AND message_id>? AND type IN (";
+  private static final String GET_WATERMARK_QUERY =
+      "SELECT watermark FROM chat_watermarks WHERE chat_id=? AND name=?;";
+  private static final String GET_DAILY_WORD_COUNT_QUERY =
+      "SELECT word, SUM(count) AS total_count "
+      + "FROM daily_word_count "
+      + "WHERE chat_id=? AND day_index>=? AND day_index<? "
+      + "GROUP BY word "
+      + "ORDER BY total_count DESC, word ASC LIMIT ?;";
+  private static final String GET_DIRTY_WORD_COUNT_MONTHS_QUERY =
+      "SELECT month_index, version FROM word_count_dirty_months "
+      + "WHERE chat_id=? ORDER BY month_index;";
+  private static final String GET_OPTION_QUERY =
+      "SELECT option_value FROM options "
+      + "WHERE chat_id=? AND option_name=?;";
+  private static final String GET_OPTIONS_QUERY =
+      "SELECT option_name, option_value FROM options "
+      + "WHERE chat_id=?;";
+  private static final String GET_CHAT_IDS_QUERY =
+      "SELECT DISTINCT chat_id FROM chat_registry;";
+  // Reads one entry of the primary key per chat.
+  private static final String GET_MESSAGE_CHAT_IDS_QUERY =
+      "SELECT DISTINCT chat_id FROM messages WHERE chat_id>? "
+      + "ORDER BY chat_id ASC LIMIT ?;";
+  private static final String GET_MESSAGES_TO_REGISTER_QUERY =
+      "SELECT message_id, epoch_seconds, type FROM messages "
+      + "WHERE chat_id=? AND message_id>? ORDER BY message_id ASC LIMIT ?;";
+
+  private static final int DEFAULT_POOL_MIN_SIZE = 1;
+  private static final int DEFAULT_POOL_MAX_SIZE = 4;
+  private static final long DEFAULT_POOL_MAX_WAIT_MILLIS = 30000;
+  private static final long DEFAULT_POOL_IDLE_TIMEOUT_MILLIS = 600000;
+  private static final long DEFAULT_POOL_VALIDATION_INTERVAL_MILLIS = 30000;
+
+  private ConnectionPool connectionPool;
+  // The connection held by each thread between openConnection() and the
+  // matching closeConnection().
+  private ThreadLocal<ThreadConnection> threadConnection = new ThreadLocal<>();
+  private int schemaVersion;
+  private List<SchemaMigration> pendingMigrations;
 
   public MySQLDatabase(String databaseURL, String user, String password)
       throws ClassNotFoundException, SQLException {
-    this.databaseURL = databaseURL;
-    this.user = user;
-    this.password = password;
-    openConnection();
-    createUsersTableIfNotExists();
-    createMessagesTableIfNotExists();
-    createOptionsTableIfNotExists();
-    createWeeklyFreqWordCountTableIfNotExists();
-    closeConnection();
+    this(new ConnectionPool(databaseURL, user, password, DEFAULT_POOL_MIN_SIZE,
+        DEFAULT_POOL_MAX_SIZE, DEFAULT_POOL_MAX_WAIT_MILLIS,
+        DEFAULT_POOL_IDLE_TIMEOUT_MILLIS,
+        DEFAULT_POOL_VALIDATION_INTERVAL_MILLIS));
+  }
+
+  public MySQLDatabase(ConnectionPool connectionPool) throws SQLException {
+    this(connectionPool, false);
+  }
+
+  /**
+   * @param connectionPool
+   * @param appliesDeferredMigrations Whether to also apply the migrations too
+   *          slow to apply on start, see SchemaMigration.
+   * @throws SQLException
+   */
+  @SuppressWarnings("try")
+  public MySQLDatabase(ConnectionPool connectionPool,
+      boolean appliesDeferredMigrations) throws SQLException {
+    this.connectionPool = connectionPool;
+    try (DatabaseSession session = openSession()) {
+      SchemaMigrator migrator = new SchemaMigrator(getMigrations());
+      migrator.migrate(getConnection(), appliesDeferredMigrations);
+      schemaVersion = migrator.getCurrentVersion(getConnection());
+      pendingMigrations = migrator.getPendingMigrations(getConnection());
+    }
+  }
+
+  /**
+   * @return The deferred migrations not applied yet.
+   */
+  public List<SchemaMigration> getPendingMigrations() {
+    return pendingMigrations;
   }
 
   @Override
-  public void openConnection() throws ClassNotFoundException, SQLException {
-    Class.forName("com.mysql.jdbc.Driver");
-    connection = DriverManager.getConnection(databaseURL, user, password);
-    // Make it compatible with emoji.
-    Statement statement = connection.createStatement();
-    statement.executeQuery("SET NAMES utf8mb4");
-    statement.close();
+  public void openConnection() throws SQLException {
+    ThreadConnection current = threadConnection.get();
+    if (current != null) {
+      current.depth++;
+      return;
+    }
+    threadConnection.set(new ThreadConnection(connectionPool.borrow()));
   }
 
   @Override
   public void closeConnection() throws SQLException {
-    connection.close();
+    ThreadConnection current = threadConnection.get();
+    if (current == null) {
+      return;
+    }
+    if (--current.depth == 0) {
+      threadConnection.remove();
+      connectionPool.release(current.connection);
+    }
+  }
+
+  @Override
+  public DatabaseSession openSession() throws SQLException {
+    openConnection();
+    return new DatabaseSession() {
+      private boolean isClosed = false;
+
+      @Override
+      public void close() throws SQLException {
+        if (!isClosed) {
+          isClosed = true;
+          closeConnection();
+        }
+      }
+    };
+  }
+
+  @Override
+  public void shutdown() {
+    connectionPool.shutdown();
+  }
+
+  @Override
+  public String getStats() {
+    return "Schema version: " + schemaVersion
+        + (pendingMigrations.isEmpty() ? ""
+            : ", pending: " + pendingMigrations)
+        + "\nConnection pool: " + connectionPool.getStats();
   }
 
   // Make sure connection is open before calling the following methods.
-  
+
+
   @Override
   public ResultSet executeQuery(String query) throws SQLException {
-    Statement statement = connection.createStatement();
+    Statement statement = getConnection().createStatement();
     return statement.executeQuery(query);
   }
 
@@ -68,35 +234,70 @@ public class MySQLDatabase implements DatabaseInterface {
         + "(chat_id, message_id, epoch_seconds, user_id, reply_to_message_id, "
         + "reply_to_user_id, content, type) "
         + "VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
-    Long replyToMessageId = message.getReplyToMessageId();
-    Long replyToUserId = message.getReplyToUserId();
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
-    preparedStatement.setLong(1, message.getChatId());
-    preparedStatement.setLong(2, message.getMessageId());
-    preparedStatement.setLong(3, message.getEpochSeconds());
-    preparedStatement.setLong(4, message.getUserId());
-    if (replyToMessageId != null) {
-      preparedStatement.setLong(5, replyToMessageId);
-    } else {
-      preparedStatement.setNull(5, Types.BIGINT);
+    Connection connection = getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      PreparedStatement preparedStatement = connection.prepareStatement(query);
+      setMessageParameters(preparedStatement, 1, message);
+      preparedStatement.execute();
+      preparedStatement.close();
+      addToHourlyMessageCounts(Collections.singletonList(message));
+      addToChatRegistry(Collections.singletonList(message));
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
     }
-    if (replyToUserId != null) {
-      preparedStatement.setLong(6, replyToUserId);
-    } else {
-      preparedStatement.setNull(6, Types.BIGINT);
+  }
+
+  @Override
+  public void addMessages(List<Message> messages) throws SQLException {
+    if (messages.isEmpty()) {
+      return;
+    }
+    Connection connection = getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      for (int from = 0; from < messages.size();
+          from += MAX_ROWS_PER_STATEMENT) {
+        List<Message> rows = messages.subList(from,
+            Math.min(messages.size(), from + MAX_ROWS_PER_STATEMENT));
+        String query = "INSERT INTO messages"
+            + "(chat_id, message_id, epoch_seconds, user_id, "
+            + "reply_to_message_id, reply_to_user_id, content, type) "
+            + "VALUES " + commaSeparatedValueGroups(rows.size(), 8) + ";";
+        PreparedStatement preparedStatement = connection
+            .prepareStatement(query);
+        int paramIndex = 1;
+        for (Message message : rows) {
+          paramIndex = setMessageParameters(preparedStatement, paramIndex,
+              message);
+        }
+        preparedStatement.execute();
+        preparedStatement.close();
+      }
+      addToHourlyMessageCounts(messages);
+      addToChatRegistry(messages);
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
     }
-    preparedStatement.setString(7, message.getContent());
-    preparedStatement.setString(8, message.getType().toString());
-    preparedStatement.execute();
-    preparedStatement.close();
   }
 
   @Override
   public void addOrUpdateUser(User user) throws SQLException {
-    String query = "REPLACE INTO users"
+    String query = "INSERT INTO users"
         + "(user_id, username, first_name, last_name) "
-        + "VALUES (?, ?, ?, ?);";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+        + "VALUES (?, ?, ?, ?)" + UPDATE_USER_ON_DUPLICATE + ";";
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(query);
     preparedStatement.setLong(1, user.getUserId());
     preparedStatement.setString(2, user.getUserName());
     preparedStatement.setString(3, user.getFirstName());
@@ -105,17 +306,194 @@ public class MySQLDatabase implements DatabaseInterface {
     preparedStatement.close();
   }
 
+  @Override
+  public void addOrUpdateUsers(Collection<User> users) throws SQLException {
+    List<User> userList = new ArrayList<>(users);
+    for (int from = 0; from < userList.size();
+        from += MAX_ROWS_PER_STATEMENT) {
+      List<User> rows = userList.subList(from,
+          Math.min(userList.size(), from + MAX_ROWS_PER_STATEMENT));
+      String query = "INSERT INTO users"
+          + "(user_id, username, first_name, last_name) "
+          + "VALUES " + commaSeparatedValueGroups(rows.size(), 4)
+          + UPDATE_USER_ON_DUPLICATE + ";";
+      PreparedStatement preparedStatement = getConnection()
+          .prepareStatement(query);
+      int paramIndex = 1;
+      for (User user : rows) {
+        preparedStatement.setLong(paramIndex++, user.getUserId());
+        preparedStatement.setString(paramIndex++, user.getUserName());
+        preparedStatement.setString(paramIndex++, user.getFirstName());
+        preparedStatement.setString(paramIndex++, user.getLastName());
+      }
+      preparedStatement.execute();
+      preparedStatement.close();
+    }
+  }
+
   @Override
   public void addOrUpdateWordCount(long chatId, int timeRangeIndex, String word,
       long count) throws SQLException {
-    String query = "REPLACE INTO monthly_freq_word_count "
-        + "(chat_id, month_index, word, count) "
-        + "VALUES (?, ?, ?, ?);";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+    // In a transaction with the word totals.
+    addOrUpdateWordCounts(chatId, timeRangeIndex,
+        Collections.<Map.Entry<String, Long>> singletonList(
+            new AbstractMap.SimpleEntry<String, Long>(word, count)));
+  }
+
+  @Override
+  public void addOrUpdateWordCounts(long chatId, int timeRangeIndex,
+      List<Map.Entry<String, Long>> wordCounts) throws SQLException {
+    if (wordCounts.isEmpty()) {
+      return;
+    }
+    Connection connection = getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      addMonthToWordTotals(chatId, timeRangeIndex, -1);
+      replaceMonthlyWordCounts(chatId, timeRangeIndex, wordCounts);
+      addMonthToWordTotals(chatId, timeRangeIndex, 1);
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  @Override
+  public void replaceWordCounts(long chatId, int timeRangeIndex,
+      List<Map.Entry<String, Long>> wordCounts) throws SQLException {
+    Connection connection = getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      addMonthToWordTotals(chatId, timeRangeIndex, -1);
+      PreparedStatement preparedStatement = connection.prepareStatement(
+          "DELETE FROM monthly_freq_word_count "
+              + "WHERE chat_id=? AND month_index=?;");
+      preparedStatement.setLong(1, chatId);
+      preparedStatement.setInt(2, timeRangeIndex);
+      preparedStatement.execute();
+      preparedStatement.close();
+      replaceMonthlyWordCounts(chatId, timeRangeIndex, wordCounts);
+      addMonthToWordTotals(chatId, timeRangeIndex, 1);
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  @Override
+  public void addDailyWordCounts(long chatId,
+      Map<Integer, List<Map.Entry<String, Long>>> wordCountsByDay,
+      Collection<Integer> monthIndices, long previousMessageId,
+      long lastMessageId) throws SQLException {
+    // Entries from day index to word count.
+    List<Map.Entry<Integer, Map.Entry<String, Long>>> countList =
+        new ArrayList<>();
+    for (Map.Entry<Integer, List<Map.Entry<String, Long>>> day
+        : wordCountsByDay.entrySet()) {
+      for (Map.Entry<String, Long> wordCount : day.getValue()) {
+        countList.add(new AbstractMap.SimpleEntry<>(day.getKey(), wordCount));
+      }
+    }
+    Connection connection = getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      // Moved first, which locks the row until commit, so that concurrent
+      // writers of the chat take turns and all but one fail.
+      moveWordCountCheckpoint(chatId, previousMessageId, lastMessageId);
+      for (int from = 0; from < countList.size();
+          from += MAX_ROWS_PER_STATEMENT) {
+        List<Map.Entry<Integer, Map.Entry<String, Long>>> rows = countList
+            .subList(from, Math.min(countList.size(),
+                from + MAX_ROWS_PER_STATEMENT));
+        String query = "INSERT INTO daily_word_count "
+            + "(chat_id, day_index, word, count) "
+            + "VALUES " + commaSeparatedValueGroups(rows.size(), 4)
+            + " ON DUPLICATE KEY UPDATE count=count+VALUES(count);";
+        PreparedStatement preparedStatement = connection
+            .prepareStatement(query);
+        int paramIndex = 1;
+        for (Map.Entry<Integer, Map.Entry<String, Long>> row : rows) {
+          preparedStatement.setLong(paramIndex++, chatId);
+          preparedStatement.setInt(paramIndex++, row.getKey());
+          preparedStatement.setString(paramIndex++, row.getValue().getKey());
+          preparedStatement.setLong(paramIndex++, row.getValue().getValue());
+        }
+        preparedStatement.execute();
+        preparedStatement.close();
+      }
+      if (!monthIndices.isEmpty()) {
+        PreparedStatement preparedStatement = connection.prepareStatement(
+            "INSERT INTO word_count_dirty_months "
+                + "(chat_id, month_index, version) "
+                + "VALUES " + commaSeparatedValueGroups(monthIndices.size(), 3)
+                + " ON DUPLICATE KEY UPDATE version=version+1;");
+        int paramIndex = 1;
+        for (int monthIndex : monthIndices) {
+          preparedStatement.setLong(paramIndex++, chatId);
+          preparedStatement.setInt(paramIndex++, monthIndex);
+          preparedStatement.setLong(paramIndex++, 1L);
+        }
+        preparedStatement.execute();
+        preparedStatement.close();
+      }
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  @Override
+  public Map<Integer, Long> getDirtyWordCountMonths(long chatId)
+      throws SQLException {
+    Map<Integer, Long> months = new TreeMap<>();
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_DIRTY_WORD_COUNT_MONTHS_QUERY);
+    preparedStatement.setLong(1, chatId);
+    ResultSet resultSet = preparedStatement.executeQuery();
+    while (resultSet.next()) {
+      months.put(resultSet.getInt("month_index"),
+          resultSet.getLong("version"));
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return months;
+  }
+
+  @Override
+  public List<Long> getChatIdsWithDirtyWordCountMonths() throws SQLException {
+    List<Long> chatIds = new ArrayList<>();
+    Statement statement = getConnection().createStatement();
+    ResultSet resultSet = statement
+        .executeQuery("SELECT DISTINCT chat_id FROM word_count_dirty_months;");
+    while (resultSet.next()) {
+      chatIds.add(resultSet.getLong("chat_id"));
+    }
+    resultSet.close();
+    statement.close();
+    return chatIds;
+  }
+
+  @Override
+  public void clearDirtyWordCountMonth(long chatId, int monthIndex,
+      long version) throws SQLException {
+    PreparedStatement preparedStatement = getConnection().prepareStatement(
+        "DELETE FROM word_count_dirty_months "
+            + "WHERE chat_id=? AND month_index=? AND version=?;");
     preparedStatement.setLong(1, chatId);
-    preparedStatement.setInt(2, timeRangeIndex);
-    preparedStatement.setString(3, word);
-    preparedStatement.setLong(4, count);
+    preparedStatement.setInt(2, monthIndex);
+    preparedStatement.setLong(3, version);
     preparedStatement.execute();
     preparedStatement.close();
   }
@@ -126,7 +504,8 @@ public class MySQLDatabase implements DatabaseInterface {
     String query = "REPLACE INTO options "
         + "(chat_id, option_name, option_value) " 
         + "VALUES (?, ?, ?);";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(query);
     preparedStatement.setLong(1, chatId);
     preparedStatement.setString(2, optionName);
     preparedStatement.setString(3, optionValue);
@@ -138,7 +517,7 @@ public class MySQLDatabase implements DatabaseInterface {
   public Map<Long, User> getUsers() throws SQLException {
     Map<Long, User> map = new HashMap<>();
     String query = "SELECT * from users;";
-    Statement statement = connection.createStatement();
+    Statement statement = getConnection().createStatement();
     ResultSet resultSet = statement.executeQuery(query);
     while (resultSet.next()) {
       long userId = resultSet.getLong("user_id");
@@ -155,42 +534,52 @@ public class MySQLDatabase implements DatabaseInterface {
   @Override
   public List<Message> getMessages(long chatId, Collection<MessageType> types,
       long startEpochSeconds, long endEpochSeconds) throws SQLException {
-    List<Message> messages = new ArrayList<>();
-    String query = "SELECT * FROM messages "
-        + "WHERE chat_id=? AND "
-        + "type IN (" + commaSeparatedQuestionMarks(types.size()) + ") AND "
-        + "epoch_seconds>=? AND epoch_seconds<?;";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
-    int paramIndex = 1;
-    preparedStatement.setLong(paramIndex++, chatId);
-    for (MessageType type : types) {
-      preparedStatement.setString(paramIndex++, type.toString());
-    }
-    preparedStatement.setLong(paramIndex++, startEpochSeconds);
-    preparedStatement.setLong(paramIndex++, endEpochSeconds);
-    ResultSet resultSet = preparedStatement.executeQuery();
-    while (resultSet.next()) {
-      messages.add(createMessageFromResultSet(resultSet));
-    }
-    resultSet.close();
-    preparedStatement.close();
+    final List<Message> messages = new ArrayList<>();
+    streamMessages(chatId, types, startEpochSeconds, endEpochSeconds,
+        new RowCallback<Message>() {
+          @Override
+          public void onRow(Message message) {
+            messages.add(message);
+          }
+        });
     return messages;
   }
 
+  @Override
+  public void streamMessages(long chatId, Collection<MessageType> types,
+      long startEpochSeconds, long endEpochSeconds,
+      RowCallback<Message> callback) throws SQLException {
+    PreparedStatement preparedStatement = prepareStreamingStatement(
+        getMessagesQuery(types.size()));
+    try {
+      int paramIndex = 1;
+      preparedStatement.setLong(paramIndex++, chatId);
+      for (MessageType type : types) {
+        preparedStatement.setString(paramIndex++, type.toString());
+      }
+      preparedStatement.setLong(paramIndex++, startEpochSeconds);
+      preparedStatement.setLong(paramIndex++, endEpochSeconds);
+      ResultSet resultSet = preparedStatement.executeQuery();
+      try {
+        while (resultSet.next()) {
+          callback.onRow(createMessageFromResultSet(resultSet));
+        }
+      } finally {
+        resultSet.close();
+      }
+    } finally {
+      preparedStatement.close();
+    }
+  }
+
   @Override
   public List<Message> getMessagesSortedByTime(long chatId,
       Collection<MessageType> types, String contentLike, int limit,
       boolean isOldest, boolean isAscending) throws SQLException {
     List<Message> messages = new ArrayList<>();
-    String query = "SELECT * FROM ("
-        + "SELECT * FROM messages "
-        + "WHERE chat_id=? "
-        + "AND type IN (" + commaSeparatedQuestionMarks(types.size()) + ") "
-        + (contentLike != null ? "AND content LIKE ? " : "")
-        + "ORDER BY epoch_seconds " + (isOldest ? "ASC" : "DESC") + " LIMIT ?"
-        + ") AS message_table "
-        + "ORDER BY epoch_seconds " + (isAscending ? "ASC" : "DESC") + ";";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+    PreparedStatement preparedStatement = getConnection().prepareStatement(
+        getMessagesSortedByTimeQuery(types.size(), contentLike != null,
+            isOldest, isAscending));
     int paramIndex = 1;
     preparedStatement.setLong(paramIndex++, chatId);
     for (MessageType type : types) {
@@ -216,9 +605,8 @@ public class MySQLDatabase implements DatabaseInterface {
     if (messageIds.isEmpty()) {
       return messages;
     }
-    String query = "SELECT * FROM messages WHERE message_id IN ("
-        + commaSeparatedQuestionMarks(messageIds.size()) + ");";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(getMessagesByIdQuery(messageIds.size()));
     int paramIndex = 1;
     for (Long messageId : messageIds) {
       preparedStatement.setLong(paramIndex++, messageId);
@@ -228,15 +616,16 @@ public class MySQLDatabase implements DatabaseInterface {
       Message message = createMessageFromResultSet(resultSet);
       messages.put(message.getMessageId(), message);
     }
+    resultSet.close();
+    preparedStatement.close();
     return messages;
   }
 
   @Override
   public List<Long> getChatIds() throws SQLException {
     List<Long> chatIds = new ArrayList<>();
-    String query = "SELECT DISTINCT chat_id FROM messages;";
-    Statement statement = connection.createStatement();
-    ResultSet resultSet = statement.executeQuery(query);
+    Statement statement = getConnection().createStatement();
+    ResultSet resultSet = statement.executeQuery(GET_CHAT_IDS_QUERY);
     while (resultSet.next()) {
       long chatId = resultSet.getLong("chat_id");
       chatIds.add(chatId);
@@ -246,25 +635,197 @@ public class MySQLDatabase implements DatabaseInterface {
     return chatIds;
   }
 
+  @Override
+  public List<ChatInfo> getChats(Collection<MessageType> types)
+      throws SQLException {
+    return readChats(null, types);
+  }
+
+  @Override
+  public ChatInfo getChat(long chatId, Collection<MessageType> types)
+      throws SQLException {
+    List<ChatInfo> chats = readChats(chatId, types);
+    return chats.isEmpty() ? null : chats.get(0);
+  }
+
+  @Override
+  public List<Long> getMessageChatIds(long afterChatId, int limit)
+      throws SQLException {
+    List<Long> chatIds = new ArrayList<>();
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_MESSAGE_CHAT_IDS_QUERY);
+    preparedStatement.setLong(1, afterChatId);
+    preparedStatement.setInt(2, limit);
+    ResultSet resultSet = preparedStatement.executeQuery();
+    while (resultSet.next()) {
+      chatIds.add(resultSet.getLong("chat_id"));
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return chatIds;
+  }
+
+  @Override
+  public boolean backfillChatRegistry(long chatId, int maxMessages)
+      throws SQLException {
+    Connection connection = getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      // Locks the position of the chat, so that only one node backfills it
+      // at a time.
+      PreparedStatement preparedStatement = connection.prepareStatement(
+          "INSERT INTO chat_watermarks (chat_id, name, watermark) "
+              + "VALUES (?, ?, 0) "
+              + "ON DUPLICATE KEY UPDATE watermark=watermark;");
+      preparedStatement.setLong(1, chatId);
+      preparedStatement.setString(2, ChatInfo.CHAT_REGISTRY);
+      preparedStatement.execute();
+      preparedStatement.close();
+      long lastMessageId = getWatermark(chatId, ChatInfo.CHAT_REGISTRY);
+      if (lastMessageId == ChatInfo.BACKFILL_DONE) {
+        connection.commit();
+        return true;
+      }
+
+      // Messages of the chat added meanwhile wait for these locks, so they
+      // are either read below with their first added message id already set,
+      // or not read at all.
+      Map<String, Long> firstAddedMessageIds = new HashMap<>();
+      preparedStatement = connection.prepareStatement(
+          "SELECT type, first_added_message_id FROM chat_registry "
+              + "WHERE chat_id=? FOR UPDATE;");
+      preparedStatement.setLong(1, chatId);
+      ResultSet resultSet = preparedStatement.executeQuery();
+      while (resultSet.next()) {
+        firstAddedMessageIds.put(resultSet.getString("type"),
+            resultSet.getLong("first_added_message_id"));
+      }
+      resultSet.close();
+      preparedStatement.close();
+
+      // Key: type. Value: {first epoch seconds, last epoch seconds, count,
+      // last message id}.
+      Map<String, long[]> rows = new LinkedHashMap<>();
+      int numMessages = 0;
+      preparedStatement = connection
+          .prepareStatement(GET_MESSAGES_TO_REGISTER_QUERY);
+      preparedStatement.setLong(1, chatId);
+      preparedStatement.setLong(2, lastMessageId);
+      preparedStatement.setInt(3, maxMessages);
+      resultSet = preparedStatement.executeQuery();
+      while (resultSet.next()) {
+        numMessages++;
+        long messageId = resultSet.getLong("message_id");
+        lastMessageId = messageId;
+        String type = resultSet.getString("type");
+        Long firstAddedMessageId = firstAddedMessageIds.get(type);
+        if (firstAddedMessageId != null
+            && messageId >= firstAddedMessageId) {
+          continue; // Already added by addMessages().
+        }
+        long[] row = rows.get(type);
+        if (row == null) {
+          row = new long[] { Long.MAX_VALUE, Long.MIN_VALUE, 0L, 0L };
+          rows.put(type, row);
+        }
+        long epochSeconds = resultSet.getLong("epoch_seconds");
+        row[0] = Math.min(row[0], epochSeconds);
+        row[1] = Math.max(row[1], epochSeconds);
+        row[2]++;
+        row[3] = Math.max(row[3], messageId);
+      }
+      resultSet.close();
+      preparedStatement.close();
+
+      for (Map.Entry<String, long[]> row : rows.entrySet()) {
+        preparedStatement = connection.prepareStatement(
+            "INSERT INTO chat_registry "
+                + "(chat_id, type, first_epoch_seconds, last_epoch_seconds, "
+                + "message_count, last_message_id, first_added_message_id) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?) "
+                + "ON DUPLICATE KEY UPDATE "
+                + "first_epoch_seconds=LEAST(first_epoch_seconds, "
+                + "VALUES(first_epoch_seconds)), "
+                + "last_epoch_seconds=GREATEST(last_epoch_seconds, "
+                + "VALUES(last_epoch_seconds)), "
+                + "message_count=message_count+VALUES(message_count), "
+                + "last_message_id=GREATEST(last_message_id, "
+                + "VALUES(last_message_id));");
+        int paramIndex = 1;
+        preparedStatement.setLong(paramIndex++, chatId);
+        preparedStatement.setString(paramIndex++, row.getKey());
+        for (long value : row.getValue()) {
+          preparedStatement.setLong(paramIndex++, value);
+        }
+        // None of its messages added by addMessages() yet.
+        preparedStatement.setLong(paramIndex++, Long.MAX_VALUE);
+        preparedStatement.execute();
+        preparedStatement.close();
+      }
+      boolean isComplete = numMessages < maxMessages;
+      setWatermark(chatId, ChatInfo.CHAT_REGISTRY,
+          isComplete ? ChatInfo.BACKFILL_DONE : lastMessageId);
+      connection.commit();
+      return isComplete;
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  @Override
+  public void setWatermark(long chatId, String name, long watermark)
+      throws SQLException {
+    PreparedStatement preparedStatement = getConnection().prepareStatement(
+        "INSERT INTO chat_watermarks (chat_id, name, watermark) "
+            + "VALUES (?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE watermark=VALUES(watermark);");
+    preparedStatement.setLong(1, chatId);
+    preparedStatement.setString(2, name);
+    preparedStatement.setLong(3, watermark);
+    preparedStatement.execute();
+    preparedStatement.close();
+  }
+
+  @Override
+  public long getWatermark(long chatId, String name) throws SQLException {
+    long watermark = 0L;
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_WATERMARK_QUERY);
+    preparedStatement.setLong(1, chatId);
+    preparedStatement.setString(2, name);
+    ResultSet resultSet = preparedStatement.executeQuery();
+    if (resultSet.next()) {
+      watermark = resultSet.getLong("watermark");
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return watermark;
+  }
+
   @Override
   public List<Map.Entry<User, Integer>> getRank(long chatId,
       long startEpochSeconds, long endEpochSeconds, String type)
           throws SQLException {
     List<Map.Entry<User, Integer>> rankList = new ArrayList<>();
-    String query = "SELECT * FROM ("
-        + "SELECT user_id, COUNT(*) AS count FROM messages "
-        + "WHERE chat_id=? AND epoch_seconds>=? AND epoch_seconds<? AND type=? "
-        + "GROUP BY user_id"
-        + ") AS count_table "
-        + "INNER JOIN ("
-        + "SELECT * FROM users) AS users_table "
-        + "ON count_table.user_id=users_table.user_id "
-        + "ORDER BY count DESC;";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+    // Whole hours are counted from hourly_message_counts and the partial hours
+    // at both ends from messages.
+    long[] ranges = splitIntoBucketsAndEdges(startEpochSeconds,
+        endEpochSeconds);
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_RANK_QUERY);
     preparedStatement.setLong(1, chatId);
-    preparedStatement.setLong(2, startEpochSeconds);
-    preparedStatement.setLong(3, endEpochSeconds);
+    preparedStatement.setLong(2, ranges[0]);
+    preparedStatement.setLong(3, ranges[1]);
     preparedStatement.setString(4, type);
+    preparedStatement.setLong(5, chatId);
+    preparedStatement.setString(6, type);
+    for (int i = 2; i < ranges.length; i++) {
+      preparedStatement.setLong(i + 5, ranges[i]);
+    }
     ResultSet resultSet = preparedStatement.executeQuery();
     while (resultSet.next()) {
       long userId = resultSet.getLong("user_id");
@@ -284,21 +845,17 @@ public class MySQLDatabase implements DatabaseInterface {
   public Map<User, int[]> getTimeDistributionInHour(long chatId,
       long startEpochSeconds, long endEpochSeconds) throws SQLException {
     Map<User, int[]> map = new HashMap<>();
-    String query = "SELECT * FROM ("
-        + "SELECT user_id, FLOOR(epoch_seconds/3600)%24 AS hour, "
-        + "COUNT(*) AS count FROM messages "
-        + "WHERE chat_id=? AND epoch_seconds>=? AND epoch_seconds<? "
-        + "GROUP BY user_id, hour"
-        + ") AS count_table "
-        + "INNER JOIN ("
-        + "SELECT * FROM users"
-        + ") AS users_table "
-        + "ON count_table.user_id=users_table.user_id "
-        + "ORDER BY count_table.user_id ASC, hour ASC;";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+    long[] ranges = splitIntoBucketsAndEdges(startEpochSeconds,
+        endEpochSeconds);
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_TIME_DISTRIBUTION_QUERY);
     preparedStatement.setLong(1, chatId);
-    preparedStatement.setLong(2, startEpochSeconds);
-    preparedStatement.setLong(3, endEpochSeconds);
+    preparedStatement.setLong(2, ranges[0]);
+    preparedStatement.setLong(3, ranges[1]);
+    preparedStatement.setLong(4, chatId);
+    for (int i = 2; i < ranges.length; i++) {
+      preparedStatement.setLong(i + 3, ranges[i]);
+    }
     ResultSet resultSet = preparedStatement.executeQuery();
     while (resultSet.next()) {
       long userId = resultSet.getLong("user_id");
@@ -316,39 +873,135 @@ public class MySQLDatabase implements DatabaseInterface {
     return map;
   }
 
+  @Override
+  public void rebuildHourlyMessageCounts(long chatId, long startEpochSeconds,
+      long endEpochSeconds) throws SQLException {
+    long startBucket = Math.floorDiv(startEpochSeconds, SECONDS_PER_BUCKET);
+    long endBucket = Math.floorDiv(endEpochSeconds, SECONDS_PER_BUCKET);
+    Connection connection = getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      PreparedStatement deleteStatement = connection.prepareStatement(
+          "DELETE FROM hourly_message_counts "
+              + "WHERE chat_id=? AND hour_bucket>=? AND hour_bucket<?;");
+      deleteStatement.setLong(1, chatId);
+      deleteStatement.setLong(2, startBucket);
+      deleteStatement.setLong(3, endBucket);
+      deleteStatement.execute();
+      deleteStatement.close();
+      PreparedStatement insertStatement = connection.prepareStatement(
+          "INSERT INTO hourly_message_counts "
+              + "(chat_id, hour_bucket, user_id, type, count) "
+              + "SELECT chat_id, FLOOR(epoch_seconds/3600) AS hour_bucket, "
+              + "user_id, type, COUNT(*) FROM messages "
+              + "WHERE chat_id=? AND epoch_seconds>=? AND epoch_seconds<? "
+              + "GROUP BY hour_bucket, user_id, type;");
+      insertStatement.setLong(1, chatId);
+      insertStatement.setLong(2, startBucket * SECONDS_PER_BUCKET);
+      insertStatement.setLong(3, endBucket * SECONDS_PER_BUCKET);
+      insertStatement.execute();
+      insertStatement.close();
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  @Override
+  public List<QueryPlan> explainQueries(long chatId) throws SQLException {
+    long endEpochSeconds = System.currentTimeMillis() / 1000L;
+    long startEpochSeconds = endEpochSeconds - 7 * 24 * 3600;
+    long[] ranges = splitIntoBucketsAndEdges(startEpochSeconds,
+        endEpochSeconds);
+    String type = MessageType.TEXT.toString();
+    List<QueryPlan> plans = new ArrayList<>();
+    plans.add(explain("getMessages", getMessagesQuery(1), chatId, type,
+        startEpochSeconds, endEpochSeconds));
+    plans.add(explain("getMessagesSortedByTime",
+        getMessagesSortedByTimeQuery(1, false, false, true), chatId, type,
+        10));
+    plans.add(explain("getMessagesById", getMessagesByIdQuery(1), 1L));
+    plans.add(explain("getChatIds", GET_CHAT_IDS_QUERY));
+    plans.add(explain("getMessageChatIds", GET_MESSAGE_CHAT_IDS_QUERY,
+        Long.MIN_VALUE, 100));
+    plans.add(explain("backfillChatRegistry", GET_MESSAGES_TO_REGISTER_QUERY,
+        chatId, 0L, 10000));
+    plans.add(explain("getChat", getChatsQuery(1, true), chatId, type));
+    plans.add(explain("getChat (watermarks)", getWatermarksQuery(true),
+        chatId));
+    plans.add(explain("getRank", GET_RANK_QUERY, chatId, ranges[0], ranges[1],
+        type, chatId, type, ranges[2], ranges[3], ranges[4], ranges[5]));
+    plans.add(explain("getTimeDistributionInHour",
+        GET_TIME_DISTRIBUTION_QUERY, chatId, ranges[0], ranges[1], chatId,
+        ranges[2], ranges[3], ranges[4], ranges[5]));
+    plans.add(explain("getReplyList", GET_REPLY_LIST_QUERY, chatId,
+        startEpochSeconds, endEpochSeconds));
+    plans.add(explain("getWordCount", GET_WORD_COUNT_QUERY, chatId, 0, 1000,
+        10));
+    plans.add(explain("getWordTotals", GET_WORD_TOTALS_QUERY, chatId, 10));
+    plans.add(explain("getMessagesAfter", getMessagesAfterQuery(1), chatId,
+        0L, type, 10));
+    plans.add(explain("getWatermark", GET_WATERMARK_QUERY, chatId,
+        ChatInfo.WORD_COUNT_CHECKPOINT));
+    plans.add(explain("getDailyWordCount", GET_DAILY_WORD_COUNT_QUERY, chatId,
+        0, 100000, 10));
+    plans.add(explain("getDirtyWordCountMonths",
+        GET_DIRTY_WORD_COUNT_MONTHS_QUERY, chatId));
+    plans.add(explain("getOption", GET_OPTION_QUERY, chatId, "language"));
+    plans.add(explain("getOptions", GET_OPTIONS_QUERY, chatId));
+    return plans;
+  }
+
   @Override
   public List<Map.Entry<Long, Long>> getReplyList(long chatId,
       long startEpochSeconds, long endEpochSeconds) throws SQLException {
-    List<Map.Entry<Long, Long>> replyList = new ArrayList<>();
-    String query = "SELECT user_id, reply_to_user_id FROM messages "
-        + "WHERE chat_id=? AND epoch_seconds>=? AND epoch_seconds<? "
-        + "ORDER BY epoch_seconds ASC";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
-    preparedStatement.setLong(1, chatId);
-    preparedStatement.setLong(2, startEpochSeconds);
-    preparedStatement.setLong(3, endEpochSeconds);
-    ResultSet resultSet = preparedStatement.executeQuery();
-    while (resultSet.next()) {
-      long userId = resultSet.getLong("user_id");
-      long replyToUserId = resultSet.getLong("reply_to_user_id");
-      replyList
-          .add(new AbstractMap.SimpleEntry<Long, Long>(userId, replyToUserId));
-    }
-    resultSet.close();
-    preparedStatement.close();
+    final List<Map.Entry<Long, Long>> replyList = new ArrayList<>();
+    streamReplies(chatId, startEpochSeconds, endEpochSeconds,
+        new ReplyCallback() {
+          @Override
+          public void onReply(long messageId, long userId, long replyToUserId,
+              long epochSeconds) {
+            replyList.add(new AbstractMap.SimpleEntry<Long, Long>(userId,
+                replyToUserId));
+          }
+        });
     return replyList;
   }
 
+  @Override
+  public void streamReplies(long chatId, long startEpochSeconds,
+      long endEpochSeconds, ReplyCallback callback) throws SQLException {
+    PreparedStatement preparedStatement = prepareStreamingStatement(
+        GET_REPLY_LIST_QUERY);
+    try {
+      preparedStatement.setLong(1, chatId);
+      preparedStatement.setLong(2, startEpochSeconds);
+      preparedStatement.setLong(3, endEpochSeconds);
+      ResultSet resultSet = preparedStatement.executeQuery();
+      try {
+        while (resultSet.next()) {
+          // getLong() returns 0 for NULL, which means no reply.
+          callback.onReply(resultSet.getLong(1), resultSet.getLong(2),
+              resultSet.getLong(3), resultSet.getLong(4));
+        }
+      } finally {
+        resultSet.close();
+      }
+    } finally {
+      preparedStatement.close();
+    }
+  }
+
   @Override
   public Map<String, Long> getWordCount(long chatId, int startTimeRangeIndex,
       int endTimeRangeIndex, int limit) throws SQLException {
     Map<String, Long> wordFrequencyMap = new HashMap<>();
-    String query = "SELECT word, SUM(count) AS total_count "
-        + "FROM monthly_freq_word_count "
-        + "WHERE chat_id=? AND month_index>=? AND month_index<? "
-        + "GROUP BY word "
-        + "ORDER BY total_count DESC LIMIT ?;";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_WORD_COUNT_QUERY);
     preparedStatement.setLong(1, chatId);
     preparedStatement.setInt(2, startTimeRangeIndex);
     preparedStatement.setInt(3, endTimeRangeIndex);
@@ -365,28 +1018,117 @@ public class MySQLDatabase implements DatabaseInterface {
   }
 
   @Override
-  public int getMaxWordCountTimeRangeIndex(long chatId) throws SQLException {
-    int monthIndex = 0;
-    String query = "SELECT MAX(month_index) AS max_month_index "
-        + "FROM monthly_freq_word_count "
-        + "WHERE chat_id=?;";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+  public Map<String, Long> getWordTotals(long chatId, int limit)
+      throws SQLException {
+    Map<String, Long> wordTotals = new HashMap<>();
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_WORD_TOTALS_QUERY);
     preparedStatement.setLong(1, chatId);
+    preparedStatement.setInt(2, limit);
+    ResultSet resultSet = preparedStatement.executeQuery();
+    while (resultSet.next()) {
+      wordTotals.put(resultSet.getString("word"), resultSet.getLong("count"));
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return wordTotals;
+  }
+
+  @Override
+  public List<Message> getMessagesAfter(long chatId,
+      Collection<MessageType> types, long afterMessageId, int limit)
+      throws SQLException {
+    List<Message> messages = new ArrayList<>();
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(getMessagesAfterQuery(types.size()));
+    int paramIndex = 1;
+    preparedStatement.setLong(paramIndex++, chatId);
+    preparedStatement.setLong(paramIndex++, afterMessageId);
+    for (MessageType type : types) {
+      preparedStatement.setString(paramIndex++, type.toString());
+    }
+    preparedStatement.setInt(paramIndex++, limit);
+    ResultSet resultSet = preparedStatement.executeQuery();
+    while (resultSet.next()) {
+      messages.add(createMessageFromResultSet(resultSet));
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return messages;
+  }
+
+  @Override
+  public long getWordCountCheckpoint(long chatId) throws SQLException {
+    return getWatermark(chatId, ChatInfo.WORD_COUNT_CHECKPOINT);
+  }
+
+  @Override
+  public List<Map.Entry<String, Long>> getDailyWordCount(long chatId,
+      int startDayIndex, int endDayIndex, int limit) throws SQLException {
+    List<Map.Entry<String, Long>> wordCounts = new ArrayList<>();
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_DAILY_WORD_COUNT_QUERY);
+    preparedStatement.setLong(1, chatId);
+    preparedStatement.setInt(2, startDayIndex);
+    preparedStatement.setInt(3, endDayIndex);
+    preparedStatement.setInt(4, limit);
+    ResultSet resultSet = preparedStatement.executeQuery();
+    while (resultSet.next()) {
+      wordCounts.add(new AbstractMap.SimpleEntry<String, Long>(
+          resultSet.getString("word"), resultSet.getLong("total_count")));
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return wordCounts;
+  }
+
+  @Override
+  public boolean tryAcquireLease(String leaseKey, String owner,
+      long ttlMillis) throws SQLException {
+    // The owner is updated first, so the expiry is only updated if the lease
+    // is ours after that.
+    PreparedStatement preparedStatement = getConnection().prepareStatement(
+        "INSERT INTO work_leases (lease_key, owner, expires_millis) "
+            + "VALUES (?, ?, " + NOW_MILLIS + "+?) "
+            + "ON DUPLICATE KEY UPDATE "
+            + "owner=IF(expires_millis<" + NOW_MILLIS
+            + " OR owner=VALUES(owner), VALUES(owner), owner), "
+            + "expires_millis=IF(owner=VALUES(owner), "
+            + "VALUES(expires_millis), expires_millis);");
+    preparedStatement.setString(1, leaseKey);
+    preparedStatement.setString(2, owner);
+    preparedStatement.setLong(3, ttlMillis);
+    preparedStatement.execute();
+    preparedStatement.close();
+
+    String currentOwner = null;
+    preparedStatement = getConnection().prepareStatement(
+        "SELECT owner FROM work_leases WHERE lease_key=?;");
+    preparedStatement.setString(1, leaseKey);
     ResultSet resultSet = preparedStatement.executeQuery();
     if (resultSet.next()) {
-      monthIndex = resultSet.getInt("max_month_index");
+      currentOwner = resultSet.getString("owner");
     }
     resultSet.close();
     preparedStatement.close();
-    return monthIndex;
+    return owner.equals(currentOwner);
+  }
+
+  @Override
+  public void releaseLease(String leaseKey, String owner) throws SQLException {
+    PreparedStatement preparedStatement = getConnection().prepareStatement(
+        "DELETE FROM work_leases WHERE lease_key=? AND owner=?;");
+    preparedStatement.setString(1, leaseKey);
+    preparedStatement.setString(2, owner);
+    preparedStatement.execute();
+    preparedStatement.close();
   }
 
   @Override
   public String getOption(long chatId, String optionName) throws SQLException {
     String optionValue = null;
-    String query = "SELECT option_value FROM options "
-        + "WHERE chat_id=? AND option_name=?;";
-    PreparedStatement preparedStatement = connection.prepareStatement(query);
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_OPTION_QUERY);
     preparedStatement.setLong(1, chatId);
     preparedStatement.setString(2, optionName);
     ResultSet resultSet = preparedStatement.executeQuery();
@@ -398,62 +1140,186 @@ public class MySQLDatabase implements DatabaseInterface {
     return optionValue;
   }
 
-  private void createUsersTableIfNotExists() throws SQLException {
-    String query = "CREATE TABLE IF NOT EXISTS users ("
-        + "user_id BIGINT PRIMARY KEY,"
-        + "username CHAR(32),"
-        + "first_name CHAR(32),"
-        + "last_name CHAR(32)"
-        + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;";
-    Statement statement = connection.createStatement();
-    statement.execute(query);
-    statement.close();
-  }
-
-  private void createMessagesTableIfNotExists() throws SQLException {
-    String query = "CREATE TABLE IF NOT EXISTS messages ("
-        + "chat_id BIGINT NOT NULL,"
-        + "message_id BIGINT NOT NULL,"
-        + "epoch_seconds BIGINT NOT NULL,"
-        + "user_id BIGINT NOT NULL,"
-        + "reply_to_message_id BIGINT,"
-        + "reply_to_user_id BIGINT,"
-        + "content TEXT,"
-        + "type CHAR(16) NOT NULL,"
-        + "PRIMARY KEY(chat_id, message_id),"
-        + "INDEX(epoch_seconds, user_id, type(16))"
-        + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;";
-    Statement statement = connection.createStatement();
-    statement.execute(query);
-    statement.close();
+  @Override
+  public Map<String, String> getOptions(long chatId) throws SQLException {
+    Map<String, String> options = new HashMap<>();
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(GET_OPTIONS_QUERY);
+    preparedStatement.setLong(1, chatId);
+    ResultSet resultSet = preparedStatement.executeQuery();
+    while (resultSet.next()) {
+      options.put(resultSet.getString("option_name"),
+          resultSet.getString("option_value"));
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return options;
   }
 
-  private void createOptionsTableIfNotExists() throws SQLException {
-    String query = "CREATE TABLE IF NOT EXISTS options ("
-        + "chat_id BIGINT NOT NULL,"
-        + "option_name CHAR(32) NOT NULL,"
-        + "option_value CHAR(128),"
-        + "PRIMARY KEY(chat_id, option_name(32))"
-        + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;";
-    Statement statement = connection.createStatement();
-    statement.execute(query);
-    statement.close();
+  // Append new migrations at the end. Never change the applied ones.
+  private static List<SchemaMigration> getMigrations() {
+    List<SchemaMigration> migrations = new ArrayList<>();
+    // Tables which used to be created on startup with CREATE TABLE IF NOT
+    // EXISTS, so existing databases are already at this version.
+    migrations.add(new SchemaMigration(1, "Baseline schema",
+        "CREATE TABLE IF NOT EXISTS users ("
+            + "user_id BIGINT PRIMARY KEY,"
+            + "username CHAR(32),"
+            + "first_name CHAR(32),"
+            + "last_name CHAR(32)"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;",
+        "CREATE TABLE IF NOT EXISTS messages ("
+            + "chat_id BIGINT NOT NULL,"
+            + "message_id BIGINT NOT NULL,"
+            + "epoch_seconds BIGINT NOT NULL,"
+            + "user_id BIGINT NOT NULL,"
+            + "reply_to_message_id BIGINT,"
+            + "reply_to_user_id BIGINT,"
+            + "content TEXT,"
+            + "type CHAR(16) NOT NULL,"
+            + "PRIMARY KEY(chat_id, message_id),"
+            + "INDEX(epoch_seconds, user_id, type(16))"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;",
+        "CREATE TABLE IF NOT EXISTS options ("
+            + "chat_id BIGINT NOT NULL,"
+            + "option_name CHAR(32) NOT NULL,"
+            + "option_value CHAR(128),"
+            + "PRIMARY KEY(chat_id, option_name(32))"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;",
+        "CREATE TABLE IF NOT EXISTS monthly_freq_word_count ("
+            + "chat_id BIGINT NOT NULL,"
+            + "month_index INT NOT NULL,"
+            + "word CHAR(32) NOT NULL,"
+            + "count BIGINT NOT NULL,"
+            + "PRIMARY KEY(chat_id, month_index, word(32))"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;"));
+    migrations.add(new SchemaMigration(2, "Hourly message counts",
+        "CREATE TABLE IF NOT EXISTS hourly_message_counts ("
+            + "chat_id BIGINT NOT NULL,"
+            + "hour_bucket BIGINT NOT NULL," // epoch_seconds / 3600
+            + "user_id BIGINT NOT NULL,"
+            + "type CHAR(16) NOT NULL,"
+            + "count INT NOT NULL,"
+            + "PRIMARY KEY(chat_id, hour_bucket, user_id, type(16))"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;"));
+    // Almost every query filters on chat_id first, then on a time range. The
+    // first index also covers getReplyList(). Built without blocking writes,
+    // but that takes hours on a large table, so it is deferred. Queries do not
+    // name the indexes and use them once they exist.
+    migrations.add(new SchemaMigration(3, "Chat-first message indexes", true,
+        "ALTER TABLE messages "
+            + "ADD INDEX chat_time_index "
+            + "(chat_id, epoch_seconds, user_id, reply_to_user_id), "
+            + "ADD INDEX chat_type_time_index (chat_id, type, epoch_seconds), "
+            + "ADD INDEX message_id_index (message_id), "
+            + "DROP INDEX epoch_seconds, "
+            + "ALGORITHM=INPLACE, LOCK=NONE;"));
+    // Word counts of each day, added to as new messages are counted, and the
+    // last message counted of each chat.
+    migrations.add(new SchemaMigration(4, "Daily word counts",
+        "CREATE TABLE IF NOT EXISTS daily_word_count ("
+            + "chat_id BIGINT NOT NULL,"
+            + "day_index INT NOT NULL," // Days since epoch.
+            + "word CHAR(32) NOT NULL,"
+            + "count BIGINT NOT NULL,"
+            + "PRIMARY KEY(chat_id, day_index, word(32))"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;",
+        "CREATE TABLE IF NOT EXISTS word_count_checkpoints ("
+            + "chat_id BIGINT PRIMARY KEY,"
+            + "last_message_id BIGINT NOT NULL"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;"));
+    // Work taken by one of several nodes sharing the database.
+    migrations.add(new SchemaMigration(5, "Work leases",
+        "CREATE TABLE IF NOT EXISTS work_leases ("
+            + "lease_key VARCHAR(64) PRIMARY KEY,"
+            + "owner VARCHAR(128) NOT NULL,"
+            + "expires_millis BIGINT NOT NULL" // Database clock.
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;"));
+    // A small table of chats kept up to date as messages are added, so that
+    // listing chats does not scan messages, and how far each job has got in
+    // each chat. Existing messages are added later by a background job, one
+    // chat at a time, not here under the migration lock. The word count
+    // checkpoints and the last month counted become watermarks.
+    migrations.add(new SchemaMigration(6, "Chat registry",
+        "CREATE TABLE IF NOT EXISTS chat_registry ("
+            + "chat_id BIGINT NOT NULL,"
+            + "type CHAR(16) NOT NULL,"
+            + "first_epoch_seconds BIGINT NOT NULL,"
+            + "last_epoch_seconds BIGINT NOT NULL,"
+            + "message_count BIGINT NOT NULL,"
+            + "last_message_id BIGINT NOT NULL,"
+            + "PRIMARY KEY(chat_id, type(16))"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;",
+        "CREATE TABLE IF NOT EXISTS chat_watermarks ("
+            + "chat_id BIGINT NOT NULL,"
+            + "name VARCHAR(64) NOT NULL,"
+            + "watermark BIGINT NOT NULL,"
+            + "PRIMARY KEY(chat_id, name)"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;",
+        // Only there again if this migration failed after dropping it.
+        "CREATE TABLE IF NOT EXISTS word_count_checkpoints ("
+            + "chat_id BIGINT PRIMARY KEY,"
+            + "last_message_id BIGINT NOT NULL"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;",
+        "REPLACE INTO chat_watermarks (chat_id, name, watermark) "
+            + "SELECT chat_id, '" + ChatInfo.WORD_COUNT_CHECKPOINT + "', "
+            + "last_message_id FROM word_count_checkpoints;",
+        "REPLACE INTO chat_watermarks (chat_id, name, watermark) "
+            + "SELECT chat_id, '" + ChatInfo.MONTHLY_WORD_COUNT + "', "
+            + "MAX(month_index) FROM monthly_freq_word_count "
+            + "GROUP BY chat_id;",
+        "DROP TABLE IF EXISTS word_count_checkpoints;"));
+    // The sum of the monthly word counts of each chat and word, kept up to
+    // date as months are written. The index reads the top words in order.
+    migrations.add(new SchemaMigration(7, "Word totals",
+        "CREATE TABLE IF NOT EXISTS word_totals ("
+            + "chat_id BIGINT NOT NULL,"
+            + "word CHAR(32) NOT NULL,"
+            + "count BIGINT NOT NULL,"
+            + "PRIMARY KEY(chat_id, word(32)),"
+            + "INDEX chat_count_index (chat_id, count)"
+            + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;",
+        "REPLACE INTO word_totals (chat_id, word, count) "
+            + "SELECT chat_id, word, SUM(count) FROM monthly_freq_word_count "
+            + "GROUP BY chat_id, word;"));
+    // Months whose daily word counts changed after their monthly counts were
+    // derived. Marked with the daily counts and cleared once derived again.
+    migrations.add(new SchemaMigration(8, "Dirty word count months",
+        "CREATE TABLE IF NOT EXISTS word_count_dirty_months ("
+            + "chat_id BIGINT NOT NULL,"
+            + "month_index INT NOT NULL,"
+            + "version BIGINT NOT NULL,"
+            + "PRIMARY KEY(chat_id, month_index)"
+            + ");"));
+    // The lowest message id of each row added by addMessages(). Older
+    // messages are added by ChatRegistryBackfill, which skips the others.
+    migrations.add(new SchemaMigration(9, "Chat registry first added message",
+        "ALTER TABLE chat_registry ADD COLUMN first_added_message_id BIGINT "
+            + "NOT NULL DEFAULT " + Long.MAX_VALUE + ";"));
+    // Rows so far may already include older messages, e.g. from the first
+    // version of migration 6, which the backfill would then add again. Start
+    // over, so that every database is backfilled the same way.
+    migrations.add(new SchemaMigration(10, "Chat registry reset",
+        "DELETE FROM chat_registry;",
+        "DELETE FROM chat_watermarks WHERE name='" + ChatInfo.CHAT_REGISTRY
+            + "';"));
+    // Migration 8 left out the character set of every other table.
+    migrations.add(new SchemaMigration(11, "Dirty word count months charset",
+        "ALTER TABLE word_count_dirty_months "
+            + "CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;"));
+    return migrations;
   }
 
-  private void createWeeklyFreqWordCountTableIfNotExists() throws SQLException {
-    String query = "CREATE TABLE IF NOT EXISTS monthly_freq_word_count ("
-        + "chat_id BIGINT NOT NULL,"
-        + "month_index INT NOT NULL,"
-        + "word CHAR(32) NOT NULL,"
-        + "count BIGINT NOT NULL,"
-        + "PRIMARY KEY(chat_id, month_index, word(32))"
-        + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;";
-    Statement statement = connection.createStatement();
-    statement.execute(query);
-    statement.close();
+  private Connection getConnection() {
+    ThreadConnection current = threadConnection.get();
+    if (current == null) {
+      throw new IllegalStateException(
+          "No open connection. Call openSession() first.");
+    }
+    return current.connection;
   }
 
-  private String commaSeparatedQuestionMarks(int valueSize) {
+  private static String commaSeparatedQuestionMarks(int valueSize) {
     if (valueSize <= 0) {
       return "";
     }
@@ -465,6 +1331,391 @@ public class MySQLDatabase implements DatabaseInterface {
     return sb.toString();
   }
 
+  // Rows are sent one by one by the server instead of being read into memory
+  // all at once. No other statement can run on the connection until the
+  // result set is closed.
+  private PreparedStatement prepareStreamingStatement(String query)
+      throws SQLException {
+    PreparedStatement preparedStatement = getConnection().prepareStatement(
+        query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    preparedStatement.setFetchSize(Integer.MIN_VALUE);
+    return preparedStatement;
+  }
+
+  private QueryPlan explain(String queryName, String query,
+      Object... parameters) throws SQLException {
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement("EXPLAIN " + query);
+    for (int i = 0; i < parameters.length; i++) {
+      preparedStatement.setObject(i + 1, parameters[i]);
+    }
+    ResultSet resultSet = preparedStatement.executeQuery();
+    List<String> tableAccesses = new ArrayList<>();
+    boolean usesIndexes = true;
+    while (resultSet.next()) {
+      String table = resultSet.getString("table");
+      // Skip derived tables and unions, e.g. "<derived2>".
+      if (table == null || table.startsWith("<")) {
+        continue;
+      }
+      String key = resultSet.getString("key");
+      if (key == null) {
+        usesIndexes = false;
+        tableAccesses.add(table + ": full scan");
+      } else {
+        tableAccesses.add(table + ": " + key);
+      }
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return new QueryPlan(queryName, tableAccesses, usesIndexes);
+  }
+
+  private static String getMessagesQuery(int numTypes) {
+    return "SELECT * FROM messages "
+        + "WHERE chat_id=? AND "
+        + "type IN (" + commaSeparatedQuestionMarks(numTypes) + ") AND "
+        + "epoch_seconds>=? AND epoch_seconds<?;";
+  }
+
+  private static String getMessagesSortedByTimeQuery(int numTypes,
+      boolean hasContentLike, boolean isOldest, boolean isAscending) {
+    return "SELECT * FROM ("
+        + "SELECT * FROM messages "
+        + "WHERE chat_id=? "
+        + "AND type IN (" + commaSeparatedQuestionMarks(numTypes) + ") "
+        + (hasContentLike ? "AND content LIKE ? " : "")
+        + "ORDER BY epoch_seconds " + (isOldest ? "ASC" : "DESC") + " LIMIT ?"
+        + ") AS message_table "
+        + "ORDER BY epoch_seconds " + (isAscending ? "ASC" : "DESC") + ";";
+  }
+
+  private static String getMessagesAfterQuery(int numTypes) {
+    return GET_MESSAGES_AFTER_QUERY_PREFIX
+        + commaSeparatedQuestionMarks(numTypes) + ") "
+        + "ORDER BY message_id ASC LIMIT ?;";
+  }
+
+  // Sums up the rows of the given types of each chat.
+  private static String getChatsQuery(int numTypes, boolean hasChatId) {
+    return "SELECT chat_id, MIN(first_epoch_seconds) AS first_epoch_seconds, "
+        + "MAX(last_epoch_seconds) AS last_epoch_seconds, "
+        + "SUM(message_count) AS message_count, "
+        + "MAX(last_message_id) AS last_message_id "
+        + "FROM chat_registry WHERE "
+        + (hasChatId ? "chat_id=? AND " : "")
+        + "type IN (" + commaSeparatedQuestionMarks(numTypes) + ") "
+        + "GROUP BY chat_id ORDER BY chat_id ASC;";
+  }
+
+  // Also reads the watermarks of ALL_CHATS.
+  private static String getWatermarksQuery(boolean hasChatId) {
+    return "SELECT chat_id, name, watermark FROM chat_watermarks"
+        + (hasChatId ? " WHERE chat_id IN (?, " + ChatInfo.ALL_CHATS + ")"
+            : "")
+        + ";";
+  }
+
+  private static String getMessagesByIdQuery(int numIds) {
+    return "SELECT * FROM messages WHERE message_id IN ("
+        + commaSeparatedQuestionMarks(numIds) + ");";
+  }
+
+  // Returns "(?,?),(?,?),(?,?)" for rows=3 and columns=2.
+  private static String commaSeparatedValueGroups(int rows, int columns) {
+    String group = "(" + commaSeparatedQuestionMarks(columns) + ")";
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < rows; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(group);
+    }
+    return sb.toString();
+  }
+
+  // Call it in a transaction.
+  private void replaceMonthlyWordCounts(long chatId, int monthIndex,
+      List<Map.Entry<String, Long>> wordCounts) throws SQLException {
+    for (int from = 0; from < wordCounts.size();
+        from += MAX_ROWS_PER_STATEMENT) {
+      List<Map.Entry<String, Long>> rows = wordCounts.subList(from,
+          Math.min(wordCounts.size(), from + MAX_ROWS_PER_STATEMENT));
+      String query = "REPLACE INTO monthly_freq_word_count "
+          + "(chat_id, month_index, word, count) "
+          + "VALUES " + commaSeparatedValueGroups(rows.size(), 4) + ";";
+      PreparedStatement preparedStatement = getConnection()
+          .prepareStatement(query);
+      int paramIndex = 1;
+      for (Map.Entry<String, Long> row : rows) {
+        preparedStatement.setLong(paramIndex++, chatId);
+        preparedStatement.setInt(paramIndex++, monthIndex);
+        preparedStatement.setString(paramIndex++, row.getKey());
+        preparedStatement.setLong(paramIndex++, row.getValue());
+      }
+      preparedStatement.execute();
+      preparedStatement.close();
+    }
+  }
+
+  // Adds the counts of the month times sign to the word totals, and changes
+  // their version. Call it in the transaction which writes the month, with -1
+  // before and 1 after.
+  private void addMonthToWordTotals(long chatId, int monthIndex, int sign)
+      throws SQLException {
+    PreparedStatement preparedStatement = getConnection().prepareStatement(
+        "INSERT INTO word_totals (chat_id, word, count) "
+            + "SELECT chat_id, word, count*? FROM monthly_freq_word_count "
+            + "WHERE chat_id=? AND month_index=? "
+            + "ON DUPLICATE KEY UPDATE "
+            + "count=word_totals.count+VALUES(count);");
+    preparedStatement.setInt(1, sign);
+    preparedStatement.setLong(2, chatId);
+    preparedStatement.setInt(3, monthIndex);
+    preparedStatement.execute();
+    preparedStatement.close();
+    if (sign > 0) {
+      // Words no longer in any month.
+      preparedStatement = getConnection().prepareStatement(
+          "DELETE FROM word_totals WHERE chat_id=? AND count<=0;");
+      preparedStatement.setLong(1, chatId);
+      preparedStatement.execute();
+      preparedStatement.close();
+      preparedStatement = getConnection().prepareStatement(
+          "INSERT INTO chat_watermarks (chat_id, name, watermark) "
+              + "VALUES (?, ?, 1) "
+              + "ON DUPLICATE KEY UPDATE watermark=watermark+1;");
+      preparedStatement.setLong(1, chatId);
+      preparedStatement.setString(2, ChatInfo.WORD_TOTALS_VERSION);
+      preparedStatement.execute();
+      preparedStatement.close();
+    }
+  }
+
+  // Call it in a transaction. 0 means the chat has no checkpoint yet.
+  private void moveWordCountCheckpoint(long chatId, long previousMessageId,
+      long lastMessageId) throws SQLException {
+    PreparedStatement preparedStatement;
+    if (previousMessageId == 0L) {
+      preparedStatement = getConnection().prepareStatement(
+          "INSERT IGNORE INTO chat_watermarks "
+              + "(chat_id, name, watermark) VALUES (?, ?, ?);");
+      preparedStatement.setLong(1, chatId);
+      preparedStatement.setString(2, ChatInfo.WORD_COUNT_CHECKPOINT);
+      preparedStatement.setLong(3, lastMessageId);
+    } else {
+      preparedStatement = getConnection().prepareStatement(
+          "UPDATE chat_watermarks SET watermark=? "
+              + "WHERE chat_id=? AND name=? AND watermark=?;");
+      preparedStatement.setLong(1, lastMessageId);
+      preparedStatement.setLong(2, chatId);
+      preparedStatement.setString(3, ChatInfo.WORD_COUNT_CHECKPOINT);
+      preparedStatement.setLong(4, previousMessageId);
+    }
+    int numRows = preparedStatement.executeUpdate();
+    preparedStatement.close();
+    if (numRows != 1) {
+      throw new StaleCheckpointException("Word count checkpoint of chat "
+          + chatId + " is no longer at message " + previousMessageId);
+    }
+  }
+
+  // Reads all chats if chatId is null.
+  private List<ChatInfo> readChats(Long chatId, Collection<MessageType> types)
+      throws SQLException {
+    Map<Long, Map<String, Long>> watermarks = new HashMap<>();
+    PreparedStatement preparedStatement = getConnection()
+        .prepareStatement(getWatermarksQuery(chatId != null));
+    if (chatId != null) {
+      preparedStatement.setLong(1, chatId);
+    }
+    ResultSet resultSet = preparedStatement.executeQuery();
+    while (resultSet.next()) {
+      long id = resultSet.getLong("chat_id");
+      if (!watermarks.containsKey(id)) {
+        watermarks.put(id, new HashMap<String, Long>());
+      }
+      watermarks.get(id).put(resultSet.getString("name"),
+          resultSet.getLong("watermark"));
+    }
+    resultSet.close();
+    preparedStatement.close();
+    Map<String, Long> allChatsWatermarks = watermarks.get(ChatInfo.ALL_CHATS);
+    boolean isRegistryComplete = allChatsWatermarks != null
+        && Long.valueOf(ChatInfo.BACKFILL_DONE)
+            .equals(allChatsWatermarks.get(ChatInfo.CHAT_REGISTRY));
+
+    List<ChatInfo> chats = new ArrayList<>();
+    preparedStatement = getConnection()
+        .prepareStatement(getChatsQuery(types.size(), chatId != null));
+    int paramIndex = 1;
+    if (chatId != null) {
+      preparedStatement.setLong(paramIndex++, chatId);
+    }
+    for (MessageType type : types) {
+      preparedStatement.setString(paramIndex++, type.toString());
+    }
+    resultSet = preparedStatement.executeQuery();
+    while (resultSet.next()) {
+      long id = resultSet.getLong("chat_id");
+      Map<String, Long> chatWatermarks = watermarks.get(id);
+      if (chatWatermarks == null) {
+        chatWatermarks = new HashMap<>();
+      }
+      if (isRegistryComplete) {
+        chatWatermarks.put(ChatInfo.CHAT_REGISTRY, ChatInfo.BACKFILL_DONE);
+      }
+      chats.add(new ChatInfo(id, resultSet.getLong("first_epoch_seconds"),
+          resultSet.getLong("last_epoch_seconds"),
+          resultSet.getLong("message_count"),
+          resultSet.getLong("last_message_id"), chatWatermarks));
+    }
+    resultSet.close();
+    preparedStatement.close();
+    return chats;
+  }
+
+  // Adds the messages to chat_registry. Call it in the same transaction which
+  // inserts the messages.
+  private void addToChatRegistry(List<Message> messages) throws SQLException {
+    // Key: chat id and type. Value: {first epoch seconds, last epoch seconds,
+    // count, last message id, first message id}.
+    Map<Map.Entry<Long, String>, long[]> rows = new LinkedHashMap<>();
+    for (Message message : messages) {
+      Map.Entry<Long, String> key = new AbstractMap.SimpleEntry<>(
+          message.getChatId(), message.getType().toString());
+      long[] row = rows.get(key);
+      if (row == null) {
+        row = new long[] { Long.MAX_VALUE, Long.MIN_VALUE, 0L, 0L,
+            Long.MAX_VALUE };
+        rows.put(key, row);
+      }
+      row[0] = Math.min(row[0], message.getEpochSeconds());
+      row[1] = Math.max(row[1], message.getEpochSeconds());
+      row[2]++;
+      row[3] = Math.max(row[3], message.getMessageId());
+      row[4] = Math.min(row[4], message.getMessageId());
+    }
+    List<Map.Entry<Map.Entry<Long, String>, long[]>> rowList =
+        new ArrayList<>(rows.entrySet());
+    for (int from = 0; from < rowList.size();
+        from += MAX_ROWS_PER_STATEMENT) {
+      List<Map.Entry<Map.Entry<Long, String>, long[]>> statementRows = rowList
+          .subList(from,
+              Math.min(rowList.size(), from + MAX_ROWS_PER_STATEMENT));
+      String query = "INSERT INTO chat_registry "
+          + "(chat_id, type, first_epoch_seconds, last_epoch_seconds, "
+          + "message_count, last_message_id, first_added_message_id) "
+          + "VALUES " + commaSeparatedValueGroups(statementRows.size(), 7)
+          + " ON DUPLICATE KEY UPDATE "
+          + "first_epoch_seconds=LEAST(first_epoch_seconds, "
+          + "VALUES(first_epoch_seconds)), "
+          + "last_epoch_seconds=GREATEST(last_epoch_seconds, "
+          + "VALUES(last_epoch_seconds)), "
+          + "message_count=message_count+VALUES(message_count), "
+          + "last_message_id=GREATEST(last_message_id, "
+          + "VALUES(last_message_id)), "
+          + "first_added_message_id=LEAST(first_added_message_id, "
+          + "VALUES(first_added_message_id));";
+      PreparedStatement preparedStatement = getConnection()
+          .prepareStatement(query);
+      int paramIndex = 1;
+      for (Map.Entry<Map.Entry<Long, String>, long[]> row : statementRows) {
+        preparedStatement.setLong(paramIndex++, row.getKey().getKey());
+        preparedStatement.setString(paramIndex++, row.getKey().getValue());
+        for (long value : row.getValue()) {
+          preparedStatement.setLong(paramIndex++, value);
+        }
+      }
+      preparedStatement.execute();
+      preparedStatement.close();
+    }
+  }
+
+  // Adds the messages to hourly_message_counts. Call it in the same
+  // transaction which inserts the messages.
+  private void addToHourlyMessageCounts(List<Message> messages)
+      throws SQLException {
+    Map<HourlyCountKey, Integer> counts = new LinkedHashMap<>();
+    for (Message message : messages) {
+      HourlyCountKey key = new HourlyCountKey(message.getChatId(),
+          Math.floorDiv(message.getEpochSeconds(), SECONDS_PER_BUCKET),
+          message.getUserId(), message.getType().toString());
+      Integer count = counts.get(key);
+      counts.put(key, count == null ? 1 : count + 1);
+    }
+    List<Map.Entry<HourlyCountKey, Integer>> countList = new ArrayList<>(
+        counts.entrySet());
+    for (int from = 0; from < countList.size();
+        from += MAX_ROWS_PER_STATEMENT) {
+      List<Map.Entry<HourlyCountKey, Integer>> rows = countList.subList(from,
+          Math.min(countList.size(), from + MAX_ROWS_PER_STATEMENT));
+      String query = "INSERT INTO hourly_message_counts "
+          + "(chat_id, hour_bucket, user_id, type, count) "
+          + "VALUES " + commaSeparatedValueGroups(rows.size(), 5)
+          + " ON DUPLICATE KEY UPDATE count=count+VALUES(count);";
+      PreparedStatement preparedStatement = getConnection()
+          .prepareStatement(query);
+      int paramIndex = 1;
+      for (Map.Entry<HourlyCountKey, Integer> row : rows) {
+        HourlyCountKey key = row.getKey();
+        preparedStatement.setLong(paramIndex++, key.chatId);
+        preparedStatement.setLong(paramIndex++, key.hourBucket);
+        preparedStatement.setLong(paramIndex++, key.userId);
+        preparedStatement.setString(paramIndex++, key.type);
+        preparedStatement.setInt(paramIndex++, row.getValue());
+      }
+      preparedStatement.execute();
+      preparedStatement.close();
+    }
+  }
+
+  /**
+   * Splits [startEpochSeconds, endEpochSeconds) into whole hour buckets and
+   * the partial hours at both ends.
+   *
+   * @return {start bucket, end bucket, head start, head end, tail start, tail
+   *         end}. Buckets are in [start bucket, end bucket). Head and tail are
+   *         in seconds and may be empty.
+   */
+  private long[] splitIntoBucketsAndEdges(long startEpochSeconds,
+      long endEpochSeconds) {
+    long startBucket = Math.floorDiv(startEpochSeconds + SECONDS_PER_BUCKET
+        - 1, SECONDS_PER_BUCKET);
+    long endBucket = Math.floorDiv(endEpochSeconds, SECONDS_PER_BUCKET);
+    if (startBucket >= endBucket) {
+      // Less than a whole hour. Count everything from messages.
+      return new long[] { 0L, 0L, startEpochSeconds, endEpochSeconds, 0L, 0L };
+    }
+    return new long[] { startBucket, endBucket, startEpochSeconds,
+        startBucket * SECONDS_PER_BUCKET, endBucket * SECONDS_PER_BUCKET,
+        endEpochSeconds };
+  }
+
+  // Returns the next parameter index.
+  private int setMessageParameters(PreparedStatement preparedStatement,
+      int paramIndex, Message message) throws SQLException {
+    Long replyToMessageId = message.getReplyToMessageId();
+    Long replyToUserId = message.getReplyToUserId();
+    preparedStatement.setLong(paramIndex++, message.getChatId());
+    preparedStatement.setLong(paramIndex++, message.getMessageId());
+    preparedStatement.setLong(paramIndex++, message.getEpochSeconds());
+    preparedStatement.setLong(paramIndex++, message.getUserId());
+    if (replyToMessageId != null) {
+      preparedStatement.setLong(paramIndex++, replyToMessageId);
+    } else {
+      preparedStatement.setNull(paramIndex++, Types.BIGINT);
+    }
+    if (replyToUserId != null) {
+      preparedStatement.setLong(paramIndex++, replyToUserId);
+    } else {
+      preparedStatement.setNull(paramIndex++, Types.BIGINT);
+    }
+    preparedStatement.setString(paramIndex++, message.getContent());
+    preparedStatement.setString(paramIndex++, message.getType().toString());
+    return paramIndex;
+  }
+
   private Message createMessageFromResultSet(ResultSet resultSet)
       throws SQLException {
     long chatId = resultSet.getLong("chat_id");
@@ -479,4 +1730,47 @@ public class MySQLDatabase implements DatabaseInterface {
         replyToMessageId, replyToUserId, content, type);
   }
 
+  private static class HourlyCountKey {
+    private long chatId;
+    private long hourBucket;
+    private long userId;
+    private String type;
+
+    public HourlyCountKey(long chatId, long hourBucket, long userId,
+        String type) {
+      this.chatId = chatId;
+      this.hourBucket = hourBucket;
+      this.userId = userId;
+      this.type = type;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = Long.hashCode(chatId);
+      result = 31 * result + Long.hashCode(hourBucket);
+      result = 31 * result + Long.hashCode(userId);
+      result = 31 * result + type.hashCode();
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof HourlyCountKey)) {
+        return false;
+      }
+      HourlyCountKey other = (HourlyCountKey) obj;
+      return chatId == other.chatId && hourBucket == other.hourBucket
+          && userId == other.userId && type.equals(other.type);
+    }
+  }
+
+  private static class ThreadConnection {
+    private Connection connection;
+    private int depth = 1;
+
+    public ThreadConnection(Connection connection) {
+      this.connection = connection;
+    }
+  }
+
 }
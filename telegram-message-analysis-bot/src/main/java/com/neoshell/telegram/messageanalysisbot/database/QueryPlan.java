@@ -0,0 +1,42 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.util.List;
+
+/**
+ * How the database executes one of the queries of DatabaseInterface.
+ */
+public class QueryPlan {
+
+  private String queryName;
+  // e.g. "messages: chat_time_index" or "messages: full scan".
+  private List<String> tableAccesses;
+  private boolean usesIndexes;
+
+  public QueryPlan(String queryName, List<String> tableAccesses,
+      boolean usesIndexes) {
+    this.queryName = queryName;
+    this.tableAccesses = tableAccesses;
+    this.usesIndexes = usesIndexes;
+  }
+
+  public String getQueryName() {
+    return queryName;
+  }
+
+  public List<String> getTableAccesses() {
+    return tableAccesses;
+  }
+
+  /**
+   * @return false if any table is fully scanned.
+   */
+  public boolean usesIndexes() {
+    return usesIndexes;
+  }
+
+  @Override
+  public String toString() {
+    return queryName + (usesIndexes ? " OK " : " FULL SCAN ") + tableAccesses;
+  }
+
+}
@@ -0,0 +1,24 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+/**
+ * Receives reply relationships one by one from a streaming query, without
+ * boxing the ids.
+ *
+ * The rows are streamed over the connection of the current thread, so the
+ * callback must not use the database itself.
+ */
+public interface ReplyCallback {
+
+  /**
+   * @param messageId
+   * @param userId
+   *          The id of the user who sent the message.
+   * @param replyToUserId
+   *          The id of the user who was replied, or 0 if the message is not a
+   *          reply.
+   * @param epochSeconds
+   */
+  public void onReply(long messageId, long userId, long replyToUserId,
+      long epochSeconds);
+
+}
@@ -0,0 +1,15 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+/**
+ * Receives rows one by one from a streaming query.
+ *
+ * The rows are streamed over the connection of the current thread, so the
+ * callback must not use the database itself.
+ *
+ * @param <T>
+ */
+public interface RowCallback<T> {
+
+  public void onRow(T row);
+
+}
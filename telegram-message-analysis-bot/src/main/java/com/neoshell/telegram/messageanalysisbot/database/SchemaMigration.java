@@ -0,0 +1,61 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A versioned change to the database schema.
+ *
+ * Schema changes are not transactional in MySQL. If a migration fails half
+ * way, it is retried from its first statement on the next start, so prefer a
+ * single statement per migration, or statements which can be run again.
+ *
+ * A deferred migration is one too slow to run while a process starts, e.g.
+ * building an index of messages. It is only applied by SchemaMigrationTool,
+ * so queries must still work without it, if slower, and later migrations
+ * must not depend on it.
+ */
+public class SchemaMigration {
+
+  private int version;
+  private String description;
+  private boolean isDeferred;
+  private List<String> statements;
+
+  public SchemaMigration(int version, String description,
+      String... statements) {
+    this(version, description, false, statements);
+  }
+
+  public SchemaMigration(int version, String description, boolean isDeferred,
+      String... statements) {
+    this.version = version;
+    this.description = description;
+    this.isDeferred = isDeferred;
+    this.statements = Collections.unmodifiableList(Arrays.asList(statements));
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public boolean isDeferred() {
+    return isDeferred;
+  }
+
+  public List<String> getStatements() {
+    return statements;
+  }
+
+  @Override
+  public String toString() {
+    return "SchemaMigration [version=" + version + ", description="
+        + description + (isDeferred ? ", deferred" : "") + "]";
+  }
+
+}
@@ -0,0 +1,184 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Applies schema migrations which have not been applied yet, in ascending
+ * order of version, and records them in the schema_migrations table.
+ *
+ * The bot and the offline jobs may start at the same time, so migrating is
+ * guarded by a MySQL named lock. Deferred migrations are left to
+ * SchemaMigrationTool, see SchemaMigration.
+ */
+public class SchemaMigrator {
+
+  private static final String LOCK_NAME = "schema_migrations";
+  private static final int LOCK_TIMEOUT_SECONDS = 600;
+  // Held while deferred migrations are applied, which may take hours.
+  private static final String DEFERRED_LOCK_NAME =
+      "schema_migrations_deferred";
+
+  private List<SchemaMigration> migrations;
+
+  public SchemaMigrator(List<SchemaMigration> migrations) {
+    for (int i = 1; i < migrations.size(); i++) {
+      if (migrations.get(i).getVersion() <= migrations.get(i - 1)
+          .getVersion()) {
+        throw new IllegalArgumentException(
+            "Migrations must be in strictly ascending order of version: "
+                + migrations.get(i));
+      }
+    }
+    this.migrations = migrations;
+  }
+
+  /**
+   * Applies the pending migrations.
+   *
+   * Deferred migrations are applied last, under a lock of their own, so that
+   * processes starting meanwhile are not kept waiting for them.
+   *
+   * @param connection
+   * @param includesDeferred Whether to apply the deferred migrations too.
+   * @return The migrations applied by this call.
+   * @throws SQLException
+   */
+  public List<SchemaMigration> migrate(Connection connection,
+      boolean includesDeferred) throws SQLException {
+    List<SchemaMigration> appliedMigrations = new ArrayList<>();
+    Statement statement = connection.createStatement();
+    statement.execute("CREATE TABLE IF NOT EXISTS schema_migrations ("
+        + "version INT PRIMARY KEY,"
+        + "description VARCHAR(255) NOT NULL,"
+        + "applied_epoch_seconds BIGINT NOT NULL"
+        + ") CHARACTER SET=utf8mb4 COLLATE=utf8mb4_unicode_ci;");
+    statement.close();
+    acquireLock(connection, LOCK_NAME, LOCK_TIMEOUT_SECONDS);
+    try {
+      for (SchemaMigration migration : getPendingMigrations(connection)) {
+        if (!migration.isDeferred()) {
+          apply(connection, migration);
+          appliedMigrations.add(migration);
+        }
+      }
+    } finally {
+      releaseLock(connection, LOCK_NAME);
+    }
+    if (!includesDeferred) {
+      return appliedMigrations;
+    }
+    acquireLock(connection, DEFERRED_LOCK_NAME, 0);
+    try {
+      for (SchemaMigration migration : getPendingMigrations(connection)) {
+        apply(connection, migration);
+        appliedMigrations.add(migration);
+      }
+    } finally {
+      releaseLock(connection, DEFERRED_LOCK_NAME);
+    }
+    return appliedMigrations;
+  }
+
+  /**
+   * @param connection
+   * @return The migrations not applied yet, in ascending order of version.
+   * @throws SQLException
+   */
+  public List<SchemaMigration> getPendingMigrations(Connection connection)
+      throws SQLException {
+    Set<Integer> appliedVersions = getAppliedVersions(connection);
+    List<SchemaMigration> pendingMigrations = new ArrayList<>();
+    for (SchemaMigration migration : migrations) {
+      if (!appliedVersions.contains(migration.getVersion())) {
+        pendingMigrations.add(migration);
+      }
+    }
+    return pendingMigrations;
+  }
+
+  /**
+   * @param connection
+   * @return The highest applied version, or 0 if none.
+   * @throws SQLException
+   */
+  public int getCurrentVersion(Connection connection) throws SQLException {
+    int version = 0;
+    for (int appliedVersion : getAppliedVersions(connection)) {
+      version = Math.max(version, appliedVersion);
+    }
+    return version;
+  }
+
+  private Set<Integer> getAppliedVersions(Connection connection)
+      throws SQLException {
+    Set<Integer> versions = new HashSet<>();
+    Statement statement = connection.createStatement();
+    ResultSet resultSet = statement
+        .executeQuery("SELECT version FROM schema_migrations;");
+    while (resultSet.next()) {
+      versions.add(resultSet.getInt("version"));
+    }
+    resultSet.close();
+    statement.close();
+    return versions;
+  }
+
+  private void apply(Connection connection, SchemaMigration migration)
+      throws SQLException {
+    for (String sql : migration.getStatements()) {
+      Statement statement = connection.createStatement();
+      try {
+        statement.execute(sql);
+      } catch (SQLException e) {
+        throw new SQLException(
+            "Failed to apply " + migration + ": " + e.getMessage(),
+            e.getSQLState(), e.getErrorCode(), e);
+      } finally {
+        statement.close();
+      }
+    }
+    PreparedStatement preparedStatement = connection.prepareStatement(
+        "INSERT INTO schema_migrations "
+            + "(version, description, applied_epoch_seconds) "
+            + "VALUES (?, ?, ?);");
+    preparedStatement.setInt(1, migration.getVersion());
+    preparedStatement.setString(2, migration.getDescription());
+    preparedStatement.setLong(3, System.currentTimeMillis() / 1000L);
+    preparedStatement.execute();
+    preparedStatement.close();
+  }
+
+  private void acquireLock(Connection connection, String lockName,
+      int timeoutSeconds) throws SQLException {
+    PreparedStatement preparedStatement = connection
+        .prepareStatement("SELECT GET_LOCK(?, ?);");
+    preparedStatement.setString(1, lockName);
+    preparedStatement.setInt(2, timeoutSeconds);
+    ResultSet resultSet = preparedStatement.executeQuery();
+    boolean isLocked = resultSet.next() && resultSet.getInt(1) == 1;
+    resultSet.close();
+    preparedStatement.close();
+    if (!isLocked) {
+      throw new SQLException("Timed out waiting for another process to "
+          + "finish migrating (lock " + lockName + ").");
+    }
+  }
+
+  private void releaseLock(Connection connection, String lockName)
+      throws SQLException {
+    PreparedStatement preparedStatement = connection
+        .prepareStatement("SELECT RELEASE_LOCK(?);");
+    preparedStatement.setString(1, lockName);
+    preparedStatement.executeQuery().close();
+    preparedStatement.close();
+  }
+
+}
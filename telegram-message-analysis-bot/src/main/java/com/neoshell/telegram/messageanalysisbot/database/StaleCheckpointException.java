@@ -0,0 +1,16 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a checkpoint is not at the expected position, because another
+ * worker moved it. Nothing is written.
+ */
+@SuppressWarnings("serial")
+public class StaleCheckpointException extends SQLException {
+
+  public StaleCheckpointException(String message) {
+    super(message);
+  }
+
+}
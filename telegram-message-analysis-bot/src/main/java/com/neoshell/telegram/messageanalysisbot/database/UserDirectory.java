@@ -0,0 +1,139 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.neoshell.telegram.messageanalysisbot.User;
+import com.neoshell.telegram.messageanalysisbot.collection.LongObjectHashMap;
+
+/**
+ * In-memory directory of all users the bot has seen. Loaded from database on
+ * the first lookup and then kept up to date with the senders of incoming
+ * messages, so lookups never scan the users table again.
+ */
+public class UserDirectory {
+
+  private DatabaseInterface database;
+
+  private ReadWriteLock lock = new ReentrantReadWriteLock();
+  // Fields below are guarded by lock.
+  private LongObjectHashMap<User> users = new LongObjectHashMap<>();
+  private boolean isLoaded = false;
+  private long numUpdates = 0;
+
+  public UserDirectory(DatabaseInterface database) {
+    this.database = database;
+  }
+
+  /**
+   * Adds the user, or updates it if the profile has changed.
+   *
+   * @param user
+   */
+  public void update(User user) {
+    lock.readLock().lock();
+    try {
+      if (user.equals(users.get(user.getUserId()))) {
+        return;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    lock.writeLock().lock();
+    try {
+      users.put(user.getUserId(), user);
+      numUpdates++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @param userId
+   * @return null if the user is unknown, e.g. a bot.
+   * @throws SQLException
+   */
+  public User getUser(long userId) throws SQLException {
+    loadIfNeeded();
+    lock.readLock().lock();
+    try {
+      return users.get(userId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Looks up multiple users at once.
+   *
+   * @param userIds
+   * @return A map where the key is user id and the value is the User object.
+   *         Unknown users are not included.
+   * @throws SQLException
+   */
+  public Map<Long, User> getUsers(Iterable<Long> userIds)
+      throws SQLException {
+    loadIfNeeded();
+    Map<Long, User> result = new HashMap<>();
+    lock.readLock().lock();
+    try {
+      for (Long userId : userIds) {
+        if (userId == null) {
+          continue;
+        }
+        User user = users.get(userId);
+        if (user != null) {
+          result.put(userId, user);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  public String getStats() {
+    lock.readLock().lock();
+    try {
+      return "loaded=" + isLoaded + ", users=" + users.size() + ", updates="
+          + numUpdates;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @SuppressWarnings("try")
+  private void loadIfNeeded() throws SQLException {
+    lock.readLock().lock();
+    try {
+      if (isLoaded) {
+        return;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    lock.writeLock().lock();
+    try {
+      if (isLoaded) {
+        return;
+      }
+      Map<Long, User> storedUsers;
+      try (DatabaseSession session = database.openSession()) {
+        storedUsers = database.getUsers();
+      }
+      for (User user : storedUsers.values()) {
+        // Users updated since startup are newer than the stored ones.
+        if (!users.containsKey(user.getUserId())) {
+          users.put(user.getUserId(), user);
+        }
+      }
+      isLoaded = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+}
@@ -56,10 +56,8 @@ public class ChatBotHandler extends Handler {
       if (chatBotReply != null) {
         bot.sendTextMessage(receiverChatId, chatBotReply.getText());
       } else { // TODO: handle more response types.
-        database.openConnection();
         ResourceBundle responseResource = ResourceBundle
             .getBundle(RESPONSE_RESOURCE_BUNDLE, locale);
-        database.closeConnection();
         bot.sendTextMessage(receiverChatId,
             responseResource.getString("chat.incompatibleResponse"));
       }
@@ -4,7 +4,6 @@ import java.util.Locale;
 import java.util.ResourceBundle;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionGroup;
@@ -22,7 +21,6 @@ public class GoToHandler extends Handler {
   private static final String COMMAND_DESCRIPTION = "Outputs a message which replies to the message you want to go to. By clicking the replied message, you can jump to it.";
 
   private Options commandOptions;
-  private CommandLineParser commandLineParser;
 
   public GoToHandler(MessageAnalysisBot bot) {
     super(bot);
@@ -32,7 +30,6 @@ public class GoToHandler extends Handler {
     optionGroup.addOption(Option.builder("m").longOpt("message").hasArg()
         .desc("The id of the message you want to go to.").build());
     commandOptions.addOptionGroup(optionGroup);
-    commandLineParser = new DefaultParser();
   }
 
   @Override
@@ -56,7 +53,7 @@ public class GoToHandler extends Handler {
       // Parse command.
       CommandLine commandLine = null;
       try {
-        commandLine = commandLineParser.parse(commandOptions, arguments);
+        commandLine = new DefaultParser().parse(commandOptions, arguments);
         replyToMessageId = Integer.parseInt(commandLine.getOptionValue("m"));
       } catch (Exception e) {
         bot.sendTextMessage(receiverChatId,
@@ -10,12 +10,10 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 
 import org.telegram.telegrambots.meta.api.objects.Message;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
 import com.neoshell.telegram.messageanalysisbot.MarkdownFormatter;
 import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
 import com.neoshell.telegram.messageanalysisbot.ParseMode;
-import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
 
 /**
  * Steps of adding a new handler:
@@ -68,9 +66,8 @@ public abstract class Handler {
    * Sends a pre-formatted fixed-width help message.
    * 
    * @param chatId
-   * @throws TelegramApiException
    */
-  protected void sendHelpMessage(long chatId) throws TelegramApiException {
+  protected void sendHelpMessage(long chatId) {
     String formattedString = MarkdownFormatter.codeBlock(getHelpString());
     bot.sendTextMessage(chatId, formattedString, ParseMode.MARKDOWN);
   }
@@ -86,17 +83,14 @@ public abstract class Handler {
   }
 
   /**
-   * Gets time zone option of the chat. Please make sure database connection is
-   * open before calling this method.
+   * Gets time zone option of the chat.
    * 
    * @param chatId
-   * @param database
    * @return
    * @throws SQLException
    */
-  protected TimeZone getTimeZone(long chatId, DatabaseInterface database)
-      throws SQLException {
-    String timezoneString = database.getOption(chatId, "timezone");
+  protected TimeZone getTimeZone(long chatId) throws SQLException {
+    String timezoneString = bot.getChatOptions().getOption(chatId, "timezone");
     return timezoneString != null ? TimeZone.getTimeZone(timezoneString)
         : bot.getDefaultTimeZone();
   }
@@ -17,7 +17,6 @@ import java.util.Set;
 import java.util.TimeZone;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -29,6 +28,7 @@ import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
 import com.neoshell.telegram.messageanalysisbot.MessageType;
 import com.neoshell.telegram.messageanalysisbot.User;
 import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
 
 public class HistoryHandler extends Handler {
 
@@ -50,13 +50,10 @@ public class HistoryHandler extends Handler {
   };
   private static final String PIN_COMMAND = "/pin";
 
-  private static final SimpleDateFormat FORMATTER = new SimpleDateFormat(
-      "yyyy/MM/dd HH:mm z");
+  private static final String DATE_FORMAT = "yyyy/MM/dd HH:mm z";
 
   private DatabaseInterface database;
   private Options commandOptions;
-  private CommandLineParser commandLineParser;
-  private ResourceBundle responseResource;
 
   public HistoryHandler(MessageAnalysisBot bot, DatabaseInterface database) {
     super(bot);
@@ -69,7 +66,6 @@ public class HistoryHandler extends Handler {
             + MAX_NUM_MESSAGES + "].");
     commandOptions.addOption("u", "user", false,
         "Set this option if you want to show the sender of each message.");
-    commandLineParser = new DefaultParser();
   }
 
   @Override
@@ -84,10 +80,11 @@ public class HistoryHandler extends Handler {
   }
 
   @Override
+  @SuppressWarnings("try")
   public void handle(long receiverChatId, long dataSourceChatId,
       String[] arguments, Message message, Locale locale) {
-    responseResource = ResourceBundle.getBundle(RESPONSE_RESOURCE_BUNDLE,
-        locale);
+    ResourceBundle responseResource = ResourceBundle
+        .getBundle(RESPONSE_RESOURCE_BUNDLE, locale);
     try {
       // Parse command.
       int numMessage = DEFAULT_NUM_MESSAGES;
@@ -95,7 +92,7 @@ public class HistoryHandler extends Handler {
       boolean showUser = DEFAULT_SHOW_USER;
       CommandLine commandLine = null;
       try {
-        commandLine = commandLineParser.parse(commandOptions, arguments);
+        commandLine = new DefaultParser().parse(commandOptions, arguments);
         String typeString = commandLine.getOptionValue("t");
         if (typeString != null) {
           type = MessageType.parseFromString(typeString);
@@ -119,23 +116,32 @@ public class HistoryHandler extends Handler {
       }
 
       // Query database.
-      database.openConnection();
-      // Get latest commands in ascending order of time.
-      List<com.neoshell.telegram.messageanalysisbot.Message> messages = database
-          .getMessagesSortedByTime(dataSourceChatId, EnumSet.of(type),
-              /* contentLike= */null, numMessage, /* isOldest= */false,
-              /* isAscending= */true);
-      if (type == MessageType.PINNED_MESSAGE) {
-        messages = mergeManuallyPinnedMessages(dataSourceChatId, numMessage,
-            messages);
+      List<com.neoshell.telegram.messageanalysisbot.Message> messages;
+      Map<Long, User> userMap;
+      TimeZone timeZone;
+      try (DatabaseSession session = database.openSession()) {
+        // Get latest commands in ascending order of time.
+        messages = database.getMessagesSortedByTime(dataSourceChatId,
+            EnumSet.of(type), /* contentLike= */null, numMessage,
+            /* isOldest= */false, /* isAscending= */true);
+        if (type == MessageType.PINNED_MESSAGE) {
+          messages = mergeManuallyPinnedMessages(dataSourceChatId, numMessage,
+              messages, responseResource);
+        }
+        timeZone = getTimeZone(dataSourceChatId);
+      }
+
+      Set<Long> userIds = new HashSet<>();
+      for (com.neoshell.telegram.messageanalysisbot.Message m : messages) {
+        userIds.add(m.getUserId());
+        userIds.add(m.getReplyToUserId());
       }
-      Map<Long, User> userMap = database.getUsers();
-      TimeZone timeZone = getTimeZone(dataSourceChatId, database);
-      database.closeConnection();
+      userMap = bot.getUserDirectory().getUsers(userIds);
 
       // Send response.
       if (messages.size() > 0) {
-        FORMATTER.setTimeZone(timeZone);
+        SimpleDateFormat formatter = new SimpleDateFormat(DATE_FORMAT);
+        formatter.setTimeZone(timeZone);
         StringBuilder sendText = new StringBuilder();
         String historyName = getHistoryName(type, locale);
         if (historyName != null) {
@@ -147,7 +153,8 @@ public class HistoryHandler extends Handler {
           sendText.append(responseText);
         }
         for (com.neoshell.telegram.messageanalysisbot.Message m : messages) {
-          sendText.append(getItemContent(m, type, showUser, userMap));
+          sendText.append(getItemContent(m, type, showUser, userMap,
+              formatter, responseResource));
         }
         bot.sendTextMessage(receiverChatId, sendText.toString());
       } else {
@@ -161,6 +168,8 @@ public class HistoryHandler extends Handler {
   }
 
   private String getHistoryName(MessageType messageType, Locale locale) {
+    ResourceBundle responseResource = ResourceBundle
+        .getBundle(RESPONSE_RESOURCE_BUNDLE, locale);
     switch (messageType) {
     case COMMAND:
       return responseResource.getString("history.title.command");
@@ -175,7 +184,8 @@ public class HistoryHandler extends Handler {
 
   private String getItemContent(
       com.neoshell.telegram.messageanalysisbot.Message message,
-      MessageType messageType, boolean showUser, Map<Long, User> userMap) {
+      MessageType messageType, boolean showUser, Map<Long, User> userMap,
+      SimpleDateFormat formatter, ResourceBundle responseResource) {
     long userId = message.getUserId();
     StringBuilder sb = new StringBuilder();
     switch (messageType) {
@@ -189,7 +199,7 @@ public class HistoryHandler extends Handler {
         return "";
       }
       sb.append("------\n");
-      String timeStr = FORMATTER
+      String timeStr = formatter
           .format(new Date(message.getEpochSeconds() * 1000));
       sb.append(timeStr);
       // Show a goto command if possible.
@@ -231,8 +241,8 @@ public class HistoryHandler extends Handler {
   // messages as well.
   private List<com.neoshell.telegram.messageanalysisbot.Message> mergeManuallyPinnedMessages(
       long dataSourceChatId, int numMessage,
-      List<com.neoshell.telegram.messageanalysisbot.Message> manuallyPinnedMessages)
-      throws SQLException {
+      List<com.neoshell.telegram.messageanalysisbot.Message> manuallyPinnedMessages,
+      ResourceBundle responseResource) throws SQLException {
     List<com.neoshell.telegram.messageanalysisbot.Message> mergedMessages = new ArrayList<>(
         manuallyPinnedMessages);
     List<com.neoshell.telegram.messageanalysisbot.Message> pinCommandMessages = database
@@ -7,12 +7,10 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.TimeZone;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -23,6 +21,9 @@ import com.neoshell.telegram.messageanalysisbot.CommandUtil;
 import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
 import com.neoshell.telegram.messageanalysisbot.MessageType;
 import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+import com.neoshell.telegram.messageanalysisbot.nlp.KeywordContext;
+import com.neoshell.telegram.messageanalysisbot.nlp.KeywordContextCache;
 import com.neoshell.telegram.messageanalysisbot.nlp.NLPInterface;
 
 public class KeywordHandler extends Handler {
@@ -32,24 +33,23 @@ public class KeywordHandler extends Handler {
 
   private static final int DEFAULT_KEYWORDS_MESSAGE_RANGE = 500;
   private static final int MAX_KEYWORDS_MESSAGE_RANGE = 3000;
-  private static final int WORD_COUNT_MAP_LIMIT = 500;
 
   private DatabaseInterface database;
   private NLPInterface nlpUtil;
+  private KeywordContextCache keywordContexts;
 
   private Options commandOptions;
-  private CommandLineParser commandLineParser;
 
   public KeywordHandler(MessageAnalysisBot bot, DatabaseInterface database,
-      NLPInterface nlpUtil) {
+      NLPInterface nlpUtil, KeywordContextCache keywordContexts) {
     super(bot);
     this.database = database;
     this.nlpUtil = nlpUtil;
+    this.keywordContexts = keywordContexts;
     commandOptions = new Options();
     commandOptions.addOption("n", "number", true,
         "The number of messages you want to compute keywords for. "
             + "Range: (0," + MAX_KEYWORDS_MESSAGE_RANGE + "].");
-    commandLineParser = new DefaultParser();
   }
 
   @Override
@@ -64,6 +64,7 @@ public class KeywordHandler extends Handler {
   }
 
   @Override
+  @SuppressWarnings("try")
   public void handle(long receiverChatId, long dataSourceChatId,
       String[] arguments, Message message, Locale locale) {
     ResourceBundle responseResource = ResourceBundle
@@ -73,7 +74,7 @@ public class KeywordHandler extends Handler {
       int messageRange = DEFAULT_KEYWORDS_MESSAGE_RANGE;
       CommandLine commandLine = null;
       try {
-        commandLine = commandLineParser.parse(commandOptions, arguments);
+        commandLine = new DefaultParser().parse(commandOptions, arguments);
         String messageRangeString = commandLine.getOptionValue("n");
         if (messageRangeString != null) {
           messageRange = Integer.parseInt(messageRangeString);
@@ -88,30 +89,30 @@ public class KeywordHandler extends Handler {
         return;
       }
 
-      // Query.
-      database.openConnection();
-      Map<String, Long> wordCountMap = null;
+      // Query. The global word count of the chat is prepared once per change.
+      KeywordContext keywordContext;
       try {
-        int startMonthIndex = 0;
-        int endMonthIndex = Integer.MAX_VALUE;
-        wordCountMap = database.getWordCount(dataSourceChatId, startMonthIndex,
-            endMonthIndex, WORD_COUNT_MAP_LIMIT);
+        keywordContext = keywordContexts.get(dataSourceChatId);
       } catch (Exception e) {
-        wordCountMap = new HashMap<>();
+        MessageAnalysisBot.getLogger()
+            .warning("No word totals of chat " + dataSourceChatId + ": " + e);
+        keywordContext = nlpUtil
+            .createKeywordContext(new HashMap<String, Long>());
       }
-      // Get latest texts in ascending order of time.
-      List<com.neoshell.telegram.messageanalysisbot.Message> latestMessages = database
-          .getMessagesSortedByTime(dataSourceChatId,
-              Arrays.asList(MessageType.values()), /* contentLike= */null,
-              messageRange, /* isOldest= */false, /* isAscending= */true);
-      TimeZone timeZone = getTimeZone(dataSourceChatId, database);
-      database.closeConnection();
-
-      // Compute keywords.
-      nlpUtil.initialize();
+      List<com.neoshell.telegram.messageanalysisbot.Message> latestMessages;
+      TimeZone timeZone;
+      try (DatabaseSession session = database.openSession()) {
+        // Get latest texts in ascending order of time.
+        latestMessages = database.getMessagesSortedByTime(dataSourceChatId,
+            Arrays.asList(MessageType.values()), /* contentLike= */null,
+            messageRange, /* isOldest= */false, /* isAscending= */true);
+        timeZone = getTimeZone(dataSourceChatId);
+      }
+
+      // Compute keywords. The NLP client pool is thread-safe and shared by all
+      // chats.
       List<KeywordInfo> keywordInfoList = nlpUtil
-          .computeKeywords(latestMessages, wordCountMap);
-      nlpUtil.shutdown();
+          .computeKeywords(latestMessages, keywordContext);
 
       // Send response.
       SimpleDateFormat formatter = new SimpleDateFormat("MM/dd HH:mm z");
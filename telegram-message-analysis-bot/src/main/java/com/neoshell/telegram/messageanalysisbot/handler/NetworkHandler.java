@@ -1,12 +1,7 @@
 package com.neoshell.telegram.messageanalysisbot.handler;
 
-import java.io.File;
 import java.text.MessageFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -14,6 +9,8 @@ import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.lang.time.DateUtils;
@@ -25,7 +22,9 @@ import org.telegram.telegrambots.meta.api.objects.Message;
 
 import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
 import com.neoshell.telegram.messageanalysisbot.User;
-import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.cache.ChartCache;
+import com.neoshell.telegram.messageanalysisbot.cache.ChartKeyBuilder;
+import com.neoshell.telegram.messageanalysisbot.replygraph.ReplyGraphEngine;
 import com.neoshell.telegram.messageanalysisbot.visualization.GraphVisualizationInterface;
 
 public class NetworkHandler extends Handler {
@@ -35,21 +34,25 @@ public class NetworkHandler extends Handler {
 
   private static final int DEFAULT_NETWORK_TIMERANGE_DAYS = 1;
   private static final int DEFAULT_NETWORK_EDGES_LIMIT = 50;
-  private static final int DEFAULT_NETWORK_IMPLICIT_REPLY_RANGE = 10;
   // Please make sure the description in the response text match the colors.
   private static final String EXPLICIT_REPLY_EDGE_COLOR = "red";
   private static final String IMPLICIT_REPLY_EDGE_COLOR = "blue";
+  private static final String IMAGE_FILE_NAME = "network.png";
 
-  private DatabaseInterface database;
+  private ReplyGraphEngine replyGraphEngine;
   private GraphVisualizationInterface graphVisualizationUtil;
-  private String tempDir;
+  private Options commandOptions;
 
-  public NetworkHandler(MessageAnalysisBot bot, DatabaseInterface database,
-      GraphVisualizationInterface graphVisualizationUtil, String tempDir) {
+  public NetworkHandler(MessageAnalysisBot bot,
+      ReplyGraphEngine replyGraphEngine,
+      GraphVisualizationInterface graphVisualizationUtil) {
     super(bot);
-    this.database = database;
+    this.replyGraphEngine = replyGraphEngine;
     this.graphVisualizationUtil = graphVisualizationUtil;
-    this.tempDir = tempDir;
+    commandOptions = new Options();
+    commandOptions.addOption("d", "days", true,
+        "The number of latest days to look at. Range:(0,"
+            + replyGraphEngine.getMaxWindowDays() + "].");
   }
 
   @Override
@@ -60,7 +63,7 @@ public class NetworkHandler extends Handler {
   @Override
   public String getHelpString() {
     return getCommonsCLIHelpString(COMMAND_NAME, COMMAND_DESCRIPTION,
-        new Options());
+        commandOptions);
   }
 
   @Override
@@ -69,84 +72,53 @@ public class NetworkHandler extends Handler {
     ResourceBundle responseResource = ResourceBundle
         .getBundle(RESPONSE_RESOURCE_BUNDLE, locale);
     try {
-      // Query database.
-      long startEpochSeconds = getTimeSecondsNDaysAgo(
-          DEFAULT_NETWORK_TIMERANGE_DAYS);
-      long endEpochSeconds = Long.MAX_VALUE;
-      database.openConnection();
-      List<Map.Entry<Long, Long>> replyList = database
-          .getReplyList(dataSourceChatId, startEpochSeconds, endEpochSeconds);
-      Map<Long, User> userMap = database.getUsers();
-      database.closeConnection();
-
-      // Compute scores.
-      Map<ReplyStats, Double> replyScoreMap = new HashMap<>();
-      for (int i = 0; i < replyList.size(); i++) {
-        long userId = replyList.get(i).getKey();
-        long replyToUserId = replyList.get(i).getValue();
-        boolean isExplicitReply = replyToUserId != 0;
-        if (isExplicitReply) {
-          // Only look at the first 3 fields. Keep score as 0.
-          ReplyStats key = new ReplyStats(userId, replyToUserId,
-              isExplicitReply, 0.0);
-          if (!replyScoreMap.containsKey(key)) {
-            replyScoreMap.put(key, 1.0);
-          } else {
-            replyScoreMap.put(key, replyScoreMap.get(key) + 1.0);
-          }
-        } else {
-          int startIndex = Math.max(0,
-              i - DEFAULT_NETWORK_IMPLICIT_REPLY_RANGE);
-          for (int j = startIndex; j < i; j++) {
-            long implicitReplyToUserId = replyList.get(j).getKey();
-            // Only look at the first 3 fields. Keep score as 0.
-            ReplyStats key = new ReplyStats(userId, implicitReplyToUserId,
-                isExplicitReply, 0.0);
-            if (implicitReplyToUserId == userId) {
-              continue; // Skip if the user implicitly replied to himself.
-            }
-            if (!replyScoreMap.containsKey(key)) {
-              replyScoreMap.put(key,
-                  1.0 / DEFAULT_NETWORK_IMPLICIT_REPLY_RANGE);
-            } else {
-              replyScoreMap.put(key, replyScoreMap.get(key)
-                  + 1.0 / DEFAULT_NETWORK_IMPLICIT_REPLY_RANGE);
-            }
+      // Parse command.
+      int numDays = DEFAULT_NETWORK_TIMERANGE_DAYS;
+      try {
+        CommandLine commandLine = new DefaultParser().parse(commandOptions,
+            arguments);
+        String numDaysString = commandLine.getOptionValue("d");
+        if (numDaysString != null) {
+          numDays = Integer.parseInt(numDaysString);
+          if (numDays <= 0 || numDays > replyGraphEngine.getMaxWindowDays()) {
+            throw new Exception();
           }
         }
+      } catch (Exception e) {
+        bot.sendTextMessage(receiverChatId,
+            responseResource.getString("common.invalidCommand"));
+        sendHelpMessage(receiverChatId);
+        return;
       }
-      if (replyScoreMap.isEmpty()) {
+
+      // Get the top replies from the in-memory reply graph. It is bucketed by
+      // hour, so the window starts at the start of the hour numDays ago.
+      List<ReplyStats> replies = replyGraphEngine.getTopReplies(
+          dataSourceChatId, getTimeSecondsNDaysAgo(numDays),
+          DEFAULT_NETWORK_EDGES_LIMIT);
+      if (replies.isEmpty()) {
         bot.sendTextMessage(receiverChatId,
             new MessageFormat(responseResource.getString("network.emptyResult"),
-                locale).format(
-                    new Object[] { DEFAULT_NETWORK_TIMERANGE_DAYS * 24 }));
+                locale).format(new Object[] { numDays * 24 }));
         return;
       }
-      // Sort by score in descending order.
-      List<Map.Entry<ReplyStats, Double>> replyScoreList = new ArrayList<>(
-          replyScoreMap.entrySet());
-      Collections.sort(replyScoreList,
-          new Comparator<Map.Entry<ReplyStats, Double>>() {
-            public int compare(Map.Entry<ReplyStats, Double> o1,
-                Map.Entry<ReplyStats, Double> o2) {
-              return o2.getValue().compareTo(o1.getValue());
-            }
-          });
-      if (replyScoreList.size() > DEFAULT_NETWORK_EDGES_LIMIT) {
-        replyScoreList = replyScoreList.subList(0, DEFAULT_NETWORK_EDGES_LIMIT);
-      }
 
       // Build graph.
-      Graph<User, ReplyStats> graph = new DirectedPseudograph<User, ReplyStats>(
-          ReplyStats.class);
+      Set<Long> userIds = new HashSet<>();
+      for (ReplyStats replyStats : replies) {
+        userIds.add(replyStats.getUserId());
+        userIds.add(replyStats.getReplyToUserId());
+      }
+      Map<Long, User> userMap = bot.getUserDirectory().getUsers(userIds);
+      final Graph<User, ReplyStats> graph =
+          new DirectedPseudograph<User, ReplyStats>(ReplyStats.class);
       Set<Long> alreadyAddedUserIds = new HashSet<>();
-      for (Map.Entry<ReplyStats, Double> entry : replyScoreList) {
-        ReplyStats replyStats = entry.getKey();
+      for (ReplyStats replyStats : replies) {
         long userId = replyStats.getUserId();
         long replyToUserId = replyStats.getReplyToUserId();
         User user = userMap.get(userId);
         User replyToUser = userMap.get(replyToUserId);
-        // Note: Bot users are not included in the database query result, so
+        // Note: Bot users are not included in the user directory, so
         // user and replyToUser could be null.
         if (user != null && replyToUser != null) {
           if (!alreadyAddedUserIds.contains(userId)) {
@@ -157,27 +129,35 @@ public class NetworkHandler extends Handler {
             graph.addVertex(replyToUser);
             alreadyAddedUserIds.add(replyToUserId);
           }
-          replyStats.setScore(entry.getValue());
           graph.addEdge(user, replyToUser, replyStats);
         }
       }
 
-      // Generate image.
-      File imageFile = File.createTempFile(
-          NetworkHandler.class.toString() + "_", ".tmpimg", new File(tempDir));
-      graphVisualizationUtil.visualizeReplyRelationship(graph,
-          EXPLICIT_REPLY_EDGE_COLOR, IMPLICIT_REPLY_EDGE_COLOR,
-          imageFile.getAbsolutePath());
+      // Everything drawn on the image, in drawing order.
+      ChartKeyBuilder chartKey = new ChartKeyBuilder(COMMAND_NAME)
+          .add(EXPLICIT_REPLY_EDGE_COLOR).add(IMPLICIT_REPLY_EDGE_COLOR);
+      for (User user : graph.vertexSet()) {
+        chartKey.add(user.getUserId()).add(user.getFullName());
+      }
+      for (ReplyStats replyStats : graph.edgeSet()) {
+        chartKey.add(replyStats.getUserId()).add(replyStats.getReplyToUserId())
+            .add(replyStats.isExplicitReply()).add(replyStats.getScore());
+      }
 
-      // Build response.
-      bot.sendPhotoMessage(receiverChatId, imageFile.getAbsolutePath(),
-          new MessageFormat(responseResource.getString("network.description"),
+      // Generate image if needed and build response.
+      bot.sendChartMessage(receiverChatId, chartKey.build(),
+          new ChartCache.Renderer() {
+            @Override
+            public byte[] render() throws Exception {
+              return graphVisualizationUtil.visualizeReplyRelationship(
+                  graph, EXPLICIT_REPLY_EDGE_COLOR,
+                  IMPLICIT_REPLY_EDGE_COLOR);
+            }
+          }, IMAGE_FILE_NAME, new MessageFormat(responseResource.getString("network.description"),
               locale)
                   .format(new Object[] { DEFAULT_NETWORK_EDGES_LIMIT,
-                      DEFAULT_NETWORK_TIMERANGE_DAYS * 24,
-                      DEFAULT_NETWORK_IMPLICIT_REPLY_RANGE }));
-
-      imageFile.delete();
+                      numDays * 24,
+                      replyGraphEngine.getImplicitReplyRange() }));
 
     } catch (Exception e) {
       MessageAnalysisBot.getLogger().severe(ExceptionUtils.getStackTrace(e));
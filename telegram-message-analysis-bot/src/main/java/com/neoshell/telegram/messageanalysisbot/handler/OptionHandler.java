@@ -1,16 +1,13 @@
 package com.neoshell.telegram.messageanalysisbot.handler;
 
-import java.util.AbstractMap;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.TimeZone;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -20,20 +17,16 @@ import org.telegram.telegrambots.meta.api.objects.Message;
 
 import com.neoshell.telegram.messageanalysisbot.Language;
 import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
-import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
 
 public class OptionHandler extends Handler {
 
   private static final String COMMAND_NAME = "option";
   private static final String COMMAND_DESCRIPTION = "Sets bot options.";
 
-  private DatabaseInterface database;
   private Options commandOptions;
-  private CommandLineParser commandLineParser;
 
-  public OptionHandler(MessageAnalysisBot bot, DatabaseInterface database) {
+  public OptionHandler(MessageAnalysisBot bot) {
     super(bot);
-    this.database = database;
     commandOptions = new Options();
     commandOptions.addOption("L", "language", true,
         "Language. Valid args: " + Arrays.toString(
@@ -41,7 +34,6 @@ public class OptionHandler extends Handler {
     commandOptions.addOption("T", "timezone", true, "Timezone ID. e.g. EST.");
     commandOptions.addOption("R", "rank_refresh", true,
         "The hour of day when ranks get refreshed. Expect an integer from 0 to 23.");
-    commandLineParser = new DefaultParser();
   }
 
   @Override
@@ -62,26 +54,24 @@ public class OptionHandler extends Handler {
         .getBundle(RESPONSE_RESOURCE_BUNDLE, locale);
     try {
       // Parse command.
-      List<Map.Entry<String, String>> optionsToUpdate = new ArrayList<>();
+      Map<String, String> optionsToUpdate = new LinkedHashMap<>();
       CommandLine commandLine = null;
       try {
-        commandLine = commandLineParser.parse(commandOptions, arguments);
+        commandLine = new DefaultParser().parse(commandOptions, arguments);
         if (commandLine.hasOption("L")) {
           String optionValue = commandLine.getOptionValue("L");
           Language language = Language.parseFromString(optionValue);
           if (language == Language.UNKNOWN) {
             throw new Exception();
           }
-          optionsToUpdate.add(new AbstractMap.SimpleEntry<String, String>(
-              "language", optionValue));
+          optionsToUpdate.put("language", optionValue);
         }
         if (commandLine.hasOption("T")) {
           String optionValue = commandLine.getOptionValue("T");
           if (!isValidTimezoneId(optionValue)) {
             throw new Exception();
           }
-          optionsToUpdate.add(new AbstractMap.SimpleEntry<String, String>(
-              "timezone", optionValue));
+          optionsToUpdate.put("timezone", optionValue);
         }
         if (commandLine.hasOption("R")) {
           String optionValue = commandLine.getOptionValue("R");
@@ -89,8 +79,7 @@ public class OptionHandler extends Handler {
           if (rankRefreshHour < 0 || rankRefreshHour > 23) {
             throw new Exception();
           }
-          optionsToUpdate.add(new AbstractMap.SimpleEntry<String, String>(
-              "rank_refresh_hour", optionValue));
+          optionsToUpdate.put("rank_refresh_hour", optionValue);
         }
         if (optionsToUpdate.isEmpty()) {
           throw new Exception();
@@ -102,13 +91,8 @@ public class OptionHandler extends Handler {
         return;
       }
 
-      // Write to database.
-      database.openConnection();
-      for (Map.Entry<String, String> option : optionsToUpdate) {
-        database.addOrUpdateOptions(dataSourceChatId, option.getKey(),
-            option.getValue());
-      }
-      database.closeConnection();
+      // Write to database and cache.
+      bot.getChatOptions().setOptions(dataSourceChatId, optionsToUpdate);
 
       // Send response.
       bot.sendTextMessage(receiverChatId,
@@ -14,7 +14,6 @@ import java.util.ResourceBundle;
 import java.util.TimeZone;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -25,7 +24,9 @@ import org.telegram.telegrambots.meta.api.objects.Message;
 import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
 import com.neoshell.telegram.messageanalysisbot.MessageType;
 import com.neoshell.telegram.messageanalysisbot.User;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
 import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
 
 public class RankHandler extends Handler {
 
@@ -39,7 +40,6 @@ public class RankHandler extends Handler {
   private DatabaseInterface database;
 
   private Options commandOptions;
-  private CommandLineParser commandLineParser;
 
   public RankHandler(MessageAnalysisBot bot, DatabaseInterface database) {
     super(bot);
@@ -50,7 +50,6 @@ public class RankHandler extends Handler {
     commandOptions.addOption("t", "type", true,
         "The type of messages. Valid args: " + Arrays.toString(ArrayUtils
             .removeElement(MessageType.values(), MessageType.UNKNOWN)));
-    commandLineParser = new DefaultParser();
   }
 
   @Override
@@ -65,6 +64,7 @@ public class RankHandler extends Handler {
   }
 
   @Override
+  @SuppressWarnings("try")
   public void handle(long receiverChatId, long dataSourceChatId,
       String[] arguments, Message message, Locale locale) {
     try {
@@ -73,7 +73,7 @@ public class RankHandler extends Handler {
       MessageType type = MessageType.TEXT;
       CommandLine commandLine = null;
       try {
-        commandLine = commandLineParser.parse(commandOptions, arguments);
+        commandLine = new DefaultParser().parse(commandOptions, arguments);
         if (commandLine.hasOption("a")) {
           isTimeRangeDaily = false;
         }
@@ -91,25 +91,35 @@ public class RankHandler extends Handler {
       }
 
       // Query.
-      database.openConnection();
-      TimeZone timeZone = getTimeZone(dataSourceChatId, database);
-      int refreshHour = getRefreshHour(dataSourceChatId);
+      TimeZone timeZone;
       long startEpochSeconds = 0L;
       long endEpochSeconds = Long.MAX_VALUE;
-      if (isTimeRangeDaily) {
-        startEpochSeconds = computeStartTimeSeconds(refreshHour, 0, timeZone);
-        endEpochSeconds = startEpochSeconds + 24 * 3600; // 24h
-      }
-      List<Map.Entry<User, Integer>> rank = database.getRank(dataSourceChatId,
-          startEpochSeconds, endEpochSeconds, type.toString());
-      if (!isTimeRangeDaily && !rank.isEmpty()) {
-        List<com.neoshell.telegram.messageanalysisbot.Message> oldestMessages = database
-            .getMessagesSortedByTime(dataSourceChatId, EnumSet.of(type),
-                /* contentLike= */null, /* limit= */1, /* isOldest= */true,
-                /* isAscending= */true);
-        startEpochSeconds = oldestMessages.get(0).getEpochSeconds();
+      List<Map.Entry<User, Integer>> rank;
+      try (DatabaseSession session = database.openSession()) {
+        timeZone = getTimeZone(dataSourceChatId);
+        int refreshHour = getRefreshHour(dataSourceChatId);
+        if (isTimeRangeDaily) {
+          startEpochSeconds = computeStartTimeSeconds(refreshHour, 0,
+              timeZone);
+          endEpochSeconds = startEpochSeconds + 24 * 3600; // 24h
+        }
+        rank = database.getRank(dataSourceChatId, startEpochSeconds,
+            endEpochSeconds, type.toString());
+        if (!isTimeRangeDaily && !rank.isEmpty()) {
+          // The time of the oldest message of the type. Read messages if the
+          // registry does not cover them all yet.
+          ChatInfo chat = database.getChat(dataSourceChatId, EnumSet.of(type));
+          if (chat != null && chat.isComplete()) {
+            startEpochSeconds = chat.getFirstEpochSeconds();
+          } else {
+            List<com.neoshell.telegram.messageanalysisbot.Message> oldestMessages = database
+                .getMessagesSortedByTime(dataSourceChatId, EnumSet.of(type),
+                    /* contentLike= */null, /* limit= */1, /* isOldest= */true,
+                    /* isAscending= */true);
+            startEpochSeconds = oldestMessages.get(0).getEpochSeconds();
+          }
+        }
       }
-      database.closeConnection();
 
       // Build response.
       ResourceBundle rb = ResourceBundle.getBundle(RESPONSE_RESOURCE_BUNDLE,
@@ -156,7 +166,8 @@ public class RankHandler extends Handler {
   }
 
   private int getRefreshHour(long chatId) throws SQLException {
-    String refreshHourString = database.getOption(chatId, "rank_refresh_hour");
+    String refreshHourString = bot.getChatOptions().getOption(chatId,
+        "rank_refresh_hour");
     return refreshHourString != null ? Integer.parseInt(refreshHourString)
         : DEFAULT_REFRESH_HOUR_OF_DAY;
   }
@@ -1,6 +1,11 @@
 package com.neoshell.telegram.messageanalysisbot.handler;
 
-import java.io.File;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -12,8 +17,9 @@ import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.TimeZone;
 
+import javax.imageio.ImageIO;
+
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -25,7 +31,10 @@ import org.telegram.telegrambots.meta.api.objects.Message;
 
 import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
 import com.neoshell.telegram.messageanalysisbot.User;
+import com.neoshell.telegram.messageanalysisbot.cache.ChartCache;
+import com.neoshell.telegram.messageanalysisbot.cache.ChartKeyBuilder;
 import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
 
 public class TimeStatsHandler extends Handler {
 
@@ -33,6 +42,7 @@ public class TimeStatsHandler extends Handler {
   private static final int MAX_TIME_RANGE_DAYS = 90;
   private static final boolean DEFAULT_NORMALIZATION_OPTION = false;
   private static final int MAX_NUM_USERS = 50;
+  private static final String IMAGE_FILE_NAME = "timestats.png";
 
   private static final String COMMAND_NAME = "timestats";
   private static final String COMMAND_DESCRIPTION = String.format(
@@ -40,16 +50,12 @@ public class TimeStatsHandler extends Handler {
       MAX_NUM_USERS);
 
   private DatabaseInterface database;
-  private String tempDir;
 
   private Options commandOptions;
-  private CommandLineParser commandLineParser;
 
-  public TimeStatsHandler(MessageAnalysisBot bot, DatabaseInterface database,
-      String tempDir) {
+  public TimeStatsHandler(MessageAnalysisBot bot, DatabaseInterface database) {
     super(bot);
     this.database = database;
-    this.tempDir = tempDir;
     commandOptions = new Options();
     commandOptions.addOption("d", "day", true,
         String.format(
@@ -58,7 +64,6 @@ public class TimeStatsHandler extends Handler {
             MAX_TIME_RANGE_DAYS, DEFAULT_TIME_RANGE_DAYS));
     commandOptions.addOption("n", "normalized", false,
         "Set this option if you want to get normalized result.");
-    commandLineParser = new DefaultParser();
   }
 
   @Override
@@ -73,6 +78,7 @@ public class TimeStatsHandler extends Handler {
   }
 
   @Override
+  @SuppressWarnings("try")
   public void handle(long receiverChatId, long dataSourceChatId,
       String[] arguments, Message message, Locale locale) {
     try {
@@ -83,7 +89,7 @@ public class TimeStatsHandler extends Handler {
       boolean isNormalized = DEFAULT_NORMALIZATION_OPTION;
       CommandLine commandLine = null;
       try {
-        commandLine = commandLineParser.parse(commandOptions, arguments);
+        commandLine = new DefaultParser().parse(commandOptions, arguments);
         String dayString = commandLine.getOptionValue("d");
         if (dayString != null) {
           timeRangeDays = Integer.parseInt(dayString);
@@ -103,21 +109,21 @@ public class TimeStatsHandler extends Handler {
       // Query database.
       long startEpochSeconds = getTimeSecondsNDaysAgo(timeRangeDays);
       long endEpochSeconds = Long.MAX_VALUE;
-      database.openConnection();
-      Map<User, int[]> userTimeDistributionMap = database
-          .getTimeDistributionInHour(dataSourceChatId, startEpochSeconds,
-              endEpochSeconds);
+      Map<User, int[]> userTimeDistributionMap;
+      TimeZone timeZone;
+      try (DatabaseSession session = database.openSession()) {
+        userTimeDistributionMap = database.getTimeDistributionInHour(
+            dataSourceChatId, startEpochSeconds, endEpochSeconds);
+        timeZone = getTimeZone(dataSourceChatId);
+      }
       if (userTimeDistributionMap.isEmpty()) {
         bot.sendTextMessage(receiverChatId,
             new MessageFormat(rb.getString("timestats.emptyResult"))
                 .format(new Object[] { timeRangeDays }));
-        database.closeConnection();
         return;
       }
-      TimeZone timeZone = getTimeZone(dataSourceChatId, database);
       int hourOffset = (int) (timeZone.getOffset(System.currentTimeMillis())
           / DateUtils.MILLIS_PER_HOUR);
-      database.closeConnection();
 
       // Make heatmap data.
       List<TimeDistributionInfo> timeDistributionInfoList = new ArrayList<>();
@@ -146,8 +152,9 @@ public class TimeStatsHandler extends Handler {
         timeDistributionInfoList = timeDistributionInfoList.subList(0,
             MAX_NUM_USERS);
       }
-      double[][] heatmapData = new double[timeDistributionInfoList.size()][24];
-      String[] yValues = new String[timeDistributionInfoList.size()];
+      final double[][] heatmapData =
+          new double[timeDistributionInfoList.size()][24];
+      final String[] yValues = new String[timeDistributionInfoList.size()];
       for (int y = 0; y < timeDistributionInfoList.size(); y++) {
         TimeDistributionInfo timeDistributionInfo = timeDistributionInfoList
             .get(y);
@@ -166,30 +173,58 @@ public class TimeStatsHandler extends Handler {
         }
       }
 
-      // Generate image.
-      HeatChart heatmap = new HeatChart(heatmapData);
-      heatmap.setTitle(new MessageFormat(rb.getString("timestats.image.title"))
-          .format(new Object[] { timeRangeDays }));
-      heatmap.setXAxisLabel(
-          new MessageFormat(rb.getString("timestats.image.xAxis"))
-              .format(new Object[] { timeZone.getDisplayName(locale) }));
-      heatmap.setYAxisLabel(rb.getString("timestats.image.yAxis"));
-      heatmap.setYValues(yValues);
-      File imageFile = File.createTempFile(
-          TimeStatsHandler.class.toString() + "_", ".png", new File(tempDir));
-      heatmap.saveToFile(imageFile);
-
-      // Build response.
-      bot.sendPhotoMessage(receiverChatId, imageFile.getAbsolutePath(),
-          /* caption= */null);
-
-      imageFile.delete();
+      final String title = new MessageFormat(
+          rb.getString("timestats.image.title"))
+              .format(new Object[] { timeRangeDays });
+      final String xAxisLabel = new MessageFormat(
+          rb.getString("timestats.image.xAxis"))
+              .format(new Object[] { timeZone.getDisplayName(locale) });
+      final String yAxisLabel = rb.getString("timestats.image.yAxis");
+      ChartKeyBuilder chartKey = new ChartKeyBuilder(COMMAND_NAME).add(title)
+          .add(xAxisLabel).add(yAxisLabel);
+      for (int y = 0; y < heatmapData.length; y++) {
+        chartKey.add(yValues[y]);
+        for (double value : heatmapData[y]) {
+          chartKey.add(value);
+        }
+      }
+
+      // Generate image if needed and build response.
+      bot.sendChartMessage(receiverChatId, chartKey.build(),
+          new ChartCache.Renderer() {
+            @Override
+            public byte[] render() throws Exception {
+              HeatChart heatmap = new HeatChart(heatmapData);
+              heatmap.setTitle(title);
+              heatmap.setXAxisLabel(xAxisLabel);
+              heatmap.setYAxisLabel(yAxisLabel);
+              heatmap.setYValues(yValues);
+              return encodePng(heatmap.getChartImage(/* alpha= */true));
+            }
+          }, IMAGE_FILE_NAME, /* caption= */null);
 
     } catch (Exception e) {
       MessageAnalysisBot.getLogger().severe(ExceptionUtils.getStackTrace(e));
     }
   }
 
+  private byte[] encodePng(Image image) throws IOException {
+    RenderedImage renderedImage;
+    if (image instanceof RenderedImage) {
+      renderedImage = (RenderedImage) image;
+    } else {
+      BufferedImage bufferedImage = new BufferedImage(image.getWidth(null),
+          image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+      Graphics graphics = bufferedImage.getGraphics();
+      graphics.drawImage(image, 0, 0, null);
+      graphics.dispose();
+      renderedImage = bufferedImage;
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ImageIO.write(renderedImage, "png", output);
+    return output.toByteArray();
+  }
+
   private long getTimeSecondsNDaysAgo(int n) {
     Date now = new Date();
     return (now.getTime() - n * DateUtils.MILLIS_PER_DAY)
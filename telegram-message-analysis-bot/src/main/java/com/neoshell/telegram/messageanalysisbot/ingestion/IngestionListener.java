@@ -0,0 +1,21 @@
+package com.neoshell.telegram.messageanalysisbot.ingestion;
+
+import java.util.List;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+
+/**
+ * Gets notified of messages once they are written to database, e.g. to keep
+ * in-memory aggregates up to date.
+ */
+public interface IngestionListener {
+
+  /**
+   * Called on the writer thread, in the order the messages were received.
+   * Keep it fast; the writer does not write the next batch until it returns.
+   *
+   * @param messages
+   */
+  public void onMessagesWritten(List<Message> messages);
+
+}
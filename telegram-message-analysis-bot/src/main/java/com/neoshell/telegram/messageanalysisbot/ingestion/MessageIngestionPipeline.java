@@ -0,0 +1,382 @@
+package com.neoshell.telegram.messageanalysisbot.ingestion;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
+import com.neoshell.telegram.messageanalysisbot.User;
+import com.neoshell.telegram.messageanalysisbot.collection.LongLongHashMap;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+
+/**
+ * Write-behind stage for received messages. Messages are put into a bounded
+ * queue and written to database in batches by a background writer thread. A
+ * batch is flushed when it reaches the batch size or when its oldest message
+ * has waited for the flush interval, whichever comes first.
+ *
+ * When the queue is full, submit() blocks until the writer catches up, which
+ * in turn slows down the polling of new updates.
+ *
+ * Sender profiles rarely change, so the writer remembers a fingerprint of the
+ * last written profile of each user and only writes the changed ones. Changes
+ * are collected and written together every user flush interval.
+ */
+public class MessageIngestionPipeline {
+
+  private static final String WRITER_THREAD_NAME = "message-ingestion-writer";
+  private static final long MIN_RETRY_BACKOFF_MILLIS = 500;
+  private static final long MAX_RETRY_BACKOFF_MILLIS = 30000;
+  // Number of retries on connection failures once shutdown has started.
+  private static final int MAX_SHUTDOWN_RETRIES = 3;
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 60000;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private DatabaseInterface database;
+  private int flushBatchSize;
+  private long flushIntervalMillis;
+  private long userFlushIntervalMillis;
+
+  private List<IngestionListener> listeners = new CopyOnWriteArrayList<>();
+  private BlockingQueue<IngestionRecord> queue;
+  private Thread writerThread;
+  private volatile boolean isShuttingDown = false;
+
+  private AtomicLong numSubmitted = new AtomicLong();
+  private AtomicLong numWritten = new AtomicLong();
+  private AtomicLong numFailed = new AtomicLong();
+  private AtomicLong numFlushes = new AtomicLong();
+  private AtomicLong numUsersWritten = new AtomicLong();
+  private AtomicLong numUsersUnchanged = new AtomicLong();
+
+  // Fields below are only accessed by the writer thread.
+  // Key: user id. Value: fingerprint of the last written profile.
+  private LongLongHashMap writtenUserFingerprints = new LongLongHashMap();
+  // Changed profiles waiting to be written, keyed by user id.
+  private Map<Long, User> pendingUsers = new LinkedHashMap<>();
+  private long lastUserFlushMillis = System.currentTimeMillis();
+
+  public MessageIngestionPipeline(DatabaseInterface database, int queueCapacity,
+      int flushBatchSize, long flushIntervalMillis,
+      long userFlushIntervalMillis) {
+    if (queueCapacity <= 0 || flushBatchSize <= 0 || flushIntervalMillis <= 0
+        || userFlushIntervalMillis <= 0) {
+      throw new IllegalArgumentException(
+          "Queue capacity, flush batch size and flush intervals must be positive.");
+    }
+    this.database = database;
+    this.flushBatchSize = flushBatchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.userFlushIntervalMillis = userFlushIntervalMillis;
+    queue = new ArrayBlockingQueue<>(queueCapacity);
+  }
+
+  public void start() {
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, WRITER_THREAD_NAME);
+    writerThread.start();
+  }
+
+  public void addListener(IngestionListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Queues the message and its sender for writing. Blocks if the queue is full.
+   *
+   * @param message
+   * @param sender
+   * @throws InterruptedException
+   */
+  public void submit(Message message, User sender)
+      throws InterruptedException {
+    if (isShuttingDown) {
+      throw new IllegalStateException(
+          "Ingestion pipeline is shutting down. Message dropped: " + message);
+    }
+    IngestionRecord record = new IngestionRecord(message, sender);
+    if (!queue.offer(record)) {
+      getLogger().warning("Ingestion queue is full ("
+          + queue.size() + "). Waiting for the writer to catch up.");
+      queue.put(record);
+    }
+    numSubmitted.incrementAndGet();
+  }
+
+  /**
+   * Stops accepting new messages, flushes all queued messages and stops the
+   * writer thread.
+   *
+   * @throws InterruptedException
+   */
+  public void shutdown() throws InterruptedException {
+    isShuttingDown = true;
+    if (writerThread != null) {
+      writerThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+      if (writerThread.isAlive()) {
+        getLogger().severe("Ingestion writer did not finish in time. "
+            + queue.size() + " message(s) not written.");
+      }
+    }
+    getLogger().info("Ingestion pipeline stopped. " + getStats());
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  public String getStats() {
+    return "submitted=" + numSubmitted.get() + ", written=" + numWritten.get()
+        + ", failed=" + numFailed.get() + ", flushes=" + numFlushes.get()
+        + ", queued=" + queue.size() + ", usersWritten="
+        + numUsersWritten.get() + ", usersUnchanged="
+        + numUsersUnchanged.get();
+  }
+
+  private void writeLoop() {
+    List<IngestionRecord> batch = new ArrayList<>(flushBatchSize);
+    long deadlineMillis = 0L;
+    while (true) {
+      try {
+        if (batch.isEmpty()) {
+          IngestionRecord first = queue.poll(flushIntervalMillis,
+              TimeUnit.MILLISECONDS);
+          if (first == null) {
+            if (isShuttingDown && queue.isEmpty()) {
+              flushUsers(/* force= */true);
+              return;
+            }
+            flushUsers(/* force= */false);
+            continue;
+          }
+          batch.add(first);
+          deadlineMillis = System.currentTimeMillis() + flushIntervalMillis;
+        }
+        queue.drainTo(batch, flushBatchSize - batch.size());
+        long remainingMillis = deadlineMillis - System.currentTimeMillis();
+        if (batch.size() >= flushBatchSize || remainingMillis <= 0
+            || isShuttingDown) {
+          flush(batch);
+          batch.clear();
+          flushUsers(/* force= */false);
+          continue;
+        }
+        IngestionRecord next = queue.poll(remainingMillis,
+            TimeUnit.MILLISECONDS);
+        if (next != null) {
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // Never leave queued messages behind. Keep going until the queue is
+        // drained in shutdown().
+        getLogger().warning("Ingestion writer interrupted.");
+      } catch (Exception e) {
+        getLogger().severe(ExceptionUtils.getStackTrace(e));
+      }
+    }
+  }
+
+  @SuppressWarnings("try")
+  private void flush(List<IngestionRecord> batch) throws InterruptedException {
+    List<Message> messages = new ArrayList<>(batch.size());
+    for (IngestionRecord record : batch) {
+      messages.add(record.message);
+      collectIfChanged(record.sender);
+    }
+    numFlushes.incrementAndGet();
+    long backoffMillis = MIN_RETRY_BACKOFF_MILLIS;
+    int numRetries = 0;
+    while (true) {
+      try {
+        try (DatabaseSession session = database.openSession()) {
+          database.addMessages(messages);
+        }
+        numWritten.addAndGet(messages.size());
+        notifyListeners(messages);
+        return;
+      } catch (SQLException e) {
+        if (!isConnectionError(e)) {
+          // Probably caused by some bad rows, e.g. duplicated messages. Write
+          // one by one so that the rest of the batch still gets in.
+          getLogger().warning("Batch write failed, falling back to row by row: "
+              + e.getMessage());
+          writeOneByOne(messages);
+          return;
+        }
+        if (isShuttingDown && numRetries >= MAX_SHUTDOWN_RETRIES) {
+          numFailed.addAndGet(messages.size());
+          getLogger().severe("Giving up writing " + messages.size()
+              + " message(s): " + ExceptionUtils.getStackTrace(e));
+          return;
+        }
+        getLogger().warning("Database unavailable, retrying in "
+            + backoffMillis + "ms: " + e.getMessage());
+        Thread.sleep(backoffMillis);
+        backoffMillis = Math.min(backoffMillis * 2, MAX_RETRY_BACKOFF_MILLIS);
+        numRetries++;
+      }
+    }
+  }
+
+  @SuppressWarnings("try")
+  private void writeOneByOne(List<Message> messages) {
+    int numProcessed = 0;
+    try (DatabaseSession session = database.openSession()) {
+      for (Message message : messages) {
+        numProcessed++;
+        try {
+          database.addMessage(message);
+          numWritten.incrementAndGet();
+          notifyListeners(Collections.singletonList(message));
+        } catch (SQLException e) {
+          numFailed.incrementAndGet();
+          getLogger().severe("Failed to write " + message + ": "
+              + e.getMessage());
+        }
+      }
+    } catch (SQLException e) {
+      numFailed.addAndGet(messages.size() - numProcessed);
+      getLogger().severe(ExceptionUtils.getStackTrace(e));
+    }
+  }
+
+  private void notifyListeners(List<Message> messages) {
+    for (IngestionListener listener : listeners) {
+      try {
+        listener.onMessagesWritten(messages);
+      } catch (Exception e) {
+        getLogger().severe(ExceptionUtils.getStackTrace(e));
+      }
+    }
+  }
+
+  // Queues the profile for writing unless it is the same as the written one.
+  private void collectIfChanged(User user) {
+    long fingerprint = fingerprint(user);
+    if (!pendingUsers.containsKey(user.getUserId())
+        && writtenUserFingerprints.containsKey(user.getUserId())
+        && writtenUserFingerprints.get(user.getUserId(), 0L) == fingerprint) {
+      numUsersUnchanged.incrementAndGet();
+      return;
+    }
+    // Keep the latest profile if it changed multiple times.
+    pendingUsers.put(user.getUserId(), user);
+  }
+
+  /**
+   * Writes the changed profiles if the user flush interval has passed or there
+   * are enough of them.
+   *
+   * @param force
+   *          Writes regardless of the interval, e.g. on shutdown.
+   */
+  @SuppressWarnings("try")
+  private void flushUsers(boolean force) {
+    long nowMillis = System.currentTimeMillis();
+    if (pendingUsers.isEmpty() || (!force
+        && pendingUsers.size() < flushBatchSize
+        && nowMillis - lastUserFlushMillis < userFlushIntervalMillis)) {
+      return;
+    }
+    lastUserFlushMillis = nowMillis;
+    try {
+      try (DatabaseSession session = database.openSession()) {
+        database.addOrUpdateUsers(pendingUsers.values());
+      }
+      for (User user : pendingUsers.values()) {
+        writtenUserFingerprints.put(user.getUserId(), fingerprint(user));
+      }
+      numUsersWritten.addAndGet(pendingUsers.size());
+      pendingUsers.clear();
+    } catch (SQLException e) {
+      if (isConnectionError(e) && !force) {
+        // Keep them and try again next interval.
+        getLogger().warning("Failed to write " + pendingUsers.size()
+            + " user(s), will retry: " + e.getMessage());
+        return;
+      }
+      writeUsersOneByOne();
+    }
+  }
+
+  @SuppressWarnings("try")
+  private void writeUsersOneByOne() {
+    try (DatabaseSession session = database.openSession()) {
+      for (User user : pendingUsers.values()) {
+        try {
+          database.addOrUpdateUser(user);
+          writtenUserFingerprints.put(user.getUserId(), fingerprint(user));
+          numUsersWritten.incrementAndGet();
+        } catch (SQLException e) {
+          getLogger().severe("Failed to write " + user + ": "
+              + e.getMessage());
+        }
+      }
+    } catch (SQLException e) {
+      getLogger().severe(ExceptionUtils.getStackTrace(e));
+    }
+    pendingUsers.clear();
+  }
+
+  // 64-bit FNV-1a hash of the profile fields.
+  private static long fingerprint(User user) {
+    long hash = FNV_OFFSET_BASIS;
+    hash = fingerprint(hash, user.getUserName());
+    hash = fingerprint(hash, user.getFirstName());
+    hash = fingerprint(hash, user.getLastName());
+    return hash;
+  }
+
+  private static long fingerprint(long hash, String field) {
+    if (field == null) {
+      // Distinguishes null from empty string.
+      return (hash ^ 0xff) * FNV_PRIME;
+    }
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+      hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+    // Field separator.
+    return (hash ^ 0xfe) * FNV_PRIME;
+  }
+
+  // SQL state class 08 is connection exception.
+  private boolean isConnectionError(SQLException e) {
+    String sqlState = e.getSQLState();
+    return sqlState != null && sqlState.startsWith("08");
+  }
+
+  private Logger getLogger() {
+    return MessageAnalysisBot.getLogger();
+  }
+
+  private static class IngestionRecord {
+    private Message message;
+    private User sender;
+
+    public IngestionRecord(Message message, User sender) {
+      this.message = message;
+      this.sender = sender;
+    }
+  }
+
+}
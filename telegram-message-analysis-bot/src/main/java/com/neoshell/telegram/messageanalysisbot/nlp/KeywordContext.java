@@ -0,0 +1,10 @@
+package com.neoshell.telegram.messageanalysisbot.nlp;
+
+/**
+ * What an NLP engine derives from the global word count of a chat for scoring
+ * keywords, e.g. the rarity of each word. It only depends on the counts, so it
+ * can be reused until they change. Only the engine which created it can use
+ * it.
+ */
+public interface KeywordContext {
+}
@@ -0,0 +1,81 @@
+package com.neoshell.telegram.messageanalysisbot.nlp;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.neoshell.telegram.messageanalysisbot.cache.ExpiringLruCache;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+
+/**
+ * Caches the keyword context of each chat, created from its all-time word
+ * totals. Each get checks the version of the totals, a single row read, and
+ * the context is only created again after they change, e.g. by a WordCounter
+ * run on another node.
+ */
+public class KeywordContextCache {
+
+  private DatabaseInterface database;
+  private NLPInterface nlpUtil;
+  private int numWords;
+  private ExpiringLruCache<Long, VersionedContext> cache;
+  private AtomicLong numReloads = new AtomicLong();
+
+  /**
+   * @param database
+   * @param nlpUtil
+   * @param numWords
+   *          The number of most frequent words of the chat used.
+   * @param maxChats
+   *          Max number of chats to keep in memory.
+   */
+  public KeywordContextCache(DatabaseInterface database, NLPInterface nlpUtil,
+      int numWords, int maxChats) {
+    this.database = database;
+    this.nlpUtil = nlpUtil;
+    this.numWords = numWords;
+    cache = new ExpiringLruCache<>(maxChats, 0L);
+  }
+
+  /**
+   * @param chatId
+   * @return The keyword context of the current word totals of the chat.
+   * @throws Exception
+   */
+  @SuppressWarnings("try")
+  public KeywordContext get(long chatId) throws Exception {
+    long version;
+    try (DatabaseSession session = database.openSession()) {
+      version = database.getWatermark(chatId, ChatInfo.WORD_TOTALS_VERSION);
+    }
+    VersionedContext cached = cache.get(chatId);
+    if (cached != null && cached.version == version) {
+      return cached.context;
+    }
+    // Totals newer than the version read are only reloaded once more.
+    Map<String, Long> wordTotals;
+    try (DatabaseSession session = database.openSession()) {
+      wordTotals = database.getWordTotals(chatId, numWords);
+    }
+    KeywordContext context = nlpUtil.createKeywordContext(wordTotals);
+    cache.put(chatId, new VersionedContext(version, context));
+    numReloads.incrementAndGet();
+    return context;
+  }
+
+  public String getStats() {
+    return cache.getStats() + ", reloads=" + numReloads.get();
+  }
+
+  private static class VersionedContext {
+    private long version;
+    private KeywordContext context;
+
+    public VersionedContext(long version, KeywordContext context) {
+      this.version = version;
+      this.context = context;
+    }
+  }
+
+}
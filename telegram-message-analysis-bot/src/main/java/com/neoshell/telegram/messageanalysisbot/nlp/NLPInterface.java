@@ -30,9 +30,33 @@ public interface NLPInterface {
    * @param globalWordCount
    *          Used for computing keyword score.
    * @return
+   * @throws Exception
    */
   public List<KeywordInfo> computeKeywords(List<Message> messages,
-      Map<String, Long> globalWordCount);
+      Map<String, Long> globalWordCount) throws Exception;
+
+  /**
+   * Prepares the global word count of a chat for computeKeywords().
+   * 
+   * @param globalWordCount
+   * @return Reusable while the counts are unchanged.
+   * @throws Exception
+   */
+  public KeywordContext createKeywordContext(
+      Map<String, Long> globalWordCount) throws Exception;
+
+  /**
+   * Same as computeKeywords() with the global word count, without preparing
+   * it again.
+   * 
+   * @param messages
+   * @param context
+   *          Created by this engine.
+   * @return
+   * @throws Exception
+   */
+  public List<KeywordInfo> computeKeywords(List<Message> messages,
+      KeywordContext context) throws Exception;
 
   /**
    * Given a list of texts, counts the occurrence of each word.
@@ -44,8 +68,14 @@ public interface NLPInterface {
    *          The max number of words you want to keep in the result.
    * @return A list of map entry, where the key is word and the value is count.
    *         Sorted by count in descending order.
+   * @throws Exception
    */
   public List<Map.Entry<String, Long>> countWords(List<String> texts,
-      boolean countStopWords, int limit);
+      boolean countStopWords, int limit) throws Exception;
+
+  /**
+   * @return Runtime statistics for debug users.
+   */
+  public String getStats();
 
 }
@@ -5,6 +5,20 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
 
 import com.neoshell.nlp.client.NLPUtilClient;
 import com.neoshell.nlp.core.NLPContext;
@@ -12,9 +26,18 @@ import com.neoshell.nlp.core.WordInfo;
 import com.neoshell.nlp.messaging.Conversation;
 import com.neoshell.nlp.messaging.Message;
 import com.neoshell.nlp.messaging.MessageAnalysisContext;
+import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
 import com.neoshell.telegram.messageanalysisbot.MessageType;
 import com.neoshell.telegram.messageanalysisbot.handler.KeywordInfo;
 
+/**
+ * Keeps a fixed pool of long-lived clients to the NLP util server, created in
+ * initialize(). Each client serves one call at a time, so the pool size also
+ * caps the number of concurrent calls. Every attempt has a deadline, which
+ * includes waiting for a free client. Failed attempts are retried with
+ * exponential backoff. A client is reconnected after a timeout or repeated
+ * failures.
+ */
 public class NLPUtilClientWrapper implements NLPInterface {
 
   // TODO: load from config.
@@ -25,38 +48,114 @@ public class NLPUtilClientWrapper implements NLPInterface {
   private static final int DEFAULT_COMMON_KEYWORD_THRESHOLD = 1;
   private static final int DEFAULT_KEYWORDS_LIMIT = 10;
 
+  // A client is reconnected after failing this many calls in a row.
+  private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
   private String nlpUtilServerHost;
   private int nlpUtilServerPort;
-  private NLPUtilClient nlpUtilClient;
+  private int numClients;
+  private long callTimeoutMillis;
+  private int maxAttempts;
+  private long retryBackoffMillis;
+
+  private BlockingQueue<PooledClient> idleClients;
+  // Runs the blocking calls so that they can be abandoned at the deadline.
+  private ExecutorService callExecutor;
 
-  public NLPUtilClientWrapper(String nlpUtilServerHost, int nlpUtilServerPort) {
+  private AtomicLong numCalls = new AtomicLong();
+  private AtomicLong numFailedCalls = new AtomicLong();
+  private AtomicLong numRetries = new AtomicLong();
+  private AtomicLong numTimeouts = new AtomicLong();
+  private AtomicLong numReconnects = new AtomicLong();
+  private AtomicLong totalCallMillis = new AtomicLong();
+  private volatile String lastError = null;
+  private volatile long lastErrorMillis = 0L;
+  private volatile long lastSuccessMillis = 0L;
+
+  /**
+   * @param nlpUtilServerHost
+   * @param nlpUtilServerPort
+   * @param numClients
+   *          The number of connections, and the max number of concurrent
+   *          calls.
+   * @param callTimeoutMillis
+   *          The deadline of each attempt.
+   * @param maxAttempts
+   * @param retryBackoffMillis
+   *          The wait before the first retry. Doubled for each retry after it.
+   */
+  public NLPUtilClientWrapper(String nlpUtilServerHost, int nlpUtilServerPort,
+      int numClients, long callTimeoutMillis, int maxAttempts,
+      long retryBackoffMillis) {
+    if (numClients <= 0 || callTimeoutMillis <= 0 || maxAttempts <= 0
+        || retryBackoffMillis < 0) {
+      throw new IllegalArgumentException("Number of clients, call timeout and "
+          + "max attempts must be positive.");
+    }
     this.nlpUtilServerHost = nlpUtilServerHost;
     this.nlpUtilServerPort = nlpUtilServerPort;
+    this.numClients = numClients;
+    this.callTimeoutMillis = callTimeoutMillis;
+    this.maxAttempts = maxAttempts;
+    this.retryBackoffMillis = retryBackoffMillis;
   }
 
   @Override
   public void initialize() throws Exception {
-    nlpUtilClient = new NLPUtilClient(nlpUtilServerHost, nlpUtilServerPort);
+    final AtomicInteger threadIndex = new AtomicInteger();
+    callExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r,
+            "nlp-call-" + threadIndex.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    idleClients = new ArrayBlockingQueue<>(numClients);
+    for (int i = 0; i < numClients; i++) {
+      idleClients.add(new PooledClient(
+          new NLPUtilClient(nlpUtilServerHost, nlpUtilServerPort)));
+    }
   }
 
   @Override
   public void shutdown() throws Exception {
-    nlpUtilClient.shutdown();
+    callExecutor.shutdownNow();
+    PooledClient pooledClient;
+    while ((pooledClient = idleClients.poll()) != null) {
+      pooledClient.client.shutdown();
+    }
   }
 
   @Override
   public List<KeywordInfo> computeKeywords(
       List<com.neoshell.telegram.messageanalysisbot.Message> messages,
-      Map<String, Long> globalWordCount) {
-    NLPContext nlpContext = nlpUtilClient.generateNLPContext(globalWordCount);
-    MessageAnalysisContext messageAnalysisContext = MessageAnalysisContext
-        .newBuilder().setNlpContext(nlpContext)
-        .setTimeBucketSeconds(DEFAULT_KEYWORDS_TIME_BUCKET_SECONDS)
-        .setCommonKeywordThreshold(DEFAULT_COMMON_KEYWORD_THRESHOLD)
-        .setKeywordLimit(DEFAULT_KEYWORDS_LIMIT)
-        .setMinMessagesPerConversation(DEFAULT_MIN_NUM_MESSAGES_PER_TIME_BUCKET)
-        .build();
-    List<Message> nlpMessages = new ArrayList<>();
+      Map<String, Long> globalWordCount) throws Exception {
+    return computeKeywords(messages, createKeywordContext(globalWordCount));
+  }
+
+  @Override
+  public KeywordContext createKeywordContext(
+      final Map<String, Long> globalWordCount) throws Exception {
+    return new ServerKeywordContext(call(new ClientCall<NLPContext>() {
+      @Override
+      public NLPContext call(NLPUtilClient client) throws Exception {
+        return client.generateNLPContext(globalWordCount);
+      }
+    }));
+  }
+
+  @Override
+  public List<KeywordInfo> computeKeywords(
+      List<com.neoshell.telegram.messageanalysisbot.Message> messages,
+      KeywordContext context) throws Exception {
+    if (!(context instanceof ServerKeywordContext)) {
+      throw new IllegalArgumentException(
+          "Keyword context is not created by this engine.");
+    }
+    final NLPContext nlpContext = ((ServerKeywordContext) context).nlpContext;
+    final List<Message> nlpMessages = new ArrayList<>();
     for (com.neoshell.telegram.messageanalysisbot.Message m : messages) {
       if (m.getType() == MessageType.TEXT) {
         Message nlpMessage = Message.newBuilder().setId(m.getMessageId())
@@ -65,8 +164,24 @@ public class NLPUtilClientWrapper implements NLPInterface {
         nlpMessages.add(nlpMessage);
       }
     }
-    List<Conversation> conversations = nlpUtilClient
-        .mergeMessagesAndComputeKeywords(nlpMessages, messageAnalysisContext);
+    List<Conversation> conversations = call(
+        new ClientCall<List<Conversation>>() {
+          @Override
+          public List<Conversation> call(NLPUtilClient client)
+              throws Exception {
+            MessageAnalysisContext messageAnalysisContext =
+                MessageAnalysisContext.newBuilder().setNlpContext(nlpContext)
+                    .setTimeBucketSeconds(DEFAULT_KEYWORDS_TIME_BUCKET_SECONDS)
+                    .setCommonKeywordThreshold(
+                        DEFAULT_COMMON_KEYWORD_THRESHOLD)
+                    .setKeywordLimit(DEFAULT_KEYWORDS_LIMIT)
+                    .setMinMessagesPerConversation(
+                        DEFAULT_MIN_NUM_MESSAGES_PER_TIME_BUCKET)
+                    .build();
+            return client.mergeMessagesAndComputeKeywords(nlpMessages,
+                messageAnalysisContext);
+          }
+        });
     List<KeywordInfo> keywordInfoList = new ArrayList<>();
     for (Conversation conversation : conversations) {
       if (conversation.getMessageCount() == 0) {
@@ -86,10 +201,14 @@ public class NLPUtilClientWrapper implements NLPInterface {
   }
 
   @Override
-  public List<Entry<String, Long>> countWords(List<String> texts,
-      boolean countStopWords, int limit) {
-    List<WordInfo> wordInfoList = nlpUtilClient.countWords(texts,
-        countStopWords, limit);
+  public List<Entry<String, Long>> countWords(final List<String> texts,
+      final boolean countStopWords, final int limit) throws Exception {
+    List<WordInfo> wordInfoList = call(new ClientCall<List<WordInfo>>() {
+      @Override
+      public List<WordInfo> call(NLPUtilClient client) throws Exception {
+        return client.countWords(texts, countStopWords, limit);
+      }
+    });
     List<Map.Entry<String, Long>> wordCount = new ArrayList<>();
     for (WordInfo wordInfo : wordInfoList) {
       wordCount.add(new AbstractMap.SimpleEntry<String, Long>(
@@ -98,4 +217,146 @@ public class NLPUtilClientWrapper implements NLPInterface {
     return wordCount;
   }
 
+  @Override
+  public String getStats() {
+    long calls = numCalls.get();
+    long nowMillis = System.currentTimeMillis();
+    int numUnhealthy = 0;
+    for (PooledClient pooledClient : idleClients) {
+      if (pooledClient.numConsecutiveFailures > 0) {
+        numUnhealthy++;
+      }
+    }
+    return "clients=" + numClients + ", idle=" + idleClients.size()
+        + ", failingIdle=" + numUnhealthy + ", calls=" + calls + ", failed="
+        + numFailedCalls.get() + ", retries=" + numRetries.get()
+        + ", timeouts=" + numTimeouts.get() + ", reconnects="
+        + numReconnects.get() + ", avgCallMillis="
+        + (calls == 0 ? 0 : totalCallMillis.get() / calls)
+        + ", lastSuccessSecondsAgo="
+        + (lastSuccessMillis == 0 ? "never"
+            : (nowMillis - lastSuccessMillis) / 1000)
+        + (lastError == null ? ""
+            : ", lastError=\"" + lastError + "\" "
+                + (nowMillis - lastErrorMillis) / 1000 + "s ago");
+  }
+
+  // Tries the call up to maxAttempts times. Throws the last failure.
+  private <T> T call(ClientCall<T> clientCall) throws Exception {
+    numCalls.incrementAndGet();
+    long startMillis = System.currentTimeMillis();
+    Exception lastException = null;
+    try {
+      for (int attempt = 0; attempt < maxAttempts; attempt++) {
+        if (attempt > 0) {
+          numRetries.incrementAndGet();
+          Thread.sleep(retryBackoffMillis << Math.min(attempt - 1, 16));
+        }
+        try {
+          T result = callOnce(clientCall);
+          lastSuccessMillis = System.currentTimeMillis();
+          return result;
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          lastException = e;
+          lastError = e.toString();
+          lastErrorMillis = System.currentTimeMillis();
+          MessageAnalysisBot.getLogger().warning("NLP call attempt "
+              + (attempt + 1) + " failed: " + ExceptionUtils.getStackTrace(e));
+        }
+      }
+      numFailedCalls.incrementAndGet();
+      throw lastException;
+    } finally {
+      totalCallMillis.addAndGet(System.currentTimeMillis() - startMillis);
+    }
+  }
+
+  // Waits for a free client and the call together for at most
+  // callTimeoutMillis.
+  private <T> T callOnce(final ClientCall<T> clientCall) throws Exception {
+    long deadlineMillis = System.currentTimeMillis() + callTimeoutMillis;
+    final PooledClient pooledClient = idleClients.poll(callTimeoutMillis,
+        TimeUnit.MILLISECONDS);
+    if (pooledClient == null) {
+      numTimeouts.incrementAndGet();
+      throw new TimeoutException("All NLP clients are busy.");
+    }
+    boolean isBroken = false;
+    try {
+      Future<T> future = callExecutor.submit(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          return clientCall.call(pooledClient.client);
+        }
+      });
+      try {
+        T result = future.get(
+            Math.max(1L, deadlineMillis - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS);
+        pooledClient.numConsecutiveFailures = 0;
+        return result;
+      } catch (TimeoutException e) {
+        future.cancel(/* mayInterruptIfRunning= */true);
+        numTimeouts.incrementAndGet();
+        isBroken = true;
+        throw new TimeoutException("NLP call did not finish in "
+            + callTimeoutMillis + " ms.");
+      } catch (InterruptedException e) {
+        future.cancel(/* mayInterruptIfRunning= */true);
+        isBroken = true;
+        throw e;
+      } catch (ExecutionException e) {
+        isBroken = ++pooledClient.numConsecutiveFailures
+            >= MAX_CONSECUTIVE_FAILURES;
+        Throwable cause = e.getCause();
+        throw cause instanceof Exception ? (Exception) cause : e;
+      }
+    } finally {
+      idleClients.add(isBroken ? reconnect(pooledClient) : pooledClient);
+    }
+  }
+
+  // The old client may still be busy with an abandoned call, so it is shut
+  // down in the background.
+  private PooledClient reconnect(final PooledClient pooledClient) {
+    numReconnects.incrementAndGet();
+    callExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          pooledClient.client.shutdown();
+        } catch (Exception e) {
+          MessageAnalysisBot.getLogger()
+              .warning(ExceptionUtils.getStackTrace(e));
+        }
+      }
+    });
+    return new PooledClient(
+        new NLPUtilClient(nlpUtilServerHost, nlpUtilServerPort));
+  }
+
+  private static class ServerKeywordContext implements KeywordContext {
+    private NLPContext nlpContext;
+
+    public ServerKeywordContext(NLPContext nlpContext) {
+      this.nlpContext = nlpContext;
+    }
+  }
+
+  private interface ClientCall<T> {
+    public T call(NLPUtilClient client) throws Exception;
+  }
+
+  private static class PooledClient {
+    private NLPUtilClient client;
+    // Only updated by the caller holding the client.
+    private volatile int numConsecutiveFailures = 0;
+
+    public PooledClient(NLPUtilClient client) {
+      this.client = client;
+    }
+  }
+
 }
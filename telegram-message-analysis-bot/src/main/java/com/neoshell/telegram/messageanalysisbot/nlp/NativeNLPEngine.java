@@ -0,0 +1,350 @@
+package com.neoshell.telegram.messageanalysisbot.nlp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.collection.ObjectLongHashMap;
+import com.neoshell.telegram.messageanalysisbot.handler.KeywordInfo;
+
+/**
+ * Counts words and computes keywords in process, without the NLP util server.
+ * Work is split over the common fork/join pool.
+ *
+ * Keywords: text messages are grouped into fixed time buckets. A word scores
+ * its count in the bucket times its rarity in the chat history (the global
+ * word count). Adjacent buckets sharing enough keywords are merged into one
+ * conversation, and conversations with too few messages are dropped.
+ */
+public class NativeNLPEngine implements NLPInterface {
+
+  // Same as the defaults of the NLP util server calls.
+  private static final int DEFAULT_KEYWORDS_TIME_BUCKET_SECONDS = 600;
+  private static final int DEFAULT_MIN_NUM_MESSAGES_PER_TIME_BUCKET = 15;
+  private static final int DEFAULT_COMMON_KEYWORD_THRESHOLD = 1;
+  private static final int DEFAULT_KEYWORDS_LIMIT = 10;
+  // Words seen fewer times in a conversation are never keywords.
+  private static final int MIN_KEYWORD_COUNT = 2;
+  // Texts counted by one fork/join task.
+  private static final int TEXTS_PER_TASK = 2048;
+
+  private WordTokenizer tokenizer;
+
+  private AtomicLong numCalls = new AtomicLong();
+  private AtomicLong numTexts = new AtomicLong();
+  private AtomicLong totalCallMillis = new AtomicLong();
+
+  @Override
+  public void initialize() throws Exception {
+    tokenizer = new WordTokenizer();
+  }
+
+  @Override
+  public void shutdown() throws Exception {
+  }
+
+  @Override
+  public List<KeywordInfo> computeKeywords(List<Message> messages,
+      Map<String, Long> globalWordCount) {
+    return computeKeywords(messages, createKeywordContext(globalWordCount));
+  }
+
+  @Override
+  public KeywordContext createKeywordContext(
+      Map<String, Long> globalWordCount) {
+    return new KeywordScorer(globalWordCount);
+  }
+
+  @Override
+  public List<KeywordInfo> computeKeywords(List<Message> messages,
+      KeywordContext context) {
+    if (!(context instanceof KeywordScorer)) {
+      throw new IllegalArgumentException(
+          "Keyword context is not created by this engine.");
+    }
+    KeywordScorer scorer = (KeywordScorer) context;
+    long startMillis = System.currentTimeMillis();
+    List<Message> textMessages = new ArrayList<>();
+    for (Message message : messages) {
+      if (message.getType() == MessageType.TEXT
+          && message.getContent() != null) {
+        textMessages.add(message);
+      }
+    }
+    Collections.sort(textMessages, new Comparator<Message>() {
+      @Override
+      public int compare(Message o1, Message o2) {
+        return Long.compare(o1.getEpochSeconds(), o2.getEpochSeconds());
+      }
+    });
+
+    // Group into time buckets and count each one.
+    List<Conversation> buckets = new ArrayList<>();
+    int start = 0;
+    for (int i = 1; i <= textMessages.size(); i++) {
+      if (i == textMessages.size() || getBucketIndex(textMessages.get(i))
+          != getBucketIndex(textMessages.get(start))) {
+        buckets.add(new Conversation(textMessages.subList(start, i),
+            getBucketIndex(textMessages.get(start))));
+        start = i;
+      }
+    }
+    new BucketCountTask(buckets, 0, buckets.size()).invoke();
+
+    // Merge adjacent buckets on the same topic.
+    List<Conversation> conversations = new ArrayList<>();
+    Conversation current = null;
+    for (Conversation bucket : buckets) {
+      List<String> keywords = scorer.getKeywords(bucket.counts);
+      if (current != null
+          && bucket.firstBucketIndex - current.lastBucketIndex <= 1
+          && countCommon(current.keywords,
+              keywords) >= DEFAULT_COMMON_KEYWORD_THRESHOLD) {
+        current.merge(bucket);
+        current.keywords = scorer.getKeywords(current.counts);
+        continue;
+      }
+      if (current != null) {
+        conversations.add(current);
+      }
+      current = bucket;
+      current.keywords = keywords;
+    }
+    if (current != null) {
+      conversations.add(current);
+    }
+
+    List<KeywordInfo> keywordInfoList = new ArrayList<>();
+    for (Conversation conversation : conversations) {
+      if (conversation.messages
+          .size() < DEFAULT_MIN_NUM_MESSAGES_PER_TIME_BUCKET
+          || conversation.keywords.isEmpty()) {
+        continue;
+      }
+      Message first = conversation.messages.get(0);
+      Message last = conversation.messages
+          .get(conversation.messages.size() - 1);
+      keywordInfoList.add(new KeywordInfo(first.getEpochSeconds(),
+          last.getEpochSeconds(), first.getMessageId(),
+          conversation.keywords));
+    }
+    recordCall(textMessages.size(), startMillis);
+    return keywordInfoList;
+  }
+
+  @Override
+  public List<Map.Entry<String, Long>> countWords(List<String> texts,
+      boolean countStopWords, int limit) {
+    long startMillis = System.currentTimeMillis();
+    ObjectLongHashMap<String> counts = new TextCountTask(texts, 0,
+        texts.size(), countStopWords).invoke();
+    List<Map.Entry<String, Long>> wordCount = getTopWords(counts, limit);
+    recordCall(texts.size(), startMillis);
+    return wordCount;
+  }
+
+  @Override
+  public String getStats() {
+    long calls = numCalls.get();
+    return "engine=native, calls=" + calls + ", texts=" + numTexts.get()
+        + ", avgCallMillis="
+        + (calls == 0 ? 0 : totalCallMillis.get() / calls);
+  }
+
+  /**
+   * @param counts
+   * @param limit
+   * @return The most frequent words, sorted by count in descending order. Ties
+   *         are broken by the word.
+   */
+  static List<Map.Entry<String, Long>> getTopWords(
+      ObjectLongHashMap<String> counts, int limit) {
+    final TopWords topWords = new TopWords(limit);
+    counts.forEachEntry(new ObjectLongHashMap.EntryVisitor<String>() {
+      @Override
+      public void visit(String word, long count) {
+        topWords.offer(word, count);
+      }
+    });
+    return topWords.toList();
+  }
+
+  private void recordCall(int numTexts, long startMillis) {
+    numCalls.incrementAndGet();
+    this.numTexts.addAndGet(numTexts);
+    totalCallMillis.addAndGet(System.currentTimeMillis() - startMillis);
+  }
+
+  private static long getBucketIndex(Message message) {
+    return Math.floorDiv(message.getEpochSeconds(),
+        (long) DEFAULT_KEYWORDS_TIME_BUCKET_SECONDS);
+  }
+
+  private static int countCommon(List<String> a, List<String> b) {
+    Set<String> set = new HashSet<>(a);
+    int count = 0;
+    for (String word : b) {
+      if (set.contains(word)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // Immutable, so it can be shared by concurrent calls.
+  private static class KeywordScorer implements KeywordContext {
+    private Map<String, Long> globalWordCount;
+    private double logTotal;
+
+    public KeywordScorer(Map<String, Long> globalWordCount) {
+      this.globalWordCount = globalWordCount;
+      long total = 0L;
+      for (long count : globalWordCount.values()) {
+        total += count;
+      }
+      logTotal = Math.log(total + 1.0);
+    }
+
+    // Returns the best scored words, highest first.
+    public List<String> getKeywords(ObjectLongHashMap<String> counts) {
+      final ObjectLongHashMap<String> scores = new ObjectLongHashMap<>();
+      counts.forEachEntry(new ObjectLongHashMap.EntryVisitor<String>() {
+        @Override
+        public void visit(String word, long count) {
+          if (count >= MIN_KEYWORD_COUNT) {
+            // Scaled to keep the order of fractional scores.
+            scores.put(word, Math.round(count * getRarity(word) * 1e6));
+          }
+        }
+      });
+      List<String> keywords = new ArrayList<>();
+      for (Map.Entry<String, Long> entry : getTopWords(scores,
+          DEFAULT_KEYWORDS_LIMIT)) {
+        keywords.add(entry.getKey());
+      }
+      return keywords;
+    }
+
+    // 1 plus the inverse document frequency against the chat history.
+    private double getRarity(String word) {
+      Long globalCount = globalWordCount.get(word);
+      return 1.0 + logTotal
+          - Math.log((globalCount == null ? 0L : globalCount) + 1.0);
+    }
+  }
+
+  private class Conversation {
+    private List<Message> messages;
+    private long firstBucketIndex;
+    private long lastBucketIndex;
+    private ObjectLongHashMap<String> counts;
+    private List<String> keywords;
+
+    public Conversation(List<Message> messages, long bucketIndex) {
+      this.messages = messages;
+      firstBucketIndex = bucketIndex;
+      lastBucketIndex = bucketIndex;
+    }
+
+    public void count() {
+      counts = new ObjectLongHashMap<>();
+      for (Message message : messages) {
+        tokenizer.countWords(message.getContent(),
+            /* countStopWords= */false, counts);
+      }
+    }
+
+    public void merge(Conversation next) {
+      List<Message> merged = new ArrayList<>(messages);
+      merged.addAll(next.messages);
+      messages = merged;
+      lastBucketIndex = next.lastBucketIndex;
+      counts.addAll(next.counts);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class BucketCountTask extends RecursiveAction {
+    private List<Conversation> buckets;
+    private int start;
+    private int end;
+
+    public BucketCountTask(List<Conversation> buckets, int start, int end) {
+      this.buckets = buckets;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      int numMessages = 0;
+      for (int i = start; i < end; i++) {
+        numMessages += buckets.get(i).messages.size();
+      }
+      if (end - start <= 1 || numMessages <= TEXTS_PER_TASK) {
+        for (int i = start; i < end; i++) {
+          buckets.get(i).count();
+        }
+        return;
+      }
+      int middle = (start + end) >>> 1;
+      invokeAll(new BucketCountTask(buckets, start, middle),
+          new BucketCountTask(buckets, middle, end));
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class TextCountTask
+      extends RecursiveTask<ObjectLongHashMap<String>> {
+    private List<String> texts;
+    private int start;
+    private int end;
+    private boolean countStopWords;
+
+    public TextCountTask(List<String> texts, int start, int end,
+        boolean countStopWords) {
+      this.texts = texts;
+      this.start = start;
+      this.end = end;
+      this.countStopWords = countStopWords;
+    }
+
+    @Override
+    protected ObjectLongHashMap<String> compute() {
+      if (end - start <= TEXTS_PER_TASK) {
+        ObjectLongHashMap<String> counts = new ObjectLongHashMap<>();
+        for (int i = start; i < end; i++) {
+          String text = texts.get(i);
+          if (text != null) {
+            tokenizer.countWords(text, countStopWords, counts);
+          }
+        }
+        return counts;
+      }
+      int middle = (start + end) >>> 1;
+      TextCountTask left = new TextCountTask(texts, start, middle,
+          countStopWords);
+      left.fork();
+      ObjectLongHashMap<String> right = new TextCountTask(texts, middle, end,
+          countStopWords).compute();
+      ObjectLongHashMap<String> counts = left.join();
+      // Add the smaller map into the larger one.
+      if (counts.size() < right.size()) {
+        right.addAll(counts);
+        return right;
+      }
+      counts.addAll(right);
+      return counts;
+    }
+  }
+
+}
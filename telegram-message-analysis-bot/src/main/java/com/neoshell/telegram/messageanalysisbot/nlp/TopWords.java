@@ -0,0 +1,62 @@
+package com.neoshell.telegram.messageanalysisbot.nlp;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the most frequent words offered to it. Words are ordered by count in
+ * descending order, and ties by the word, so the result does not depend on
+ * the order words are offered in. Not thread-safe.
+ */
+public class TopWords {
+
+  // Ascending: a smaller count, or the same count and a later word, is less.
+  private static final Comparator<Map.Entry<String, Long>> WORD_COUNT_ORDER =
+      new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> o1,
+            Map.Entry<String, Long> o2) {
+          return compareWordCount(o1.getKey(), o1.getValue(), o2);
+        }
+      };
+
+  private int limit;
+  // The least kept word on top.
+  private PriorityQueue<Map.Entry<String, Long>> heap;
+
+  public TopWords(int limit) {
+    this.limit = limit;
+    heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)),
+        WORD_COUNT_ORDER);
+  }
+
+  public void offer(String word, long count) {
+    if (heap.size() < limit) {
+      heap.add(new AbstractMap.SimpleEntry<String, Long>(word, count));
+    } else if (limit > 0 && compareWordCount(word, count, heap.peek()) > 0) {
+      heap.poll();
+      heap.add(new AbstractMap.SimpleEntry<String, Long>(word, count));
+    }
+  }
+
+  /**
+   * @return The words kept, sorted by count in descending order.
+   */
+  public List<Map.Entry<String, Long>> toList() {
+    List<Map.Entry<String, Long>> topWords = new ArrayList<>(heap);
+    Collections.sort(topWords, Collections.reverseOrder(WORD_COUNT_ORDER));
+    return topWords;
+  }
+
+  private static int compareWordCount(String word, long count,
+      Map.Entry<String, Long> other) {
+    int c = Long.compare(count, other.getValue());
+    return c != 0 ? c : other.getKey().compareTo(word);
+  }
+
+}
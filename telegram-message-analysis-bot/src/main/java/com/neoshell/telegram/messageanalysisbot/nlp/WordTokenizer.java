@@ -0,0 +1,156 @@
+package com.neoshell.telegram.messageanalysisbot.nlp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import com.neoshell.telegram.messageanalysisbot.collection.ObjectLongHashMap;
+
+/**
+ * Splits chat texts into words without a dictionary. Runs of Chinese and
+ * Japanese characters are split into overlapping bigrams, and other letters
+ * and digits into lowercase words. URLs, commands and mentions are skipped.
+ * Thread-safe.
+ */
+public class WordTokenizer {
+
+  private static final String STOP_WORDS_RESOURCE = "/nlp_stop_words.txt";
+  private static final int MIN_WORD_LENGTH = 2;
+
+  private Set<String> stopWords;
+
+  public WordTokenizer() throws IOException {
+    this(loadStopWords());
+  }
+
+  public WordTokenizer(Set<String> stopWords) {
+    this.stopWords = stopWords;
+  }
+
+  /**
+   * Adds 1 to the count of each word in the text.
+   *
+   * @param text
+   * @param countStopWords
+   * @param counts
+   */
+  public void countWords(String text, boolean countStopWords,
+      ObjectLongHashMap<String> counts) {
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      int c = text.codePointAt(i);
+      if (Character.isWhitespace(c)) {
+        i += Character.charCount(c);
+        continue;
+      }
+      // Skip the whole chunk up to the next whitespace.
+      if (i == 0 || Character.isWhitespace(text.codePointBefore(i))) {
+        if (c == '/' || c == '@' || c == '#' || isUrlAt(text, i)) {
+          while (i < length && !Character.isWhitespace(text.charAt(i))) {
+            i++;
+          }
+          continue;
+        }
+      }
+      int end = i;
+      if (isCjk(c)) {
+        while (end < length && isCjk(text.codePointAt(end))) {
+          end += Character.charCount(text.codePointAt(end));
+        }
+        countCjkRun(text, i, end, countStopWords, counts);
+      } else if (Character.isLetterOrDigit(c)) {
+        while (end < length) {
+          int d = text.codePointAt(end);
+          if (!Character.isLetterOrDigit(d) || isCjk(d)) {
+            break;
+          }
+          end += Character.charCount(d);
+        }
+        String word = text.substring(i, end).toLowerCase(Locale.ROOT);
+        if (word.codePointCount(0, word.length()) >= MIN_WORD_LENGTH
+            && !isNumber(word)
+            && (countStopWords || !stopWords.contains(word))) {
+          counts.addTo(word, 1L);
+        }
+      } else {
+        end += Character.charCount(c);
+      }
+      i = end;
+    }
+  }
+
+  // A run of one character is counted as is. Longer runs give their bigrams.
+  // A bigram is a stop word if it is listed or made of two stop words.
+  private void countCjkRun(String text, int start, int end,
+      boolean countStopWords, ObjectLongHashMap<String> counts) {
+    int second = start + Character.charCount(text.codePointAt(start));
+    if (second >= end) {
+      String word = text.substring(start, end);
+      if (countStopWords || !stopWords.contains(word)) {
+        counts.addTo(word, 1L);
+      }
+      return;
+    }
+    int first = start;
+    while (second < end) {
+      int next = second + Character.charCount(text.codePointAt(second));
+      String bigram = text.substring(first, next);
+      if (countStopWords || !(stopWords.contains(bigram)
+          || (stopWords.contains(text.substring(first, second))
+              && stopWords.contains(text.substring(second, next))))) {
+        counts.addTo(bigram, 1L);
+      }
+      first = second;
+      second = next;
+    }
+  }
+
+  private static boolean isCjk(int c) {
+    Character.UnicodeScript script = Character.UnicodeScript.of(c);
+    return script == Character.UnicodeScript.HAN
+        || script == Character.UnicodeScript.HIRAGANA
+        || script == Character.UnicodeScript.KATAKANA;
+  }
+
+  private static boolean isUrlAt(String text, int i) {
+    return text.startsWith("http://", i) || text.startsWith("https://", i)
+        || text.startsWith("www.", i);
+  }
+
+  private static boolean isNumber(String word) {
+    for (int i = 0; i < word.length(); i++) {
+      if (!Character.isDigit(word.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // One word per line. Lines starting with '#' are comments.
+  private static Set<String> loadStopWords() throws IOException {
+    Set<String> stopWords = new HashSet<>();
+    try (InputStream input = WordTokenizer.class
+        .getResourceAsStream(STOP_WORDS_RESOURCE)) {
+      if (input == null) {
+        throw new IOException("Missing resource " + STOP_WORDS_RESOURCE);
+      }
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(input, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          stopWords.add(line.toLowerCase(Locale.ROOT));
+        }
+      }
+    }
+    return stopWords;
+  }
+
+}
@@ -0,0 +1,120 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+import com.neoshell.telegram.messageanalysisbot.scheduler.Job;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobContext;
+
+/**
+ * Adds messages stored before the chat registry existed to it. Chats are
+ * listed from messages a page at a time, and each chat is added a range of
+ * messages per short transaction, so that neither a large database nor a
+ * large chat is read at once, or holds up messages being added. The position
+ * reached in each chat is kept in its watermark, so that a stopped run
+ * resumes where it left off.
+ *
+ * Once every chat is done, a watermark of all chats is set, and later runs
+ * only read that. A chat that fails is logged and retried by the next run.
+ */
+public class ChatRegistryBackfill implements Job {
+
+  public static final String NAME = "chat-registry-backfill";
+
+  private static final int CHATS_PER_PAGE = 1000;
+  private static final int MESSAGES_PER_RANGE = 10000;
+
+  private DatabaseInterface database;
+  private int chatsPerPage;
+  private int messagesPerRange;
+  private Logger logger;
+
+  public ChatRegistryBackfill(DatabaseInterface database, Logger logger) {
+    this(database, CHATS_PER_PAGE, MESSAGES_PER_RANGE, logger);
+  }
+
+  ChatRegistryBackfill(DatabaseInterface database, int chatsPerPage,
+      int messagesPerRange, Logger logger) {
+    this.database = database;
+    this.chatsPerPage = chatsPerPage;
+    this.messagesPerRange = messagesPerRange;
+    this.logger = logger;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  @SuppressWarnings("try")
+  public String run(JobContext context) throws Exception {
+    try (DatabaseSession session = database.openSession()) {
+      if (database.getWatermark(ChatInfo.ALL_CHATS,
+          ChatInfo.CHAT_REGISTRY) == ChatInfo.BACKFILL_DONE) {
+        return "Chat registry complete";
+      }
+    }
+    int numChats = 0;
+    int numDone = 0;
+    int numFailed = 0;
+    long numRanges = 0L;
+    long afterChatId = Long.MIN_VALUE;
+    while (true) {
+      List<Long> chatIds;
+      try (DatabaseSession session = database.openSession()) {
+        chatIds = database.getMessageChatIds(afterChatId, chatsPerPage);
+      }
+      if (chatIds.isEmpty()) {
+        break;
+      }
+      afterChatId = chatIds.get(chatIds.size() - 1);
+      for (long chatId : chatIds) {
+        try {
+          boolean isComplete;
+          try (DatabaseSession session = database.openSession()) {
+            isComplete = database.getWatermark(chatId,
+                ChatInfo.CHAT_REGISTRY) == ChatInfo.BACKFILL_DONE;
+          }
+          if (isComplete) {
+            numDone++;
+            continue;
+          }
+          while (!isComplete) {
+            try (DatabaseSession session = database.openSession()) {
+              isComplete = database.backfillChatRegistry(chatId,
+                  messagesPerRange);
+            }
+            numRanges++;
+            context.pause();
+          }
+          numChats++;
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          numFailed++;
+          logger.severe("Chat " + chatId + " failed: "
+              + ExceptionUtils.getStackTrace(e));
+        }
+      }
+    }
+    String summary = numChats + " chat(s) registered in " + numRanges
+        + " range(s), " + numDone + " chat(s) already done";
+    if (numFailed > 0) {
+      throw new Exception(numFailed + " chat(s) failed, " + summary);
+    }
+    // Chats not listed above have only had messages added since the registry
+    // was reset, all of them by addMessages().
+    try (DatabaseSession session = database.openSession()) {
+      database.setWatermark(ChatInfo.ALL_CHATS, ChatInfo.CHAT_REGISTRY,
+          ChatInfo.BACKFILL_DONE);
+    }
+    return summary;
+  }
+
+}
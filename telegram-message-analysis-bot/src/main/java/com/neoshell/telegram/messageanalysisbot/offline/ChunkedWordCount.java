@@ -0,0 +1,225 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.neoshell.telegram.messageanalysisbot.collection.ObjectLongHashMap;
+import com.neoshell.telegram.messageanalysisbot.nlp.NLPInterface;
+import com.neoshell.telegram.messageanalysisbot.nlp.TopWords;
+
+/**
+ * Counts the words of a stream of texts in bounded memory. Texts are counted
+ * in chunks of chunkSize. Partial counts are summed in memory until they
+ * reach maxWordsInMemory words, then written to a file sorted by word (a
+ * run). getTopWords() merges the runs.
+ *
+ * With chunkSize 0, or if the texts fit in one chunk, all texts are counted
+ * in one NLP call, the same as counting a list of the texts.
+ */
+class ChunkedWordCount implements Closeable {
+
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  private NLPInterface nlpUtil;
+  private boolean countStopWords;
+  private int chunkSize;
+  private int maxWordsInMemory;
+  private File spillDirectory;
+
+  private List<String> chunk = new ArrayList<>();
+  private ObjectLongHashMap<String> partialCounts = null;
+  private List<File> runs = new ArrayList<>();
+
+  /**
+   * @param nlpUtil
+   * @param countStopWords
+   * @param chunkSize
+   *          The number of texts counted together. 0 means all of them.
+   * @param maxWordsInMemory
+   *          Partial counts are written to a file beyond this many words.
+   * @param spillDirectory
+   *          Where runs are written. The default temp directory if null.
+   */
+  ChunkedWordCount(NLPInterface nlpUtil, boolean countStopWords,
+      int chunkSize, int maxWordsInMemory, File spillDirectory) {
+    this.nlpUtil = nlpUtil;
+    this.countStopWords = countStopWords;
+    this.chunkSize = chunkSize;
+    this.maxWordsInMemory = maxWordsInMemory;
+    this.spillDirectory = spillDirectory;
+  }
+
+  void add(String text) throws Exception {
+    chunk.add(text);
+    if (chunkSize > 0 && chunk.size() >= chunkSize) {
+      countChunk();
+    }
+  }
+
+  /**
+   * @param limit
+   * @return The most frequent words of all texts added, sorted by count in
+   *         descending order.
+   * @throws Exception
+   */
+  List<Map.Entry<String, Long>> getTopWords(int limit) throws Exception {
+    if (partialCounts == null) {
+      return nlpUtil.countWords(chunk, countStopWords, limit);
+    }
+    if (!chunk.isEmpty()) {
+      countChunk();
+    }
+    final TopWords topWords = new TopWords(limit);
+    if (runs.isEmpty()) {
+      partialCounts.forEachEntry(
+          new ObjectLongHashMap.EntryVisitor<String>() {
+            @Override
+            public void visit(String word, long count) {
+              topWords.offer(word, count);
+            }
+          });
+      return topWords.toList();
+    }
+    if (!partialCounts.isEmpty()) {
+      spill();
+    }
+    mergeRuns(topWords);
+    return topWords.toList();
+  }
+
+  int getNumRuns() {
+    return runs.size();
+  }
+
+  /**
+   * Deletes the runs.
+   */
+  @Override
+  public void close() {
+    for (File run : runs) {
+      run.delete();
+    }
+    runs.clear();
+  }
+
+  private void countChunk() throws Exception {
+    if (partialCounts == null) {
+      partialCounts = new ObjectLongHashMap<>();
+    }
+    for (Map.Entry<String, Long> wordCount : nlpUtil.countWords(chunk,
+        countStopWords, Integer.MAX_VALUE)) {
+      partialCounts.addTo(wordCount.getKey(), wordCount.getValue());
+    }
+    chunk.clear();
+    if (partialCounts.size() >= maxWordsInMemory) {
+      spill();
+    }
+  }
+
+  // Run format: the number of words, then each word and its count, sorted by
+  // word.
+  private void spill() throws IOException {
+    final String[] words = new String[partialCounts.size()];
+    final ObjectLongHashMap<String> counts = partialCounts;
+    counts.forEachEntry(new ObjectLongHashMap.EntryVisitor<String>() {
+      private int i = 0;
+
+      @Override
+      public void visit(String word, long count) {
+        words[i++] = word;
+      }
+    });
+    Arrays.sort(words);
+    File run = File.createTempFile("word_count_", ".run", spillDirectory);
+    runs.add(run);
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE))) {
+      output.writeInt(words.length);
+      for (String word : words) {
+        output.writeUTF(word);
+        output.writeLong(counts.get(word, 0L));
+      }
+    }
+    partialCounts = new ObjectLongHashMap<>();
+  }
+
+  // Merges the sorted runs, summing the counts of each word across them.
+  private void mergeRuns(TopWords topWords) throws IOException {
+    PriorityQueue<RunReader> readers = new PriorityQueue<>(runs.size());
+    try {
+      for (File run : runs) {
+        RunReader reader = new RunReader(run);
+        if (reader.next()) {
+          readers.add(reader);
+        } else {
+          reader.close();
+        }
+      }
+      while (!readers.isEmpty()) {
+        String word = readers.peek().word;
+        long count = 0L;
+        while (!readers.isEmpty() && readers.peek().word.equals(word)) {
+          RunReader reader = readers.poll();
+          count += reader.count;
+          if (reader.next()) {
+            readers.add(reader);
+          } else {
+            reader.close();
+          }
+        }
+        topWords.offer(word, count);
+      }
+    } finally {
+      for (RunReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  private static class RunReader implements Comparable<RunReader>, Closeable {
+    private DataInputStream input;
+    private int numRemaining;
+    private String word;
+    private long count;
+
+    public RunReader(File run) throws IOException {
+      input = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+      numRemaining = input.readInt();
+    }
+
+    // Moves to the next word. Returns false at the end of the run.
+    public boolean next() throws IOException {
+      if (numRemaining == 0) {
+        return false;
+      }
+      numRemaining--;
+      word = input.readUTF();
+      count = input.readLong();
+      return true;
+    }
+
+    @Override
+    public int compareTo(RunReader o) {
+      return word.compareTo(o.word);
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+
+}
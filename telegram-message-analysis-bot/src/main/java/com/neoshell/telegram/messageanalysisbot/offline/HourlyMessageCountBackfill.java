@@ -0,0 +1,158 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import java.io.File;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import org.ini4j.Wini;
+
+import com.neoshell.telegram.messageanalysisbot.CustomizedLogger;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+import com.neoshell.telegram.messageanalysisbot.database.MySQLDatabase;
+import com.neoshell.telegram.messageanalysisbot.scheduler.Job;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobContext;
+
+/**
+ * Computes hourly message counts for messages stored before the counts were
+ * maintained by the bot.
+ *
+ * The bot runs it as a background job. Each chat is rebuilt once, chunk by
+ * chunk, and the hour reached is kept in the chat's watermark so that a
+ * stopped run resumes where it left off. Chats already done are skipped, so
+ * the runs after the backfill only read the registry.
+ *
+ * Run standalone, it rebuilds every chat again regardless of watermarks, e.g.
+ * after importing messages by other means.
+ */
+public class HourlyMessageCountBackfill implements Job {
+
+  public static final String NAME = "hourly-message-count-backfill";
+
+  private static final String LOG_FILE_NAME_PATTERN = "backfill_%g.log";
+  private static final long SECONDS_PER_HOUR = 3600;
+  // Hours rebuilt per transaction.
+  private static final long HOURS_PER_CHUNK = 24 * 7;
+  private static Logger mainLogger;
+
+  private DatabaseInterface database;
+  private boolean ignoresWatermarks;
+  private Logger logger;
+
+  public HourlyMessageCountBackfill(String configFile) throws Exception {
+    Wini config = new Wini(new File(configFile));
+    database = new MySQLDatabase(
+        config.get("MySQL", "DatabaseUrl", String.class),
+        config.get("MySQL", "DatabaseUsername", String.class),
+        config.get("MySQL", "DatabasePassword", String.class));
+    ignoresWatermarks = true;
+    logger = mainLogger;
+  }
+
+  public HourlyMessageCountBackfill(DatabaseInterface database,
+      Logger logger) {
+    this.database = database;
+    this.logger = logger;
+    ignoresWatermarks = false;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  @SuppressWarnings("try")
+  public String run(JobContext context) throws Exception {
+    // The bot keeps counts of the current hour up to date. Leave it alone.
+    long endEpochSeconds = System.currentTimeMillis() / 1000L
+        / SECONDS_PER_HOUR * SECONDS_PER_HOUR;
+    List<ChatInfo> chats;
+    try (DatabaseSession session = database.openSession()) {
+      chats = database.getChats(EnumSet.allOf(MessageType.class));
+    }
+    int numChats = 0;
+    int numIncomplete = 0;
+    long numChunks = 0L;
+    for (ChatInfo chat : chats) {
+      long chatId = chat.getChatId();
+      // The first message time is not known yet. Done by a later run.
+      if (!chat.isComplete()) {
+        numIncomplete++;
+        continue;
+      }
+      long startEpochSeconds = chat.getFirstEpochSeconds()
+          / SECONDS_PER_HOUR * SECONDS_PER_HOUR;
+      if (!ignoresWatermarks) {
+        long watermark = chat
+            .getWatermark(ChatInfo.HOURLY_MESSAGE_COUNT_BACKFILL);
+        if (watermark == ChatInfo.BACKFILL_DONE) {
+          continue;
+        }
+        startEpochSeconds = Math.max(startEpochSeconds, watermark);
+      }
+      logger.info("Processing chat: " + chatId);
+      for (long from = startEpochSeconds; from < endEpochSeconds;
+          from += HOURS_PER_CHUNK * SECONDS_PER_HOUR) {
+        long to = Math.min(endEpochSeconds,
+            from + HOURS_PER_CHUNK * SECONDS_PER_HOUR);
+        // Rebuilding is idempotent, so the watermark may lag behind.
+        try (DatabaseSession session = database.openSession()) {
+          database.rebuildHourlyMessageCounts(chatId, from, to);
+          database.setWatermark(chatId,
+              ChatInfo.HOURLY_MESSAGE_COUNT_BACKFILL, to);
+        }
+        numChunks++;
+        context.pause();
+      }
+      // Hours from now on are counted as messages are added.
+      try (DatabaseSession session = database.openSession()) {
+        database.setWatermark(chatId, ChatInfo.HOURLY_MESSAGE_COUNT_BACKFILL,
+            ChatInfo.BACKFILL_DONE);
+      }
+      numChats++;
+    }
+    return numChats + " chat(s) backfilled in " + numChunks + " chunk(s), "
+        + (chats.size() - numChats - numIncomplete)
+        + " chat(s) already done, " + numIncomplete
+        + " chat(s) not complete in the chat registry";
+  }
+
+  public void shutdown() {
+    database.shutdown();
+  }
+
+  public static void main(String[] args) {
+    try {
+      mainLogger = CustomizedLogger.getLogger(HourlyMessageCountBackfill.class,
+          LOG_FILE_NAME_PATTERN);
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.err.println("Failed to create logger.");
+      return;
+    }
+
+    String configFile = args.length > 0 ? args[0] : "config.ini";
+    HourlyMessageCountBackfill backfill;
+    try {
+      backfill = new HourlyMessageCountBackfill(configFile);
+    } catch (Exception e) {
+      mainLogger.severe(ExceptionUtils.getStackTrace(e));
+      return;
+    }
+    try {
+      mainLogger.info(backfill.run(JobContext.unlimited()));
+      mainLogger.info("Task finished.");
+    } catch (Exception e) {
+      mainLogger.severe(ExceptionUtils.getStackTrace(e));
+    } finally {
+      backfill.shutdown();
+    }
+  }
+
+}
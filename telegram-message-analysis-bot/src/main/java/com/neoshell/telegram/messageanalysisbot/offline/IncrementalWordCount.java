@@ -0,0 +1,198 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+import com.neoshell.telegram.messageanalysisbot.nlp.NLPInterface;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobContext;
+
+/**
+ * Counts only the messages added since the last run. Each chat has a
+ * checkpoint, the id of the last message counted. New messages are read from
+ * it page by page, and the word counts of each page are added to the counts of
+ * their days together with the new checkpoint, so an interrupted run loses no
+ * work and counts nothing twice. If another worker moved the checkpoint in
+ * the meantime, the page is not written and run() throws
+ * StaleCheckpointException.
+ *
+ * Each page also marks its months dirty in the same transaction. The monthly
+ * counts of dirty months are then derived from the daily counts, at the start
+ * of a run for months left dirty by a run that stopped, and at the end for
+ * the months of the new pages. Messages added with an id below the
+ * checkpoint, e.g. by importing old history, are not counted.
+ */
+class IncrementalWordCount {
+
+  // The length of the word column of the word count tables.
+  private static final int MAX_WORD_LENGTH = 32;
+
+  private DatabaseInterface database;
+  private NLPInterface nlpUtil;
+  private boolean countStopWords;
+  private int numWordsPerMonth;
+  private int pageSize;
+  private Logger logger;
+
+  /**
+   * @param database
+   * @param nlpUtil
+   * @param countStopWords
+   * @param numWordsPerMonth
+   * @param pageSize
+   *          The number of messages read and counted at a time.
+   * @param logger
+   */
+  IncrementalWordCount(DatabaseInterface database, NLPInterface nlpUtil,
+      boolean countStopWords, int numWordsPerMonth, int pageSize,
+      Logger logger) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Page size must be positive.");
+    }
+    this.database = database;
+    this.nlpUtil = nlpUtil;
+    this.countStopWords = countStopWords;
+    this.numWordsPerMonth = numWordsPerMonth;
+    this.pageSize = pageSize;
+    this.logger = logger;
+  }
+
+  /**
+   * Counts the new messages of the chat and updates its monthly counts.
+   *
+   * @param chatId
+   * @param context
+   *          Paused after each transaction.
+   * @return The number of messages counted.
+   * @throws Exception
+   */
+  @SuppressWarnings("try")
+  long run(long chatId, JobContext context) throws Exception {
+    int numMonths = deriveDirtyMonths(chatId, context);
+    long checkpoint;
+    try (DatabaseSession session = database.openSession()) {
+      checkpoint = database.getWordCountCheckpoint(chatId);
+    }
+    long numMessages = 0L;
+    while (true) {
+      List<Message> page;
+      try (DatabaseSession session = database.openSession()) {
+        page = database.getMessagesAfter(chatId,
+            Arrays.asList(MessageType.TEXT), checkpoint, pageSize);
+      }
+      if (page.isEmpty()) {
+        break;
+      }
+      // The database is not used while counting.
+      TreeMap<Integer, List<String>> textsByDay = new TreeMap<>();
+      for (Message message : page) {
+        if (message.getContent() == null) {
+          continue;
+        }
+        int dayIndex = getDayIndex(message.getEpochSeconds());
+        List<String> texts = textsByDay.get(dayIndex);
+        if (texts == null) {
+          texts = new ArrayList<>();
+          textsByDay.put(dayIndex, texts);
+        }
+        texts.add(message.getContent());
+      }
+      TreeMap<Integer, List<Map.Entry<String, Long>>> countsByDay =
+          new TreeMap<>();
+      TreeSet<Integer> monthIndices = new TreeSet<>();
+      for (Map.Entry<Integer, List<String>> day : textsByDay.entrySet()) {
+        List<Map.Entry<String, Long>> counts = new ArrayList<>();
+        for (Map.Entry<String, Long> wordCount : nlpUtil.countWords(
+            day.getValue(), countStopWords, Integer.MAX_VALUE)) {
+          String word = wordCount.getKey();
+          if (word.codePointCount(0, word.length()) <= MAX_WORD_LENGTH) {
+            counts.add(wordCount);
+          }
+        }
+        countsByDay.put(day.getKey(), counts);
+        monthIndices.add(getMonthIndex(day.getKey()));
+      }
+      long previousCheckpoint = checkpoint;
+      checkpoint = page.get(page.size() - 1).getMessageId();
+      try (DatabaseSession session = database.openSession()) {
+        database.addDailyWordCounts(chatId, countsByDay, monthIndices,
+            previousCheckpoint, checkpoint);
+      }
+      numMessages += page.size();
+      context.pause();
+      if (page.size() < pageSize) {
+        break;
+      }
+    }
+
+    numMonths += deriveDirtyMonths(chatId, context);
+    if (numMessages > 0 || numMonths > 0) {
+      logger.info("Chat " + chatId + ": counted " + numMessages
+          + " new message(s), updated " + numMonths
+          + " month(s), checkpoint at message " + checkpoint);
+    }
+    return numMessages;
+  }
+
+  // Derives the monthly counts of the dirty months from the daily counts.
+  // Returns the number of months derived.
+  @SuppressWarnings("try")
+  private int deriveDirtyMonths(long chatId, JobContext context)
+      throws Exception {
+    // Read before the daily counts, so that a month marked again in the
+    // meantime keeps its mark.
+    Map<Integer, Long> dirtyMonths;
+    try (DatabaseSession session = database.openSession()) {
+      dirtyMonths = database.getDirtyWordCountMonths(chatId);
+    }
+    for (Map.Entry<Integer, Long> month : dirtyMonths.entrySet()) {
+      int monthIndex = month.getKey();
+      // Deriving is idempotent, so a failure before clearing only repeats it.
+      try (DatabaseSession session = database.openSession()) {
+        database.replaceWordCounts(chatId, monthIndex,
+            database.getDailyWordCount(chatId,
+                convertMonthIndexToDayIndex(monthIndex),
+                convertMonthIndexToDayIndex(monthIndex + 1),
+                numWordsPerMonth));
+        database.clearDirtyWordCountMonth(chatId, monthIndex,
+            month.getValue());
+      }
+      context.pause();
+    }
+    return dirtyMonths.size();
+  }
+
+  /**
+   * @param epochSeconds
+   * @return Days since epoch in the default time zone, which is also used for
+   *         month boundaries.
+   */
+  static int getDayIndex(long epochSeconds) {
+    return (int) Instant.ofEpochSecond(epochSeconds)
+        .atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+  }
+
+  static int getMonthIndex(int dayIndex) {
+    LocalDate date = LocalDate.ofEpochDay(dayIndex);
+    return (date.getYear() - 1970) * 12 + date.getMonthValue() - 1;
+  }
+
+  static int convertMonthIndexToDayIndex(int monthIndex) {
+    return (int) LocalDate
+        .of(Math.floorDiv(monthIndex, 12) + 1970,
+            Math.floorMod(monthIndex, 12) + 1, 1)
+        .toEpochDay();
+  }
+
+}
@@ -0,0 +1,132 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+import com.neoshell.telegram.messageanalysisbot.database.StaleCheckpointException;
+import com.neoshell.telegram.messageanalysisbot.nlp.NLPInterface;
+import com.neoshell.telegram.messageanalysisbot.scheduler.Job;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobContext;
+
+/**
+ * Counts the words of the messages added to each chat since the last run. See
+ * IncrementalWordCount. A chat that fails is logged and skipped, and the run
+ * fails after the other chats are done.
+ *
+ * Chats come from the chat registry, and the ones without new text messages
+ * or dirty months are skipped without reading them. A chat missing from it
+ * until ChatRegistryBackfill reaches it is counted by the first run after.
+ * Nodes sharing the database split the other chats between them: a chat is
+ * only counted by the node holding its lease.
+ */
+public class IncrementalWordCountJob implements Job {
+
+  public static final String NAME = "word-count";
+
+  private static final boolean COUNT_STOP_WORDS = false;
+
+  private DatabaseInterface database;
+  private IncrementalWordCount wordCount;
+  private String nodeId;
+  private long leaseTtlMillis;
+  private Logger logger;
+
+  /**
+   * @param database
+   * @param nlpUtil
+   * @param numWordsPerMonth
+   * @param pageSize
+   *          The number of messages read and counted at a time.
+   * @param nodeId
+   *          Identifies this node in leases. Null or empty means
+   *          "pid@host name".
+   * @param leaseTtlMillis
+   * @param logger
+   */
+  public IncrementalWordCountJob(DatabaseInterface database,
+      NLPInterface nlpUtil, int numWordsPerMonth, int pageSize, String nodeId,
+      long leaseTtlMillis, Logger logger) {
+    this.database = database;
+    this.nodeId = nodeId;
+    this.leaseTtlMillis = leaseTtlMillis;
+    this.logger = logger;
+    wordCount = new IncrementalWordCount(database, nlpUtil, COUNT_STOP_WORDS,
+        numWordsPerMonth, pageSize, logger);
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  @SuppressWarnings("try")
+  public String run(JobContext context) throws Exception {
+    List<ChatInfo> chats;
+    // Months left behind by a run that stopped are derived again, even if
+    // the chat has no new text.
+    Set<Long> chatIds;
+    try (DatabaseSession session = database.openSession()) {
+      chats = database.getChats(Arrays.asList(MessageType.TEXT));
+      chatIds = new TreeSet<>(database.getChatIdsWithDirtyWordCountMonths());
+    }
+    int numUpToDate = 0;
+    for (ChatInfo chat : chats) {
+      // No new text since the last run, as far as the registry knows. Older
+      // messages have lower ids, so this holds for chats which are not
+      // complete too.
+      if (chat.getLastMessageId() > chat
+          .getWatermark(ChatInfo.WORD_COUNT_CHECKPOINT)) {
+        chatIds.add(chat.getChatId());
+      } else if (!chatIds.contains(chat.getChatId())) {
+        numUpToDate++;
+      }
+    }
+    long numMessages = 0L;
+    int numFailed = 0;
+    int numSkipped = 0;
+    try (WorkLeases leases = new WorkLeases(database, nodeId, leaseTtlMillis,
+        logger)) {
+      for (long chatId : chatIds) {
+        String leaseKey = WordCounter.getLeaseKey(chatId);
+        if (!leases.tryAcquire(leaseKey)) {
+          numSkipped++;
+          continue;
+        }
+        try {
+          numMessages += wordCount.run(chatId, context);
+        } catch (StaleCheckpointException e) {
+          // Another node took the chat over after our lease expired.
+          numSkipped++;
+          logger.warning(e.getMessage());
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          numFailed++;
+          logger.severe("Chat " + chatId + " failed: "
+              + ExceptionUtils.getStackTrace(e));
+        } finally {
+          leases.release(leaseKey);
+        }
+      }
+    }
+    String summary = numMessages + " new message(s) in "
+        + (chatIds.size() - numSkipped) + " chat(s), "
+        + numUpToDate + " chat(s) up to date, " + numSkipped
+        + " chat(s) leased by other nodes";
+    if (numFailed > 0) {
+      throw new Exception(numFailed + " chat(s) failed, " + summary);
+    }
+    return summary;
+  }
+
+}
@@ -0,0 +1,110 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import java.io.File;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import org.ini4j.Wini;
+
+import com.neoshell.telegram.messageanalysisbot.CustomizedLogger;
+import com.neoshell.telegram.messageanalysisbot.database.ConnectionPool;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+import com.neoshell.telegram.messageanalysisbot.database.MySQLDatabase;
+import com.neoshell.telegram.messageanalysisbot.database.QueryPlan;
+
+/**
+ * Applies all pending schema migrations, including the deferred ones which
+ * the bot and the other tools do not apply on start, e.g. building indexes of
+ * messages. The bot can keep running meanwhile.
+ *
+ * Afterwards, explains the queries of the database and logs those which scan
+ * a whole table. Note that on a nearly empty table, a scan may be the best
+ * plan.
+ *
+ * Usage: SchemaMigrationTool [config file] [chat id to explain for]
+ */
+public class SchemaMigrationTool {
+
+  private static final String LOG_FILE_NAME_PATTERN = "migration_%g.log";
+  private static Logger logger;
+
+  private MySQLDatabase database;
+
+  public SchemaMigrationTool(String configFile) throws Exception {
+    Wini config = new Wini(new File(configFile));
+    // A single connection, which applies the migrations.
+    database = new MySQLDatabase(new ConnectionPool(
+        config.get("MySQL", "DatabaseUrl", String.class),
+        config.get("MySQL", "DatabaseUsername", String.class),
+        config.get("MySQL", "DatabasePassword", String.class), 1, 1,
+        config.get("MySQL", "ConnectionPoolMaxWaitMillis", long.class),
+        config.get("MySQL", "ConnectionIdleTimeoutSeconds", long.class) * 1000,
+        config.get("MySQL", "ConnectionValidationIntervalSeconds", long.class)
+            * 1000),
+        true);
+  }
+
+  /**
+   * @param chatId The chat whose queries are explained, or null for any.
+   * @return The number of queries which scan a whole table.
+   * @throws Exception
+   */
+  @SuppressWarnings("try")
+  public int checkQueryPlans(Long chatId) throws Exception {
+    int numFullScans = 0;
+    try (DatabaseSession session = database.openSession()) {
+      if (chatId == null) {
+        List<Long> chatIds = database.getChatIds();
+        chatId = chatIds.isEmpty() ? 0L : chatIds.get(0);
+      }
+      for (QueryPlan plan : database.explainQueries(chatId)) {
+        if (plan.usesIndexes()) {
+          logger.info(plan.toString());
+        } else {
+          logger.severe(plan.toString());
+          numFullScans++;
+        }
+      }
+    }
+    return numFullScans;
+  }
+
+  public void shutdown() {
+    database.shutdown();
+  }
+
+  public static void main(String[] args) {
+    try {
+      logger = CustomizedLogger.getLogger(SchemaMigrationTool.class,
+          LOG_FILE_NAME_PATTERN);
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.err.println("Failed to create logger.");
+      return;
+    }
+
+    String configFile = args.length > 0 ? args[0] : "config.ini";
+    Long chatId = args.length > 1 ? Long.parseLong(args[1]) : null;
+    SchemaMigrationTool tool;
+    try {
+      logger.info("Migrating...");
+      tool = new SchemaMigrationTool(configFile);
+      logger.info(tool.database.getStats());
+    } catch (Exception e) {
+      logger.severe(ExceptionUtils.getStackTrace(e));
+      return;
+    }
+    try {
+      int numFullScans = tool.checkQueryPlans(chatId);
+      logger.info("Task finished. " + numFullScans
+          + " query(s) scan a whole table.");
+    } catch (Exception e) {
+      logger.severe(ExceptionUtils.getStackTrace(e));
+    } finally {
+      tool.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,317 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+import com.neoshell.telegram.messageanalysisbot.database.RowCallback;
+import com.neoshell.telegram.messageanalysisbot.nlp.NLPInterface;
+
+/**
+ * Counts the words of many chat months with overlapping stages: months are
+ * fetched by a pool of threads, counted by another, and written by a single
+ * writer in batches. At most maxMonthsInFlight months are held in memory, or
+ * their partial counts if counted in chunks.
+ *
+ * The writer commits the months of a chat in ascending order, like the serial
+ * run, so the max month index of a chat stays the position to continue from.
+ * Once a month of a chat fails, the later months of that chat are dropped and
+ * counted again in the next run.
+ */
+class WordCountPipeline {
+
+  private static final long PROGRESS_INTERVAL_MILLIS = 10000;
+
+  private DatabaseInterface database;
+  private NLPInterface nlpUtil;
+  private boolean countStopWords;
+  private int numWordsPerMonth;
+  private int chunkSize;
+  private int maxWordsInMemory;
+  private File spillDirectory;
+  private int numFetchThreads;
+  private int numCountThreads;
+  private int maxMonthsInFlight;
+  private Logger logger;
+
+  // Only used on the writer thread once run() starts submitting.
+  private Map<Long, ChatProgress> chatProgress = new HashMap<>();
+  private long lastProgressMillis;
+
+  private long startMillis;
+  private int numMonths;
+  private AtomicInteger numMonthsDone = new AtomicInteger();
+  private AtomicInteger numMonthsFailed = new AtomicInteger();
+  private AtomicLong numTexts = new AtomicLong();
+  private AtomicLong numWordsWritten = new AtomicLong();
+
+  /**
+   * @param database
+   * @param nlpUtil
+   *          Must be thread-safe.
+   * @param countStopWords
+   * @param numWordsPerMonth
+   * @param chunkSize
+   * @param maxWordsInMemory
+   * @param spillDirectory
+   *          See ChunkedWordCount.
+   * @param numFetchThreads
+   *          Each holds a database connection while fetching. Counts chunks
+   *          too if months are counted in chunks.
+   * @param numCountThreads
+   * @param maxMonthsInFlight
+   *          The max number of months fetched but not written yet.
+   * @param logger
+   */
+  WordCountPipeline(DatabaseInterface database, NLPInterface nlpUtil,
+      boolean countStopWords, int numWordsPerMonth, int chunkSize,
+      int maxWordsInMemory, File spillDirectory, int numFetchThreads,
+      int numCountThreads, int maxMonthsInFlight, Logger logger) {
+    if (numFetchThreads <= 0 || numCountThreads <= 0
+        || maxMonthsInFlight <= 0) {
+      throw new IllegalArgumentException(
+          "Thread counts and months in flight must be positive.");
+    }
+    this.database = database;
+    this.nlpUtil = nlpUtil;
+    this.countStopWords = countStopWords;
+    this.numWordsPerMonth = numWordsPerMonth;
+    this.chunkSize = chunkSize;
+    this.maxWordsInMemory = maxWordsInMemory;
+    this.spillDirectory = spillDirectory;
+    this.numFetchThreads = numFetchThreads;
+    this.numCountThreads = numCountThreads;
+    this.maxMonthsInFlight = maxMonthsInFlight;
+    this.logger = logger;
+  }
+
+  /**
+   * Counts and writes all given months. Returns when all of them are done.
+   *
+   * @param monthsByChat
+   *          The month indexes to count of each chat, in ascending order.
+   * @throws InterruptedException
+   */
+  void run(Map<Long, List<Integer>> monthsByChat)
+      throws InterruptedException {
+    for (Map.Entry<Long, List<Integer>> entry : monthsByChat.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        chatProgress.put(entry.getKey(), new ChatProgress(entry.getValue()));
+        numMonths += entry.getValue().size();
+      }
+    }
+    logger.info("Counting " + numMonths + " month(s) of "
+        + chatProgress.size() + " chat(s) with " + numFetchThreads
+        + " fetch thread(s) and " + numCountThreads + " count thread(s).");
+    startMillis = System.currentTimeMillis();
+    lastProgressMillis = startMillis;
+
+    ExecutorService fetchExecutor = newExecutor("word-count-fetch",
+        numFetchThreads);
+    ExecutorService countExecutor = newExecutor("word-count-count",
+        numCountThreads);
+    ExecutorService writeExecutor = newExecutor("word-count-write", 1);
+    final Semaphore monthsInFlight = new Semaphore(maxMonthsInFlight);
+    final CountDownLatch done = new CountDownLatch(numMonths);
+    try {
+      // Submitted chat by chat, so months of a chat are fetched roughly in
+      // order and the writer rarely waits for an earlier one.
+      for (Map.Entry<Long, List<Integer>> entry : monthsByChat.entrySet()) {
+        final long chatId = entry.getKey();
+        for (final int monthIndex : entry.getValue()) {
+          monthsInFlight.acquire();
+          CompletableFuture.supplyAsync(new Supplier<ChunkedWordCount>() {
+            @Override
+            public ChunkedWordCount get() {
+              return fetch(chatId, monthIndex);
+            }
+          }, fetchExecutor).thenApplyAsync(
+              new Function<ChunkedWordCount, List<Map.Entry<String, Long>>>() {
+                @Override
+                public List<Map.Entry<String, Long>> apply(
+                    ChunkedWordCount wordCount) {
+                  return count(wordCount);
+                }
+              }, countExecutor).whenCompleteAsync(
+                  new BiConsumer<List<Map.Entry<String, Long>>, Throwable>() {
+                    @Override
+                    public void accept(
+                        List<Map.Entry<String, Long>> wordCounts,
+                        Throwable error) {
+                      int numFinished = onCounted(chatId, monthIndex,
+                          wordCounts, error);
+                      for (int i = 0; i < numFinished; i++) {
+                        monthsInFlight.release();
+                        done.countDown();
+                      }
+                    }
+                  }, writeExecutor);
+        }
+      }
+      done.await();
+    } finally {
+      fetchExecutor.shutdownNow();
+      countExecutor.shutdownNow();
+      writeExecutor.shutdownNow();
+    }
+    logProgress();
+  }
+
+  @SuppressWarnings("try")
+  private ChunkedWordCount fetch(long chatId, int monthIndex) {
+    final ChunkedWordCount wordCount = new ChunkedWordCount(nlpUtil,
+        countStopWords, chunkSize, maxWordsInMemory, spillDirectory);
+    final AtomicLong numMonthTexts = new AtomicLong();
+    try (DatabaseSession session = database.openSession()) {
+      database.streamMessages(chatId, Arrays.asList(MessageType.TEXT),
+          WordCounter.convertMonthIndexToEpochSeconds(monthIndex),
+          WordCounter.convertMonthIndexToEpochSeconds(monthIndex + 1),
+          new RowCallback<Message>() {
+            @Override
+            public void onRow(Message message) {
+              try {
+                wordCount.add(message.getContent());
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+              numMonthTexts.incrementAndGet();
+            }
+          });
+    } catch (Exception e) {
+      wordCount.close();
+      throw new IllegalStateException("Failed to fetch chat " + chatId
+          + ", month index " + monthIndex, e);
+    }
+    numTexts.addAndGet(numMonthTexts.get());
+    return wordCount;
+  }
+
+  private List<Map.Entry<String, Long>> count(ChunkedWordCount wordCount) {
+    try {
+      return wordCount.getTopWords(numWordsPerMonth);
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to count words", e);
+    } finally {
+      wordCount.close();
+    }
+  }
+
+  // Runs on the writer thread. Writes the months of the chat that are next in
+  // order. Returns the number of months finished by this call.
+  @SuppressWarnings("try")
+  private int onCounted(long chatId, int monthIndex,
+      List<Map.Entry<String, Long>> wordCounts, Throwable error) {
+    ChatProgress progress = chatProgress.get(chatId);
+    progress.ready.put(monthIndex, new CountResult(wordCounts, error));
+    int numFinished = 0;
+    while (progress.next < progress.months.size() && progress.ready
+        .containsKey(progress.months.get(progress.next))) {
+      int nextMonthIndex = progress.months.get(progress.next++);
+      CountResult result = progress.ready.remove(nextMonthIndex);
+      numFinished++;
+      if (progress.hasFailed) {
+        numMonthsFailed.incrementAndGet();
+        continue;
+      }
+      if (result.error != null) {
+        fail(progress, chatId, nextMonthIndex, result.error);
+        continue;
+      }
+      try (DatabaseSession session = database.openSession()) {
+        database.addOrUpdateWordCounts(chatId, nextMonthIndex,
+            result.wordCounts);
+        database.setWatermark(chatId, ChatInfo.MONTHLY_WORD_COUNT,
+            nextMonthIndex);
+        numWordsWritten.addAndGet(result.wordCounts.size());
+        numMonthsDone.incrementAndGet();
+      } catch (Exception e) {
+        fail(progress, chatId, nextMonthIndex, e);
+      }
+    }
+    if (System.currentTimeMillis() - lastProgressMillis
+        >= PROGRESS_INTERVAL_MILLIS) {
+      logProgress();
+    }
+    return numFinished;
+  }
+
+  private void fail(ChatProgress progress, long chatId, int monthIndex,
+      Throwable error) {
+    progress.hasFailed = true;
+    numMonthsFailed.incrementAndGet();
+    logger.severe("Chat " + chatId + " stopped at month index " + monthIndex
+        + ": " + ExceptionUtils.getStackTrace(error));
+  }
+
+  private void logProgress() {
+    lastProgressMillis = System.currentTimeMillis();
+    double seconds = Math.max(1L, lastProgressMillis - startMillis) / 1000.0;
+    int finished = numMonthsDone.get() + numMonthsFailed.get();
+    logger.info(String.format(
+        "Progress: %d/%d month(s) done, %d failed, %d text(s) fetched, "
+            + "%d word count(s) written, %.1f texts/s, %.2f months/s",
+        numMonthsDone.get(), numMonths, numMonthsFailed.get(), numTexts.get(),
+        numWordsWritten.get(), numTexts.get() / seconds, finished / seconds));
+  }
+
+  private static ExecutorService newExecutor(final String name,
+      int numThreads) {
+    final AtomicInteger threadIndex = new AtomicInteger();
+    return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r,
+            name + "-" + threadIndex.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static class ChatProgress {
+    private List<Integer> months;
+    // Index into months of the next month to write.
+    private int next = 0;
+    // Counted months waiting for an earlier month of the chat.
+    private TreeMap<Integer, CountResult> ready = new TreeMap<>();
+    private boolean hasFailed = false;
+
+    public ChatProgress(List<Integer> months) {
+      this.months = months;
+    }
+  }
+
+  private static class CountResult {
+    private List<Map.Entry<String, Long>> wordCounts;
+    private Throwable error;
+
+    public CountResult(List<Map.Entry<String, Long>> wordCounts,
+        Throwable error) {
+      this.wordCounts = wordCounts;
+      this.error = error;
+    }
+  }
+
+}
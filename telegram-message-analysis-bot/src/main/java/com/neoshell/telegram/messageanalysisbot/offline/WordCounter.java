@@ -6,7 +6,9 @@ import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -18,20 +20,37 @@ import com.neoshell.telegram.messageanalysisbot.CustomizedLogger;
 import com.neoshell.telegram.messageanalysisbot.Message;
 import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
 import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.ConnectionPool;
 import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
 import com.neoshell.telegram.messageanalysisbot.database.MySQLDatabase;
+import com.neoshell.telegram.messageanalysisbot.database.RowCallback;
 import com.neoshell.telegram.messageanalysisbot.nlp.NLPInterface;
-import com.neoshell.telegram.messageanalysisbot.nlp.NLPUtilClientWrapper;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobContext;
 
 public class WordCounter {
 
   private static final boolean COUNT_STOP_WORDS = false;
+  private static final String MODE_SERIAL = "serial";
+  private static final String MODE_PIPELINED = "pipelined";
+  private static final String MODE_INCREMENTAL = "incremental";
   private static final String LOG_FILE_NAME_PATTERN = "word_count_%g.log";
+  private static final String LEASE_KEY_PREFIX = "word-count:";
   private static Logger logger;
 
   private DatabaseInterface database;
   private NLPInterface nlpUtil;
   private int numWordPerChatForMonthlyCount;
+  private String mode;
+  private int numFetchThreads;
+  private int numCountThreads;
+  private int maxMonthsInFlight;
+  private int chunkSize;
+  private int maxWordsInMemory;
+  private File spillDirectory;
+  private int incrementalPageSize;
+  private String nodeId;
+  private long leaseTtlMillis;
 
   public WordCounter(String configFile) throws Exception {
     logger.info("Initializing WordCounter...");
@@ -42,41 +61,137 @@ public class WordCounter {
   }
 
   public void run() throws Exception {
-    List<Long> chatIds = database.getChatIds();
-    for (long chatId : chatIds) {
-      int maxMonthIndex = database.getMaxWordCountTimeRangeIndex(chatId);
-      int currentMonthIndex = getCurrentMonthIndex();
-      for (int monthIndex = maxMonthIndex
-          + 1; monthIndex < currentMonthIndex; monthIndex++) {
-        logger.info("Processing chat:" + chatId + ", year:"
-            + (monthIndex / 12 + 1970) + ", month:" + (monthIndex % 12 + 1));
-        long startEpochSeconds = convertMonthIndexToEpochSeconds(monthIndex);
-        long endEpochSeconds = convertMonthIndexToEpochSeconds(monthIndex + 1);
-        List<Message> messages = database.getMessages(chatId,
-            Arrays.asList(MessageType.TEXT), startEpochSeconds,
-            endEpochSeconds);
-        List<String> texts = new ArrayList<>();
-        for (Message message : messages) {
-          texts.add(message.getContent());
+    if (MODE_INCREMENTAL.equals(mode)) {
+      runIncrementally();
+    } else if (MODE_PIPELINED.equals(mode)) {
+      runPipelined();
+    } else {
+      runSerially();
+    }
+  }
+
+  // Counts one month at a time.
+  private void runSerially() throws Exception {
+    List<ChatInfo> chats = database.getChats(Arrays.asList(MessageType.TEXT));
+    try (WorkLeases leases = new WorkLeases(database, nodeId, leaseTtlMillis,
+        logger)) {
+      for (ChatInfo chat : chats) {
+        long chatId = chat.getChatId();
+        if (!chat.isComplete()) {
+          logger.info("Chat " + chatId + " is not complete in the chat "
+              + "registry yet. Skipped.");
+          continue;
+        }
+        String leaseKey = getLeaseKey(chatId);
+        if (!leases.tryAcquire(leaseKey)) {
+          logger.info("Chat " + chatId + " is leased by another node.");
+          continue;
+        }
+        try {
+          countChatSerially(chatId, leases, leaseKey);
+        } finally {
+          leases.release(leaseKey);
+        }
+      }
+    }
+    logger.info("Task finished.");
+  }
+
+  private void countChatSerially(long chatId, WorkLeases leases,
+      String leaseKey) throws Exception {
+    // Read under the lease, after the last holder has written.
+    ChatInfo chat = database.getChat(chatId, Arrays.asList(MessageType.TEXT));
+    int currentMonthIndex = getCurrentMonthIndex();
+    for (int monthIndex = getFirstMonthToCount(
+        chat); monthIndex < currentMonthIndex; monthIndex++) {
+      if (!leases.isHeld(leaseKey)) {
+        logger.warning("Lost the lease of chat " + chatId + ". Stopped.");
+        return;
+      }
+      logger.info("Processing chat:" + chatId + ", year:"
+          + (monthIndex / 12 + 1970) + ", month:" + (monthIndex % 12 + 1));
+      long startEpochSeconds = convertMonthIndexToEpochSeconds(monthIndex);
+      long endEpochSeconds = convertMonthIndexToEpochSeconds(monthIndex + 1);
+      List<Map.Entry<String, Long>> wordCountList;
+      // Only keep the texts, or the counts of chunks of them, in memory.
+      try (final ChunkedWordCount wordCount = new ChunkedWordCount(nlpUtil,
+          COUNT_STOP_WORDS, chunkSize, maxWordsInMemory, spillDirectory)) {
+        database.streamMessages(chatId, Arrays.asList(MessageType.TEXT),
+            startEpochSeconds, endEpochSeconds, new RowCallback<Message>() {
+              @Override
+              public void onRow(Message message) {
+                try {
+                  wordCount.add(message.getContent());
+                } catch (Exception e) {
+                  throw new IllegalStateException(e);
+                }
+              }
+            });
+        wordCountList = wordCount.getTopWords(numWordPerChatForMonthlyCount);
+      }
+      // Write to database, with the word totals, in one transaction.
+      try {
+        database.addOrUpdateWordCounts(chatId, monthIndex, wordCountList);
+      } catch (SQLException e) {
+        // Retried from this month by the next run.
+        logger.severe("Chat " + chatId + " stopped at month index "
+            + monthIndex + ": " + ExceptionUtils.getStackTrace(e));
+        return;
+      }
+      database.setWatermark(chatId, ChatInfo.MONTHLY_WORD_COUNT, monthIndex);
+    }
+  }
+
+  // Gives the same results as runSerially(), with stages overlapping. The
+  // leases of all chats taken are held until the end. Monthly counts are
+  // deterministic, so a month written again after a lease is lost is
+  // unchanged.
+  private void runPipelined() throws Exception {
+    Map<Long, List<Integer>> monthsByChat = new LinkedHashMap<>();
+    int currentMonthIndex = getCurrentMonthIndex();
+    try (WorkLeases leases = new WorkLeases(database, nodeId, leaseTtlMillis,
+        logger)) {
+      for (ChatInfo chat : database
+          .getChats(Arrays.asList(MessageType.TEXT))) {
+        long chatId = chat.getChatId();
+        if (!chat.isComplete()) {
+          logger.info("Chat " + chatId + " is not complete in the chat "
+              + "registry yet. Skipped.");
+          continue;
+        }
+        if (!leases.tryAcquire(getLeaseKey(chatId))) {
+          logger.info("Chat " + chatId + " is leased by another node.");
+          continue;
         }
-        List<Map.Entry<String, Long>> wordCountList = nlpUtil.countWords(texts,
-            COUNT_STOP_WORDS, numWordPerChatForMonthlyCount);
-        // Write to database.
-        for (Map.Entry<String, Long> wordCount : wordCountList) {
-          try {
-            database.addOrUpdateWordCount(chatId, monthIndex,
-                wordCount.getKey(), wordCount.getValue());
-          } catch (SQLException e) {
-            logger.severe(ExceptionUtils.getStackTrace(e));
-          }
+        // Read again under the lease.
+        chat = database.getChat(chatId, Arrays.asList(MessageType.TEXT));
+        List<Integer> months = new ArrayList<>();
+        for (int monthIndex = getFirstMonthToCount(
+            chat); monthIndex < currentMonthIndex; monthIndex++) {
+          months.add(monthIndex);
         }
+        monthsByChat.put(chatId, months);
       }
+      new WordCountPipeline(database, nlpUtil, COUNT_STOP_WORDS,
+          numWordPerChatForMonthlyCount, chunkSize, maxWordsInMemory,
+          spillDirectory, numFetchThreads, numCountThreads, maxMonthsInFlight,
+          logger).run(monthsByChat);
     }
     logger.info("Task finished.");
   }
 
+  // Counts the messages added since the last run, into daily counts. Monthly
+  // counts include the current month. The bot can also run it in process.
+  private void runIncrementally() throws Exception {
+    String summary = new IncrementalWordCountJob(database, nlpUtil,
+        numWordPerChatForMonthlyCount, incrementalPageSize, nodeId,
+        leaseTtlMillis, logger).run(JobContext.unlimited());
+    logger.info("Task finished. Counted " + summary + ".");
+  }
+
   public void shutdown() throws Exception {
     database.closeConnection();
+    database.shutdown();
     nlpUtil.shutdown();
   }
 
@@ -89,19 +204,66 @@ public class WordCounter {
         String.class);
     String databasePassword = config.get("MySQL", "DatabasePassword",
         String.class);
-    database = new MySQLDatabase(databaseUrl, databaseUsername,
-        databasePassword);
+    database = new MySQLDatabase(new ConnectionPool(databaseUrl,
+        databaseUsername, databasePassword,
+        config.get("MySQL", "ConnectionPoolMinSize", int.class),
+        config.get("MySQL", "ConnectionPoolMaxSize", int.class),
+        config.get("MySQL", "ConnectionPoolMaxWaitMillis", long.class),
+        config.get("MySQL", "ConnectionIdleTimeoutSeconds", long.class) * 1000,
+        config.get("MySQL", "ConnectionValidationIntervalSeconds", long.class)
+            * 1000));
 
     // NLP.
-    String nlpUtilServerHost = config.get("NLP", "NLPUtilServerHost",
-        String.class);
-    int nlpUtilServerPort = config.get("NLP", "NLPUtilServerPort", int.class);
-    nlpUtil = new NLPUtilClientWrapper(nlpUtilServerHost, nlpUtilServerPort);
+    nlpUtil = MessageAnalysisBot.createNLPEngine(config);
     numWordPerChatForMonthlyCount = config.get("NLP",
         "NumWordPerChatForMonthlyCount", int.class);
+
+    // Word counter.
+    mode = config.get("WordCounter", "Mode", String.class);
+    mode = mode == null ? "" : mode.toLowerCase(Locale.ROOT);
+    if (!MODE_SERIAL.equals(mode) && !MODE_PIPELINED.equals(mode)
+        && !MODE_INCREMENTAL.equals(mode)) {
+      throw new IllegalArgumentException("Unknown word counter mode: " + mode
+          + ". Valid values: " + MODE_SERIAL + ", " + MODE_PIPELINED + ", "
+          + MODE_INCREMENTAL);
+    }
+    numFetchThreads = config.get("WordCounter", "NumFetchThreads", int.class);
+    numCountThreads = config.get("WordCounter", "NumCountThreads", int.class);
+    maxMonthsInFlight = config.get("WordCounter", "MaxMonthsInFlight",
+        int.class);
+    chunkSize = config.get("WordCounter", "ChunkSize", int.class);
+    maxWordsInMemory = config.get("WordCounter", "MaxWordsInMemory", int.class);
+    String spillDirectoryPath = config.get("WordCounter", "SpillDirectory",
+        String.class);
+    spillDirectory = spillDirectoryPath == null || spillDirectoryPath.isEmpty()
+        ? null : new File(spillDirectoryPath);
+    incrementalPageSize = config.get("WordCounter", "IncrementalPageSize",
+        int.class);
+
+    // Cluster.
+    nodeId = config.get("Cluster", "NodeId", String.class);
+    leaseTtlMillis = config.get("Cluster", "LeaseTTLSeconds", long.class)
+        * 1000;
+  }
+
+  /**
+   * @param chatId
+   * @return The key of the lease on counting the words of the chat, shared by
+   *         all modes.
+   */
+  static String getLeaseKey(long chatId) {
+    return LEASE_KEY_PREFIX + chatId;
+  }
+
+  // The month after the last one counted, or the month of the first message
+  // if that is later.
+  static int getFirstMonthToCount(ChatInfo chat) {
+    return Math.max((int) chat.getWatermark(ChatInfo.MONTHLY_WORD_COUNT) + 1,
+        IncrementalWordCount.getMonthIndex(
+            IncrementalWordCount.getDayIndex(chat.getFirstEpochSeconds())));
   }
 
-  private long convertMonthIndexToEpochSeconds(int monthIndex) {
+  static long convertMonthIndexToEpochSeconds(int monthIndex) {
     int year = monthIndex / 12 + 1970;
     int month = monthIndex % 12; // [0,11]
     Calendar calendar = Calendar.getInstance();
@@ -0,0 +1,153 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+
+/**
+ * The leases held by this node on work shared with other nodes, e.g. the
+ * chats to count. A background thread renews them every third of their time
+ * to live. A node that dies stops renewing, and its leases can be taken by
+ * another node once they expire.
+ *
+ * A lease can be lost, e.g. if renewal is delayed past expiry, so writes must
+ * also be safe to repeat or be checked against the database.
+ */
+class WorkLeases implements Closeable {
+
+  private DatabaseInterface database;
+  private String owner;
+  private long ttlMillis;
+  private Logger logger;
+
+  private Set<String> heldKeys = ConcurrentHashMap.newKeySet();
+  private ScheduledExecutorService renewer;
+
+  /**
+   * @param database
+   * @param owner
+   *          The id of this node. Null or empty means "pid@host name".
+   * @param ttlMillis
+   * @param logger
+   */
+  WorkLeases(DatabaseInterface database, String owner, long ttlMillis,
+      Logger logger) {
+    if (ttlMillis <= 0) {
+      throw new IllegalArgumentException("Lease TTL must be positive.");
+    }
+    this.database = database;
+    this.owner = owner == null || owner.isEmpty()
+        ? ManagementFactory.getRuntimeMXBean().getName() : owner;
+    this.ttlMillis = ttlMillis;
+    this.logger = logger;
+    renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "lease-renewer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long intervalMillis = Math.max(1L, ttlMillis / 3);
+    renewer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        renewAll();
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  String getOwner() {
+    return owner;
+  }
+
+  /**
+   * @param key
+   * @return true if this node holds the lease now.
+   * @throws SQLException
+   */
+  @SuppressWarnings("try")
+  boolean tryAcquire(String key) throws SQLException {
+    boolean isAcquired;
+    try (DatabaseSession session = database.openSession()) {
+      isAcquired = database.tryAcquireLease(key, owner, ttlMillis);
+    }
+    if (isAcquired) {
+      heldKeys.add(key);
+    }
+    return isAcquired;
+  }
+
+  /**
+   * @param key
+   * @return false if the lease was released, or lost on renewal.
+   */
+  boolean isHeld(String key) {
+    return heldKeys.contains(key);
+  }
+
+  // Synchronized with renewal, which would take a released lease again.
+  @SuppressWarnings("try")
+  synchronized void release(String key) {
+    if (!heldKeys.remove(key)) {
+      return;
+    }
+    try (DatabaseSession session = database.openSession()) {
+      database.releaseLease(key, owner);
+    } catch (SQLException e) {
+      // It expires anyway.
+      logger.warning("Failed to release lease " + key + ": " + e);
+    }
+  }
+
+  /**
+   * Stops renewing and releases all leases.
+   */
+  @Override
+  public void close() {
+    renewer.shutdownNow();
+    for (String key : new ArrayList<>(heldKeys)) {
+      release(key);
+    }
+  }
+
+  private void renewAll() {
+    List<String> keys = new ArrayList<>(heldKeys);
+    for (String key : keys) {
+      renew(key);
+    }
+  }
+
+  @SuppressWarnings("try")
+  private synchronized void renew(String key) {
+    // Released in the meantime.
+    if (!heldKeys.contains(key)) {
+      return;
+    }
+    try (DatabaseSession session = database.openSession()) {
+      if (!database.tryAcquireLease(key, owner, ttlMillis)) {
+        heldKeys.remove(key);
+        logger.warning("Lost lease " + key + " to another node.");
+      }
+    } catch (Exception e) {
+      // Retried on the next round, while the lease has not expired.
+      logger.severe("Failed to renew lease " + key + ": "
+          + ExceptionUtils.getStackTrace(e));
+    }
+  }
+
+}
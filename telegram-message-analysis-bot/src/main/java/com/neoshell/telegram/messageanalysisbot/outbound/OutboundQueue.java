@@ -0,0 +1,434 @@
+package com.neoshell.telegram.messageanalysisbot.outbound;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import com.neoshell.telegram.messageanalysisbot.MessageAnalysisBot;
+
+/**
+ * Sends messages to Telegram on background threads within its rate limits.
+ *
+ * Each chat has a token bucket, and all chats share a global one. Messages of
+ * the same chat are sent one at a time in submission order, while chats take
+ * turns. A chat is paused for retry_after seconds when Telegram answers 429.
+ * Consecutive short texts to the same chat are sent as one message.
+ */
+public class OutboundQueue {
+
+  /**
+   * Calls the Telegram API. Blocking.
+   */
+  public interface Sender {
+
+    public Message send(SendMessage sendMessage) throws TelegramApiException;
+
+    public Message send(SendPhoto sendPhoto) throws TelegramApiException;
+
+  }
+
+  private static final int MAX_ATTEMPTS = 5;
+  private static final int TOO_MANY_REQUESTS = 429;
+  // Idle chats are forgotten once there are this many and their buckets are
+  // full again.
+  private static final int MAX_IDLE_CHATS = 1000;
+
+  private Sender sender;
+  private int maxTextLength;
+  private int numSenderThreads;
+  private double chatBurst;
+  private double chatMessagesPerSecond;
+
+  private final Object lock = new Object();
+  // Fields below are guarded by lock.
+  private TokenBucket globalBucket;
+  private Map<Long, ChatLane> lanes = new HashMap<>();
+  // Lanes that have messages and none in flight, in turn order.
+  private Deque<ChatLane> readyLanes = new ArrayDeque<>();
+  private int numPending = 0;
+  private boolean isShuttingDown = false;
+
+  private List<Thread> senderThreads = new ArrayList<>();
+  private AtomicLong numSent = new AtomicLong();
+  private AtomicLong numCoalesced = new AtomicLong();
+  private AtomicLong numRateLimited = new AtomicLong();
+  private AtomicLong numFailed = new AtomicLong();
+
+  /**
+   * @param sender
+   * @param maxTextLength
+   *          Texts are not coalesced beyond this length.
+   * @param numSenderThreads
+   * @param globalMessagesPerSecond
+   * @param chatMessagesPerMinute
+   * @param chatBurst
+   *          Max number of messages a chat can get at once.
+   */
+  public OutboundQueue(Sender sender, int maxTextLength, int numSenderThreads,
+      double globalMessagesPerSecond, double chatMessagesPerMinute,
+      int chatBurst) {
+    if (numSenderThreads <= 0 || globalMessagesPerSecond <= 0
+        || chatMessagesPerMinute <= 0 || chatBurst <= 0) {
+      throw new IllegalArgumentException(
+          "Sender threads, rates and burst must be positive.");
+    }
+    this.sender = sender;
+    this.maxTextLength = maxTextLength;
+    this.numSenderThreads = numSenderThreads;
+    this.chatBurst = chatBurst;
+    chatMessagesPerSecond = chatMessagesPerMinute / 60.0;
+    globalBucket = new TokenBucket(Math.max(1.0, globalMessagesPerSecond),
+        globalMessagesPerSecond, System.nanoTime());
+  }
+
+  public void start() {
+    for (int i = 0; i < numSenderThreads; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          runSender();
+        }
+      }, "outbound-sender-" + (i + 1));
+      senderThreads.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * Sends the messages queued so far and stops.
+   *
+   * @param timeoutMillis
+   * @throws InterruptedException
+   */
+  public void shutdown(long timeoutMillis) throws InterruptedException {
+    synchronized (lock) {
+      isShuttingDown = true;
+      lock.notifyAll();
+    }
+    long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+    for (Thread thread : senderThreads) {
+      thread.join(Math.max(1L, deadlineMillis - System.currentTimeMillis()));
+    }
+    for (Thread thread : senderThreads) {
+      if (thread.isAlive()) {
+        MessageAnalysisBot.getLogger().warning("Outbound queue did not finish "
+            + "in time. " + numPending + " message(s) dropped.");
+        thread.interrupt();
+      }
+    }
+  }
+
+  /**
+   * @param sendMessage
+   *          Must not be longer than maxTextLength.
+   * @return Completes when the text is sent, with the message that contains
+   *         it.
+   */
+  public CompletableFuture<Message> sendText(SendMessage sendMessage) {
+    CompletableFuture<Message> future = new CompletableFuture<>();
+    long chatId = Long.parseLong(sendMessage.getChatId());
+    synchronized (lock) {
+      ChatLane lane = getLane(chatId);
+      OutboundRequest last = lane.requests.peekLast();
+      if (last != null && canCoalesce(last.sendMessage, sendMessage)) {
+        last.sendMessage
+            .setText(last.sendMessage.getText() + "\n" + sendMessage.getText());
+        last.futures.add(future);
+        numCoalesced.incrementAndGet();
+        return future;
+      }
+      enqueue(lane, new OutboundRequest(chatId, sendMessage, null, null, null,
+          null, future));
+    }
+    return future;
+  }
+
+  /**
+   * @param chatId
+   * @param photo
+   *          The encoded image.
+   * @param fileName
+   * @param caption
+   * @return Completes when the photo is sent.
+   */
+  public CompletableFuture<Message> sendPhoto(long chatId, byte[] photo,
+      String fileName, String caption) {
+    return sendPhoto(chatId, photo, fileName, null, caption);
+  }
+
+  /**
+   * @param chatId
+   * @param fileId
+   *          Telegram file id of a photo sent before.
+   * @param caption
+   * @return Completes when the photo is sent.
+   */
+  public CompletableFuture<Message> sendPhoto(long chatId, String fileId,
+      String caption) {
+    return sendPhoto(chatId, null, null, fileId, caption);
+  }
+
+  public String getStats() {
+    int numChats;
+    int numPaused = 0;
+    int pending;
+    synchronized (lock) {
+      numChats = lanes.size();
+      long nowNanos = System.nanoTime();
+      for (ChatLane lane : lanes.values()) {
+        if (lane.notBeforeNanos - nowNanos > 0) {
+          numPaused++;
+        }
+      }
+      pending = numPending;
+    }
+    return "pending=" + pending + ", sent=" + numSent.get() + ", coalesced="
+        + numCoalesced.get() + ", rateLimited=" + numRateLimited.get()
+        + ", failed=" + numFailed.get() + ", chats=" + numChats
+        + ", pausedChats=" + numPaused;
+  }
+
+  private CompletableFuture<Message> sendPhoto(long chatId, byte[] photo,
+      String fileName, String fileId, String caption) {
+    CompletableFuture<Message> future = new CompletableFuture<>();
+    synchronized (lock) {
+      enqueue(getLane(chatId), new OutboundRequest(chatId, null, photo,
+          fileName, fileId, caption, future));
+    }
+    return future;
+  }
+
+  // Texts are merged if neither replies to a message and they are formatted
+  // the same way.
+  private boolean canCoalesce(SendMessage queued, SendMessage next) {
+    return queued != null && queued.getReplyToMessageId() == null
+        && next.getReplyToMessageId() == null
+        && Objects.equals(queued.getParseMode(), next.getParseMode())
+        && queued.getText().length() + 1
+            + next.getText().length() <= maxTextLength;
+  }
+
+  // Must hold lock.
+  private ChatLane getLane(long chatId) {
+    ChatLane lane = lanes.get(chatId);
+    if (lane == null) {
+      if (lanes.size() >= MAX_IDLE_CHATS) {
+        forgetIdleLanes();
+      }
+      long nowNanos = System.nanoTime();
+      lane = new ChatLane(
+          new TokenBucket(chatBurst, chatMessagesPerSecond, nowNanos),
+          nowNanos);
+      lanes.put(chatId, lane);
+    }
+    return lane;
+  }
+
+  // Must hold lock.
+  private void enqueue(ChatLane lane, OutboundRequest request) {
+    if (isShuttingDown) {
+      request.fail(new IllegalStateException("Outbound queue is shut down."));
+      return;
+    }
+    lane.requests.addLast(request);
+    numPending++;
+    if (!lane.isInFlight && lane.requests.size() == 1) {
+      readyLanes.addLast(lane);
+      lock.notify();
+    }
+  }
+
+  // Must hold lock. Idle lanes with full buckets behave like new ones.
+  private void forgetIdleLanes() {
+    long nowNanos = System.nanoTime();
+    Iterator<ChatLane> iterator = lanes.values().iterator();
+    while (iterator.hasNext()) {
+      ChatLane lane = iterator.next();
+      if (!lane.isInFlight && lane.requests.isEmpty()
+          && lane.notBeforeNanos - nowNanos <= 0 && lane.bucket.isFull(nowNanos)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private void runSender() {
+    while (true) {
+      OutboundRequest request;
+      ChatLane lane;
+      synchronized (lock) {
+        lane = takeReadyLane();
+        if (lane == null) {
+          return; // Shut down and nothing left.
+        }
+        request = lane.requests.pollFirst();
+        lane.isInFlight = true;
+      }
+      boolean isRetrying = false;
+      long retryAfterSeconds = 0L;
+      try {
+        Message message = send(request);
+        numSent.incrementAndGet();
+        request.complete(message);
+      } catch (TelegramApiRequestException e) {
+        Integer retryAfter = e.getParameters() != null
+            ? e.getParameters().getRetryAfter() : null;
+        if (e.getErrorCode() != null && e.getErrorCode() == TOO_MANY_REQUESTS
+            && retryAfter != null && ++request.numAttempts < MAX_ATTEMPTS) {
+          numRateLimited.incrementAndGet();
+          isRetrying = true;
+          retryAfterSeconds = retryAfter;
+        } else {
+          fail(request, e);
+        }
+      } catch (Exception e) {
+        fail(request, e);
+      }
+      synchronized (lock) {
+        lane.isInFlight = false;
+        if (isRetrying) {
+          lane.requests.addFirst(request);
+          lane.notBeforeNanos = System.nanoTime()
+              + TimeUnit.SECONDS.toNanos(retryAfterSeconds);
+        } else {
+          numPending--;
+        }
+        if (!lane.requests.isEmpty()) {
+          readyLanes.addLast(lane);
+          lock.notify();
+        }
+      }
+    }
+  }
+
+  // Must hold lock. Waits until a lane may send. Returns null when shutting
+  // down and there is nothing left to send.
+  private ChatLane takeReadyLane() {
+    while (true) {
+      if (isShuttingDown && numPending == 0) {
+        lock.notifyAll();
+        return null;
+      }
+      long nowNanos = System.nanoTime();
+      long waitNanos = Long.MAX_VALUE;
+      long globalWaitNanos = globalBucket.getWaitNanos(nowNanos);
+      if (globalWaitNanos > 0) {
+        waitNanos = globalWaitNanos;
+      } else {
+        for (int i = readyLanes.size(); i > 0; i--) {
+          ChatLane lane = readyLanes.pollFirst();
+          long laneWaitNanos = Math.max(lane.notBeforeNanos - nowNanos,
+              lane.bucket.getWaitNanos(nowNanos));
+          if (laneWaitNanos <= 0) {
+            globalBucket.take(nowNanos);
+            lane.bucket.take(nowNanos);
+            return lane;
+          }
+          waitNanos = Math.min(waitNanos, laneWaitNanos);
+          readyLanes.addLast(lane);
+        }
+      }
+      try {
+        if (waitNanos == Long.MAX_VALUE) {
+          lock.wait();
+        } else {
+          lock.wait(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+  }
+
+  private Message send(OutboundRequest request) throws TelegramApiException {
+    if (request.sendMessage != null) {
+      return sender.send(request.sendMessage);
+    }
+    SendPhoto sendPhoto = new SendPhoto();
+    sendPhoto.setChatId(Long.valueOf(request.chatId).toString());
+    // Build the input file on every attempt, since the stream is consumed.
+    sendPhoto.setPhoto(request.photoFileId != null
+        ? new InputFile(request.photoFileId)
+        : new InputFile(new ByteArrayInputStream(request.photo),
+            request.photoFileName));
+    sendPhoto.setCaption(request.caption);
+    return sender.send(sendPhoto);
+  }
+
+  private void fail(OutboundRequest request, Exception e) {
+    numFailed.incrementAndGet();
+    MessageAnalysisBot.getLogger().severe("Failed to send to chat "
+        + request.chatId + ": " + ExceptionUtils.getStackTrace(e));
+    request.fail(e);
+  }
+
+  private static class ChatLane {
+    private TokenBucket bucket;
+    // Fields below are guarded by the queue lock.
+    private Deque<OutboundRequest> requests = new ArrayDeque<>();
+    private boolean isInFlight = false;
+    // Paused until then after a 429.
+    private long notBeforeNanos;
+
+    public ChatLane(TokenBucket bucket, long nowNanos) {
+      this.bucket = bucket;
+      notBeforeNanos = nowNanos;
+    }
+  }
+
+  private static class OutboundRequest {
+    private long chatId;
+    // Either a text, or a photo given by bytes or file id.
+    private SendMessage sendMessage;
+    private byte[] photo;
+    private String photoFileName;
+    private String photoFileId;
+    private String caption;
+    // More than one if texts are coalesced.
+    private List<CompletableFuture<Message>> futures = new ArrayList<>();
+    private int numAttempts = 0;
+
+    public OutboundRequest(long chatId, SendMessage sendMessage,
+        byte[] photo, String photoFileName, String photoFileId,
+        String caption, CompletableFuture<Message> future) {
+      this.chatId = chatId;
+      this.sendMessage = sendMessage;
+      this.photo = photo;
+      this.photoFileName = photoFileName;
+      this.photoFileId = photoFileId;
+      this.caption = caption;
+      futures.add(future);
+    }
+
+    public void complete(Message message) {
+      for (CompletableFuture<Message> future : futures) {
+        future.complete(message);
+      }
+    }
+
+    public void fail(Exception e) {
+      for (CompletableFuture<Message> future : futures) {
+        future.completeExceptionally(e);
+      }
+    }
+  }
+
+}
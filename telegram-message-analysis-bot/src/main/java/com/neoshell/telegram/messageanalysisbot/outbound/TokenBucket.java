@@ -0,0 +1,63 @@
+package com.neoshell.telegram.messageanalysisbot.outbound;
+
+/**
+ * Allows bursts of up to capacity sends, refilled at a fixed rate. Not
+ * thread-safe.
+ */
+class TokenBucket {
+
+  private double capacity;
+  private double tokensPerNano;
+  private double tokens;
+  private long lastRefillNanos;
+
+  /**
+   * @param capacity
+   *          Max number of sends in a burst.
+   * @param tokensPerSecond
+   * @param nowNanos
+   *          From System.nanoTime(). The bucket starts full.
+   */
+  TokenBucket(double capacity, double tokensPerSecond, long nowNanos) {
+    this.capacity = capacity;
+    this.tokensPerNano = tokensPerSecond / 1e9;
+    tokens = capacity;
+    lastRefillNanos = nowNanos;
+  }
+
+  /**
+   * @param nowNanos
+   * @return How long until a token is available. 0 if one is available now.
+   */
+  long getWaitNanos(long nowNanos) {
+    refill(nowNanos);
+    if (tokens >= 1.0) {
+      return 0L;
+    }
+    return (long) Math.ceil((1.0 - tokens) / tokensPerNano);
+  }
+
+  /**
+   * Takes a token. Call only when getWaitNanos returns 0.
+   *
+   * @param nowNanos
+   */
+  void take(long nowNanos) {
+    refill(nowNanos);
+    tokens -= 1.0;
+  }
+
+  boolean isFull(long nowNanos) {
+    refill(nowNanos);
+    return tokens >= capacity;
+  }
+
+  private void refill(long nowNanos) {
+    if (nowNanos > lastRefillNanos) {
+      tokens = Math.min(capacity,
+          tokens + (nowNanos - lastRefillNanos) * tokensPerNano);
+      lastRefillNanos = nowNanos;
+    }
+  }
+
+}
@@ -0,0 +1,207 @@
+package com.neoshell.telegram.messageanalysisbot.replygraph;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reply scores of one chat, bucketed by hour. Not thread safe.
+ *
+ * An explicit reply scores 1. A message that is not a reply implicitly replies
+ * to the senders of the previous implicitReplyRange messages, scoring
+ * 1/implicitReplyRange for each of them.
+ */
+class ChatReplyGraph {
+
+  static final long SECONDS_PER_HOUR = 3600L;
+  // Replies scored by one fork/join task when loading.
+  private static final int SEGMENT_SIZE = 1 << 14;
+
+  private int implicitReplyRange;
+  private int maxWindowHours;
+
+  // Senders of the latest messages, for implicit replies.
+  private long[] recentUserIds;
+  private int numMessages = 0;
+  private long lastMessageId = 0L;
+  // Hour index -> scores of the replies sent in that hour.
+  private TreeMap<Long, ReplyScoreAccumulator> hourlyScores = new TreeMap<>();
+
+  ChatReplyGraph(int implicitReplyRange, int maxWindowHours) {
+    this.implicitReplyRange = implicitReplyRange;
+    this.maxWindowHours = maxWindowHours;
+    recentUserIds = new long[implicitReplyRange];
+  }
+
+  /**
+   * Messages must be added in the order they were sent. Messages not newer
+   * than the last added one are ignored.
+   *
+   * @return false if the message is ignored.
+   */
+  boolean addReply(long messageId, long userId, long replyToUserId,
+      long epochSeconds) {
+    if (messageId <= lastMessageId) {
+      return false;
+    }
+    lastMessageId = messageId;
+    long hourIndex = epochSeconds / SECONDS_PER_HOUR;
+    ReplyScoreAccumulator scores = hourlyScores.get(hourIndex);
+    if (scores == null) {
+      scores = new ReplyScoreAccumulator();
+      hourlyScores.put(hourIndex, scores);
+      evictBefore(hourIndex - maxWindowHours);
+    }
+    addScores(scores, userId, replyToUserId, recentUserIds,
+        Math.min(numMessages, recentUserIds.length), implicitReplyRange);
+    recentUserIds[numMessages % recentUserIds.length] = userId;
+    numMessages++;
+    return true;
+  }
+
+  /**
+   * Adds all replies of the log to an empty graph. Large logs are split into
+   * segments scored in parallel on the common fork/join pool. Each segment
+   * also reads the implicitReplyRange replies before it, so the result is the
+   * same as adding the replies one by one.
+   *
+   * @param log
+   */
+  void addReplies(ReplyLog log) {
+    if (lastMessageId != 0L) {
+      throw new IllegalStateException("The graph is not empty.");
+    }
+    int size = log.size();
+    if (size == 0) {
+      return;
+    }
+    hourlyScores = new ScoreTask(log, 0, size, implicitReplyRange).invoke();
+    for (int i = Math.max(0, size - recentUserIds.length); i < size; i++) {
+      recentUserIds[i % recentUserIds.length] = log.getUserId(i);
+    }
+    numMessages = size;
+    lastMessageId = log.getMessageId(size - 1);
+    evictBefore(
+        log.getEpochSeconds(size - 1) / SECONDS_PER_HOUR - maxWindowHours);
+  }
+
+  /**
+   * @param startEpochSeconds
+   *          Rounded down to the hour.
+   * @return Total scores of the replies sent since then.
+   */
+  ReplyScoreAccumulator getScores(long startEpochSeconds) {
+    ReplyScoreAccumulator totalScores = new ReplyScoreAccumulator();
+    for (ReplyScoreAccumulator scores : hourlyScores
+        .tailMap(startEpochSeconds / SECONDS_PER_HOUR, true).values()) {
+      totalScores.addAll(scores);
+    }
+    return totalScores;
+  }
+
+  void evictBefore(long hourIndex) {
+    hourlyScores.headMap(hourIndex, false).clear();
+  }
+
+  long getLastMessageId() {
+    return lastMessageId;
+  }
+
+  int getNumBuckets() {
+    return hourlyScores.size();
+  }
+
+  int getNumEdges() {
+    int numEdges = 0;
+    for (ReplyScoreAccumulator scores : hourlyScores.values()) {
+      numEdges += scores.size();
+    }
+    return numEdges;
+  }
+
+  static void addScores(ReplyScoreAccumulator scores, long userId,
+      long replyToUserId, long[] recentUserIds, int numRecentUserIds,
+      int implicitReplyRange) {
+    if (replyToUserId != 0) {
+      scores.add(userId, replyToUserId, true, 1.0);
+      return;
+    }
+    for (int i = 0; i < numRecentUserIds; i++) {
+      if (recentUserIds[i] == userId) {
+        continue; // Skip if the user implicitly replied to himself.
+      }
+      scores.add(userId, recentUserIds[i], false, 1.0 / implicitReplyRange);
+    }
+  }
+
+  // Scores the replies in [from, to) of the log into hourly buckets.
+  @SuppressWarnings("serial")
+  private static class ScoreTask
+      extends RecursiveTask<TreeMap<Long, ReplyScoreAccumulator>> {
+
+    private ReplyLog log;
+    private int from;
+    private int to;
+    private int implicitReplyRange;
+
+    public ScoreTask(ReplyLog log, int from, int to, int implicitReplyRange) {
+      this.log = log;
+      this.from = from;
+      this.to = to;
+      this.implicitReplyRange = implicitReplyRange;
+    }
+
+    @Override
+    protected TreeMap<Long, ReplyScoreAccumulator> compute() {
+      if (to - from <= SEGMENT_SIZE) {
+        return scoreSegment();
+      }
+      int middle = (from + to) >>> 1;
+      ScoreTask right = new ScoreTask(log, middle, to, implicitReplyRange);
+      right.fork();
+      TreeMap<Long, ReplyScoreAccumulator> merged = new ScoreTask(log, from,
+          middle, implicitReplyRange).compute();
+      // Only the hour on the boundary can be in both halves.
+      for (Map.Entry<Long, ReplyScoreAccumulator> entry : right.join()
+          .entrySet()) {
+        ReplyScoreAccumulator scores = merged.get(entry.getKey());
+        if (scores == null) {
+          merged.put(entry.getKey(), entry.getValue());
+        } else {
+          scores.addAll(entry.getValue());
+        }
+      }
+      return merged;
+    }
+
+    private TreeMap<Long, ReplyScoreAccumulator> scoreSegment() {
+      TreeMap<Long, ReplyScoreAccumulator> hourlyScores = new TreeMap<>();
+      long[] recentUserIds = new long[implicitReplyRange];
+      int numRecentUserIds = 0;
+      long currentHourIndex = -1L;
+      ReplyScoreAccumulator scores = null;
+      // Start early to fill recentUserIds with the replies before the segment.
+      for (int i = Math.max(0, from - implicitReplyRange); i < to; i++) {
+        long userId = log.getUserId(i);
+        if (i >= from) {
+          long hourIndex = log.getEpochSeconds(i) / SECONDS_PER_HOUR;
+          if (scores == null || hourIndex != currentHourIndex) {
+            currentHourIndex = hourIndex;
+            scores = hourlyScores.get(hourIndex);
+            if (scores == null) {
+              scores = new ReplyScoreAccumulator();
+              hourlyScores.put(hourIndex, scores);
+            }
+          }
+          addScores(scores, userId, log.getReplyToUserId(i), recentUserIds,
+              Math.min(numRecentUserIds, implicitReplyRange),
+              implicitReplyRange);
+        }
+        recentUserIds[numRecentUserIds % implicitReplyRange] = userId;
+        numRecentUserIds++;
+      }
+      return hourlyScores;
+    }
+  }
+
+}
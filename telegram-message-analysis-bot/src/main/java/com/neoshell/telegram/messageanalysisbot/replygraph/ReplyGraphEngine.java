@@ -0,0 +1,174 @@
+package com.neoshell.telegram.messageanalysisbot.replygraph;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseInterface;
+import com.neoshell.telegram.messageanalysisbot.database.DatabaseSession;
+import com.neoshell.telegram.messageanalysisbot.database.ReplyCallback;
+import com.neoshell.telegram.messageanalysisbot.handler.ReplyStats;
+import com.neoshell.telegram.messageanalysisbot.ingestion.IngestionListener;
+
+/**
+ * Keeps the reply graph of each chat in memory, fed by the ingestion pipeline.
+ *
+ * The graph of a chat is loaded from database on its first query and then
+ * kept up to date with the written messages, so queries never scan the
+ * messages table again. Only the last maxWindowDays are kept.
+ */
+public class ReplyGraphEngine implements IngestionListener {
+
+  private DatabaseInterface database;
+  private int implicitReplyRange;
+  private int maxWindowDays;
+
+  private Map<Long, ChatEntry> chats = new ConcurrentHashMap<>();
+  private AtomicLong numLoads = new AtomicLong();
+  private AtomicLong numQueries = new AtomicLong();
+
+  public ReplyGraphEngine(DatabaseInterface database, int implicitReplyRange,
+      int maxWindowDays) {
+    if (implicitReplyRange <= 0 || maxWindowDays <= 0) {
+      throw new IllegalArgumentException(
+          "Implicit reply range and max window must be positive.");
+    }
+    this.database = database;
+    this.implicitReplyRange = implicitReplyRange;
+    this.maxWindowDays = maxWindowDays;
+  }
+
+  public int getImplicitReplyRange() {
+    return implicitReplyRange;
+  }
+
+  public int getMaxWindowDays() {
+    return maxWindowDays;
+  }
+
+  @Override
+  public void onMessagesWritten(List<Message> messages) {
+    for (Message message : messages) {
+      ChatEntry entry = chats.get(message.getChatId());
+      if (entry == null) {
+        continue; // Not queried yet. Loaded from database when needed.
+      }
+      synchronized (entry) {
+        if (entry.graph != null) {
+          entry.graph.addReply(message.getMessageId(), message.getUserId(),
+              message.getReplyToUserId(), message.getEpochSeconds());
+        } else {
+          entry.pendingMessages.add(message);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param chatId
+   * @param startEpochSeconds
+   *          Rounded down to the hour. Must be within the last maxWindowDays.
+   * @param limit
+   * @return The replies with the highest scores since startEpochSeconds, in
+   *         descending order of score.
+   * @throws SQLException
+   */
+  public List<ReplyStats> getTopReplies(long chatId, long startEpochSeconds,
+      int limit) throws SQLException {
+    numQueries.incrementAndGet();
+    ChatEntry entry = chats.get(chatId);
+    if (entry == null) {
+      ChatEntry newEntry = new ChatEntry();
+      entry = chats.putIfAbsent(chatId, newEntry);
+      if (entry == null) {
+        entry = newEntry;
+      }
+    }
+    loadIfNeeded(chatId, entry);
+
+    ReplyScoreAccumulator scores;
+    synchronized (entry) {
+      entry.graph.evictBefore(getMinHourIndex());
+      scores = entry.graph.getScores(startEpochSeconds);
+    }
+    return scores.getTopK(limit);
+  }
+
+  public String getStats() {
+    int numLoaded = 0;
+    long numBuckets = 0;
+    long numEdges = 0;
+    for (ChatEntry entry : chats.values()) {
+      synchronized (entry) {
+        if (entry.graph != null) {
+          numLoaded++;
+          numBuckets += entry.graph.getNumBuckets();
+          numEdges += entry.graph.getNumEdges();
+        }
+      }
+    }
+    return "chats=" + numLoaded + ", hourlyBuckets=" + numBuckets + ", edges="
+        + numEdges + ", loads=" + numLoads.get() + ", queries="
+        + numQueries.get() + ", maxWindowDays=" + maxWindowDays;
+  }
+
+  // Loads the graph from database without blocking the ingestion writer.
+  // Messages written meanwhile are queued and replayed on top of it.
+  @SuppressWarnings("try")
+  private void loadIfNeeded(long chatId, ChatEntry entry) throws SQLException {
+    synchronized (entry.loadLock) {
+      synchronized (entry) {
+        if (entry.graph != null) {
+          return;
+        }
+        entry.pendingMessages.clear();
+      }
+      final ReplyLog log = new ReplyLog();
+      long startEpochSeconds = getMinHourIndex()
+          * ChatReplyGraph.SECONDS_PER_HOUR;
+      try (DatabaseSession session = database.openSession()) {
+        database.streamReplies(chatId, startEpochSeconds, Long.MAX_VALUE,
+            new ReplyCallback() {
+              @Override
+              public void onReply(long messageId, long userId,
+                  long replyToUserId, long epochSeconds) {
+                log.add(messageId, userId, replyToUserId, epochSeconds);
+              }
+            });
+      }
+      ChatReplyGraph graph = new ChatReplyGraph(implicitReplyRange,
+          maxWindowDays * 24);
+      graph.addReplies(log);
+      synchronized (entry) {
+        // Messages already loaded from database are skipped by message id.
+        for (Message message : entry.pendingMessages) {
+          graph.addReply(message.getMessageId(), message.getUserId(),
+              message.getReplyToUserId(), message.getEpochSeconds());
+        }
+        entry.pendingMessages.clear();
+        entry.graph = graph;
+      }
+      numLoads.incrementAndGet();
+    }
+  }
+
+  private long getMinHourIndex() {
+    return System.currentTimeMillis() / 1000L / ChatReplyGraph.SECONDS_PER_HOUR
+        - maxWindowDays * 24L;
+  }
+
+  private static class ChatEntry {
+    // Held while loading, so the graph is loaded only once.
+    private final Object loadLock = new Object();
+    // Fields below are guarded by the entry itself.
+    // null until loaded.
+    private ChatReplyGraph graph;
+    // Messages written while the graph is being loaded.
+    private List<Message> pendingMessages = new ArrayList<>();
+  }
+
+}
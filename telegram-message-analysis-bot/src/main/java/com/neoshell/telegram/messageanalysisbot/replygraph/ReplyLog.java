@@ -0,0 +1,64 @@
+package com.neoshell.telegram.messageanalysisbot.replygraph;
+
+import java.util.Arrays;
+
+/**
+ * Replies of a chat in the order they were sent, kept in primitive arrays so
+ * that they can be scored in parallel segments. Not thread-safe.
+ */
+class ReplyLog {
+
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  private long[] messageIds = new long[DEFAULT_CAPACITY];
+  private long[] userIds = new long[DEFAULT_CAPACITY];
+  private long[] replyToUserIds = new long[DEFAULT_CAPACITY];
+  private long[] epochSeconds = new long[DEFAULT_CAPACITY];
+  private int size = 0;
+
+  /**
+   * Replies not newer than the last added one are ignored.
+   *
+   * @return false if the reply is ignored.
+   */
+  boolean add(long messageId, long userId, long replyToUserId,
+      long epochSeconds) {
+    if (size > 0 && messageId <= messageIds[size - 1]) {
+      return false;
+    }
+    if (size == messageIds.length) {
+      int newCapacity = size << 1;
+      messageIds = Arrays.copyOf(messageIds, newCapacity);
+      userIds = Arrays.copyOf(userIds, newCapacity);
+      replyToUserIds = Arrays.copyOf(replyToUserIds, newCapacity);
+      this.epochSeconds = Arrays.copyOf(this.epochSeconds, newCapacity);
+    }
+    messageIds[size] = messageId;
+    userIds[size] = userId;
+    replyToUserIds[size] = replyToUserId;
+    this.epochSeconds[size] = epochSeconds;
+    size++;
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  long getMessageId(int i) {
+    return messageIds[i];
+  }
+
+  long getUserId(int i) {
+    return userIds[i];
+  }
+
+  long getReplyToUserId(int i) {
+    return replyToUserIds[i];
+  }
+
+  long getEpochSeconds(int i) {
+    return epochSeconds[i];
+  }
+
+}
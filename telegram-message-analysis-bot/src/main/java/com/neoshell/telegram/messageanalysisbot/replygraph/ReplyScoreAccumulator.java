@@ -0,0 +1,210 @@
+package com.neoshell.telegram.messageanalysisbot.replygraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.neoshell.telegram.messageanalysisbot.handler.ReplyStats;
+
+/**
+ * Sums the scores of (user, reply-to user, explicit or not) edges. Keys are
+ * kept in parallel primitive arrays with open addressing and linear probing,
+ * so adding a score allocates nothing. Not thread-safe.
+ */
+class ReplyScoreAccumulator {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.5f;
+  // Kinds of slot.
+  private static final byte EMPTY = 0;
+  private static final byte IMPLICIT = 1;
+  private static final byte EXPLICIT = 2;
+
+  private byte[] kinds;
+  private long[] userIds;
+  private long[] replyToUserIds;
+  private double[] scores;
+  private int size = 0;
+  private int resizeThreshold;
+
+  ReplyScoreAccumulator() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  ReplyScoreAccumulator(int expectedSize) {
+    int capacity = Integer.highestOneBit(
+        Math.max(DEFAULT_CAPACITY, (int) (expectedSize / LOAD_FACTOR)) - 1)
+        << 1;
+    allocate(capacity);
+  }
+
+  void add(long userId, long replyToUserId, boolean isExplicitReply,
+      double score) {
+    add(userId, replyToUserId, isExplicitReply ? EXPLICIT : IMPLICIT, score);
+  }
+
+  void addAll(ReplyScoreAccumulator other) {
+    for (int i = 0; i < other.kinds.length; i++) {
+      if (other.kinds[i] != EMPTY) {
+        add(other.userIds[i], other.replyToUserIds[i], other.kinds[i],
+            other.scores[i]);
+      }
+    }
+  }
+
+  /**
+   * @param userId
+   * @param replyToUserId
+   * @param isExplicitReply
+   * @return 0 if the edge has no score.
+   */
+  double getScore(long userId, long replyToUserId, boolean isExplicitReply) {
+    byte kind = isExplicitReply ? EXPLICIT : IMPLICIT;
+    int mask = kinds.length - 1;
+    for (int i = hash(userId, replyToUserId, kind) & mask;; i = (i + 1)
+        & mask) {
+      if (kinds[i] == EMPTY) {
+        return 0.0;
+      }
+      if (kinds[i] == kind && userIds[i] == userId
+          && replyToUserIds[i] == replyToUserId) {
+        return scores[i];
+      }
+    }
+  }
+
+  /**
+   * @param k
+   * @return The k edges with the highest scores, in descending order of score.
+   */
+  List<ReplyStats> getTopK(int k) {
+    // Min-heap of slots, so the lowest of the top k is replaced first.
+    int[] heap = new int[Math.min(k, size)];
+    int heapSize = 0;
+    for (int i = 0; i < kinds.length && heap.length > 0; i++) {
+      if (kinds[i] == EMPTY) {
+        continue;
+      }
+      if (heapSize < heap.length) {
+        heap[heapSize] = i;
+        siftUp(heap, heapSize++);
+      } else if (scores[i] > scores[heap[0]]) {
+        heap[0] = i;
+        siftDown(heap, heapSize);
+      }
+    }
+    List<ReplyStats> topK = new ArrayList<>(heapSize);
+    for (int j = 0; j < heapSize; j++) {
+      int i = heap[j];
+      topK.add(new ReplyStats(userIds[i], replyToUserIds[i],
+          kinds[i] == EXPLICIT, scores[i]));
+    }
+    // Sort by score in descending order.
+    Collections.sort(topK, new Comparator<ReplyStats>() {
+      public int compare(ReplyStats o1, ReplyStats o2) {
+        return Double.compare(o2.getScore(), o1.getScore());
+      }
+    });
+    return topK;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void add(long userId, long replyToUserId, byte kind, double score) {
+    int mask = kinds.length - 1;
+    int i = hash(userId, replyToUserId, kind) & mask;
+    while (kinds[i] != EMPTY) {
+      if (kinds[i] == kind && userIds[i] == userId
+          && replyToUserIds[i] == replyToUserId) {
+        scores[i] += score;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    kinds[i] = kind;
+    userIds[i] = userId;
+    replyToUserIds[i] = replyToUserId;
+    scores[i] = score;
+    if (++size > resizeThreshold) {
+      rehash(kinds.length << 1);
+    }
+  }
+
+  private void siftUp(int[] heap, int j) {
+    while (j > 0) {
+      int parent = (j - 1) >>> 1;
+      if (scores[heap[parent]] <= scores[heap[j]]) {
+        return;
+      }
+      swap(heap, parent, j);
+      j = parent;
+    }
+  }
+
+  private void siftDown(int[] heap, int heapSize) {
+    int j = 0;
+    while (true) {
+      int smallest = j;
+      int left = 2 * j + 1;
+      int right = left + 1;
+      if (left < heapSize && scores[heap[left]] < scores[heap[smallest]]) {
+        smallest = left;
+      }
+      if (right < heapSize && scores[heap[right]] < scores[heap[smallest]]) {
+        smallest = right;
+      }
+      if (smallest == j) {
+        return;
+      }
+      swap(heap, smallest, j);
+      j = smallest;
+    }
+  }
+
+  private static void swap(int[] array, int i, int j) {
+    int temp = array[i];
+    array[i] = array[j];
+    array[j] = temp;
+  }
+
+  private void allocate(int capacity) {
+    kinds = new byte[capacity];
+    userIds = new long[capacity];
+    replyToUserIds = new long[capacity];
+    scores = new double[capacity];
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private void rehash(int newCapacity) {
+    byte[] oldKinds = kinds;
+    long[] oldUserIds = userIds;
+    long[] oldReplyToUserIds = replyToUserIds;
+    double[] oldScores = scores;
+    allocate(newCapacity);
+    int mask = newCapacity - 1;
+    for (int j = 0; j < oldKinds.length; j++) {
+      if (oldKinds[j] != EMPTY) {
+        int i = hash(oldUserIds[j], oldReplyToUserIds[j], oldKinds[j]) & mask;
+        while (kinds[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        kinds[i] = oldKinds[j];
+        userIds[i] = oldUserIds[j];
+        replyToUserIds[i] = oldReplyToUserIds[j];
+        scores[i] = oldScores[j];
+      }
+    }
+  }
+
+  private static int hash(long userId, long replyToUserId, byte kind) {
+    long key = userId * 0x9e3779b97f4a7c15L + replyToUserId * 31 + kind;
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+}
@@ -0,0 +1,24 @@
+package com.neoshell.telegram.messageanalysisbot.scheduler;
+
+/**
+ * A background job run by JobScheduler.
+ */
+public interface Job {
+
+  /**
+   * @return A short unique name, e.g. "word-count".
+   */
+  public String getName();
+
+  /**
+   * Does one round of the work. Call context.pause() between units of work,
+   * e.g. after each database transaction, so that the job stays within its
+   * budget.
+   *
+   * @param context
+   * @return A short summary of the work done, shown in the run history.
+   * @throws Exception
+   */
+  public String run(JobContext context) throws Exception;
+
+}
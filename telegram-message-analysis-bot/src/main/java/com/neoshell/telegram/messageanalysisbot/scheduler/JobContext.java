@@ -0,0 +1,88 @@
+package com.neoshell.telegram.messageanalysisbot.scheduler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps a job within its budget. A job works in slices between calls to
+ * pause(). Each pause sleeps long enough that the job is busy for at most
+ * maxDutyCycle of the time, which bounds the CPU and database time it takes
+ * from the bot. The pause also waits while the bot is busy, e.g. has commands
+ * queued, up to maxBusyWaitMillis.
+ */
+public class JobContext {
+
+  private static final long BUSY_POLL_MILLIS = 50;
+
+  private double maxDutyCycle;
+  private BooleanSupplier isBusy;
+  private long maxBusyWaitMillis;
+
+  private long sliceStartNanos;
+  private long pausedNanos = 0L;
+
+  /**
+   * @param maxDutyCycle
+   *          In (0, 1]. The share of time the job may work.
+   * @param isBusy
+   *          Whether the bot is busy. Can be null.
+   * @param maxBusyWaitMillis
+   *          The max time a pause waits for the bot not to be busy.
+   */
+  public JobContext(double maxDutyCycle, BooleanSupplier isBusy,
+      long maxBusyWaitMillis) {
+    if (maxDutyCycle <= 0 || maxDutyCycle > 1) {
+      throw new IllegalArgumentException(
+          "Duty cycle must be in (0, 1]: " + maxDutyCycle);
+    }
+    this.maxDutyCycle = maxDutyCycle;
+    this.isBusy = isBusy;
+    this.maxBusyWaitMillis = maxBusyWaitMillis;
+    sliceStartNanos = System.nanoTime();
+  }
+
+  /**
+   * @return A context without budget, for jobs run on their own, e.g. from a
+   *         main method.
+   */
+  public static JobContext unlimited() {
+    return new JobContext(1.0, null, 0L);
+  }
+
+  /**
+   * Sleeps to keep the job within its budget. Not thread-safe: call it from
+   * the thread running the job.
+   *
+   * @throws InterruptedException
+   *           If the job is cancelled, e.g. on shutdown.
+   */
+  public void pause() throws InterruptedException {
+    long startNanos = System.nanoTime();
+    if (maxDutyCycle < 1.0) {
+      long workedNanos = startNanos - sliceStartNanos;
+      TimeUnit.NANOSECONDS.sleep(
+          (long) (workedNanos * (1.0 - maxDutyCycle) / maxDutyCycle));
+    }
+    if (isBusy != null) {
+      long deadlineNanos = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(maxBusyWaitMillis);
+      while (isBusy.getAsBoolean()
+          && System.nanoTime() - deadlineNanos < 0) {
+        Thread.sleep(BUSY_POLL_MILLIS);
+      }
+    }
+    if (Thread.interrupted()) {
+      throw new InterruptedException("Job cancelled.");
+    }
+    sliceStartNanos = System.nanoTime();
+    pausedNanos += sliceStartNanos - startNanos;
+  }
+
+  /**
+   * @return The total time spent in pause().
+   */
+  public long getPausedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(pausedNanos);
+  }
+
+}
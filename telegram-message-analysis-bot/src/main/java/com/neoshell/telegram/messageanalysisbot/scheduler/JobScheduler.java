@@ -0,0 +1,253 @@
+package com.neoshell.telegram.messageanalysisbot.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+/**
+ * Runs background jobs in the bot process, one at a time on a single thread
+ * of the lowest priority. Each job runs again a fixed interval after its last
+ * run ended, and can also be run on demand. Every run gets a JobContext with
+ * the same budget. The most recent runs are kept for the status report.
+ */
+public class JobScheduler {
+
+  private double maxDutyCycle;
+  private BooleanSupplier isBusy;
+  private long maxBusyWaitMillis;
+  private int historySize;
+  private Logger logger;
+
+  private ScheduledExecutorService executor;
+
+  private final Object lock = new Object();
+  // Fields below are guarded by lock.
+  private Map<String, ScheduledJob> jobs = new LinkedHashMap<>();
+  private Deque<JobRun> history = new ArrayDeque<>();
+
+  /**
+   * @param maxDutyCycle
+   * @param isBusy
+   * @param maxBusyWaitMillis
+   *          See JobContext.
+   * @param historySize
+   *          The number of runs kept for the status report.
+   * @param logger
+   */
+  public JobScheduler(double maxDutyCycle, BooleanSupplier isBusy,
+      long maxBusyWaitMillis, int historySize, Logger logger) {
+    this.maxDutyCycle = maxDutyCycle;
+    this.isBusy = isBusy;
+    this.maxBusyWaitMillis = maxBusyWaitMillis;
+    this.historySize = historySize;
+    this.logger = logger;
+    // Validates the budget early.
+    new JobContext(maxDutyCycle, isBusy, maxBusyWaitMillis);
+  }
+
+  /**
+   * Adds a job. Call it before start().
+   *
+   * @param job
+   * @param initialDelayMillis
+   *          The time from start() to the first run.
+   * @param intervalMillis
+   *          The time from the end of a run to the next one. 0 means the job
+   *          only runs on demand.
+   */
+  public void schedule(Job job, long initialDelayMillis, long intervalMillis) {
+    synchronized (lock) {
+      if (executor != null) {
+        throw new IllegalStateException("Scheduler already started.");
+      }
+      if (jobs.put(job.getName(),
+          new ScheduledJob(job, initialDelayMillis, intervalMillis)) != null) {
+        throw new IllegalArgumentException(
+            "Duplicated job name: " + job.getName());
+      }
+    }
+  }
+
+  public void start() {
+    synchronized (lock) {
+      executor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "job-scheduler");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            }
+          });
+      for (final ScheduledJob scheduledJob : jobs.values()) {
+        if (scheduledJob.intervalMillis > 0) {
+          executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+              runJob(scheduledJob);
+            }
+          }, scheduledJob.initialDelayMillis, scheduledJob.intervalMillis,
+              TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the job after the running one, if any.
+   *
+   * @param name
+   * @return false if there is no such job.
+   */
+  public boolean runNow(String name) {
+    final ScheduledJob scheduledJob;
+    synchronized (lock) {
+      scheduledJob = jobs.get(name);
+      if (scheduledJob == null || executor == null) {
+        return false;
+      }
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        runJob(scheduledJob);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Cancels the running job at its next pause and waits for it to stop.
+   *
+   * @param timeoutMillis
+   * @throws InterruptedException
+   */
+  public void shutdown(long timeoutMillis) throws InterruptedException {
+    ScheduledExecutorService executor;
+    synchronized (lock) {
+      executor = this.executor;
+    }
+    if (executor == null) {
+      return;
+    }
+    executor.shutdownNow();
+    if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      logger.warning("Background job did not stop in time.");
+    }
+  }
+
+  /**
+   * @return The run counts of each job, then the recent runs, newest first.
+   */
+  public String getStats() {
+    StringBuilder sb = new StringBuilder();
+    synchronized (lock) {
+      sb.append("jobs=" + jobs.size());
+      for (ScheduledJob scheduledJob : jobs.values()) {
+        sb.append("\n  " + scheduledJob.job.getName() + ": runs="
+            + scheduledJob.numRuns + ", failures=" + scheduledJob.numFailures
+            + ", interval=" + scheduledJob.intervalMillis / 1000 + "s"
+            + (scheduledJob.isRunning ? ", running" : ""));
+      }
+      if (!history.isEmpty()) {
+        sb.append("\n  Recent runs:");
+        for (JobRun run : history) {
+          sb.append("\n    " + run);
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  private void runJob(ScheduledJob scheduledJob) {
+    synchronized (lock) {
+      scheduledJob.isRunning = true;
+    }
+    String name = scheduledJob.job.getName();
+    JobContext context = new JobContext(maxDutyCycle, isBusy,
+        maxBusyWaitMillis);
+    long startMillis = System.currentTimeMillis();
+    String summary;
+    boolean isSuccessful = false;
+    try {
+      summary = scheduledJob.job.run(context);
+      isSuccessful = true;
+    } catch (InterruptedException e) {
+      summary = "cancelled";
+      Thread.currentThread().interrupt();
+    } catch (Throwable t) {
+      // Must not escape, or the job would never be scheduled again.
+      summary = t.toString();
+      logger.severe(
+          "Job " + name + " failed: " + ExceptionUtils.getStackTrace(t));
+    }
+    JobRun run = new JobRun(name, startMillis,
+        System.currentTimeMillis() - startMillis, context.getPausedMillis(),
+        isSuccessful, summary);
+    logger.info("Job finished: " + run);
+    synchronized (lock) {
+      scheduledJob.isRunning = false;
+      scheduledJob.numRuns++;
+      if (!isSuccessful) {
+        scheduledJob.numFailures++;
+      }
+      history.addFirst(run);
+      while (history.size() > historySize) {
+        history.removeLast();
+      }
+    }
+  }
+
+  private static class ScheduledJob {
+    private Job job;
+    private long initialDelayMillis;
+    private long intervalMillis;
+    private long numRuns = 0;
+    private long numFailures = 0;
+    private boolean isRunning = false;
+
+    public ScheduledJob(Job job, long initialDelayMillis,
+        long intervalMillis) {
+      this.job = job;
+      this.initialDelayMillis = initialDelayMillis;
+      this.intervalMillis = intervalMillis;
+    }
+  }
+
+  private static class JobRun {
+    private String name;
+    private long startMillis;
+    private long durationMillis;
+    private long pausedMillis;
+    private boolean isSuccessful;
+    private String summary;
+
+    public JobRun(String name, long startMillis, long durationMillis,
+        long pausedMillis, boolean isSuccessful, String summary) {
+      this.name = name;
+      this.startMillis = startMillis;
+      this.durationMillis = durationMillis;
+      this.pausedMillis = pausedMillis;
+      this.isSuccessful = isSuccessful;
+      this.summary = summary;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%tF %<tT %s %s in %.1fs (paused %.1fs): %s",
+          startMillis, name, isSuccessful ? "ok" : "FAILED",
+          durationMillis / 1000.0, pausedMillis / 1000.0, summary);
+    }
+  }
+
+}
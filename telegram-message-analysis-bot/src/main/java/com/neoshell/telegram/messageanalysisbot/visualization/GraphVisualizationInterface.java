@@ -7,17 +7,16 @@ import com.neoshell.telegram.messageanalysisbot.handler.ReplyStats;
 public interface GraphVisualizationInterface {
 
   /**
-   * Generates an image file to visualize the reply relationships.
+   * Generates an image to visualize the reply relationships.
    * 
    * @param graph
    * @param explicitReplyEdgeColor
    * @param implicitReplyEdgeColor
-   * @param imageFilePath
-   *          The path of the output image.
+   * @return The image in PNG format.
    * @throws Exception
    */
-  public void visualizeReplyRelationship(Graph<User, ReplyStats> graph,
-      String explicitReplyEdgeColor, String implicitReplyEdgeColor,
-      String imageFilePath) throws Exception;
+  public byte[] visualizeReplyRelationship(Graph<User, ReplyStats> graph,
+      String explicitReplyEdgeColor, String implicitReplyEdgeColor)
+      throws Exception;
 
 }
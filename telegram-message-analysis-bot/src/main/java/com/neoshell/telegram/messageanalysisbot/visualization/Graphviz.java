@@ -1,9 +1,25 @@
 package com.neoshell.telegram.messageanalysisbot.visualization;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jgrapht.Graph;
 import org.jgrapht.io.Attribute;
@@ -16,6 +32,12 @@ import org.jgrapht.io.DefaultAttribute;
 import com.neoshell.telegram.messageanalysisbot.User;
 import com.neoshell.telegram.messageanalysisbot.handler.ReplyStats;
 
+/**
+ * Draws the reply relationships with the Graphviz binary. The DOT is piped to
+ * its stdin and the image is read from its stdout, so nothing is written to
+ * disk. At most maxConcurrentRenders processes run at the same time, and a
+ * render is killed if it does not finish within renderTimeoutMillis.
+ */
 public class Graphviz implements GraphVisualizationInterface {
 
   private static final double DEFAULT_NETWORK_EDGES_MIN_WIDTH = 1.0;
@@ -27,17 +49,43 @@ public class Graphviz implements GraphVisualizationInterface {
   private static final int DEFAULT_GRAPHVIZ_DPI = 96;
 
   private String graphvizPath;
-  private String tempDir;
+  private int maxConcurrentRenders;
+  private long renderTimeoutMillis;
+  private Semaphore renderPermits;
+  // Pumps stdin, stdout and stderr of the processes.
+  private ExecutorService streamExecutor;
 
-  public Graphviz(String graphvizPath, String tempDir) {
+  private AtomicLong numRendered = new AtomicLong();
+  private AtomicLong numFailed = new AtomicLong();
+  private AtomicLong numTimedOut = new AtomicLong();
+  private AtomicLong numRejected = new AtomicLong();
+
+  public Graphviz(String graphvizPath, int maxConcurrentRenders,
+      long renderTimeoutMillis) {
+    if (maxConcurrentRenders <= 0 || renderTimeoutMillis <= 0) {
+      throw new IllegalArgumentException(
+          "Max concurrent renders and render timeout must be positive.");
+    }
     this.graphvizPath = graphvizPath;
-    this.tempDir = tempDir;
+    this.maxConcurrentRenders = maxConcurrentRenders;
+    this.renderTimeoutMillis = renderTimeoutMillis;
+    renderPermits = new Semaphore(maxConcurrentRenders);
+    final AtomicInteger threadIndex = new AtomicInteger();
+    streamExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r,
+            "graphviz-stream-" + threadIndex.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
   }
 
   @Override
-  public void visualizeReplyRelationship(Graph<User, ReplyStats> graph,
-      String explicitReplyEdgeColor, String implicitReplyEdgeColor,
-      String imageFilePath) throws Exception {
+  public byte[] visualizeReplyRelationship(Graph<User, ReplyStats> graph,
+      String explicitReplyEdgeColor, String implicitReplyEdgeColor)
+      throws Exception {
     double maxScore = 0.0;
     for (ReplyStats replyStats : graph.edgeSet()) {
       maxScore = Math.max(maxScore, replyStats.getScore());
@@ -47,24 +95,116 @@ public class Graphviz implements GraphVisualizationInterface {
         new ReplyScoreProvider(), new UserVertexFormatProvider(),
         new ReplyStatsEdgeFormatProvider(maxScore, explicitReplyEdgeColor,
             implicitReplyEdgeColor));
-    File dotFile = File.createTempFile(Graphviz.class.toString() + "_", ".dot",
-        new File(tempDir));
-    dotExporter.exportGraph(graph, dotFile);
-    generateImageFromDotFile(dotFile.getAbsolutePath(), imageFilePath,
+    ByteArrayOutputStream dot = new ByteArrayOutputStream();
+    Writer writer = new OutputStreamWriter(dot, StandardCharsets.UTF_8);
+    dotExporter.exportGraph(graph, writer);
+    writer.flush();
+    return generateImageFromDot(dot.toByteArray(),
         DEFAULT_GRAPHVIZ_OUTPUT_TYPE, DEFAULT_GRAPHVIZ_REPRESENTATION_TYPE,
         DEFAULT_GRAPHVIZ_DPI);
-    dotFile.delete();
   }
 
-  private void generateImageFromDotFile(String dotFilePath,
-      String imageFilePath, String fileType, String representationType, int dpi)
-          throws InterruptedException, IOException {
-    File imageFile = new File(imageFilePath);
-    Runtime runtime = Runtime.getRuntime();
-    String[] args = { graphvizPath, "-T" + fileType, "-K" + representationType,
-        "-Gdpi=" + dpi, dotFilePath, "-o", imageFile.getAbsolutePath() };
-    Process graphvizProcess = runtime.exec(args);
-    graphvizProcess.waitFor();
+  public String getStats() {
+    return "rendered=" + numRendered.get() + ", failed=" + numFailed.get()
+        + ", timedOut=" + numTimedOut.get() + ", rejected="
+        + numRejected.get() + ", running="
+        + (maxConcurrentRenders - renderPermits.availablePermits());
+  }
+
+  // Waits for a free slot and the render together for at most
+  // renderTimeoutMillis. Kills the process on timeout or interruption.
+  byte[] generateImageFromDot(final byte[] dot, String fileType,
+      String representationType, int dpi) throws InterruptedException,
+      IOException, TimeoutException {
+    long deadlineMillis = System.currentTimeMillis() + renderTimeoutMillis;
+    if (!renderPermits.tryAcquire(renderTimeoutMillis,
+        TimeUnit.MILLISECONDS)) {
+      numRejected.incrementAndGet();
+      throw new TimeoutException("Too many Graphviz renders running.");
+    }
+    Process process = null;
+    try {
+      process = new ProcessBuilder(graphvizPath, "-T" + fileType,
+          "-K" + representationType, "-Gdpi=" + dpi).start();
+      final OutputStream stdin = process.getOutputStream();
+      Future<?> writeFuture = streamExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          try {
+            stdin.write(dot);
+          } finally {
+            stdin.close();
+          }
+          return null;
+        }
+      });
+      Future<byte[]> imageFuture = streamExecutor
+          .submit(new StreamReader(process.getInputStream()));
+      Future<byte[]> errorFuture = streamExecutor
+          .submit(new StreamReader(process.getErrorStream()));
+      if (!process.waitFor(
+          Math.max(0, deadlineMillis - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS)) {
+        numTimedOut.incrementAndGet();
+        throw new TimeoutException(
+            "Graphviz did not finish in " + renderTimeoutMillis + " ms.");
+      }
+      // The process has exited, so the streams are about to end.
+      byte[] image = getStreamResult(imageFuture, deadlineMillis);
+      byte[] error = getStreamResult(errorFuture, deadlineMillis);
+      if (process.exitValue() != 0) {
+        numFailed.incrementAndGet();
+        throw new IOException("Graphviz exited with " + process.exitValue()
+            + ": " + new String(error, StandardCharsets.UTF_8));
+      }
+      getStreamResult(writeFuture, deadlineMillis);
+      numRendered.incrementAndGet();
+      return image;
+    } finally {
+      if (process != null && process.isAlive()) {
+        process.destroyForcibly();
+      }
+      renderPermits.release();
+    }
+  }
+
+  // Waits only for the time left until the deadline of the whole render.
+  private <T> T getStreamResult(Future<T> future, long deadlineMillis)
+      throws InterruptedException, IOException, TimeoutException {
+    try {
+      return future.get(
+          Math.max(0, deadlineMillis - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      numFailed.incrementAndGet();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  // Reads the stream to the end.
+  private static class StreamReader implements Callable<byte[]> {
+
+    private InputStream input;
+
+    public StreamReader(InputStream input) {
+      this.input = input;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      try {
+        int length;
+        while ((length = input.read(buffer)) != -1) {
+          output.write(buffer, 0, length);
+        }
+      } finally {
+        input.close();
+      }
+      return output.toByteArray();
+    }
+
   }
 
   private class UserIdProvider implements ComponentNameProvider<User> {
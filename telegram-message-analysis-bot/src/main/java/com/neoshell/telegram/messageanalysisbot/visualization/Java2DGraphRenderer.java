@@ -0,0 +1,325 @@
+package com.neoshell.telegram.messageanalysisbot.visualization;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.QuadCurve2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.jgrapht.Graph;
+
+import com.neoshell.telegram.messageanalysisbot.User;
+import com.neoshell.telegram.messageanalysisbot.handler.ReplyStats;
+
+/**
+ * Draws the reply relationships in process with Java2D. Users are placed on a
+ * circle, like the circo layout of Graphviz, and edges are drawn as arrows
+ * whose widths grow with the scores.
+ */
+public class Java2DGraphRenderer implements GraphVisualizationInterface {
+
+  private static final double EDGE_MIN_WIDTH = 1.0;
+  private static final double EDGE_MAX_WIDTH = 5.0;
+  // Distance between the parallel edges of the same pair of users.
+  private static final double EDGE_SPACING = 24.0;
+  private static final double ARROW_LENGTH = 10.0;
+  private static final double SELF_LOOP_SIZE = 30.0;
+  private static final int MIN_RADIUS = 120;
+  private static final int MARGIN = 40;
+  private static final int NODE_PADDING_X = 10;
+  private static final int NODE_PADDING_Y = 6;
+  private static final Font NODE_FONT = new Font(Font.SANS_SERIF, Font.PLAIN,
+      14);
+  private static final Font EDGE_FONT = new Font(Font.SANS_SERIF, Font.PLAIN,
+      11);
+  @SuppressWarnings("serial")
+  private static final Map<String, Color> COLORS = new HashMap<String, Color>() {
+    {
+      put("black", Color.BLACK);
+      put("blue", Color.BLUE);
+      put("cyan", Color.CYAN);
+      put("gray", Color.GRAY);
+      put("green", new Color(0, 128, 0));
+      put("magenta", Color.MAGENTA);
+      put("orange", Color.ORANGE);
+      put("red", Color.RED);
+    }
+  };
+
+  @Override
+  public byte[] visualizeReplyRelationship(Graph<User, ReplyStats> graph,
+      String explicitReplyEdgeColor, String implicitReplyEdgeColor)
+      throws Exception {
+    List<User> users = new ArrayList<>(graph.vertexSet());
+    int numUsers = users.size();
+
+    // Measure the labels on a scratch image to size the canvas.
+    BufferedImage scratch = new BufferedImage(1, 1,
+        BufferedImage.TYPE_INT_ARGB);
+    Graphics2D scratchGraphics = scratch.createGraphics();
+    FontMetrics nodeMetrics = scratchGraphics.getFontMetrics(NODE_FONT);
+    Map<User, double[]> nodeSizes = new HashMap<>(); // {half width, half height}
+    double maxNodeWidth = 0.0;
+    double totalNodeWidth = 0.0;
+    for (User user : users) {
+      double width = nodeMetrics.stringWidth(user.getFullName())
+          + 2 * NODE_PADDING_X;
+      double height = nodeMetrics.getHeight() + 2 * NODE_PADDING_Y;
+      nodeSizes.put(user, new double[] { width / 2, height / 2 });
+      maxNodeWidth = Math.max(maxNodeWidth, width);
+      totalNodeWidth += width;
+    }
+    scratchGraphics.dispose();
+
+    // Circular layout. The circumference leaves room for every label.
+    double radius = numUsers <= 1 ? 0
+        : Math.max(MIN_RADIUS, totalNodeWidth * 1.6 / (2 * Math.PI));
+    int size = (int) Math.ceil(2 * (radius + maxNodeWidth / 2 + SELF_LOOP_SIZE
+        + MARGIN));
+    double center = size / 2.0;
+    Map<User, double[]> positions = new HashMap<>();
+    for (int i = 0; i < numUsers; i++) {
+      double angle = -Math.PI / 2 + 2 * Math.PI * i / numUsers;
+      positions.put(users.get(i), new double[] {
+          center + radius * Math.cos(angle), center + radius * Math.sin(angle) });
+    }
+
+    BufferedImage image = new BufferedImage(size, size,
+        BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+          RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+          RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setColor(Color.WHITE);
+      g.fillRect(0, 0, size, size);
+
+      double maxScore = 0.0;
+      for (ReplyStats replyStats : graph.edgeSet()) {
+        maxScore = Math.max(maxScore, replyStats.getScore());
+      }
+      // Edges between the same pair of users, in either direction.
+      Map<String, List<ReplyStats>> parallelEdges = new HashMap<>();
+      for (ReplyStats replyStats : graph.edgeSet()) {
+        String pairKey = getPairKey(replyStats);
+        List<ReplyStats> edges = parallelEdges.get(pairKey);
+        if (edges == null) {
+          edges = new ArrayList<>();
+          parallelEdges.put(pairKey, edges);
+        }
+        edges.add(replyStats);
+      }
+      // Scores are drawn last so that they stay readable.
+      List<EdgeLabel> edgeLabels = new ArrayList<>();
+      for (List<ReplyStats> edges : parallelEdges.values()) {
+        for (int i = 0; i < edges.size(); i++) {
+          ReplyStats replyStats = edges.get(i);
+          User source = graph.getEdgeSource(replyStats);
+          User target = graph.getEdgeTarget(replyStats);
+          double width = EDGE_MIN_WIDTH + (EDGE_MAX_WIDTH - EDGE_MIN_WIDTH)
+              * (maxScore > 0 ? replyStats.getScore() / maxScore : 0);
+          Color color = parseColor(replyStats.isExplicitReply()
+              ? explicitReplyEdgeColor : implicitReplyEdgeColor);
+          g.setColor(color);
+          g.setStroke(new BasicStroke((float) width, BasicStroke.CAP_ROUND,
+              BasicStroke.JOIN_ROUND));
+          double[] labelPosition;
+          if (source.equals(target)) {
+            labelPosition = drawSelfLoop(g, positions.get(source),
+                nodeSizes.get(source), center, i);
+          } else {
+            labelPosition = drawEdge(g, positions.get(source),
+                nodeSizes.get(source), positions.get(target),
+                nodeSizes.get(target),
+                (i - (edges.size() - 1) / 2.0) * EDGE_SPACING,
+                replyStats.getUserId() > replyStats.getReplyToUserId());
+          }
+          edgeLabels.add(new EdgeLabel(
+              String.format("%.1f", replyStats.getScore()), labelPosition,
+              color));
+        }
+      }
+
+      g.setFont(NODE_FONT);
+      g.setStroke(new BasicStroke(1.0f));
+      for (User user : users) {
+        double[] position = positions.get(user);
+        double[] nodeSize = nodeSizes.get(user);
+        Ellipse2D ellipse = new Ellipse2D.Double(position[0] - nodeSize[0],
+            position[1] - nodeSize[1], 2 * nodeSize[0], 2 * nodeSize[1]);
+        g.setColor(Color.WHITE);
+        g.fill(ellipse);
+        g.setColor(Color.BLACK);
+        g.draw(ellipse);
+        drawCenteredString(g, user.getFullName(), position[0], position[1]);
+      }
+
+      g.setFont(EDGE_FONT);
+      FontMetrics edgeMetrics = g.getFontMetrics();
+      for (EdgeLabel edgeLabel : edgeLabels) {
+        int width = edgeMetrics.stringWidth(edgeLabel.text) + 2;
+        int height = edgeMetrics.getHeight();
+        g.setColor(Color.WHITE);
+        g.fillRect((int) (edgeLabel.position[0] - width / 2.0),
+            (int) (edgeLabel.position[1] - height / 2.0), width, height);
+        g.setColor(edgeLabel.color);
+        drawCenteredString(g, edgeLabel.text, edgeLabel.position[0],
+            edgeLabel.position[1]);
+      }
+    } finally {
+      g.dispose();
+    }
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", output);
+    return output.toByteArray();
+  }
+
+  // Draws a curved arrow and returns where to put its label. bend is the
+  // offset of the curve from the straight line, measured on the same side for
+  // both directions of a pair.
+  private double[] drawEdge(Graphics2D g, double[] from, double[] fromSize,
+      double[] to, double[] toSize, double bend, boolean isReversed) {
+    double dx = to[0] - from[0];
+    double dy = to[1] - from[1];
+    double length = Math.hypot(dx, dy);
+    double normalX = -dy / length;
+    double normalY = dx / length;
+    if (isReversed) {
+      bend = -bend;
+    }
+    double controlX = (from[0] + to[0]) / 2 + normalX * bend * 2;
+    double controlY = (from[1] + to[1]) / 2 + normalY * bend * 2;
+    double[] start = getBoundaryPoint(from, fromSize, controlX - from[0],
+        controlY - from[1]);
+    double[] end = getBoundaryPoint(to, toSize, controlX - to[0],
+        controlY - to[1]);
+    double[] arrowBase = drawArrowHead(g, end, end[0] - controlX,
+        end[1] - controlY);
+    g.draw(new QuadCurve2D.Double(start[0], start[1], controlX, controlY,
+        arrowBase[0], arrowBase[1]));
+    return new double[] { 0.25 * start[0] + 0.5 * controlX + 0.25 * end[0],
+        0.25 * start[1] + 0.5 * controlY + 0.25 * end[1] };
+  }
+
+  // Draws a loop on the outer side of the node and returns where to put its
+  // label.
+  private double[] drawSelfLoop(Graphics2D g, double[] position,
+      double[] size, double center, int index) {
+    double dx = position[0] - center;
+    double dy = position[1] - center;
+    double length = Math.hypot(dx, dy);
+    if (length == 0) {
+      dx = 0;
+      dy = -1;
+      length = 1;
+    }
+    double loopSize = SELF_LOOP_SIZE + index * EDGE_SPACING / 2;
+    double outX = dx / length;
+    double outY = dy / length;
+    double[] start = getBoundaryPoint(position, size, outX - outY * 0.5,
+        outY + outX * 0.5);
+    double[] end = getBoundaryPoint(position, size, outX + outY * 0.5,
+        outY - outX * 0.5);
+    double control1X = start[0] + (outX - outY * 0.6) * loopSize * 1.5;
+    double control1Y = start[1] + (outY + outX * 0.6) * loopSize * 1.5;
+    double control2X = end[0] + (outX + outY * 0.6) * loopSize * 1.5;
+    double control2Y = end[1] + (outY - outX * 0.6) * loopSize * 1.5;
+    double[] arrowBase = drawArrowHead(g, end, end[0] - control2X,
+        end[1] - control2Y);
+    Path2D path = new Path2D.Double();
+    path.moveTo(start[0], start[1]);
+    path.curveTo(control1X, control1Y, control2X, control2Y, arrowBase[0],
+        arrowBase[1]);
+    g.draw(path);
+    return new double[] { (start[0] + end[0]) / 2 + outX * loopSize * 1.3,
+        (start[1] + end[1]) / 2 + outY * loopSize * 1.3 };
+  }
+
+  // Fills an arrow head pointing at tip in direction (dx, dy). Returns the
+  // middle of its base, where the line should end.
+  private double[] drawArrowHead(Graphics2D g, double[] tip, double dx,
+      double dy) {
+    double length = Math.hypot(dx, dy);
+    double unitX = dx / length;
+    double unitY = dy / length;
+    double arrowLength = ARROW_LENGTH
+        + ((BasicStroke) g.getStroke()).getLineWidth();
+    double baseX = tip[0] - unitX * arrowLength;
+    double baseY = tip[1] - unitY * arrowLength;
+    double halfWidth = arrowLength * 0.4;
+    Path2D arrow = new Path2D.Double();
+    arrow.moveTo(tip[0], tip[1]);
+    arrow.lineTo(baseX - unitY * halfWidth, baseY + unitX * halfWidth);
+    arrow.lineTo(baseX + unitY * halfWidth, baseY - unitX * halfWidth);
+    arrow.closePath();
+    g.fill(arrow);
+    return new double[] { baseX, baseY };
+  }
+
+  // The point where a ray from the center of the node in direction (dx, dy)
+  // leaves its ellipse.
+  private static double[] getBoundaryPoint(double[] center, double[] size,
+      double dx, double dy) {
+    double length = Math.hypot(dx, dy);
+    double unitX = dx / length;
+    double unitY = dy / length;
+    double a = size[0];
+    double b = size[1];
+    double r = a * b / Math.hypot(b * unitX, a * unitY);
+    return new double[] { center[0] + unitX * r, center[1] + unitY * r };
+  }
+
+  private static void drawCenteredString(Graphics2D g, String text, double x,
+      double y) {
+    FontMetrics metrics = g.getFontMetrics();
+    g.drawString(text, (float) (x - metrics.stringWidth(text) / 2.0),
+        (float) (y - metrics.getHeight() / 2.0 + metrics.getAscent()));
+  }
+
+  private static String getPairKey(ReplyStats replyStats) {
+    long userId1 = Math.min(replyStats.getUserId(),
+        replyStats.getReplyToUserId());
+    long userId2 = Math.max(replyStats.getUserId(),
+        replyStats.getReplyToUserId());
+    return userId1 + "_" + userId2;
+  }
+
+  // Accepts the color names used with Graphviz and "#rrggbb".
+  private static Color parseColor(String color) {
+    if (color.startsWith("#")) {
+      return Color.decode(color);
+    }
+    Color namedColor = COLORS.get(color.toLowerCase());
+    if (namedColor == null) {
+      throw new IllegalArgumentException("Unknown color: " + color);
+    }
+    return namedColor;
+  }
+
+  private static class EdgeLabel {
+    private String text;
+    private double[] position;
+    private Color color;
+
+    public EdgeLabel(String text, double[] position, Color color) {
+      this.text = text;
+      this.position = position;
+      this.color = color;
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package com.neoshell.telegram.messageanalysisbot;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ChatUpdateDispatcherTest {
+
+  @Test
+  public void keepsOrderWithinEachChat() throws Exception {
+    ChatUpdateDispatcher dispatcher = new ChatUpdateDispatcher(4, 1000, false);
+    final List<Integer> chat1 = Collections
+        .synchronizedList(new ArrayList<Integer>());
+    final List<Integer> chat2 = Collections
+        .synchronizedList(new ArrayList<Integer>());
+    int numTasks = 200;
+    for (int i = 0; i < numTasks; i++) {
+      assertTrue(dispatcher.dispatch(1L, newAppendTask(chat1, i)));
+      assertTrue(dispatcher.dispatch(2L, newAppendTask(chat2, i)));
+    }
+    dispatcher.shutdown(5000);
+    assertEquals(numTasks, chat1.size());
+    assertEquals(numTasks, chat2.size());
+    for (int i = 0; i < numTasks; i++) {
+      assertEquals(i, (int) chat1.get(i));
+      assertEquals(i, (int) chat2.get(i));
+    }
+  }
+
+  @Test
+  public void blockedChatDoesNotStallOthers() throws Exception {
+    ChatUpdateDispatcher dispatcher = new ChatUpdateDispatcher(2, 10, false);
+    final CountDownLatch blocker = new CountDownLatch(1);
+    final CountDownLatch otherChatDone = new CountDownLatch(3);
+    final List<Integer> chat1 = Collections
+        .synchronizedList(new ArrayList<Integer>());
+    dispatcher.dispatch(1L, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          blocker.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    dispatcher.dispatch(1L, newAppendTask(chat1, 1));
+    for (int i = 0; i < 3; i++) {
+      dispatcher.dispatch(2L, new Runnable() {
+        @Override
+        public void run() {
+          otherChatDone.countDown();
+        }
+      });
+    }
+    assertTrue(otherChatDone.await(5, TimeUnit.SECONDS));
+    // The second task of the blocked chat waits for the first one.
+    assertTrue(chat1.isEmpty());
+    blocker.countDown();
+    dispatcher.shutdown(5000);
+    assertEquals(1, chat1.size());
+  }
+
+  @Test
+  public void forgetsIdleLanes() throws Exception {
+    ChatUpdateDispatcher dispatcher = new ChatUpdateDispatcher(2, 10, false);
+    final List<Integer> done = Collections
+        .synchronizedList(new ArrayList<Integer>());
+    for (int i = 0; i < 50; i++) {
+      dispatcher.dispatch(i, newAppendTask(done, i));
+    }
+    dispatcher.shutdown(5000);
+    assertEquals(50, done.size());
+    assertEquals(0, dispatcher.getNumLanes());
+    assertEquals(0, dispatcher.getQueueDepth());
+  }
+
+  private static Runnable newAppendTask(final List<Integer> list,
+      final int value) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        list.add(value);
+      }
+    };
+  }
+
+}
@@ -6,6 +6,14 @@ import org.junit.Test;
 
 public class CommandUtilTest {
 
+  @Test
+  public void isCommand() {
+    assertTrue(CommandUtil.isCommand("/rank"));
+    assertTrue(CommandUtil.isCommand(">rank -a"));
+    assertFalse(CommandUtil.isCommand("/"));
+    assertFalse(CommandUtil.isCommand("rank"));
+  }
+
   @Test
   public void clickableToNonClickable() {
     String clickableCommand = "/goto___m_123456@MyBot";
@@ -0,0 +1,33 @@
+package com.neoshell.telegram.messageanalysisbot.cache;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ChartKeyBuilderTest {
+
+  @Test
+  public void sameContentGivesSameKey() {
+    String key1 = new ChartKeyBuilder("network").add("Alice").add(1L)
+        .add(2.5).add(true).build();
+    String key2 = new ChartKeyBuilder("network").add("Alice").add(1L)
+        .add(2.5).add(true).build();
+    assertEquals(key1, key2);
+    assertEquals(64, key1.length());
+  }
+
+  @Test
+  public void differentContentGivesDifferentKeys() {
+    String key = new ChartKeyBuilder("network").add("ab").add("c").build();
+    assertNotEquals(key,
+        new ChartKeyBuilder("network").add("a").add("bc").build());
+    assertNotEquals(key,
+        new ChartKeyBuilder("timestats").add("ab").add("c").build());
+    assertNotEquals(
+        new ChartKeyBuilder("network").add((String) null).build(),
+        new ChartKeyBuilder("network").add("").build());
+    assertNotEquals(new ChartKeyBuilder("network").add(1.0).build(),
+        new ChartKeyBuilder("network").add(1.0000001).build());
+  }
+
+}
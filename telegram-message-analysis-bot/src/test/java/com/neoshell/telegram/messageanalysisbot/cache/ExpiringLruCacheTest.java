@@ -0,0 +1,30 @@
+package com.neoshell.telegram.messageanalysisbot.cache;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ExpiringLruCacheTest {
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    ExpiringLruCache<Long, String> cache = new ExpiringLruCache<>(2, 0L);
+    cache.put(1L, "a");
+    cache.put(2L, "b");
+    cache.get(1L);
+    cache.put(3L, "c");
+    assertEquals("a", cache.get(1L));
+    assertNull(cache.get(2L));
+    assertEquals("c", cache.get(3L));
+  }
+
+  @Test
+  public void expiresAfterTTL() throws InterruptedException {
+    ExpiringLruCache<Long, String> cache = new ExpiringLruCache<>(2, 10L);
+    cache.put(1L, "a");
+    assertEquals("a", cache.get(1L));
+    Thread.sleep(20L);
+    assertNull(cache.get(1L));
+  }
+
+}
@@ -0,0 +1,35 @@
+package com.neoshell.telegram.messageanalysisbot.collection;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LongObjectHashMapTest {
+
+  @Test
+  public void putAndGet() {
+    LongObjectHashMap<String> map = new LongObjectHashMap<>();
+    for (long i = -1000; i <= 1000; i++) {
+      assertNull(map.put(i * 1000003L, "v" + i));
+    }
+    assertEquals(2001, map.size());
+    for (long i = -1000; i <= 1000; i++) {
+      assertEquals("v" + i, map.get(i * 1000003L));
+    }
+    assertNull(map.get(7L));
+    assertFalse(map.containsKey(7L));
+  }
+
+  @Test
+  public void overwritesExistingKey() {
+    LongObjectHashMap<String> map = new LongObjectHashMap<>();
+    assertNull(map.put(0L, "a"));
+    assertEquals("a", map.put(0L, "b"));
+    assertNull(map.put(-5L, "c"));
+    assertEquals("c", map.put(-5L, "d"));
+    assertEquals(2, map.size());
+    assertEquals("b", map.get(0L));
+    assertEquals("d", map.get(-5L));
+  }
+
+}
@@ -0,0 +1,47 @@
+package com.neoshell.telegram.messageanalysisbot.collection;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ObjectLongHashMapTest {
+
+  @Test
+  public void addToAndVisit() {
+    ObjectLongHashMap<String> map = new ObjectLongHashMap<>();
+    for (int i = 0; i < 3000; i++) {
+      map.addTo("w" + (i % 1000), i);
+    }
+    assertEquals(1000, map.size());
+    assertEquals(0L + 1000L + 2000L, map.get("w0", -1L));
+    assertEquals(-1L, map.get("missing", -1L));
+    final Map<String, Long> visited = new HashMap<>();
+    map.forEachEntry(new ObjectLongHashMap.EntryVisitor<String>() {
+      @Override
+      public void visit(String key, long value) {
+        assertNull(visited.put(key, value));
+      }
+    });
+    assertEquals(1000, visited.size());
+    assertEquals(Long.valueOf(999L + 1999L + 2999L), visited.get("w999"));
+  }
+
+  @Test
+  public void addAllMergesCounts() {
+    ObjectLongHashMap<String> a = new ObjectLongHashMap<>();
+    ObjectLongHashMap<String> b = new ObjectLongHashMap<>();
+    a.put("x", 1L);
+    a.put("y", 2L);
+    b.put("y", 3L);
+    b.put("z", 4L);
+    a.addAll(b);
+    assertEquals(3, a.size());
+    assertEquals(1L, a.get("x", 0L));
+    assertEquals(5L, a.get("y", 0L));
+    assertEquals(4L, a.get("z", 0L));
+  }
+
+}
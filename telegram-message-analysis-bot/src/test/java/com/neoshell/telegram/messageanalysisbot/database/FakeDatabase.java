@@ -0,0 +1,747 @@
+package com.neoshell.telegram.messageanalysisbot.database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.User;
+
+/**
+ * An in-memory DatabaseInterface for tests. Holds messages, the chat registry,
+ * watermarks, daily and monthly word counts with their totals, dirty months,
+ * leases, users and options, with the same semantics as MySQLDatabase.
+ * Aggregate queries of messages, e.g. getRank(), are not supported.
+ *
+ * Thread-safe. Override methods to inject failures or record calls.
+ */
+public class FakeDatabase implements DatabaseInterface {
+
+  private final Object lock = new Object();
+  // Fields below are guarded by lock.
+  private List<Message> messages = new ArrayList<>();
+  // Chat id -> type -> {first epoch seconds, last epoch seconds, count, last
+  // message id, first message id added by addMessages()}.
+  private Map<Long, Map<MessageType, long[]>> registry = new HashMap<>();
+  private Map<Long, Map<String, Long>> watermarks = new HashMap<>();
+  // Chat id -> day index -> word -> count.
+  private Map<Long, TreeMap<Integer, Map<String, Long>>> dailyCounts =
+      new HashMap<>();
+  // Chat id -> month index -> word -> count.
+  private Map<Long, TreeMap<Integer, Map<String, Long>>> monthlyCounts =
+      new HashMap<>();
+  private Map<Long, Map<String, Long>> wordTotals = new HashMap<>();
+  // Chat id -> month index -> version.
+  private Map<Long, TreeMap<Integer, Long>> dirtyMonths = new HashMap<>();
+  // Lease key -> {owner, expires millis}.
+  private Map<String, Object[]> leases = new HashMap<>();
+  private Map<Long, User> users = new HashMap<>();
+  private Map<Long, Map<String, String>> options = new HashMap<>();
+
+  @Override
+  public void openConnection() {
+  }
+
+  @Override
+  public void closeConnection() {
+  }
+
+  @Override
+  public DatabaseSession openSession() {
+    return new DatabaseSession() {
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  @Override
+  public void shutdown() {
+  }
+
+  @Override
+  public String getStats() {
+    synchronized (lock) {
+      return "messages=" + messages.size();
+    }
+  }
+
+  @Override
+  public List<QueryPlan> explainQueries(long chatId) {
+    throw new UnsupportedOperationException("explainQueries");
+  }
+
+  @Override
+  public ResultSet executeQuery(String query) {
+    throw new UnsupportedOperationException("executeQuery");
+  }
+
+  @Override
+  public void addMessage(Message message) {
+    addMessages(Collections.singletonList(message));
+  }
+
+  @Override
+  public void addMessages(List<Message> newMessages) {
+    synchronized (lock) {
+      for (Message message : newMessages) {
+        messages.add(message);
+        long[] row = getRegistryRow(message.getChatId(), message.getType());
+        addToRegistryRow(row, message);
+        row[4] = Math.min(row[4], message.getMessageId());
+      }
+    }
+  }
+
+  /**
+   * Stores messages without adding them to the chat registry, like messages
+   * stored before it existed.
+   */
+  public void importMessages(List<Message> newMessages) {
+    synchronized (lock) {
+      messages.addAll(newMessages);
+    }
+  }
+
+  @Override
+  public void addOrUpdateUser(User user) {
+    synchronized (lock) {
+      users.put(user.getUserId(), user);
+    }
+  }
+
+  @Override
+  public void addOrUpdateUsers(Collection<User> newUsers) {
+    for (User user : newUsers) {
+      addOrUpdateUser(user);
+    }
+  }
+
+  @Override
+  public void addOrUpdateWordCount(long chatId, int timeRangeIndex,
+      String word, long count) throws SQLException {
+    addOrUpdateWordCounts(chatId, timeRangeIndex, Collections
+        .<Map.Entry<String, Long>> singletonList(
+            new AbstractMap.SimpleEntry<>(word, count)));
+  }
+
+  @Override
+  public void addOrUpdateWordCounts(long chatId, int timeRangeIndex,
+      List<Map.Entry<String, Long>> wordCounts) throws SQLException {
+    synchronized (lock) {
+      Map<String, Long> month = getMonth(chatId, timeRangeIndex);
+      addMonthToWordTotals(chatId, month, -1);
+      for (Map.Entry<String, Long> wordCount : wordCounts) {
+        month.put(wordCount.getKey(), wordCount.getValue());
+      }
+      addMonthToWordTotals(chatId, month, 1);
+    }
+  }
+
+  @Override
+  public void addOrUpdateOptions(long chatId, String optionName,
+      String optionValue) {
+    synchronized (lock) {
+      Map<String, String> chatOptions = options.get(chatId);
+      if (chatOptions == null) {
+        chatOptions = new HashMap<>();
+        options.put(chatId, chatOptions);
+      }
+      chatOptions.put(optionName, optionValue);
+    }
+  }
+
+  @Override
+  public Map<Long, User> getUsers() {
+    synchronized (lock) {
+      return new HashMap<>(users);
+    }
+  }
+
+  @Override
+  public List<Message> getMessages(long chatId, Collection<MessageType> types,
+      long startEpochSeconds, long endEpochSeconds) {
+    List<Message> result = new ArrayList<>();
+    synchronized (lock) {
+      for (Message message : messages) {
+        if (message.getChatId() == chatId
+            && types.contains(message.getType())
+            && message.getEpochSeconds() >= startEpochSeconds
+            && message.getEpochSeconds() < endEpochSeconds) {
+          result.add(message);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void streamMessages(long chatId, Collection<MessageType> types,
+      long startEpochSeconds, long endEpochSeconds,
+      RowCallback<Message> callback) throws SQLException {
+    // Not under the lock, since the callback may block.
+    for (Message message : getMessages(chatId, types, startEpochSeconds,
+        endEpochSeconds)) {
+      callback.onRow(message);
+    }
+  }
+
+  @Override
+  public List<Message> getMessagesSortedByTime(long chatId,
+      Collection<MessageType> types, String contentLike, int limit,
+      boolean isOldest, boolean isAscending) {
+    throw new UnsupportedOperationException("getMessagesSortedByTime");
+  }
+
+  @Override
+  public Map<Long, Message> getMessagesById(List<Long> messageIds) {
+    throw new UnsupportedOperationException("getMessagesById");
+  }
+
+  @Override
+  public List<Long> getChatIds() {
+    synchronized (lock) {
+      return new ArrayList<>(new TreeSet<>(registry.keySet()));
+    }
+  }
+
+  @Override
+  public List<ChatInfo> getChats(Collection<MessageType> types) {
+    List<ChatInfo> chats = new ArrayList<>();
+    for (long chatId : getChatIds()) {
+      ChatInfo chat = getChat(chatId, types);
+      if (chat != null) {
+        chats.add(chat);
+      }
+    }
+    return chats;
+  }
+
+  @Override
+  public ChatInfo getChat(long chatId, Collection<MessageType> types) {
+    synchronized (lock) {
+      Map<MessageType, long[]> rows = registry.get(chatId);
+      if (rows == null) {
+        return null;
+      }
+      long[] total = newRegistryRow();
+      boolean hasRows = false;
+      for (MessageType type : types) {
+        long[] row = rows.get(type);
+        if (row != null) {
+          hasRows = true;
+          total[0] = Math.min(total[0], row[0]);
+          total[1] = Math.max(total[1], row[1]);
+          total[2] += row[2];
+          total[3] = Math.max(total[3], row[3]);
+        }
+      }
+      if (!hasRows) {
+        return null;
+      }
+      Map<String, Long> chatWatermarks = watermarks.get(chatId);
+      chatWatermarks = chatWatermarks == null ? new HashMap<String, Long>()
+          : new HashMap<>(chatWatermarks);
+      if (readWatermark(ChatInfo.ALL_CHATS,
+          ChatInfo.CHAT_REGISTRY) == ChatInfo.BACKFILL_DONE) {
+        chatWatermarks.put(ChatInfo.CHAT_REGISTRY, ChatInfo.BACKFILL_DONE);
+      }
+      return new ChatInfo(chatId, total[0], total[1], total[2], total[3],
+          chatWatermarks);
+    }
+  }
+
+  @Override
+  public List<Long> getMessageChatIds(long afterChatId, int limit) {
+    TreeSet<Long> chatIds = new TreeSet<>();
+    synchronized (lock) {
+      for (Message message : messages) {
+        if (message.getChatId() > afterChatId) {
+          chatIds.add(message.getChatId());
+        }
+      }
+    }
+    List<Long> result = new ArrayList<>();
+    for (long chatId : chatIds) {
+      if (result.size() == limit) {
+        break;
+      }
+      result.add(chatId);
+    }
+    return result;
+  }
+
+  @Override
+  public boolean backfillChatRegistry(long chatId, int maxMessages)
+      throws SQLException {
+    synchronized (lock) {
+      long lastMessageId = readWatermark(chatId, ChatInfo.CHAT_REGISTRY);
+      if (lastMessageId == ChatInfo.BACKFILL_DONE) {
+        return true;
+      }
+      List<Message> chatMessages = new ArrayList<>();
+      for (Message message : messages) {
+        if (message.getChatId() == chatId
+            && message.getMessageId() > lastMessageId) {
+          chatMessages.add(message);
+        }
+      }
+      Collections.sort(chatMessages, new Comparator<Message>() {
+        @Override
+        public int compare(Message a, Message b) {
+          return Long.compare(a.getMessageId(), b.getMessageId());
+        }
+      });
+      int numMessages = Math.min(maxMessages, chatMessages.size());
+      for (Message message : chatMessages.subList(0, numMessages)) {
+        lastMessageId = message.getMessageId();
+        long[] row = getRegistryRow(chatId, message.getType());
+        // Already added by addMessages().
+        if (message.getMessageId() < row[4]) {
+          addToRegistryRow(row, message);
+        }
+      }
+      boolean isComplete = numMessages < maxMessages;
+      putWatermark(chatId, ChatInfo.CHAT_REGISTRY,
+          isComplete ? ChatInfo.BACKFILL_DONE : lastMessageId);
+      return isComplete;
+    }
+  }
+
+  @Override
+  public void setWatermark(long chatId, String name, long watermark) {
+    synchronized (lock) {
+      putWatermark(chatId, name, watermark);
+    }
+  }
+
+  @Override
+  public long getWatermark(long chatId, String name) {
+    synchronized (lock) {
+      return readWatermark(chatId, name);
+    }
+  }
+
+  @Override
+  public List<Map.Entry<User, Integer>> getRank(long chatId,
+      long startEpochSeconds, long endEpochSeconds, String type) {
+    throw new UnsupportedOperationException("getRank");
+  }
+
+  @Override
+  public Map<User, int[]> getTimeDistributionInHour(long chatId,
+      long startEpochSeconds, long endEpochSeconds) {
+    throw new UnsupportedOperationException("getTimeDistributionInHour");
+  }
+
+  @Override
+  public void rebuildHourlyMessageCounts(long chatId, long startEpochSeconds,
+      long endEpochSeconds) {
+    throw new UnsupportedOperationException("rebuildHourlyMessageCounts");
+  }
+
+  @Override
+  public List<Map.Entry<Long, Long>> getReplyList(long chatId,
+      long startEpochSeconds, long endEpochSeconds) {
+    throw new UnsupportedOperationException("getReplyList");
+  }
+
+  @Override
+  public void streamReplies(long chatId, long startEpochSeconds,
+      long endEpochSeconds, ReplyCallback callback) {
+    throw new UnsupportedOperationException("streamReplies");
+  }
+
+  @Override
+  public Map<String, Long> getWordCount(long chatId, int startTimeRangeIndex,
+      int endTimeRangeIndex, int limit) {
+    Map<String, Long> totals = new HashMap<>();
+    synchronized (lock) {
+      TreeMap<Integer, Map<String, Long>> months = monthlyCounts.get(chatId);
+      if (months != null) {
+        for (Map<String, Long> month : months
+            .subMap(startTimeRangeIndex, endTimeRangeIndex).values()) {
+          addAll(totals, month, 1);
+        }
+      }
+    }
+    return toMap(getTopWords(totals, limit));
+  }
+
+  @Override
+  public Map<String, Long> getWordTotals(long chatId, int limit) {
+    synchronized (lock) {
+      Map<String, Long> totals = wordTotals.get(chatId);
+      return toMap(getTopWords(
+          totals == null ? new HashMap<String, Long>() : totals, limit));
+    }
+  }
+
+  @Override
+  public List<Message> getMessagesAfter(long chatId,
+      Collection<MessageType> types, long afterMessageId, int limit) {
+    List<Message> result = new ArrayList<>();
+    synchronized (lock) {
+      for (Message message : messages) {
+        if (message.getChatId() == chatId
+            && types.contains(message.getType())
+            && message.getMessageId() > afterMessageId) {
+          result.add(message);
+        }
+      }
+    }
+    Collections.sort(result, new Comparator<Message>() {
+      @Override
+      public int compare(Message o1, Message o2) {
+        return Long.compare(o1.getMessageId(), o2.getMessageId());
+      }
+    });
+    return result.size() > limit ? new ArrayList<>(result.subList(0, limit))
+        : result;
+  }
+
+  @Override
+  public long getWordCountCheckpoint(long chatId) {
+    synchronized (lock) {
+      return readWatermark(chatId, ChatInfo.WORD_COUNT_CHECKPOINT);
+    }
+  }
+
+  @Override
+  public void addDailyWordCounts(long chatId,
+      Map<Integer, List<Map.Entry<String, Long>>> wordCountsByDay,
+      Collection<Integer> monthIndices, long previousMessageId,
+      long lastMessageId) throws SQLException {
+    synchronized (lock) {
+      if (readWatermark(chatId,
+          ChatInfo.WORD_COUNT_CHECKPOINT) != previousMessageId) {
+        throw new StaleCheckpointException("Word count checkpoint of chat "
+            + chatId + " is no longer at message " + previousMessageId);
+      }
+      putWatermark(chatId, ChatInfo.WORD_COUNT_CHECKPOINT, lastMessageId);
+      TreeMap<Integer, Map<String, Long>> days = dailyCounts.get(chatId);
+      if (days == null) {
+        days = new TreeMap<>();
+        dailyCounts.put(chatId, days);
+      }
+      for (Map.Entry<Integer, List<Map.Entry<String, Long>>> day
+          : wordCountsByDay.entrySet()) {
+        Map<String, Long> counts = days.get(day.getKey());
+        if (counts == null) {
+          counts = new HashMap<>();
+          days.put(day.getKey(), counts);
+        }
+        for (Map.Entry<String, Long> wordCount : day.getValue()) {
+          add(counts, wordCount.getKey(), wordCount.getValue());
+        }
+      }
+      TreeMap<Integer, Long> months = dirtyMonths.get(chatId);
+      if (months == null) {
+        months = new TreeMap<>();
+        dirtyMonths.put(chatId, months);
+      }
+      for (int monthIndex : monthIndices) {
+        Long version = months.get(monthIndex);
+        months.put(monthIndex, version == null ? 1L : version + 1);
+      }
+    }
+  }
+
+  @Override
+  public Map<Integer, Long> getDirtyWordCountMonths(long chatId) {
+    synchronized (lock) {
+      TreeMap<Integer, Long> months = dirtyMonths.get(chatId);
+      return months == null ? new TreeMap<Integer, Long>()
+          : new TreeMap<>(months);
+    }
+  }
+
+  @Override
+  public List<Long> getChatIdsWithDirtyWordCountMonths() {
+    List<Long> chatIds = new ArrayList<>();
+    synchronized (lock) {
+      for (Map.Entry<Long, TreeMap<Integer, Long>> chat : dirtyMonths
+          .entrySet()) {
+        if (!chat.getValue().isEmpty()) {
+          chatIds.add(chat.getKey());
+        }
+      }
+    }
+    return chatIds;
+  }
+
+  @Override
+  public void clearDirtyWordCountMonth(long chatId, int monthIndex,
+      long version) {
+    synchronized (lock) {
+      TreeMap<Integer, Long> months = dirtyMonths.get(chatId);
+      if (months != null && Long.valueOf(version)
+          .equals(months.get(monthIndex))) {
+        months.remove(monthIndex);
+      }
+    }
+  }
+
+  @Override
+  public List<Map.Entry<String, Long>> getDailyWordCount(long chatId,
+      int startDayIndex, int endDayIndex, int limit) {
+    Map<String, Long> totals = new HashMap<>();
+    synchronized (lock) {
+      TreeMap<Integer, Map<String, Long>> days = dailyCounts.get(chatId);
+      if (days != null) {
+        for (Map<String, Long> day : days.subMap(startDayIndex, endDayIndex)
+            .values()) {
+          addAll(totals, day, 1);
+        }
+      }
+    }
+    return getTopWords(totals, limit);
+  }
+
+  @Override
+  public void replaceWordCounts(long chatId, int timeRangeIndex,
+      List<Map.Entry<String, Long>> wordCounts) throws SQLException {
+    synchronized (lock) {
+      Map<String, Long> month = getMonth(chatId, timeRangeIndex);
+      addMonthToWordTotals(chatId, month, -1);
+      month.clear();
+      for (Map.Entry<String, Long> wordCount : wordCounts) {
+        month.put(wordCount.getKey(), wordCount.getValue());
+      }
+      addMonthToWordTotals(chatId, month, 1);
+    }
+  }
+
+  @Override
+  public boolean tryAcquireLease(String leaseKey, String owner,
+      long ttlMillis) {
+    synchronized (lock) {
+      long nowMillis = System.currentTimeMillis();
+      Object[] lease = leases.get(leaseKey);
+      if (lease == null || (Long) lease[1] < nowMillis
+          || lease[0].equals(owner)) {
+        leases.put(leaseKey, new Object[] { owner, nowMillis + ttlMillis });
+        return true;
+      }
+      return false;
+    }
+  }
+
+  @Override
+  public void releaseLease(String leaseKey, String owner) {
+    synchronized (lock) {
+      Object[] lease = leases.get(leaseKey);
+      if (lease != null && lease[0].equals(owner)) {
+        leases.remove(leaseKey);
+      }
+    }
+  }
+
+  @Override
+  public String getOption(long chatId, String optionName) {
+    synchronized (lock) {
+      Map<String, String> chatOptions = options.get(chatId);
+      return chatOptions == null ? null : chatOptions.get(optionName);
+    }
+  }
+
+  @Override
+  public Map<String, String> getOptions(long chatId) {
+    synchronized (lock) {
+      Map<String, String> chatOptions = options.get(chatId);
+      return chatOptions == null ? new HashMap<String, String>()
+          : new HashMap<>(chatOptions);
+    }
+  }
+
+  /**
+   * @param chatId
+   * @param dayIndex
+   * @return A copy of the daily counts of the day, or null if it has none.
+   */
+  public Map<String, Long> getDailyWordCounts(long chatId, int dayIndex) {
+    synchronized (lock) {
+      TreeMap<Integer, Map<String, Long>> days = dailyCounts.get(chatId);
+      Map<String, Long> day = days == null ? null : days.get(dayIndex);
+      return day == null ? null : new HashMap<>(day);
+    }
+  }
+
+  /**
+   * @param chatId
+   * @param monthIndex
+   * @return A copy of the monthly counts of the month, or null if it has none.
+   */
+  public Map<String, Long> getMonthlyWordCounts(long chatId,
+      int monthIndex) {
+    synchronized (lock) {
+      TreeMap<Integer, Map<String, Long>> months = monthlyCounts.get(chatId);
+      Map<String, Long> month = months == null ? null
+          : months.get(monthIndex);
+      return month == null || month.isEmpty() ? null
+          : new HashMap<>(month);
+    }
+  }
+
+  /**
+   * Puts a lease as another node would, e.g. one which then crashes.
+   *
+   * @param leaseKey
+   * @param owner
+   * @param expiresMillis
+   */
+  public void putLease(String leaseKey, String owner, long expiresMillis) {
+    synchronized (lock) {
+      leases.put(leaseKey, new Object[] { owner, expiresMillis });
+    }
+  }
+
+  /**
+   * @param leaseKey
+   * @return The owner, or null if the lease is not held, expired or not.
+   */
+  public String getLeaseOwner(String leaseKey) {
+    synchronized (lock) {
+      Object[] lease = leases.get(leaseKey);
+      return lease == null ? null : (String) lease[0];
+    }
+  }
+
+  public int getNumLeases() {
+    synchronized (lock) {
+      return leases.size();
+    }
+  }
+
+  // Must hold lock.
+  private long[] getRegistryRow(long chatId, MessageType type) {
+    Map<MessageType, long[]> rows = registry.get(chatId);
+    if (rows == null) {
+      rows = new HashMap<>();
+      registry.put(chatId, rows);
+    }
+    long[] row = rows.get(type);
+    if (row == null) {
+      row = newRegistryRow();
+      rows.put(type, row);
+    }
+    return row;
+  }
+
+  private static long[] newRegistryRow() {
+    return new long[] { Long.MAX_VALUE, Long.MIN_VALUE, 0L, 0L,
+        Long.MAX_VALUE };
+  }
+
+  private static void addToRegistryRow(long[] row, Message message) {
+    row[0] = Math.min(row[0], message.getEpochSeconds());
+    row[1] = Math.max(row[1], message.getEpochSeconds());
+    row[2]++;
+    row[3] = Math.max(row[3], message.getMessageId());
+  }
+
+  // Must hold lock.
+  private Map<String, Long> getMonth(long chatId, int monthIndex) {
+    TreeMap<Integer, Map<String, Long>> months = monthlyCounts.get(chatId);
+    if (months == null) {
+      months = new TreeMap<>();
+      monthlyCounts.put(chatId, months);
+    }
+    Map<String, Long> month = months.get(monthIndex);
+    if (month == null) {
+      month = new LinkedHashMap<>();
+      months.put(monthIndex, month);
+    }
+    return month;
+  }
+
+  // Must hold lock. Overrides of setWatermark() only see the callers' calls.
+  private void putWatermark(long chatId, String name, long watermark) {
+    Map<String, Long> chatWatermarks = watermarks.get(chatId);
+    if (chatWatermarks == null) {
+      chatWatermarks = new HashMap<>();
+      watermarks.put(chatId, chatWatermarks);
+    }
+    chatWatermarks.put(name, watermark);
+  }
+
+  // Must hold lock.
+  private long readWatermark(long chatId, String name) {
+    Map<String, Long> chatWatermarks = watermarks.get(chatId);
+    Long watermark = chatWatermarks == null ? null : chatWatermarks.get(name);
+    return watermark == null ? 0L : watermark;
+  }
+
+  // Must hold lock. Like MySQLDatabase, bumps the version after adding.
+  private void addMonthToWordTotals(long chatId, Map<String, Long> month,
+      int sign) {
+    Map<String, Long> totals = wordTotals.get(chatId);
+    if (totals == null) {
+      totals = new HashMap<>();
+      wordTotals.put(chatId, totals);
+    }
+    addAll(totals, month, sign);
+    if (sign > 0) {
+      for (Map.Entry<String, Long> total : new ArrayList<>(
+          totals.entrySet())) {
+        if (total.getValue() <= 0) {
+          totals.remove(total.getKey());
+        }
+      }
+      putWatermark(chatId, ChatInfo.WORD_TOTALS_VERSION,
+          readWatermark(chatId, ChatInfo.WORD_TOTALS_VERSION) + 1);
+    }
+  }
+
+  private static void add(Map<String, Long> counts, String word, long count) {
+    Long current = counts.get(word);
+    counts.put(word, (current == null ? 0L : current) + count);
+  }
+
+  private static void addAll(Map<String, Long> counts,
+      Map<String, Long> more, int sign) {
+    for (Map.Entry<String, Long> entry : more.entrySet()) {
+      add(counts, entry.getKey(), sign * entry.getValue());
+    }
+  }
+
+  // Sorted by count in descending order, then by word, like the queries.
+  private static List<Map.Entry<String, Long>> getTopWords(
+      Map<String, Long> counts, int limit) {
+    List<Map.Entry<String, Long>> entries = new ArrayList<>();
+    for (Map.Entry<String, Long> entry : counts.entrySet()) {
+      entries.add(new AbstractMap.SimpleEntry<>(entry));
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> o1,
+          Map.Entry<String, Long> o2) {
+        int result = Long.compare(o2.getValue(), o1.getValue());
+        return result != 0 ? result : o1.getKey().compareTo(o2.getKey());
+      }
+    });
+    return entries.size() > limit ? new ArrayList<>(entries.subList(0, limit))
+        : entries;
+  }
+
+  private static Map<String, Long> toMap(
+      List<Map.Entry<String, Long>> entries) {
+    Map<String, Long> map = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> entry : entries) {
+      map.put(entry.getKey(), entry.getValue());
+    }
+    return map;
+  }
+
+}
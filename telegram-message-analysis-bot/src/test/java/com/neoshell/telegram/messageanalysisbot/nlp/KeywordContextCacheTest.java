@@ -0,0 +1,47 @@
+package com.neoshell.telegram.messageanalysisbot.nlp;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.neoshell.telegram.messageanalysisbot.database.FakeDatabase;
+
+public class KeywordContextCacheTest {
+
+  private int numTotalsReads = 0;
+
+  @Test
+  public void reloadsOnlyWhenTotalsChange() throws Exception {
+    NativeNLPEngine nlp = new NativeNLPEngine();
+    nlp.initialize();
+    FakeDatabase database = new FakeDatabase() {
+      @Override
+      public Map<String, Long> getWordTotals(long chatId, int limit) {
+        numTotalsReads++;
+        return super.getWordTotals(chatId, limit);
+      }
+    };
+    database.addOrUpdateWordCount(1L, 600, "apple", 3L);
+    database.addOrUpdateWordCount(2L, 600, "banana", 3L);
+    KeywordContextCache cache = new KeywordContextCache(database, nlp, 10,
+        10);
+
+    KeywordContext context = cache.get(1L);
+    assertSame(context, cache.get(1L));
+    assertEquals(1, numTotalsReads);
+
+    // Each chat has its own context.
+    assertNotSame(context, cache.get(2L));
+    assertEquals(2, numTotalsReads);
+
+    // Another month written bumps the version of the totals.
+    database.addOrUpdateWordCount(1L, 601, "apple", 2L);
+    KeywordContext reloaded = cache.get(1L);
+    assertNotSame(context, reloaded);
+    assertSame(reloaded, cache.get(1L));
+    assertEquals(3, numTotalsReads);
+  }
+
+}
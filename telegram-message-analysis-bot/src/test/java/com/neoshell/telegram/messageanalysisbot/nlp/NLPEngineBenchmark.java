@@ -0,0 +1,125 @@
+package com.neoshell.telegram.messageanalysisbot.nlp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.handler.KeywordInfo;
+
+/**
+ * Compares NativeNLPEngine against the NLP util server on synthetic mixed
+ * Chinese and English chat texts, for the monthly word count and for the
+ * 'keyword' command.
+ *
+ * The grpc engine needs a running server, given by the system properties
+ * nlp.host and nlp.port (default localhost:50051). Run main() on the test
+ * classpath after mvn test-compile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NLPEngineBenchmark {
+
+  private static final String[] WORDS = { "今天", "天气", "不错", "晚饭", "吃什么",
+      "火锅", "烧烤", "电影", "周末", "出去", "玩", "java", "bot", "deploy",
+      "server", "crash", "的", "了", "是", "我", "你", "the", "is", "ok" };
+  private static final int NUM_KEYWORD_MESSAGES = 3000;
+
+  @Param({ "native", "grpc" })
+  public String engine;
+
+  @Param({ "100000" })
+  public int numTexts;
+
+  private NLPInterface nlp;
+  private List<String> texts;
+  private List<Message> messages;
+  private Map<String, Long> globalWordCount;
+
+  @Setup
+  public void setUp() throws Exception {
+    if ("native".equals(engine)) {
+      nlp = new NativeNLPEngine();
+    } else {
+      nlp = new NLPUtilClientWrapper(
+          System.getProperty("nlp.host", "localhost"),
+          Integer.getInteger("nlp.port", 50051), /* numClients= */1,
+          /* callTimeoutMillis= */600000L, /* maxAttempts= */1,
+          /* retryBackoffMillis= */0L);
+    }
+    nlp.initialize();
+    Random random = new Random(42);
+    texts = new ArrayList<>();
+    for (int i = 0; i < numTexts; i++) {
+      texts.add(newText(random));
+    }
+    messages = new ArrayList<>();
+    for (int i = 0; i < NUM_KEYWORD_MESSAGES; i++) {
+      messages.add(new Message(1L, (long) i, i * 20L, 100L + random.nextInt(20),
+          0L, 0L, texts.get(i), MessageType.TEXT));
+    }
+    globalWordCount = new HashMap<>();
+    for (int i = 0; i < WORDS.length; i++) {
+      globalWordCount.put(WORDS[i], 1000L * (i + 1));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    nlp.shutdown();
+  }
+
+  @Benchmark
+  public List<Map.Entry<String, Long>> countWords() throws Exception {
+    return nlp.countWords(texts, /* countStopWords= */false, 500);
+  }
+
+  @Benchmark
+  public List<KeywordInfo> computeKeywords() throws Exception {
+    return nlp.computeKeywords(messages, globalWordCount);
+  }
+
+  private static String newText(Random random) {
+    StringBuilder sb = new StringBuilder();
+    int numWords = 1 + random.nextInt(12);
+    for (int i = 0; i < numWords; i++) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      // Latin words need spaces around them.
+      if (i > 0 && (word.charAt(0) < 0x80
+          || sb.charAt(sb.length() - 1) < 0x80)) {
+        sb.append(' ');
+      }
+      sb.append(word);
+    }
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(NLPEngineBenchmark.class.getSimpleName()).build()).run();
+  }
+
+}
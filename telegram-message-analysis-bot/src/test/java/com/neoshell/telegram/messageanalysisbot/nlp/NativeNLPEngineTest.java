@@ -0,0 +1,111 @@
+package com.neoshell.telegram.messageanalysisbot.nlp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.collection.ObjectLongHashMap;
+import com.neoshell.telegram.messageanalysisbot.handler.KeywordInfo;
+
+public class NativeNLPEngineTest {
+
+  @Test
+  public void tokenizesCjkIntoBigramsAndSkipsNoise() {
+    WordTokenizer tokenizer = new WordTokenizer(
+        new HashSet<>(Arrays.asList("the", "的", "了")));
+    ObjectLongHashMap<String> counts = new ObjectLongHashMap<>();
+    tokenizer.countWords("/keyword@bot -n 5 The Java的天气 https://x.org/a "
+        + "好了的 java 2024 @someone", false, counts);
+    assertEquals(2L, counts.get("java", 0L));
+    assertEquals(1L, counts.get("的天", 0L));
+    assertEquals(1L, counts.get("天气", 0L));
+    assertEquals(1L, counts.get("好了", 0L));
+    // Stop words, bigrams of two stop words, numbers, URLs, commands and
+    // mentions.
+    assertFalse(counts.containsKey("the"));
+    assertFalse(counts.containsKey("了的"));
+    assertFalse(counts.containsKey("2024"));
+    assertFalse(counts.containsKey("keyword"));
+    assertFalse(counts.containsKey("org"));
+    assertFalse(counts.containsKey("someone"));
+    assertEquals(4, counts.size());
+
+    counts.clear();
+    tokenizer.countWords("the 了的", true, counts);
+    assertEquals(1L, counts.get("the", 0L));
+    assertEquals(1L, counts.get("了的", 0L));
+  }
+
+  @Test
+  public void countsWordsInParallel() throws Exception {
+    NativeNLPEngine engine = new NativeNLPEngine();
+    engine.initialize();
+    List<String> texts = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      texts.add("alpha beta" + (i % 3 == 0 ? " gamma" : "")
+          + (i % 7 == 0 ? " delta" : ""));
+    }
+    List<Map.Entry<String, Long>> wordCount = engine.countWords(texts,
+        false, 3);
+    assertEquals(3, wordCount.size());
+    // Ties are sorted by word.
+    assertEquals("alpha", wordCount.get(0).getKey());
+    assertEquals(Long.valueOf(10000L), wordCount.get(0).getValue());
+    assertEquals("beta", wordCount.get(1).getKey());
+    assertEquals("gamma", wordCount.get(2).getKey());
+    assertEquals(Long.valueOf(3334L), wordCount.get(2).getValue());
+  }
+
+  @Test
+  public void mergesBucketsOnTheSameTopic() throws Exception {
+    NativeNLPEngine engine = new NativeNLPEngine();
+    engine.initialize();
+    List<Message> messages = new ArrayList<>();
+    long messageId = 1;
+    // Two adjacent buckets about the same topic, then another topic much
+    // later, then a bucket with too few messages.
+    for (int i = 0; i < 10; i++) {
+      messages.add(newText(messageId++, 600 + i, "kotlin coroutines"));
+    }
+    for (int i = 0; i < 10; i++) {
+      messages.add(newText(messageId++, 1200 + i, "kotlin flows"));
+    }
+    for (int i = 0; i < 20; i++) {
+      messages.add(newText(messageId++, 6000 + i, "dinner tonight"));
+    }
+    for (int i = 0; i < 3; i++) {
+      messages.add(newText(messageId++, 9000 + i, "sleep"));
+    }
+    Map<String, Long> globalWordCount = new HashMap<>();
+    globalWordCount.put("kotlin", 1000L);
+    List<KeywordInfo> keywordInfoList = engine.computeKeywords(messages,
+        globalWordCount);
+    assertEquals(2, keywordInfoList.size());
+    KeywordInfo first = keywordInfoList.get(0);
+    assertEquals(600L, first.getStartTimeSeconds());
+    assertEquals(1209L, first.getEndTimeSeconds());
+    assertEquals(1L, first.getFirstMessageId());
+    // Common in the chat history, so it scores below the others.
+    assertEquals("kotlin", first.getKeywords()
+        .get(first.getKeywords().size() - 1));
+    assertEquals(6000L, keywordInfoList.get(1).getStartTimeSeconds());
+    assertEquals(Arrays.asList("dinner", "tonight"),
+        keywordInfoList.get(1).getKeywords());
+  }
+
+  private static Message newText(long messageId, long epochSeconds,
+      String content) {
+    return new Message(1L, messageId, epochSeconds, 100L, 0L, 0L, content,
+        MessageType.TEXT);
+  }
+
+}
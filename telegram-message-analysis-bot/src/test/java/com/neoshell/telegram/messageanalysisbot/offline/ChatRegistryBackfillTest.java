@@ -0,0 +1,159 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.FakeDatabase;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobContext;
+
+public class ChatRegistryBackfillTest {
+
+  private int numChatPages = 0;
+  private int numRanges = 0;
+  private long failChatId = 0L;
+  private FakeDatabase database;
+  private ChatRegistryBackfill backfill;
+
+  @Before
+  public void setUp() {
+    database = new FakeDatabase() {
+      @Override
+      public List<Long> getMessageChatIds(long afterChatId, int limit) {
+        numChatPages++;
+        return super.getMessageChatIds(afterChatId, limit);
+      }
+
+      @Override
+      public boolean backfillChatRegistry(long chatId, int maxMessages)
+          throws SQLException {
+        if (chatId == failChatId) {
+          throw new SQLException("Lock wait timeout exceeded");
+        }
+        numRanges++;
+        return super.backfillChatRegistry(chatId, maxMessages);
+      }
+    };
+    backfill = new ChatRegistryBackfill(database, /* chatsPerPage= */2,
+        /* messagesPerRange= */10, Logger.getAnonymousLogger());
+  }
+
+  @Test
+  public void addsOlderMessagesOnce() throws Exception {
+    // Chat -5 only has old messages. Chats 1 and 7 have new ones too, which
+    // are in the registry already.
+    importMessages(-5L, 1, 25, MessageType.TEXT);
+    importMessages(1L, 1, 30, MessageType.TEXT);
+    importMessages(1L, 31, 5, MessageType.IMAGE);
+    database.addMessages(newMessages(1L, 36, 4, MessageType.TEXT));
+    importMessages(7L, 1, 3, MessageType.TEXT);
+    database.addMessages(newMessages(7L, 4, 1, MessageType.TEXT));
+    assertFalse(getChat(1L).isComplete());
+    assertEquals(4L, getChat(1L).getNumMessages());
+
+    backfill.run(JobContext.unlimited());
+    assertChat(-5L, 25L, 1L, 25L);
+    assertChat(1L, 39L, 1L, 39L);
+    assertChat(7L, 4L, 1L, 4L);
+    assertEquals(5L, database.getChat(1L, EnumSet.of(MessageType.IMAGE))
+        .getNumMessages());
+    // -5 in 3 ranges, 1 in 4 and 7 in 1.
+    assertEquals(8, numRanges);
+  }
+
+  @Test
+  public void countsMessagesAddedDuringBackfill() throws Exception {
+    database = new FakeDatabase() {
+      private boolean isAdded = false;
+
+      @Override
+      public boolean backfillChatRegistry(long chatId, int maxMessages)
+          throws SQLException {
+        boolean isComplete = super.backfillChatRegistry(chatId, maxMessages);
+        if (!isAdded) {
+          isAdded = true;
+          addMessages(newMessages(1L, 26, 3, MessageType.TEXT));
+        }
+        return isComplete;
+      }
+    };
+    database.importMessages(newMessages(1L, 1, 25, MessageType.TEXT));
+    new ChatRegistryBackfill(database, 2, 10, Logger.getAnonymousLogger())
+        .run(JobContext.unlimited());
+    assertChat(1L, 28L, 1L, 28L);
+  }
+
+  @Test
+  public void marksAllChatsDoneOnlyAfterEveryChat() throws Exception {
+    importMessages(1L, 1, 5, MessageType.TEXT);
+    importMessages(2L, 1, 5, MessageType.TEXT);
+    importMessages(3L, 1, 5, MessageType.TEXT);
+    failChatId = 2L;
+    try {
+      backfill.run(JobContext.unlimited());
+      fail();
+    } catch (Exception e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("1 chat(s)"));
+    }
+    assertTrue(getChat(3L).isComplete());
+    assertEquals(0L, database.getWatermark(ChatInfo.ALL_CHATS,
+        ChatInfo.CHAT_REGISTRY));
+
+    failChatId = 0L;
+    numRanges = 0;
+    backfill.run(JobContext.unlimited());
+    // Only chat 2 is read again.
+    assertEquals(1, numRanges);
+    assertChat(2L, 5L, 1L, 5L);
+
+    // A chat created afterwards is complete as soon as it has messages, and
+    // later runs do not list chats again.
+    database.addMessages(newMessages(4L, 1, 1, MessageType.TEXT));
+    assertTrue(getChat(4L).isComplete());
+    numChatPages = 0;
+    assertEquals("Chat registry complete",
+        backfill.run(JobContext.unlimited()));
+    assertEquals(0, numChatPages);
+  }
+
+  private void assertChat(long chatId, long numMessages,
+      long firstEpochSeconds, long lastMessageId) throws SQLException {
+    ChatInfo chat = getChat(chatId);
+    assertTrue(chat.isComplete());
+    assertEquals(numMessages, chat.getNumMessages());
+    assertEquals(firstEpochSeconds, chat.getFirstEpochSeconds());
+    assertEquals(lastMessageId, chat.getLastMessageId());
+  }
+
+  private ChatInfo getChat(long chatId) throws SQLException {
+    return database.getChat(chatId, EnumSet.allOf(MessageType.class));
+  }
+
+  private void importMessages(long chatId, long firstMessageId,
+      int numMessages, MessageType type) {
+    database.importMessages(newMessages(chatId, firstMessageId, numMessages,
+        type));
+  }
+
+  // Message i is sent at second i.
+  private static List<Message> newMessages(long chatId, long firstMessageId,
+      int numMessages, MessageType type) {
+    List<Message> messages = new ArrayList<>();
+    for (long id = firstMessageId; id < firstMessageId + numMessages; id++) {
+      messages.add(new Message(chatId, id, id, 100L, 0L, 0L, "m" + id, type));
+    }
+    return Collections.unmodifiableList(messages);
+  }
+
+}
@@ -0,0 +1,63 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.neoshell.telegram.messageanalysisbot.nlp.NativeNLPEngine;
+
+public class ChunkedWordCountTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void spilledCountsMatchCountingAtOnce() throws Exception {
+    NativeNLPEngine nlp = new NativeNLPEngine();
+    nlp.initialize();
+    Random random = new Random(7);
+    List<String> texts = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      StringBuilder sb = new StringBuilder();
+      for (int j = 0; j < 5; j++) {
+        // Skewed, so that the top words are not all ties.
+        sb.append("w").append(random.nextInt(1 + random.nextInt(3000)))
+            .append(' ');
+      }
+      texts.add(sb.toString());
+    }
+    File spillDirectory = folder.newFolder();
+    try (ChunkedWordCount wordCount = new ChunkedWordCount(nlp, false,
+        /* chunkSize= */100, /* maxWordsInMemory= */500, spillDirectory)) {
+      for (String text : texts) {
+        wordCount.add(text);
+      }
+      assertEquals(nlp.countWords(texts, false, 200),
+          wordCount.getTopWords(200));
+      assertTrue(wordCount.getNumRuns() > 1);
+      assertEquals(wordCount.getNumRuns(), spillDirectory.list().length);
+    }
+    assertEquals(0, spillDirectory.list().length);
+  }
+
+  @Test
+  public void countsSmallMonthInOneCall() throws Exception {
+    NativeNLPEngine nlp = new NativeNLPEngine();
+    nlp.initialize();
+    try (ChunkedWordCount wordCount = new ChunkedWordCount(nlp, false,
+        /* chunkSize= */100, /* maxWordsInMemory= */500, null)) {
+      wordCount.add("alpha beta");
+      wordCount.add("alpha");
+      assertEquals("alpha", wordCount.getTopWords(1).get(0).getKey());
+      assertEquals(0, wordCount.getNumRuns());
+    }
+  }
+
+}
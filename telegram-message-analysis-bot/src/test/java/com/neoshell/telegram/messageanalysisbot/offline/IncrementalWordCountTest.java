@@ -0,0 +1,185 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.FakeDatabase;
+import com.neoshell.telegram.messageanalysisbot.database.StaleCheckpointException;
+import com.neoshell.telegram.messageanalysisbot.nlp.NativeNLPEngine;
+import com.neoshell.telegram.messageanalysisbot.scheduler.JobContext;
+
+public class IncrementalWordCountTest {
+
+  private static final long CHAT_ID = 1L;
+  private static final int MONTH_INDEX = 600; // January 2020.
+
+  private int numDailyWrites = 0;
+  private int failDailyWriteNumber = -1;
+  private FakeDatabase database;
+  private IncrementalWordCount wordCount;
+
+  @Before
+  public void setUp() throws Exception {
+    database = new FakeDatabase() {
+      @Override
+      public void addDailyWordCounts(long chatId,
+          Map<Integer, List<Map.Entry<String, Long>>> wordCountsByDay,
+          Collection<Integer> monthIndices, long previousMessageId,
+          long lastMessageId) throws SQLException {
+        if (++numDailyWrites == failDailyWriteNumber) {
+          throw new SQLException("Lost connection");
+        }
+        super.addDailyWordCounts(chatId, wordCountsByDay, monthIndices,
+            previousMessageId, lastMessageId);
+      }
+    };
+    NativeNLPEngine nlp = new NativeNLPEngine();
+    nlp.initialize();
+    wordCount = new IncrementalWordCount(database, nlp, false, 10,
+        /* pageSize= */2, Logger.getAnonymousLogger());
+  }
+
+  @Test
+  public void countsOnlyNewMessages() throws Exception {
+    addMessage(1, 3, "apple banana");
+    addMessage(2, 3, "apple");
+    addMessage(3, 4, "cherry");
+    assertEquals(3L, wordCount.run(CHAT_ID, JobContext.unlimited()));
+    assertEquals(3L, database.getWordCountCheckpoint(CHAT_ID));
+    assertEquals(2L, getMonthlyCount("apple"));
+
+    addMessage(4, 20, "apple cherry");
+    assertEquals(1L, wordCount.run(CHAT_ID, JobContext.unlimited()));
+    assertEquals(0L, wordCount.run(CHAT_ID, JobContext.unlimited()));
+    assertEquals(3L, getMonthlyCount("apple"));
+    assertEquals(2L, getMonthlyCount("cherry"));
+    assertEquals(1L, getMonthlyCount("banana"));
+    assertEquals(1L, (long) database
+        .getDailyWordCounts(CHAT_ID, getDayIndex(20)).get("apple"));
+  }
+
+  @Test
+  public void resumesFromCheckpointAfterFailure() throws Exception {
+    addMessage(1, 3, "apple");
+    addMessage(2, 3, "apple");
+    addMessage(3, 5, "apple");
+    addMessage(4, 5, "banana");
+    addMessage(5, 6, "apple");
+    failDailyWriteNumber = 2;
+    try {
+      wordCount.run(CHAT_ID, JobContext.unlimited());
+      fail("Expected the second page to fail.");
+    } catch (SQLException e) {
+      // Expected.
+    }
+    assertEquals(2L, database.getWordCountCheckpoint(CHAT_ID));
+    assertEquals(3L, wordCount.run(CHAT_ID, JobContext.unlimited()));
+    assertEquals(5L, database.getWordCountCheckpoint(CHAT_ID));
+    assertEquals(4L, getMonthlyCount("apple"));
+    assertEquals(1L, getMonthlyCount("banana"));
+  }
+
+  @Test
+  public void derivesMonthsOfCommittedPagesAfterFailure() throws Exception {
+    addMessage(1, 1, 30, "apple");
+    addMessage(2, 1, 31, "apple");
+    addMessage(3, 2, 1, "banana");
+    addMessage(4, 2, 2, "banana");
+    addMessage(5, 2, 3, "cherry");
+    failDailyWriteNumber = 2;
+    try {
+      wordCount.run(CHAT_ID, JobContext.unlimited());
+      fail("Expected the second page to fail.");
+    } catch (SQLException e) {
+      // Expected.
+    }
+    // January was written to the daily counts only.
+    assertNull(database.getMonthlyWordCounts(CHAT_ID, MONTH_INDEX));
+    assertEquals(1, database.getDirtyWordCountMonths(CHAT_ID).size());
+
+    // The resumed pages are all in February, and January is derived too.
+    assertEquals(3L, wordCount.run(CHAT_ID, JobContext.unlimited()));
+    assertEquals(2L, getMonthlyCount(MONTH_INDEX, "apple"));
+    assertEquals(2L, getMonthlyCount(MONTH_INDEX + 1, "banana"));
+    assertEquals(1L, getMonthlyCount(MONTH_INDEX + 1, "cherry"));
+    assertTrue(database.getDirtyWordCountMonths(CHAT_ID).isEmpty());
+  }
+
+  @Test
+  public void stopsWhenAnotherWorkerMovesCheckpoint() throws Exception {
+    addMessage(1, 3, "apple");
+    addMessage(2, 3, "apple");
+    addMessage(3, 5, "apple");
+    // Another worker counts message 3 after the first page is written.
+    JobContext context = new JobContext(1.0, null, 0L) {
+      @Override
+      public void pause() {
+        database.setWatermark(CHAT_ID, ChatInfo.WORD_COUNT_CHECKPOINT, 3L);
+      }
+    };
+    try {
+      wordCount.run(CHAT_ID, context);
+      fail("Expected a stale checkpoint.");
+    } catch (StaleCheckpointException e) {
+      // Expected.
+    }
+    assertEquals(3L, database.getWordCountCheckpoint(CHAT_ID));
+    assertEquals(2L, (long) database
+        .getDailyWordCounts(CHAT_ID, getDayIndex(3)).get("apple"));
+    assertNull(database.getDailyWordCounts(CHAT_ID, getDayIndex(5)));
+  }
+
+  @Test
+  public void convertsDaysAndMonths() {
+    int firstDay = IncrementalWordCount
+        .convertMonthIndexToDayIndex(MONTH_INDEX);
+    assertEquals(LocalDate.of(2020, 1, 1).toEpochDay(), firstDay);
+    assertEquals(MONTH_INDEX, IncrementalWordCount.getMonthIndex(firstDay));
+    assertEquals(MONTH_INDEX - 1,
+        IncrementalWordCount.getMonthIndex(firstDay - 1));
+    assertEquals(LocalDate.of(2020, 2, 1).toEpochDay(),
+        IncrementalWordCount.convertMonthIndexToDayIndex(MONTH_INDEX + 1));
+    // Month boundaries agree with the monthly word counter.
+    assertEquals(firstDay, IncrementalWordCount.getDayIndex(
+        WordCounter.convertMonthIndexToEpochSeconds(MONTH_INDEX)));
+  }
+
+  private void addMessage(long messageId, int dayOfMonth, String text) {
+    addMessage(messageId, 1, dayOfMonth, text);
+  }
+
+  private void addMessage(long messageId, int month, int dayOfMonth,
+      String text) {
+    long epochSeconds = LocalDate.of(2020, month, dayOfMonth)
+        .atStartOfDay(ZoneId.systemDefault()).toEpochSecond() + 3600;
+    database.addMessage(new Message(CHAT_ID, messageId, epochSeconds, 1L, 0L,
+        0L, text, MessageType.TEXT));
+  }
+
+  private int getDayIndex(int dayOfMonth) {
+    return (int) LocalDate.of(2020, 1, dayOfMonth).toEpochDay();
+  }
+
+  private long getMonthlyCount(String word) {
+    return getMonthlyCount(MONTH_INDEX, word);
+  }
+
+  private long getMonthlyCount(int monthIndex, String word) {
+    Long count = database.getMonthlyWordCounts(CHAT_ID, monthIndex).get(word);
+    return count == null ? 0L : count;
+  }
+
+}
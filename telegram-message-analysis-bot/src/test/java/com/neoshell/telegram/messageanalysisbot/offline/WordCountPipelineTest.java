@@ -0,0 +1,117 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.neoshell.telegram.messageanalysisbot.Message;
+import com.neoshell.telegram.messageanalysisbot.MessageType;
+import com.neoshell.telegram.messageanalysisbot.database.ChatInfo;
+import com.neoshell.telegram.messageanalysisbot.database.FakeDatabase;
+import com.neoshell.telegram.messageanalysisbot.database.RowCallback;
+import com.neoshell.telegram.messageanalysisbot.nlp.NativeNLPEngine;
+
+public class WordCountPipelineTest {
+
+  private static final long FAILING_CHAT_ID = 2L;
+  private static final int FAILING_MONTH_INDEX = 602;
+
+  @Test
+  public void writesMonthsInOrderAndStopsChatAtFailure() throws Exception {
+    final List<String> writes = Collections
+        .synchronizedList(new ArrayList<String>());
+    final Map<String, List<Map.Entry<String, Long>>> writtenCounts = Collections
+        .synchronizedMap(new LinkedHashMap<String,
+            List<Map.Entry<String, Long>>>());
+    FakeDatabase database = new FakeDatabase() {
+      @Override
+      public void streamMessages(long chatId, Collection<MessageType> types,
+          long startEpochSeconds, long endEpochSeconds,
+          RowCallback<Message> callback) throws SQLException {
+        if (chatId == FAILING_CHAT_ID
+            && startEpochSeconds == WordCounter
+                .convertMonthIndexToEpochSeconds(FAILING_MONTH_INDEX)) {
+          throw new SQLException("Lost connection");
+        }
+        super.streamMessages(chatId, types, startEpochSeconds,
+            endEpochSeconds, callback);
+      }
+
+      @Override
+      public void addOrUpdateWordCounts(long chatId, int timeRangeIndex,
+          List<Map.Entry<String, Long>> wordCounts) throws SQLException {
+        String key = chatId + "/" + timeRangeIndex;
+        writes.add(key);
+        writtenCounts.put(key, wordCounts);
+        super.addOrUpdateWordCounts(chatId, timeRangeIndex, wordCounts);
+      }
+
+      @Override
+      public void setWatermark(long chatId, String name, long watermark) {
+        assertEquals(ChatInfo.MONTHLY_WORD_COUNT, name);
+        assertTrue(writes.contains(chatId + "/" + watermark));
+        super.setWatermark(chatId, name, watermark);
+      }
+    };
+    long messageId = 0L;
+    for (long chatId = 1L; chatId <= 3L; chatId++) {
+      for (int monthIndex = 600; monthIndex <= 604; monthIndex++) {
+        long epochSeconds = WordCounter
+            .convertMonthIndexToEpochSeconds(monthIndex);
+        for (String text : getTexts(chatId, monthIndex)) {
+          database.addMessage(new Message(chatId, ++messageId, epochSeconds,
+              1L, 0L, 0L, text, MessageType.TEXT));
+        }
+      }
+    }
+    NativeNLPEngine nlp = new NativeNLPEngine();
+    nlp.initialize();
+    Map<Long, List<Integer>> monthsByChat = new LinkedHashMap<>();
+    monthsByChat.put(1L, Arrays.asList(600, 601, 602, 603, 604));
+    monthsByChat.put(FAILING_CHAT_ID, Arrays.asList(600, 601, 602, 603, 604));
+    monthsByChat.put(3L, Collections.<Integer> emptyList());
+    new WordCountPipeline(database, nlp, false, 10, /* chunkSize= */7,
+        /* maxWordsInMemory= */5, /* spillDirectory= */null, 3, 2, 4,
+        Logger.getAnonymousLogger()).run(monthsByChat);
+
+    List<String> chat1Writes = new ArrayList<>();
+    List<String> chat2Writes = new ArrayList<>();
+    for (String write : writes) {
+      (write.startsWith("1/") ? chat1Writes : chat2Writes).add(write);
+    }
+    assertEquals(Arrays.asList("1/600", "1/601", "1/602", "1/603", "1/604"),
+        chat1Writes);
+    assertEquals(Arrays.asList("2/600", "2/601"), chat2Writes);
+    // The next run continues after the last month written.
+    assertEquals(604L,
+        database.getWatermark(1L, ChatInfo.MONTHLY_WORD_COUNT));
+    assertEquals(601L, database.getWatermark(FAILING_CHAT_ID,
+        ChatInfo.MONTHLY_WORD_COUNT));
+    // Same as counting serially.
+    for (String key : writes) {
+      String[] parts = key.split("/");
+      assertEquals(nlp.countWords(getTexts(Long.parseLong(parts[0]),
+          Integer.parseInt(parts[1])), false, 10), writtenCounts.get(key));
+    }
+  }
+
+  private static List<String> getTexts(long chatId, int monthIndex) {
+    List<String> texts = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      texts.add("chat" + chatId + " month" + monthIndex + " word" + (i % 7)
+          + " 天气" + (i % 3 == 0 ? "不错" : "很差"));
+    }
+    return texts;
+  }
+
+}
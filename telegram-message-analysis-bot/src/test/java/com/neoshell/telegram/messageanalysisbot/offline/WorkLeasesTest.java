@@ -0,0 +1,84 @@
+package com.neoshell.telegram.messageanalysisbot.offline;
+
+import static org.junit.Assert.*;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.neoshell.telegram.messageanalysisbot.database.FakeDatabase;
+
+public class WorkLeasesTest {
+
+  private static final long TTL_MILLIS = 300;
+
+  private FakeDatabase database;
+  private Logger logger;
+
+  @Before
+  public void setUp() {
+    logger = Logger.getAnonymousLogger();
+    logger.setLevel(Level.OFF);
+    database = new FakeDatabase();
+  }
+
+  @Test
+  public void onlyOneNodeHoldsALease() throws Exception {
+    try (WorkLeases a = new WorkLeases(database, "a", TTL_MILLIS, logger);
+        WorkLeases b = new WorkLeases(database, "b", TTL_MILLIS, logger)) {
+      assertTrue(a.tryAcquire("chat:1"));
+      assertFalse(b.tryAcquire("chat:1"));
+      assertTrue(b.tryAcquire("chat:2"));
+      // Renewed by the holder past its first expiry.
+      Thread.sleep(TTL_MILLIS * 2);
+      assertTrue(a.isHeld("chat:1"));
+      assertFalse(b.tryAcquire("chat:1"));
+
+      a.release("chat:1");
+      assertFalse(a.isHeld("chat:1"));
+      assertTrue(b.tryAcquire("chat:1"));
+    }
+    assertEquals(0, database.getNumLeases());
+  }
+
+  @Test
+  public void leaseOfDeadNodeIsTakenOverAfterExpiry() throws Exception {
+    // A crashed node leaves its lease behind without renewing it.
+    database.putLease("chat:1", "dead",
+        System.currentTimeMillis() + TTL_MILLIS);
+    try (WorkLeases alive = new WorkLeases(database, "alive", TTL_MILLIS,
+        logger)) {
+      assertFalse(alive.tryAcquire("chat:1"));
+      Thread.sleep(TTL_MILLIS + 50);
+      assertTrue(alive.tryAcquire("chat:1"));
+    }
+  }
+
+  @Test
+  public void detectsLostLease() throws Exception {
+    try (WorkLeases leases = new WorkLeases(database, "a", TTL_MILLIS,
+        logger)) {
+      assertTrue(leases.tryAcquire("chat:1"));
+      database.putLease("chat:1", "b", System.currentTimeMillis() + 60000);
+      long deadlineMillis = System.currentTimeMillis() + 5000;
+      while (leases.isHeld("chat:1")
+          && System.currentTimeMillis() < deadlineMillis) {
+        Thread.sleep(10);
+      }
+      assertFalse(leases.isHeld("chat:1"));
+    }
+    // Not released, since it is not ours.
+    assertEquals("b", database.getLeaseOwner("chat:1"));
+  }
+
+  @Test
+  public void defaultsOwnerToProcessName() {
+    try (WorkLeases leases = new WorkLeases(database, "", TTL_MILLIS,
+        logger)) {
+      assertTrue(leases.getOwner().contains("@"));
+    }
+  }
+
+}
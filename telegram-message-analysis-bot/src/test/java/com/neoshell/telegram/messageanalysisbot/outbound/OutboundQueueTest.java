@@ -0,0 +1,99 @@
+package com.neoshell.telegram.messageanalysisbot.outbound;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+public class OutboundQueueTest {
+
+  @Test
+  public void coalescesQueuedTextsOfTheSameChat() throws Exception {
+    final CountDownLatch blocker = new CountDownLatch(1);
+    final List<String> sentTexts = Collections
+        .synchronizedList(new ArrayList<String>());
+    OutboundQueue queue = new OutboundQueue(new OutboundQueue.Sender() {
+      @Override
+      public Message send(SendMessage sendMessage)
+          throws TelegramApiException {
+        try {
+          blocker.await();
+        } catch (InterruptedException e) {
+          throw new TelegramApiException(e);
+        }
+        sentTexts.add(sendMessage.getText());
+        return new Message();
+      }
+
+      @Override
+      public Message send(SendPhoto sendPhoto) {
+        return new Message();
+      }
+    }, 4096, 1, 100, 6000, 100);
+    queue.start();
+    // The first one is in flight while the others queue up behind it.
+    CompletableFuture<Message> first = queue.sendText(newText(1, "a"));
+    Thread.sleep(100);
+    CompletableFuture<Message> second = queue.sendText(newText(1, "b"));
+    CompletableFuture<Message> third = queue.sendText(newText(1, "c"));
+    blocker.countDown();
+    first.get(5, TimeUnit.SECONDS);
+    assertSame(second.get(5, TimeUnit.SECONDS),
+        third.get(5, TimeUnit.SECONDS));
+    queue.shutdown(5000);
+    assertEquals(2, sentTexts.size());
+    assertEquals("a", sentTexts.get(0));
+    assertEquals("b\nc", sentTexts.get(1));
+  }
+
+  @Test
+  public void retriesAfterTooManyRequests() throws Exception {
+    final List<Long> sendMillis = Collections
+        .synchronizedList(new ArrayList<Long>());
+    OutboundQueue queue = new OutboundQueue(new OutboundQueue.Sender() {
+      @Override
+      public Message send(SendMessage sendMessage)
+          throws TelegramApiException {
+        sendMillis.add(System.currentTimeMillis());
+        if (sendMillis.size() == 1) {
+          throw new TelegramApiRequestException("Too Many Requests",
+              new JSONObject("{\"ok\":false,\"error_code\":429,"
+                  + "\"description\":\"Too Many Requests\","
+                  + "\"parameters\":{\"retry_after\":1}}"));
+        }
+        return new Message();
+      }
+
+      @Override
+      public Message send(SendPhoto sendPhoto) {
+        return new Message();
+      }
+    }, 4096, 2, 100, 6000, 100);
+    queue.start();
+    queue.sendText(newText(1, "a")).get(5, TimeUnit.SECONDS);
+    queue.shutdown(5000);
+    assertEquals(2, sendMillis.size());
+    assertTrue(sendMillis.get(1) - sendMillis.get(0) >= 900);
+  }
+
+  private static SendMessage newText(long chatId, String text) {
+    SendMessage sendMessage = new SendMessage();
+    sendMessage.setChatId(Long.valueOf(chatId).toString());
+    sendMessage.setText(text);
+    return sendMessage;
+  }
+
+}
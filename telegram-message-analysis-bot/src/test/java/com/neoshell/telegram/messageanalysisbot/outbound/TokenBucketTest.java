@@ -0,0 +1,32 @@
+package com.neoshell.telegram.messageanalysisbot.outbound;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void allowsBurstThenRefillsAtRate() {
+    TokenBucket bucket = new TokenBucket(3, 2.0, 0L);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0L, bucket.getWaitNanos(0L));
+      bucket.take(0L);
+    }
+    assertEquals(SECOND / 2, bucket.getWaitNanos(0L));
+    assertEquals(0L, bucket.getWaitNanos(SECOND / 2));
+    bucket.take(SECOND / 2);
+    assertFalse(bucket.isFull(SECOND));
+    assertTrue(bucket.isFull(10 * SECOND));
+    // Never holds more than its capacity.
+    for (int i = 0; i < 3; i++) {
+      bucket.take(10 * SECOND);
+    }
+    assertTrue(bucket.getWaitNanos(10 * SECOND) > 0);
+  }
+
+}
@@ -0,0 +1,102 @@
+package com.neoshell.telegram.messageanalysisbot.replygraph;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.neoshell.telegram.messageanalysisbot.handler.ReplyStats;
+
+public class ChatReplyGraphTest {
+
+  private static final long HOUR = ChatReplyGraph.SECONDS_PER_HOUR;
+
+  @Test
+  public void scoresExplicitAndImplicitReplies() {
+    ChatReplyGraph graph = new ChatReplyGraph(2, 24);
+    graph.addReply(1, 10, 0, HOUR);
+    graph.addReply(2, 20, 0, HOUR);
+    graph.addReply(3, 30, 0, HOUR);
+    graph.addReply(4, 40, 0, HOUR);
+    graph.addReply(5, 30, 10, HOUR);
+    ReplyScoreAccumulator scores = graph.getScores(0);
+    assertEquals(0.5, scores.getScore(20, 10, false), 1e-9);
+    assertEquals(0.5, scores.getScore(40, 30, false), 1e-9);
+    // Message 1 has left the implicit reply window of message 4.
+    assertEquals(0.0, scores.getScore(40, 10, false), 0.0);
+    assertEquals(1.0, scores.getScore(30, 10, true), 1e-9);
+  }
+
+  @Test
+  public void skipsMessagesAlreadyAdded() {
+    ChatReplyGraph graph = new ChatReplyGraph(2, 24);
+    assertTrue(graph.addReply(5, 10, 20, HOUR));
+    assertFalse(graph.addReply(5, 10, 20, HOUR));
+    assertFalse(graph.addReply(4, 10, 20, HOUR));
+    assertEquals(1.0, graph.getScores(0).getScore(10, 20, true), 1e-9);
+  }
+
+  @Test
+  public void windowStartsAtWholeHourAndOldBucketsAreEvicted() {
+    ChatReplyGraph graph = new ChatReplyGraph(2, 2);
+    graph.addReply(1, 10, 20, HOUR);
+    graph.addReply(2, 10, 20, 2 * HOUR + 10);
+    graph.addReply(3, 10, 20, 3 * HOUR);
+    assertEquals(2.0, graph.getScores(2 * HOUR + 100).getScore(10, 20, true),
+        1e-9);
+    assertEquals(3.0, graph.getScores(0).getScore(10, 20, true), 1e-9);
+    graph.addReply(4, 10, 20, 4 * HOUR);
+    assertEquals(3, graph.getNumBuckets());
+    assertEquals(3.0, graph.getScores(0).getScore(10, 20, true), 1e-9);
+  }
+
+  @Test
+  public void parallelLoadMatchesAddingOneByOne() {
+    Random random = new Random(42);
+    ReplyLog log = new ReplyLog();
+    ChatReplyGraph expected = new ChatReplyGraph(10, 24 * 30);
+    long epochSeconds = 1000 * HOUR;
+    for (int i = 1; i <= 100000; i++) {
+      long userId = 1 + random.nextInt(50);
+      long replyToUserId = random.nextInt(4) == 0 ? 1 + random.nextInt(50) : 0;
+      epochSeconds += random.nextInt(30);
+      log.add(i, userId, replyToUserId, epochSeconds);
+      expected.addReply(i, userId, replyToUserId, epochSeconds);
+    }
+    ChatReplyGraph actual = new ChatReplyGraph(10, 24 * 30);
+    actual.addReplies(log);
+    assertEquals(expected.getNumBuckets(), actual.getNumBuckets());
+    assertEquals(expected.getNumEdges(), actual.getNumEdges());
+    List<ReplyStats> expectedTop = expected.getScores(0).getTopK(20);
+    List<ReplyStats> actualTop = actual.getScores(0).getTopK(20);
+    for (int i = 0; i < expectedTop.size(); i++) {
+      assertEquals(expectedTop.get(i).getScore(), actualTop.get(i).getScore(),
+          1e-6);
+    }
+    // Both continue with the same implicit reply window.
+    expected.addReply(100001, 7, 0, epochSeconds);
+    actual.addReply(100001, 7, 0, epochSeconds);
+    assertEquals(expected.getScores(epochSeconds).getScore(7, 3, false),
+        actual.getScores(epochSeconds).getScore(7, 3, false), 1e-6);
+  }
+
+  @Test
+  public void topKIsSortedAndBounded() {
+    ReplyScoreAccumulator scores = new ReplyScoreAccumulator();
+    for (int i = 1; i <= 1000; i++) {
+      scores.add(i, i + 1, i % 2 == 0, i);
+      scores.add(i, i + 1, i % 2 == 0, i);
+    }
+    assertEquals(1000, scores.size());
+    List<ReplyStats> top = scores.getTopK(3);
+    assertEquals(3, top.size());
+    assertEquals(2000.0, top.get(0).getScore(), 0.0);
+    assertEquals(1998.0, top.get(1).getScore(), 0.0);
+    assertEquals(1996.0, top.get(2).getScore(), 0.0);
+    assertTrue(top.get(0).isExplicitReply());
+    assertEquals(1000, scores.getTopK(5000).size());
+  }
+
+}
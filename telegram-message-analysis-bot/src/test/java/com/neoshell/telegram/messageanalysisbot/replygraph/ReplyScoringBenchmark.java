@@ -0,0 +1,128 @@
+package com.neoshell.telegram.messageanalysisbot.replygraph;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.neoshell.telegram.messageanalysisbot.handler.ReplyStats;
+
+/**
+ * Compares scoring replies with a HashMap of ReplyStats keys, as 'network'
+ * command used to do, against ReplyScoreAccumulator. Also compares loading
+ * the hourly buckets of a chat one by one and in parallel segments.
+ *
+ * Run main() on the test classpath after mvn test-compile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyScoringBenchmark {
+
+  private static final int IMPLICIT_REPLY_RANGE = 10;
+
+  @Param({ "100000", "1000000" })
+  public int numReplies;
+
+  private ReplyLog log;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    log = new ReplyLog();
+    long epochSeconds = 0L;
+    for (int i = 1; i <= numReplies; i++) {
+      long userId = 100000000L + random.nextInt(200);
+      long replyToUserId = random.nextInt(4) == 0
+          ? 100000000L + random.nextInt(200) : 0L;
+      epochSeconds += random.nextInt(5);
+      log.add(i, userId, replyToUserId, epochSeconds);
+    }
+  }
+
+  @Benchmark
+  public Map<ReplyStats, Double> hashMap() {
+    Map<ReplyStats, Double> scores = new HashMap<>();
+    long[] recentUserIds = new long[IMPLICIT_REPLY_RANGE];
+    for (int i = 0; i < log.size(); i++) {
+      long userId = log.getUserId(i);
+      long replyToUserId = log.getReplyToUserId(i);
+      if (replyToUserId != 0) {
+        addScore(scores, new ReplyStats(userId, replyToUserId, true, 0.0),
+            1.0);
+      } else {
+        for (int j = 0; j < Math.min(i, IMPLICIT_REPLY_RANGE); j++) {
+          if (recentUserIds[j] != userId) {
+            addScore(scores,
+                new ReplyStats(userId, recentUserIds[j], false, 0.0),
+                1.0 / IMPLICIT_REPLY_RANGE);
+          }
+        }
+      }
+      recentUserIds[i % IMPLICIT_REPLY_RANGE] = userId;
+    }
+    return scores;
+  }
+
+  @Benchmark
+  public ReplyScoreAccumulator accumulator() {
+    ReplyScoreAccumulator scores = new ReplyScoreAccumulator();
+    long[] recentUserIds = new long[IMPLICIT_REPLY_RANGE];
+    for (int i = 0; i < log.size(); i++) {
+      long userId = log.getUserId(i);
+      ChatReplyGraph.addScores(scores, userId, log.getReplyToUserId(i),
+          recentUserIds, Math.min(i, IMPLICIT_REPLY_RANGE),
+          IMPLICIT_REPLY_RANGE);
+      recentUserIds[i % IMPLICIT_REPLY_RANGE] = userId;
+    }
+    return scores;
+  }
+
+  @Benchmark
+  public ChatReplyGraph sequentialHourlyLoad() {
+    ChatReplyGraph graph = new ChatReplyGraph(IMPLICIT_REPLY_RANGE,
+        Integer.MAX_VALUE);
+    for (int i = 0; i < log.size(); i++) {
+      graph.addReply(log.getMessageId(i), log.getUserId(i),
+          log.getReplyToUserId(i), log.getEpochSeconds(i));
+    }
+    return graph;
+  }
+
+  @Benchmark
+  public ChatReplyGraph parallelHourlyLoad() {
+    ChatReplyGraph graph = new ChatReplyGraph(IMPLICIT_REPLY_RANGE,
+        Integer.MAX_VALUE);
+    graph.addReplies(log);
+    return graph;
+  }
+
+  private static void addScore(Map<ReplyStats, Double> scores, ReplyStats key,
+      double score) {
+    Double oldScore = scores.get(key);
+    scores.put(key, oldScore == null ? score : oldScore + score);
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(ReplyScoringBenchmark.class.getSimpleName()).build()).run();
+  }
+
+}
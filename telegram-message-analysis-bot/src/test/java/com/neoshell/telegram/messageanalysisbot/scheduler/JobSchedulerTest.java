@@ -0,0 +1,178 @@
+package com.neoshell.telegram.messageanalysisbot.scheduler;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+public class JobSchedulerTest {
+
+  private static Logger createLogger() {
+    Logger logger = Logger.getAnonymousLogger();
+    logger.setLevel(Level.OFF);
+    return logger;
+  }
+
+  @Test
+  public void recordsRunsAndFailures() throws Exception {
+    final CountDownLatch done = new CountDownLatch(2);
+    JobScheduler scheduler = new JobScheduler(1.0, null, 0L, 10,
+        createLogger());
+    scheduler.schedule(new Job() {
+      @Override
+      public String getName() {
+        return "ok-job";
+      }
+
+      @Override
+      public String run(JobContext context) {
+        done.countDown();
+        return "did something";
+      }
+    }, 0L, 0L);
+    scheduler.schedule(new Job() {
+      @Override
+      public String getName() {
+        return "bad-job";
+      }
+
+      @Override
+      public String run(JobContext context) {
+        done.countDown();
+        throw new IllegalStateException("broken");
+      }
+    }, 0L, 0L);
+    scheduler.start();
+    assertFalse(scheduler.runNow("missing-job"));
+    assertTrue(scheduler.runNow("ok-job"));
+    assertTrue(scheduler.runNow("bad-job"));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    scheduler.shutdown(5000);
+
+    String stats = scheduler.getStats();
+    assertTrue(stats, stats.contains("ok-job: runs=1, failures=0"));
+    assertTrue(stats, stats.contains("bad-job: runs=1, failures=1"));
+    assertTrue(stats, stats.contains("ok-job ok"));
+    assertTrue(stats, stats.contains("did something"));
+    assertTrue(stats, stats.contains("bad-job FAILED"));
+  }
+
+  @Test
+  public void runsScheduledJobRepeatedly() throws Exception {
+    final CountDownLatch done = new CountDownLatch(3);
+    JobScheduler scheduler = new JobScheduler(1.0, null, 0L, 2,
+        createLogger());
+    scheduler.schedule(new Job() {
+      @Override
+      public String getName() {
+        return "job";
+      }
+
+      @Override
+      public String run(JobContext context) {
+        done.countDown();
+        return "";
+      }
+    }, 0L, 10L);
+    scheduler.start();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    scheduler.shutdown(5000);
+  }
+
+  @Test
+  public void shutdownCancelsJobAtPause() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicBoolean isCancelled = new AtomicBoolean(false);
+    JobScheduler scheduler = new JobScheduler(1.0, null, 0L, 10,
+        createLogger());
+    scheduler.schedule(new Job() {
+      @Override
+      public String getName() {
+        return "endless-job";
+      }
+
+      @Override
+      public String run(JobContext context) throws Exception {
+        started.countDown();
+        try {
+          while (true) {
+            context.pause();
+          }
+        } catch (InterruptedException e) {
+          isCancelled.set(true);
+          throw e;
+        }
+      }
+    }, 0L, 0L);
+    scheduler.start();
+    scheduler.runNow("endless-job");
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    scheduler.shutdown(5000);
+    assertTrue(isCancelled.get());
+    assertTrue(scheduler.getStats().contains("cancelled"));
+  }
+
+  @Test
+  public void pauseKeepsDutyCycle() throws Exception {
+    JobContext context = new JobContext(0.5, null, 0L);
+    long startNanos = System.nanoTime();
+    while (System.nanoTime() - startNanos < TimeUnit.MILLISECONDS
+        .toNanos(100)) {
+      // Busy.
+    }
+    context.pause();
+    // Sleeps about as long as it worked.
+    assertTrue(context.getPausedMillis() >= 90);
+  }
+
+  @Test
+  public void pauseWaitsWhileBusy() throws Exception {
+    final AtomicInteger numChecks = new AtomicInteger();
+    JobContext context = new JobContext(1.0, new BooleanSupplier() {
+      @Override
+      public boolean getAsBoolean() {
+        return numChecks.incrementAndGet() <= 2;
+      }
+    }, 10000L);
+    context.pause();
+    assertEquals(3, numChecks.get());
+
+    // Gives up waiting after maxBusyWaitMillis.
+    context = new JobContext(1.0, new BooleanSupplier() {
+      @Override
+      public boolean getAsBoolean() {
+        return true;
+      }
+    }, 100L);
+    long startMillis = System.currentTimeMillis();
+    context.pause();
+    assertTrue(System.currentTimeMillis() - startMillis < 5000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsDuplicatedJobNames() {
+    JobScheduler scheduler = new JobScheduler(1.0, null, 0L, 10,
+        createLogger());
+    Job job = new Job() {
+      @Override
+      public String getName() {
+        return "job";
+      }
+
+      @Override
+      public String run(JobContext context) {
+        return "";
+      }
+    };
+    scheduler.schedule(job, 0L, 0L);
+    scheduler.schedule(job, 0L, 0L);
+  }
+
+}
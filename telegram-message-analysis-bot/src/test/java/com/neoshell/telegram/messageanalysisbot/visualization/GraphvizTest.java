@@ -0,0 +1,92 @@
+package com.neoshell.telegram.messageanalysisbot.visualization;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Runs shell scripts in place of the Graphviz binary.
+public class GraphvizTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void requireShell() {
+    assumeTrue(new File("/bin/sh").canExecute());
+  }
+
+  @Test
+  public void returnsStdout() throws Exception {
+    Graphviz graphviz = new Graphviz(createStub("exec cat"), 1, 5000);
+    byte[] dot = "digraph { a -> b }".getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(dot, graphviz.generateImageFromDot(dot, "png", "dot", 96));
+    assertTrue(graphviz.getStats().startsWith("rendered=1, failed=0"));
+  }
+
+  @Test
+  public void failsWithStderr() throws Exception {
+    Graphviz graphviz = new Graphviz(
+        createStub("cat > /dev/null; echo 'syntax error' >&2; exit 1"), 1,
+        5000);
+    try {
+      graphviz.generateImageFromDot(new byte[] { 'x' }, "png", "dot", 96);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("exited with 1"));
+      assertTrue(e.getMessage(), e.getMessage().contains("syntax error"));
+    }
+  }
+
+  @Test
+  public void killsProcessOnTimeout() throws Exception {
+    File pidFile = new File(folder.getRoot(), "pid");
+    Graphviz graphviz = new Graphviz(
+        createStub("echo $$ > " + pidFile.getAbsolutePath() + "; exec sleep 60"),
+        1, 500);
+    long startMillis = System.currentTimeMillis();
+    try {
+      graphviz.generateImageFromDot(new byte[] { 'x' }, "png", "dot", 96);
+      fail();
+    } catch (TimeoutException e) {
+      // Expected.
+    }
+    assertTrue(System.currentTimeMillis() - startMillis < 5000);
+    String pid = new String(Files.readAllBytes(pidFile.toPath()),
+        StandardCharsets.UTF_8).trim();
+    // Killing is asynchronous, so give it a moment.
+    boolean isAlive = true;
+    for (int i = 0; i < 50 && isAlive; i++) {
+      isAlive = isAlive(pid);
+      if (isAlive) {
+        Thread.sleep(100);
+      }
+    }
+    assertFalse(isAlive);
+    // The slot is free again.
+    assertTrue(graphviz.getStats().endsWith("running=0"));
+  }
+
+  private String createStub(String body) throws IOException {
+    File stub = folder.newFile();
+    Files.write(stub.toPath(),
+        ("#!/bin/sh\n" + body + "\n").getBytes(StandardCharsets.UTF_8));
+    assertTrue(stub.setExecutable(true));
+    return stub.getAbsolutePath();
+  }
+
+  private static boolean isAlive(String pid) throws Exception {
+    Process process = new ProcessBuilder("kill", "-0", pid).start();
+    return process.waitFor() == 0;
+  }
+
+}
@@ -0,0 +1,43 @@
+package com.neoshell.telegram.messageanalysisbot.visualization;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+
+import javax.imageio.ImageIO;
+
+import org.jgrapht.Graph;
+import org.jgrapht.graph.DirectedPseudograph;
+import org.junit.Test;
+
+import com.neoshell.telegram.messageanalysisbot.User;
+import com.neoshell.telegram.messageanalysisbot.handler.ReplyStats;
+
+public class Java2DGraphRendererTest {
+
+  @Test
+  public void rendersPng() throws Exception {
+    User alice = new User(1, "alice", "Alice", null);
+    User bob = new User(2, "bob", "Bob", "Smith");
+    User carol = new User(3, null, "王小明", null);
+    Graph<User, ReplyStats> graph = new DirectedPseudograph<User, ReplyStats>(
+        ReplyStats.class);
+    graph.addVertex(alice);
+    graph.addVertex(bob);
+    graph.addVertex(carol);
+    graph.addEdge(alice, bob, new ReplyStats(1, 2, true, 5.0));
+    graph.addEdge(alice, bob, new ReplyStats(1, 2, false, 1.5));
+    graph.addEdge(bob, alice, new ReplyStats(2, 1, true, 2.0));
+    graph.addEdge(carol, alice, new ReplyStats(3, 1, false, 0.3));
+    graph.addEdge(carol, carol, new ReplyStats(3, 3, true, 1.0));
+
+    byte[] png = new Java2DGraphRenderer().visualizeReplyRelationship(graph,
+        "red", "blue");
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+    assertNotNull(image);
+    assertTrue(image.getWidth() > 0);
+    assertEquals(image.getWidth(), image.getHeight());
+  }
+
+}